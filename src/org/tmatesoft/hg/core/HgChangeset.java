@@ -80,7 +80,8 @@ public class HgChangeset implements Cloneable {
 	/*package-local*/ void init(int localRevNumber, Nodeid nid, RawChangeset rawChangeset) {
 		revNumber = localRevNumber;
 		nodeid = nid;
-		changeset = rawChangeset.clone();
+		// instance outlives iteration (and parser that produced it), don't keep changeset text and parser's pools
+		changeset = rawChangeset.clone().detach();
 		modifiedFiles = addedFiles = null;
 		deletedFiles = null;
 		parent1 = parent2 = null;
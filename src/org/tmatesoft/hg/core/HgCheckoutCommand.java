@@ -24,11 +24,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.tmatesoft.hg.internal.CsetParamKeeper;
 import org.tmatesoft.hg.internal.DirstateBuilder;
+import org.tmatesoft.hg.internal.DirstateReader;
 import org.tmatesoft.hg.internal.EncodingHelper;
 import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.WorkerPool;
 import org.tmatesoft.hg.internal.WorkingDirFileWriter;
 import org.tmatesoft.hg.repo.HgDataFile;
 import org.tmatesoft.hg.repo.HgDirstate;
@@ -39,14 +46,18 @@ import org.tmatesoft.hg.repo.HgManifest;
 import org.tmatesoft.hg.repo.HgManifest.Flags;
 import org.tmatesoft.hg.repo.HgRepository;
 import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.repo.HgStatusCollector;
+import org.tmatesoft.hg.repo.HgWorkingCopyStatusCollector;
 import org.tmatesoft.hg.util.CancelSupport;
 import org.tmatesoft.hg.util.CancelledException;
+import org.tmatesoft.hg.util.Pair;
 import org.tmatesoft.hg.util.Path;
 import org.tmatesoft.hg.util.ProgressSupport;
 
 /**
  * Update working directory to specific state, 'hg checkout' counterpart.
- * For the time being, only 'clean' checkout is supported ('hg co --clean')
+ * 'Clean' checkout ('hg co --clean') rewrites each and every file, regular one touches only files 
+ * that differ between working directory parent and the revision being checked out.
  * 
  * @since 1.1
  * @author Artem Tikhomirov
@@ -66,7 +77,9 @@ public class HgCheckoutCommand extends HgAbstractCommand<HgCheckoutCommand>{
 	/**
 	 * Whether to discard all uncommited changes prior to check-out.
 	 * 
-	 * NOTE, at the moment, only clean checkout is supported!
+	 * Without clean checkout, only files changed between working directory parent and the revision
+	 * being checked out are written or deleted, and the command fails if any of these files has uncommitted changes.
+	 * Uncommitted changes to other files are kept. 
 	 *  
 	 * @param clean <code>true</code> to discard any change
 	 * @return <code>this</code> for convenience
@@ -114,6 +127,10 @@ public class HgCheckoutCommand extends HgAbstractCommand<HgCheckoutCommand>{
 			cancellation.checkCancelled();
 			progress.start(6);
 			Internals internalRepo = Internals.getInstance(repo);
+			// checkout tip if no revision set
+			final int coRevision = revisionToCheckout.get(HgRepository.TIP);
+			final DirstateBuilder dirstateBuilder = new DirstateBuilder(internalRepo);
+			final Set<Path> toWrite; // null to write all files of the revision
 			if (cleanCheckout) {
 				// remove tracked files from wd (perhaps, just forget 'Added'?)
 				// for now, just delete each and every tracked file
@@ -129,33 +146,21 @@ public class HgCheckoutCommand extends HgAbstractCommand<HgCheckoutCommand>{
 						return true;
 					}
 				});
+				toWrite = null;
 			} else {
-				throw new HgBadArgumentException("Sorry, only clean checkout is supported now, use #clean(true)", null);
+				dirstateBuilder.fillFrom(new DirstateReader(internalRepo, new Path.SimpleSource()));
+				toWrite = prepareUpdate(coRevision, dirstateBuilder);
 			}
 			progress.worked(1);
 			cancellation.checkCancelled();
-			final DirstateBuilder dirstateBuilder = new DirstateBuilder(internalRepo);
-			final CheckoutWorker worker = new CheckoutWorker(internalRepo);
+			final CheckoutPool pool = new CheckoutPool(internalRepo, cancellation, internalRepo.getCheckoutWriters());
 			HgManifest.Inspector insp = new HgManifest.Inspector() {
 				
 				public boolean next(Nodeid nid, Path fname, Flags flags) {
-					if (worker.next(nid, fname, flags)) {
-						// Mercurial seems to write "n   0  -1   unset fname" on `hg --clean co -rev <earlier rev>`
-						// and the reason for 'force lookup' I suspect is a slight chance of simultaneous modification
-						// of the file by user that doesn't alter its size the very second dirstate is being written
-						// (or the file is being updated and the update brought in changes that didn't alter the file size - 
-						// with size and timestamp set, later `hg status` won't notice these changes)
-						
-						// However, as long as we use this class to write clean copies of the files, we can put all the fields
-						// right away.
-						int mtime = worker.getLastFileModificationTime();
-						// Manifest flags are chars (despite octal values `hg manifest --debug` displays),
-						// while dirstate keeps actual unix flags.
-						int fmode = worker.getLastFileMode();
-						dirstateBuilder.recordNormal(fname, fmode, mtime, worker.getLastFileSize());
+					if (toWrite != null && !toWrite.contains(fname)) {
 						return true;
 					}
-					return false;
+					return pool.next(nid, fname, flags);
 				}
 				
 				public boolean end(int manifestRevision) {
@@ -166,11 +171,17 @@ public class HgCheckoutCommand extends HgAbstractCommand<HgCheckoutCommand>{
 					return true;
 				}
 			};
-			// checkout tip if no revision set
-			final int coRevision = revisionToCheckout.get(HgRepository.TIP);
 			dirstateBuilder.parents(repo.getChangelog().getRevision(coRevision), null);
-			repo.getManifest().walk(coRevision, coRevision, insp);
-			worker.checkFailed();
+			if (toWrite == null || !toWrite.isEmpty()) {
+				pool.start();
+				try {
+					repo.getManifest().walk(coRevision, coRevision, insp);
+				} finally {
+					pool.finish();
+				}
+			}
+			pool.checkFailed();
+			pool.record(dirstateBuilder);
 			progress.worked(3);
 			cancellation.checkCancelled();
 			File dirstateFile = internalRepo.getRepositoryFile(Dirstate);
@@ -208,6 +219,72 @@ public class HgCheckoutCommand extends HgAbstractCommand<HgCheckoutCommand>{
 		}
 	}
 
+	/**
+	 * Find out files that differ between working directory parent and the revision to check out,
+	 * delete those not in the revision and tell which to write.
+	 * 
+	 * @return files to write, never <code>null</code>
+	 */
+	private Set<Path> prepareUpdate(int coRevision, DirstateBuilder dirstateBuilder) throws HgException, HgRuntimeException {
+		final Pair<Nodeid, Nodeid> wcParents = repo.getWorkingCopyParents();
+		if (!wcParents.second().isNull()) {
+			throw new HgBadArgumentException("Working directory has uncommitted merge, use #clean(true) to discard it", null);
+		}
+		final int wcRevision = wcParents.first().isNull() ? HgRepository.NO_REVISION : repo.getChangelog().getRevisionIndex(wcParents.first());
+		if (wcRevision == coRevision) {
+			return Collections.emptySet();
+		}
+		HgStatusCollector sc = new HgStatusCollector(repo);
+		sc.detectCopies(false); // copied files are written as any other added file
+		HgStatusCollector.Record changes = sc.status(wcRevision, coRevision);
+		final TreeSet<Path> toWrite = new TreeSet<Path>(changes.getModified());
+		toWrite.addAll(changes.getAdded());
+		final List<Path> toDelete = changes.getRemoved();
+		// don't overwrite changes user made to files we are going to touch 
+		final ArrayList<Path> conflicts = new ArrayList<Path>();
+		if (wcRevision == HgRepository.NO_REVISION) {
+			for (Path p : toWrite) {
+				if (new File(repo.getWorkingDir(), p.toString()).exists()) {
+					conflicts.add(p);
+				}
+			}
+		} else if (!toWrite.isEmpty() || !toDelete.isEmpty()) {
+			ArrayList<Path> touched = new ArrayList<Path>(toWrite);
+			touched.addAll(toDelete);
+			HgStatusCollector.Record local;
+			try {
+				local = HgWorkingCopyStatusCollector.create(repo, touched.toArray(new Path[touched.size()])).status(HgRepository.WORKING_COPY);
+			} catch (IOException ex) {
+				throw new HgIOException("Failed to check working directory for uncommitted changes", ex, repo.getWorkingDir());
+			}
+			conflicts.addAll(local.getModified());
+			conflicts.addAll(local.getAdded());
+			conflicts.addAll(local.getRemoved());
+			for (Path p : local.getUnknown()) {
+				// file not tracked in working directory, yet present in the revision. Note, files
+				// listed for status but missing on disk come as unknown as well
+				if (toWrite.contains(p) && new File(repo.getWorkingDir(), p.toString()).exists()) {
+					conflicts.add(p);
+				}
+			}
+		}
+		if (!conflicts.isEmpty()) {
+			String msg = String.format("Uncommitted changes in %s, use #clean(true) to discard them", conflicts);
+			throw new HgBadArgumentException(msg, null);
+		}
+		for (Path p : toDelete) {
+			File f = new File(repo.getWorkingDir(), p.toString());
+			f.delete();
+			// like hg, don't leave empty directories behind
+			File d = f.getParentFile();
+			while (!d.equals(repo.getWorkingDir()) && d.delete()) {
+				d = d.getParentFile();
+			}
+			dirstateBuilder.forget(p);
+		}
+		return toWrite;
+	}
+
 	static class CheckoutWorker {
 		private final Internals hgRepo;
 		private HgException failure;
@@ -220,9 +297,17 @@ public class HgCheckoutCommand extends HgAbstractCommand<HgCheckoutCommand>{
 		}
 		
 		public boolean next(Nodeid nid, Path fname, Flags flags) {
+			try {
+				return next(hgRepo.getRepo().getFileNode(fname), nid, flags);
+			} catch (HgRuntimeException ex) {
+				failure = new HgLibraryFailureException(ex);
+			}
+			return false;
+		}
+
+		public boolean next(HgDataFile df, Nodeid nid, Flags flags) {
 			WorkingDirFileWriter workingDirWriter = null;
 			try {
-				HgDataFile df = hgRepo.getRepo().getFileNode(fname);
 				int fileRevIndex = df.getRevisionIndex(nid);
 				// check out files based on manifest
 				workingDirWriter = new WorkingDirFileWriter(hgRepo);
@@ -257,4 +342,117 @@ public class HgCheckoutCommand extends HgAbstractCommand<HgCheckoutCommand>{
 			}
 		}
 	};
+
+	/**
+	 * Writes files of the revision being checked out with a pool of threads. Each file has a revlog of its own,
+	 * thus distinct files get reconstructed and written independently, each one by a single thread.
+	 * Results are kept in the manifest order, so that dirstate is recorded exactly as with files written one by one.
+	 * 
+	 * <p>Number of files waiting for a worker is limited, once there's no room, calling thread writes the file itself.
+	 * With 1 worker or less, files are written by the calling thread right away.
+	 * 
+	 * <p>First failure or cancellation stops writing of other files, it's reported with {@link #checkFailed()}.
+	 * Clients shall call {@link #finish()} regardless of the outcome, so that nothing gets written after it returns.
+	 */
+	static class CheckoutPool {
+		private final Internals hgRepo;
+		private final CancelSupport cancelSupport;
+		private final WorkerPool pool;
+		private final ArrayList<FileEntry> entries = new ArrayList<FileEntry>();
+
+		CheckoutPool(Internals implRepo, CancelSupport cancellation, int workerThreads) {
+			hgRepo = implRepo;
+			cancelSupport = cancellation;
+			pool = new WorkerPool("hg4j-checkout-writer", workerThreads, Math.max(1, workerThreads) * 4);
+		}
+
+		public void start() {
+			entries.clear();
+			pool.start();
+		}
+
+		/**
+		 * @return <code>false</code> if there's no reason to go on with other files
+		 */
+		public boolean next(Nodeid nid, Path fname, Flags flags) {
+			if (pool.isFailed()) {
+				return false;
+			}
+			final FileEntry e;
+			try {
+				// repository caches file nodes without synchronization, workers get them ready
+				e = new FileEntry(hgRepo.getRepo().getFileNode(fname), nid, flags);
+			} catch (HgRuntimeException ex) {
+				pool.fail(new HgLibraryFailureException(ex));
+				return false;
+			}
+			entries.add(e);
+			pool.execute(e);
+			return !pool.isFailed();
+		}
+
+		/**
+		 * Wait for all files to get written, or given up in case of failure.
+		 */
+		public void finish() {
+			pool.finish();
+		}
+
+		public void checkFailed() throws HgException, CancelledException {
+			final Throwable th = pool.getFailure();
+			if (th instanceof HgException) {
+				throw (HgException) th;
+			}
+			if (th instanceof CancelledException) {
+				throw (CancelledException) th;
+			}
+			pool.checkFailure("Failed to write working directory file");
+		}
+
+		/**
+		 * Record files written, in the manifest order. Makes sense only once pool is {@link #finish() finished} with no failure.
+		 */
+		public void record(DirstateBuilder dirstateBuilder) {
+			for (FileEntry e : entries) {
+				// Mercurial seems to write "n   0  -1   unset fname" on `hg --clean co -rev <earlier rev>`
+				// and the reason for 'force lookup' I suspect is a slight chance of simultaneous modification
+				// of the file by user that doesn't alter its size the very second dirstate is being written
+				// (or the file is being updated and the update brought in changes that didn't alter the file size - 
+				// with size and timestamp set, later `hg status` won't notice these changes)
+				
+				// However, as long as we use this class to write clean copies of the files, we can put all the fields
+				// right away.
+				// Manifest flags are chars (despite octal values `hg manifest --debug` displays),
+				// while dirstate keeps actual unix flags.
+				dirstateBuilder.recordNormal(e.dataFile.getPath(), e.fmode, e.mtime, e.size);
+			}
+		}
+
+		private final class FileEntry implements WorkerPool.Task {
+			public final HgDataFile dataFile;
+			private final Nodeid revision;
+			private final Flags flags;
+			// written by a worker, read once pool is finished
+			public int fmode, mtime, size;
+
+			public FileEntry(HgDataFile df, Nodeid nid, Flags fileFlags) {
+				dataFile = df;
+				revision = nid;
+				flags = fileFlags;
+			}
+
+			public void run() throws HgException, CancelledException, HgRuntimeException {
+				cancelSupport.checkCancelled();
+				// replace file rather than write over it, not to follow a symlink there might be
+				new File(hgRepo.getRepo().getWorkingDir(), dataFile.getPath().toString()).delete();
+				CheckoutWorker worker = new CheckoutWorker(hgRepo);
+				if (!worker.next(dataFile, revision, flags)) {
+					worker.checkFailed();
+				}
+				fmode = worker.getLastFileMode();
+				mtime = worker.getLastFileModificationTime();
+				size = worker.getLastFileSize();
+			}
+		}
+	}
 }
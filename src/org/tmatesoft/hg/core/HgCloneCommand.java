@@ -24,6 +24,7 @@ import static org.tmatesoft.hg.internal.RevlogStreamWriter.preferCompressedOverC
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.TreeMap;
@@ -34,6 +35,8 @@ import org.tmatesoft.hg.internal.DataSerializer;
 import org.tmatesoft.hg.internal.DataSerializer.ByteArrayDataSource;
 import org.tmatesoft.hg.internal.DigestHelper;
 import org.tmatesoft.hg.internal.FNCacheFile;
+import org.tmatesoft.hg.internal.FileGroupPool;
+import org.tmatesoft.hg.internal.FileUtils;
 import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.Lifecycle;
 import org.tmatesoft.hg.internal.Patch;
@@ -66,6 +69,7 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 
 	private File destination;
 	private HgRemoteRepository srcRepo;
+	private boolean stream = true;
 
 	public HgCloneCommand() {
 	}
@@ -85,6 +89,19 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 		return this;
 	}
 
+	/**
+	 * Whether to copy store files of the remote repository as is, when server allows that. Otherwise, 
+	 * all changes are pulled and written down one by one, which is slower but verifies each revision.
+	 * Default is <code>true</code>.
+	 * 
+	 * @param allowStreaming <code>true</code> to use streaming when possible
+	 * @return <code>this</code> for convenience
+	 */
+	public HgCloneCommand stream(boolean allowStreaming) {
+		stream = allowStreaming;
+		return this;
+	}
+
 	/**
 	 * 
 	 * @return
@@ -113,24 +130,30 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 		ProgressSupport progress = getProgressSupport(null);
 		CancelSupport cancel = getCancelSupport(null, true);
 		cancel.checkCancelled();
-		// if cloning remote repo, which can stream and no revision is specified -
-		// can use 'stream_out' wireproto
-		//
 		try {
-			// pull all changes from the very beginning
-			// XXX consult getContext() if by any chance has a bundle ready, if not, then read and register
-			HgBundle completeChanges = srcRepo.getChanges(Collections.singletonList(NULL));
-			cancel.checkCancelled();
+			// if cloning remote repo, which can stream and no revision is specified -
+			// can use 'stream_out' wireproto
+			if (stream && srcRepo.isStreamingSupported()) {
+				StreamDownMate mate = new StreamDownMate(srcRepo.getSessionContext(), destination, progress, cancel);
+				try {
+					mate.initEmptyRepository();
+					srcRepo.streamOut(mate);
+					mate.checkFailure();
+					mate.complete();
+				} finally {
+					progress.done();
+				}
+				return new HgLookup().detect(destination);
+			}
 			WriteDownMate mate = new WriteDownMate(srcRepo.getSessionContext(), destination, progress, cancel);
 			try {
 				// instantiate new repo in the destdir
 				mate.initEmptyRepository();
-				// pull changes
-				completeChanges.inspectAll(mate);
+				// pull all changes from the very beginning, write them down as they come
+				srcRepo.getChanges(Collections.singletonList(NULL), mate);
 				mate.checkFailure();
 				mate.complete();
 			} finally {
-				completeChanges.unlink();
 				progress.done();
 			}
 		} catch (HgRuntimeException ex) {
@@ -140,6 +163,111 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 	}
 
 
+	/**
+	 * Writes down store files of the remote repository as they come, only the names of the files are adjusted to 
+	 * the local store layout.
+	 */
+	private static class StreamDownMate implements HgRemoteRepository.StreamInspector {
+		private final File hgDir;
+		private final SessionContext ctx;
+		private final RepoInitializer repoInit;
+		private final PathRewrite storagePathHelper;
+		private final PathRewrite storeFilesHelper;
+		private final Path.Source pathFactory;
+		private final ProgressSupport progressSupport;
+		private final CancelSupport cancelSupport;
+		private final byte[] buffer = new byte[256 * 1024];
+		private FNCacheFile fncacheFile;
+		private CancelledException cancelException;
+
+		public StreamDownMate(SessionContext sessionCtx, File destDir, ProgressSupport progress, CancelSupport cancel) {
+			ctx = sessionCtx;
+			hgDir = new File(destDir, ".hg");
+			repoInit = new RepoInitializer();
+			repoInit.setRequires(REVLOGV1 | STORE | FNCACHE | DOTENCODE);
+			storagePathHelper = repoInit.buildDataFilesHelper(sessionCtx);
+			storeFilesHelper = repoInit.buildStoreFilesHelper();
+			pathFactory = ctx.getPathFactory();
+			progressSupport = progress;
+			cancelSupport = cancel;
+		}
+
+		public void initEmptyRepository() throws HgIOException, HgRepositoryNotFoundException {
+			repoInit.initEmptyRepository(hgDir);
+			fncacheFile = new FNCacheFile(Internals.getInstance(new HgLookup(ctx).detect(hgDir)));
+		}
+
+		public void complete() throws HgIOException {
+			fncacheFile.write(new Transaction.NoRollback());
+		}
+
+		public void checkFailure() throws CancelledException {
+			if (cancelException != null) {
+				throw cancelException;
+			}
+		}
+
+		public void start(int fileCount, long totalBytes) {
+			progressSupport.start(fileCount);
+		}
+
+		public boolean file(String storePath, long size, InputStream content) throws IOException, HgRuntimeException {
+			final String name = localName(storePath);
+			final File f = new File(hgDir, name);
+			f.getParentFile().mkdirs();
+			FileOutputStream fos = null;
+			try {
+				fos = new FileOutputStream(f);
+				int r;
+				while ((r = content.read(buffer)) != -1) {
+					// write failure is local, tell it apart from failure to read the stream
+					try {
+						fos.write(buffer, 0, r);
+					} catch (IOException ex) {
+						throw new HgInvalidControlFileException(String.format("Failed to write %s", name), ex, f);
+					}
+				}
+				fos.close();
+				fos = null;
+			} finally {
+				new FileUtils(ctx.getLog(), this).closeQuietly(fos);
+			}
+			progressSupport.worked(1);
+			try {
+				cancelSupport.checkCancelled();
+				return true;
+			} catch (CancelledException ex) {
+				cancelException = ex;
+				return false;
+			}
+		}
+
+		public void end() {
+			progressSupport.done();
+		}
+
+		private String localName(String storePath) {
+			// names come from the wire, don't let them point outside of the store
+			if (storePath.length() == 0 || storePath.charAt(0) == '/' || storePath.indexOf('\\') != -1 || storePath.indexOf(':') != -1 || ("/" + storePath + "/").indexOf("/../") != -1) {
+				throw new HgInvalidStateException(String.format("Bad name of a store file: %s", storePath));
+			}
+			final String dataPrefix = "data/";
+			final boolean isIndex = storePath.endsWith(".i"), isData = storePath.endsWith(".d");
+			if (storePath.startsWith(dataPrefix) && (isIndex || isData)) {
+				final Path p = pathFactory.path(storePath.substring(dataPrefix.length(), storePath.length() - 2));
+				final String indexName = storagePathHelper.rewrite(p).toString();
+				if (isIndex) {
+					fncacheFile.addIndex(p);
+					return indexName;
+				}
+				fncacheFile.addData(p);
+				// same awful approach as in FNCacheFile, data file name is that of index with the last char replaced
+				return indexName.substring(0, indexName.length() - 1) + 'd';
+			}
+			return storeFilesHelper.rewrite(storePath).toString();
+		}
+	}
+
 	// 1. process changelog, memorize nodeids to index
 	// 2. process manifest, using map from step 3, collect manifest nodeids
 	// 3. process every file, using map from 3, and consult set from step 4 to ensure repo is correct
@@ -150,26 +278,19 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 		private final CancelSupport cancelSupport;
 		private final SessionContext ctx;
 		private final Path.Source pathFactory;
-		private FileOutputStream indexFile;
-		private File currentFile;
-		private String filename; // human-readable name of the file being written, for log/exception purposes 
 
+		// written by the thread that reads the bundle in changelog phase, read-only once files come
 		private final TreeMap<Nodeid, Integer> changelogIndexes = new TreeMap<Nodeid, Integer>();
-		private boolean collectChangelogIndexes = false;
-
-		private DataAccess prevRevContent;
-		private final DigestHelper dh = new DigestHelper();
-		// recently processed nodes last, so that index in the array may be used as a linkRevision or baseRevision
-		private final ArrayList<Nodeid> revisionSequence = new ArrayList<Nodeid>();
+		// changelog and manifest are written as they come, files are written with the pool
+		private GroupWriter revlogWriter;
+		private FileGroupPool filesPool;
+		private int compressionLevel;
 
 		private FNCacheFile fncacheFile;
 		private RepoInitializer repoInit;
 		private Lifecycle.Callback lifecycleCallback;
 		private CancelledException cancelException;
 
-		private RevlogStreamWriter.HeaderWriter revlogHeader = new RevlogStreamWriter.HeaderWriter(true);
-		private RevlogCompressor revlogDataZip;
-
 		public WriteDownMate(SessionContext sessionCtx, File destDir, ProgressSupport progress, CancelSupport cancel) {
 			ctx = sessionCtx;
 			hgDir = new File(destDir, ".hg");
@@ -178,7 +299,6 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 			storagePathHelper = repoInit.buildDataFilesHelper(sessionCtx);
 			progressSupport = progress;
 			cancelSupport = cancel;
-			revlogDataZip = new RevlogCompressor(sessionCtx);
 			pathFactory = ctx.getPathFactory();
 		}
 
@@ -187,7 +307,10 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 			assert (repoInit.getRequires() & FNCACHE) != 0;
 			// XXX perhaps, with WriteDownMate moving to a more appropriate location,
 			// we could instantiate HgRepository (or Internals) by other means, without exception?
-			fncacheFile = new FNCacheFile(Internals.getInstance(new HgLookup(ctx).detect(hgDir)));
+			Internals implRepo = Internals.getInstance(new HgLookup(ctx).detect(hgDir));
+			fncacheFile = new FNCacheFile(implRepo);
+			filesPool = implRepo.newFileGroupPool();
+			compressionLevel = implRepo.getBulkCompressionLevel();
 		}
 
 		public void complete() throws HgIOException {
@@ -195,213 +318,229 @@ public class HgCloneCommand extends HgAbstractCommand<HgCloneCommand> {
 		}
 
 		public void changelogStart() throws HgInvalidControlFileException {
-			try {
-				revlogHeader.offset(0).baseRevision(-1);
-				revisionSequence.clear();
-				indexFile = new FileOutputStream(currentFile = new File(hgDir, filename = "store/00changelog.i"));
-				collectChangelogIndexes = true;
-			} catch (IOException ex) {
-				throw new HgInvalidControlFileException("Failed to write changelog", ex, new File(hgDir, filename));
-			}
+			revlogWriter = new GroupWriter("store/00changelog.i", true);
+			revlogWriter.open();
 			stopIfCancelled();
 		}
 
 		public void changelogEnd() throws HgInvalidControlFileException {
-			try {
-				clearPreviousContent();
-				collectChangelogIndexes = false;
-				closeIndexFile();
-			} catch (IOException ex) {
-				throw new HgInvalidControlFileException("Failed to write changelog", ex, new File(hgDir, filename));
-			}
+			revlogWriter.end();
+			revlogWriter = null;
 			progressSupport.worked(1);
 			stopIfCancelled();
 		}
 
 		public void manifestStart() throws HgInvalidControlFileException {
-			try {
-				revlogHeader.offset(0).baseRevision(-1);
-				revisionSequence.clear();
-				indexFile = new FileOutputStream(currentFile = new File(hgDir, filename = "store/00manifest.i"));
-			} catch (IOException ex) {
-				throw new HgInvalidControlFileException("Failed to write manifest", ex, new File(hgDir, filename));
-			}
+			revlogWriter = new GroupWriter("store/00manifest.i", false);
+			revlogWriter.open();
 			stopIfCancelled();
 		}
 
 		public void manifestEnd() throws HgInvalidControlFileException {
-			try {
-				clearPreviousContent();
-				closeIndexFile();
-			} catch (IOException ex) {
-				throw new HgInvalidControlFileException("Failed to write manifest", ex, new File(hgDir, filename));
-			}
+			revlogWriter.end();
+			revlogWriter = null;
 			progressSupport.worked(1);
 			stopIfCancelled();
 		}
 		
 		public void fileStart(String name) throws HgInvalidControlFileException {
-			try {
-				revlogHeader.offset(0).baseRevision(-1);
-				revisionSequence.clear();
-				File file = new File(hgDir, filename = storagePathHelper.rewrite(name).toString());
-				file.getParentFile().mkdirs();
-				indexFile = new FileOutputStream(currentFile = file);
-			} catch (IOException ex) {
-				String m = String.format("Failed to write file %s", filename);
-				throw new HgInvalidControlFileException(m, ex, new File(filename));
-			}
+			filesPool.begin(new GroupWriter(storagePathHelper.rewrite(name).toString(), false));
 			stopIfCancelled();
 		}
 
-		public void fileEnd(String name) throws HgInvalidControlFileException {
-			try {
-				fncacheFile.addIndex(pathFactory.path(name)); 
-				clearPreviousContent();
-				closeIndexFile();
-			} catch (IOException ex) {
-				String m = String.format("Failed to write file %s", filename);
-				throw new HgInvalidControlFileException(m, ex, new File(filename));
-			}
+		public void fileEnd(String name) throws HgRuntimeException {
+			// fncache lists files in the order they come in the bundle, regardless of the moment they get written
+			fncacheFile.addIndex(pathFactory.path(name)); 
+			filesPool.end();
 			progressSupport.worked(1);
 			stopIfCancelled();
 		}
-		
-		private void clearPreviousContent() {
-			if (prevRevContent != null) {
-				prevRevContent.done();
-				prevRevContent = null;
+
+		public boolean element(GroupElement ge) throws HgRuntimeException {
+			if (revlogWriter != null) {
+				revlogWriter.element(ge);
+			} else if (filesPool.isFailed()) {
+				lifecycleCallback.stop();
+				return false;
+			} else {
+				filesPool.element(ge);
 			}
-		}
-		
-		private void closeIndexFile() throws IOException {
-			indexFile.close();
-			indexFile = null;
-			filename = null;
-			currentFile = null;
+			return cancelException == null;
 		}
 
-		private int knownRevision(Nodeid p) throws HgInvalidControlFileException {
-			if (p.isNull()) {
-				return -1;
-			} else {
-				for (int i = revisionSequence.size() - 1; i >= 0; i--) {
-					if (revisionSequence.get(i).equals(p)) {
-						return i;
-					}
+		/**
+		 * Writes revisions of a single revlog, invoked by a single thread at a time
+		 */
+		private final class GroupWriter implements FileGroupPool.Group {
+			private final String filename; // human-readable name of the file being written, for log/exception purposes 
+			private final File currentFile;
+			private final boolean collectChangelogIndexes;
+			private FileOutputStream indexFile;
+			private DataAccess prevRevContent;
+			private final DigestHelper dh = new DigestHelper();
+			// recently processed nodes last, so that index in the array may be used as a linkRevision or baseRevision
+			private final ArrayList<Nodeid> revisionSequence = new ArrayList<Nodeid>();
+			private final RevlogStreamWriter.HeaderWriter revlogHeader = new RevlogStreamWriter.HeaderWriter(true);
+			private final RevlogCompressor revlogDataZip;
+
+			GroupWriter(String name, boolean changelog) {
+				filename = name;
+				currentFile = new File(hgDir, name);
+				collectChangelogIndexes = changelog;
+				revlogDataZip = new RevlogCompressor(compressionLevel);
+				revlogHeader.offset(0).baseRevision(-1);
+			}
+
+			void open() throws HgInvalidControlFileException {
+				try {
+					currentFile.getParentFile().mkdirs();
+					indexFile = new FileOutputStream(currentFile);
+				} catch (IOException ex) {
+					String m = String.format("Failed to write file %s", filename);
+					throw new HgInvalidControlFileException(m, ex, currentFile);
 				}
 			}
-			String m = String.format("Can't find index of %s for file %s", p.shortNotation(), filename);
-			throw new HgInvalidControlFileException(m, null, new File(hgDir, filename)).setRevision(p);
-		}
-		
-		public boolean element(GroupElement ge) throws HgRuntimeException {
-			try {
-				assert indexFile != null;
-				boolean writeComplete = false;
-				Nodeid deltaBase = ge.patchBase();
-				if (deltaBase.isNull()) {
-					// NOTE, can't use both parents isNull == true to empty prevRevContent
-					// see build.gradle sample below why.
-					prevRevContent = new DataAccess(); // empty data
-					writeComplete = true;
-					// if (writeComplete) would set baseRevision correctly,
-				} else {
-					Nodeid prevRevision = revisionSequence.size() > 0 ? revisionSequence.get(revisionSequence.size()-1) : Nodeid.NULL;
-					if (!prevRevision.equals(deltaBase)) {
-						// presently, bundle group elements always patch previous, see
-						// (a) changegroup.py#builddeltaheader(): # do nothing with basenode, it is implicitly the previous one in HG10
-						// (b) revlog.py#group(): prev, curr = revs[r], revs[r + 1]
-						//               for c in bundler.revchunk(self, curr, prev):
-						// so there's no reason to have code here to extract contents of deltaBase revision
-						String m = String.format("Revision %s import failed: delta base %s is not the last node we've handled (and know content for) %s", ge.node(), deltaBase, prevRevision);
-						throw new HgInvalidStateException(m);
-					}
+
+			public void end() throws HgInvalidControlFileException {
+				if (indexFile == null) {
+					open(); // empty group, still needs a file
 				}
-				//
-				Patch patch = HgInternals.patchFromData(ge);
-				byte[] content = patch.apply(prevRevContent, -1);
-				Nodeid p1 = ge.firstParent();
-				Nodeid p2 = ge.secondParent();
-				byte[] calculated = dh.sha1(p1, p2, content).asBinary();
-				final Nodeid node = ge.node();
-				if (!node.equalsTo(calculated)) {
-					String m = String.format("Checksum failed: expected %s, calculated %s. File %s", node, calculated, filename);
-					throw new HgRevisionIntegrityException(m, null, new File(hgDir, filename));
+				try {
+					if (prevRevContent != null) {
+						prevRevContent.done();
+						prevRevContent = null;
+					}
+					indexFile.close();
+					indexFile = null;
+				} catch (IOException ex) {
+					String m = String.format("Failed to write file %s", filename);
+					throw new HgInvalidControlFileException(m, ex, currentFile);
 				}
-				revlogHeader.nodeid(node);
-				//
-				if (collectChangelogIndexes) {
-					changelogIndexes.put(node, revisionSequence.size());
-					revlogHeader.linkRevision(revisionSequence.size());
+			}
+
+			private int knownRevision(Nodeid p) throws HgInvalidControlFileException {
+				if (p.isNull()) {
+					return -1;
 				} else {
-					Integer csRev = changelogIndexes.get(ge.cset());
-					if (csRev == null) {
-						throw new HgInvalidStateException(String.format("Changelog doesn't contain revision %s of %s", ge.cset().shortNotation(), filename));
+					for (int i = revisionSequence.size() - 1; i >= 0; i--) {
+						if (revisionSequence.get(i).equals(p)) {
+							return i;
+						}
 					}
-					revlogHeader.linkRevision(csRev.intValue());
 				}
-				//
-				revlogHeader.parents(knownRevision(p1), knownRevision(p2));
-				//
-				int patchSerializedLength = patch.serializedLength();
-				// no reason to keep patch if it's close (here, >75%) in size to the complete contents,
-				// save patching effort in this case
-				writeComplete = writeComplete || preferCompleteOverPatch(patchSerializedLength, content.length);
-
-				if (writeComplete) {
-					revlogHeader.baseRevision(revisionSequence.size());
-				}
-				assert revlogHeader.baseRevision() >= 0;
-
-				DataSerializer.DataSource dataSource = writeComplete ? new ByteArrayDataSource(content) : patch.new PatchDataSource();
-				revlogDataZip.reset(dataSource);
-				final int compressedLen;
-				final boolean useUncompressedData = preferCompressedOverComplete(revlogDataZip.getCompressedLength(), dataSource.serializeLength());
-				if (useUncompressedData) {
-					// compression wasn't too effective,
-					compressedLen = dataSource.serializeLength() + 1 /*1 byte for 'u' - uncompressed prefix byte*/;
-				} else {
-					compressedLen= revlogDataZip.getCompressedLength();
+				String m = String.format("Can't find index of %s for file %s", p.shortNotation(), filename);
+				throw new HgInvalidControlFileException(m, null, currentFile).setRevision(p);
+			}
+		
+			public void element(GroupElement ge) throws HgRuntimeException {
+				if (indexFile == null) {
+					open();
 				}
+				try {
+					boolean writeComplete = false;
+					Nodeid deltaBase = ge.patchBase();
+					if (deltaBase.isNull()) {
+						// NOTE, can't use both parents isNull == true to empty prevRevContent
+						// see build.gradle sample below why.
+						prevRevContent = new DataAccess(); // empty data
+						writeComplete = true;
+						// if (writeComplete) would set baseRevision correctly,
+					} else {
+						Nodeid prevRevision = revisionSequence.size() > 0 ? revisionSequence.get(revisionSequence.size()-1) : Nodeid.NULL;
+						if (!prevRevision.equals(deltaBase)) {
+							// presently, bundle group elements always patch previous, see
+							// (a) changegroup.py#builddeltaheader(): # do nothing with basenode, it is implicitly the previous one in HG10
+							// (b) revlog.py#group(): prev, curr = revs[r], revs[r + 1]
+							//               for c in bundler.revchunk(self, curr, prev):
+							// so there's no reason to have code here to extract contents of deltaBase revision
+							String m = String.format("Revision %s import failed: delta base %s is not the last node we've handled (and know content for) %s", ge.node(), deltaBase, prevRevision);
+							throw new HgInvalidStateException(m);
+						}
+					}
+					//
+					Patch patch = HgInternals.patchFromData(ge);
+					byte[] content = patch.apply(prevRevContent, -1);
+					Nodeid p1 = ge.firstParent();
+					Nodeid p2 = ge.secondParent();
+					byte[] calculated = dh.sha1(p1, p2, content).asBinary();
+					final Nodeid node = ge.node();
+					if (!node.equalsTo(calculated)) {
+						String m = String.format("Checksum failed: expected %s, calculated %s. File %s", node, calculated, filename);
+						throw new HgRevisionIntegrityException(m, null, currentFile);
+					}
+					revlogHeader.nodeid(node);
+					//
+					if (collectChangelogIndexes) {
+						changelogIndexes.put(node, revisionSequence.size());
+						revlogHeader.linkRevision(revisionSequence.size());
+					} else {
+						Integer csRev = changelogIndexes.get(ge.cset());
+						if (csRev == null) {
+							throw new HgInvalidStateException(String.format("Changelog doesn't contain revision %s of %s", ge.cset().shortNotation(), filename));
+						}
+						revlogHeader.linkRevision(csRev.intValue());
+					}
+					//
+					revlogHeader.parents(knownRevision(p1), knownRevision(p2));
+					//
+					int patchSerializedLength = patch.serializedLength();
+					// no reason to keep patch if it's close (here, >75%) in size to the complete contents,
+					// save patching effort in this case
+					writeComplete = writeComplete || preferCompleteOverPatch(patchSerializedLength, content.length);
+
+					if (writeComplete) {
+						revlogHeader.baseRevision(revisionSequence.size());
+					}
+					assert revlogHeader.baseRevision() >= 0;
+
+					DataSerializer.DataSource dataSource = writeComplete ? new ByteArrayDataSource(content) : patch.new PatchDataSource();
+					revlogDataZip.reset(dataSource);
+					final int compressedLen;
+					final boolean useUncompressedData = !preferCompressedOverComplete(revlogDataZip.getCompressedLength(), dataSource.serializeLength());
+					if (useUncompressedData) {
+						// compression wasn't too effective,
+						compressedLen = dataSource.serializeLength() + 1 /*1 byte for 'u' - uncompressed prefix byte*/;
+					} else {
+						compressedLen= revlogDataZip.getCompressedLength();
+					}
 		
-				revlogHeader.length(content.length, compressedLen);
+					revlogHeader.length(content.length, compressedLen);
 				
-				// XXX may be wise not to create DataSerializer for each revision, but for a file
-				DataSerializer sds = new DataSerializer() {
-					@Override
-						public void write(byte[] data, int offset, int length) throws HgIOException {
-							try {
-								indexFile.write(data, offset, length);
-							} catch (IOException ex) {
-								throw new HgIOException("Write failure", ex, currentFile);
+					// XXX may be wise not to create DataSerializer for each revision, but for a file
+					DataSerializer sds = new DataSerializer() {
+						@Override
+							public void write(byte[] data, int offset, int length) throws HgIOException {
+								try {
+									indexFile.write(data, offset, length);
+								} catch (IOException ex) {
+									throw new HgIOException("Write failure", ex, currentFile);
+								}
 							}
+					};
+					revlogHeader.serialize(sds);
+
+					if (useUncompressedData) {
+						sds.writeByte((byte) 'u');
+						dataSource.serialize(sds);
+					} else {
+						int actualCompressedLenWritten = revlogDataZip.writeCompressedData(sds);
+						if (actualCompressedLenWritten != compressedLen) {
+							throw new HgInvalidStateException(String.format("Expected %d bytes of compressed data, but actually wrote %d in %s", compressedLen, actualCompressedLenWritten, filename));
 						}
-				};
-				revlogHeader.serialize(sds);
-
-				if (useUncompressedData) {
-					sds.writeByte((byte) 'u');
-					dataSource.serialize(sds);
-				} else {
-					int actualCompressedLenWritten = revlogDataZip.writeCompressedData(sds);
-					if (actualCompressedLenWritten != compressedLen) {
-						throw new HgInvalidStateException(String.format("Expected %d bytes of compressed data, but actually wrote %d in %s", compressedLen, actualCompressedLenWritten, filename));
 					}
+					sds.done();
+					//
+					revisionSequence.add(node);
+					prevRevContent.done();
+					prevRevContent = new ByteArrayDataAccess(content);
+				} catch (HgIOException ex) {
+					String m = String.format("Failed to write revision %s of file %s", ge.node().shortNotation(), filename);
+					throw new HgInvalidControlFileException(m, ex, currentFile);
+				} catch (IOException ex) {
+					String m = String.format("Failed to write revision %s of file %s", ge.node().shortNotation(), filename);
+					throw new HgInvalidControlFileException(m, ex, currentFile);
 				}
-				sds.done();
-				//
-				revisionSequence.add(node);
-				prevRevContent.done();
-				prevRevContent = new ByteArrayDataAccess(content);
-			} catch (HgIOException ex) {
-				String m = String.format("Failed to write revision %s of file %s", ge.node().shortNotation(), filename);
-				throw new HgInvalidControlFileException(m, ex, currentFile);
-			} catch (IOException ex) {
-				String m = String.format("Failed to write revision %s of file %s", ge.node().shortNotation(), filename);
-				throw new HgInvalidControlFileException(m, ex, currentFile);
 			}
-			return cancelException == null;
 		}
 /*
  $ hg debugindex build.gradle
@@ -452,14 +591,17 @@ and the aforementioned bundle was result of hg incoming svnkit!!!
 		public void start(int count, Callback callback, Object token) {
 			progressSupport.start(count);
 			lifecycleCallback = callback;
+			filesPool.start();
 		}
 
 		public void finish(Object token) {
+			filesPool.finish();
 			progressSupport.done();
 			lifecycleCallback = null;
 		}
 		
-		public void checkFailure() throws CancelledException {
+		public void checkFailure() throws CancelledException, HgRuntimeException {
+			filesPool.checkFailure();
 			if (cancelException != null) {
 				throw cancelException;
 			}
@@ -139,8 +139,15 @@ public class HgIncomingCommand extends HgAbstractCommand<HgIncomingCommand> {
 		}
 		final ProgressSupport ps = getProgressSupport(handler);
 		try {
-			final List<Nodeid> common = getCommon();
-			HgBundle changegroup = remoteRepo.getChanges(common);
+			final HgBundle changegroup;
+			if (remoteRepo.isGetBundleSupported()) {
+				// exactly the changes we miss, no need to walk remote branches
+				RepositoryComparator repoCompare = getComparator();
+				repoCompare.compare(ProgressSupport.Factory.get(null), getCancelSupport(handler, true));
+				changegroup = remoteRepo.getBundle(repoCompare.getCommonHeads(), repoCompare.getRemoteHeads());
+			} else {
+				changegroup = remoteRepo.getChanges(getCommon());
+			}
 			final ChangesetTransformer transformer = new ChangesetTransformer(localRepo, handler, getParentHelper(), ps, getCancelSupport(handler, true));
 			transformer.limitBranches(branches);
 			changegroup.changes(localRepo, new HgChangelog.Inspector() {
@@ -160,7 +167,7 @@ public class HgIncomingCommand extends HgAbstractCommand<HgIncomingCommand> {
 						// because there's a distinct branch from r0 (in addition to those after r5). 
 						// remote.changegroup however answers with revisions that are children of either, 
 						/// so revisions 0..5 are reported as well and the next check fails. Instead, shall pass
-						// not common, but 'first to load' to remote.changegroup() or use another method (e.g. getbundle)
+						// not common, but 'first to load' to remote.changegroup() or use another method (getbundle, if server supports it)
 						// Note, sending r5 only (i.e. checking for ancestors in common) won't help, changegroup sends children of
 						// requested roots only, and doesn't look for anything else
 //						if (!common.contains(nodeid)) {
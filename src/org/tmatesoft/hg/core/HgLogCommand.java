@@ -35,6 +35,9 @@ import java.util.TreeSet;
 
 import org.tmatesoft.hg.internal.AdapterPlug;
 import org.tmatesoft.hg.internal.BatchRangeHelper;
+import org.tmatesoft.hg.internal.ChangedFilesIndex;
+import org.tmatesoft.hg.internal.ChangelogIndex;
+import org.tmatesoft.hg.internal.ChangesetPipeline;
 import org.tmatesoft.hg.internal.CsetParamKeeper;
 import org.tmatesoft.hg.internal.FileRenameHistory;
 import org.tmatesoft.hg.internal.FileRenameHistory.Chunk;
@@ -79,8 +82,11 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 	private Set<String> branches;
 	private int limit = 0, count = 0;
 	private int startRev = 0, endRev = TIP;
-	private Calendar date;
+	// [dateSince, dateTill), milliseconds
+	private long dateSince = Long.MIN_VALUE, dateTill = Long.MAX_VALUE;
 	private Path file;
+	// files of interest when file == null
+	private Path.Matcher scope;
 	/*
 	 * Whether to iterate file origins, if any.
 	 * Makes sense only when file != null
@@ -94,6 +100,8 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 	private boolean followAncestry;
 
 	private HgIterateDirection iterateDirection = HgIterateDirection.OldToNew;
+	private int parallelWorkers = 0, batchSize = 100, maxPendingBatches = 4;
+	private ChangesetPipeline pipeline;
 
 	private ChangesetTransformer csetTransform;
 	private HgParentChildMap<HgChangelog> parentHelper;
@@ -139,13 +147,53 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 		return this;
 	}
 	
-	// limit search to specific date
-	// multiple?
+	/**
+	 * Limit search to changesets committed within a period of time. Length of the period is deduced from
+	 * the fields set in the argument: with {@link Calendar#DAY_OF_MONTH} set, changesets of that very day are reported,
+	 * otherwise, with {@link Calendar#MONTH} set, those of the whole month, and of the whole year when only {@link Calendar#YEAR} is set.
+	 * <pre>
+	 *   Calendar c = Calendar.getInstance();
+	 *   c.clear();
+	 *   c.set(2013, Calendar.MAY, 1);
+	 *   c.clear(Calendar.DAY_OF_MONTH);
+	 *   new HgLogCommand(repo).date(c); // anything committed in May, 2013
+	 * </pre>
+	 * Period boundaries are computed in the time zone of the argument.
+	 * 
+	 * @param date period specification, or <code>null</code> to reset
+	 * @return <code>this</code> instance for convenience
+	 * @throws IllegalArgumentException when none of the year, month or day fields is set
+	 */
 	public HgLogCommand date(Calendar date) {
-		this.date = date;
-		// TODO post-1.0 implement
-		// isSet(field) - false => don't use in detection of 'same date'
-		throw Internals.notImplemented();
+		if (date == null) {
+			dateSince = Long.MIN_VALUE;
+			dateTill = Long.MAX_VALUE;
+			return this;
+		}
+		// check isSet() prior to any get(), which completes the calendar and sets all the fields
+		final int period;
+		if (date.isSet(Calendar.DAY_OF_MONTH)) {
+			period = Calendar.DAY_OF_MONTH;
+		} else if (date.isSet(Calendar.MONTH)) {
+			period = Calendar.MONTH;
+		} else if (date.isSet(Calendar.YEAR)) {
+			period = Calendar.YEAR;
+		} else {
+			throw new IllegalArgumentException("Need at least a year to select changesets by date");
+		}
+		Calendar c = Calendar.getInstance(date.getTimeZone());
+		c.clear();
+		c.set(Calendar.YEAR, date.get(Calendar.YEAR));
+		if (period != Calendar.YEAR) {
+			c.set(Calendar.MONTH, date.get(Calendar.MONTH));
+		}
+		if (period == Calendar.DAY_OF_MONTH) {
+			c.set(Calendar.DAY_OF_MONTH, date.get(Calendar.DAY_OF_MONTH));
+		}
+		dateSince = c.getTimeInMillis();
+		c.add(period, 1);
+		dateTill = c.getTimeInMillis();
+		return this;
 	}
 	
 	/**
@@ -272,6 +320,40 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 		return file(ps.path(repo.getToRepoPathHelper().rewrite(file)), followCopyRename, followFileAncestry);
 	}
 	
+	/**
+	 * Limit history to changesets that modified (added, changed or removed) any file accepted by the matcher, e.g. 
+	 * to visit changes of files matching a glob pattern. Unlike {@link #file(Path, boolean)}, doesn't follow renames, 
+	 * and considers files recorded in changesets, the way native <code>hg log &lt;pattern&gt;</code> does. 
+	 * Ignored once {@link #file(Path, boolean) file} is set.
+	 * 
+	 * @param scopeMatcher matcher to use, pass <code>null</code> to reset
+	 * @return <code>this</code> for convenience
+	 */
+	public HgLogCommand match(Path.Matcher scopeMatcher) {
+		scope = scopeMatcher;
+		return this;
+	}
+
+	/**
+	 * Limit history to changesets that modified anything under the given directory, like <code>hg log src/net/</code>.
+	 * Shorthand for {@link #match(Path.Matcher)} with a matcher of directory content.
+	 * Empty path stands for repository root, and doesn't limit history at all.
+	 * 
+	 * @param directory path relative to repository root, with or without trailing slash, non-null
+	 * @return <code>this</code> for convenience
+	 * @throws IllegalArgumentException when argument is null
+	 */
+	public HgLogCommand directory(Path directory) {
+		if (directory == null) {
+			throw new IllegalArgumentException();
+		}
+		if (directory.length() == 0) {
+			// everything is under the root, and index of changed files got no entry for it
+			return match(null);
+		}
+		return match(new DirectoryMatcher(directory));
+	}
+
 	/**
 	 * Specifies order for changesets reported through #execute(...) methods.
 	 * By default, command reports changeset in their natural repository order, older first, 
@@ -285,6 +367,30 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 		return this;
 	}
 
+	/**
+	 * Parse changesets on a pool of worker threads when iterating complete history (i.e. unless {@link #file(Path, boolean) file} is set).
+	 * Changelog records are read on a dedicated thread, parsed in batches by worker threads, and reported to 
+	 * the handler on the thread that invoked {@link #execute(HgChangesetHandler)}, in the regular order.
+	 * Pays off for long ranges of history, when parsing of the changelog is the bottleneck.
+	 * 
+	 * @param workerThreads number of threads to parse changesets, pass 0 to parse on the calling thread (default)
+	 * @param batchSize number of changesets processed as a unit, positive. Also controls how many changesets are 
+	 * collected prior to reporting in {@link HgIterateDirection#NewToOld} order (100 unless set). 
+	 * @param maxPendingBatches limit of batches read but not yet reported to the handler, positive. Reading stops 
+	 * once the limit is reached, until the handler catches up.
+	 * @return <code>this</code> for convenience
+	 * @throws IllegalArgumentException if any argument is out of range
+	 */
+	public HgLogCommand parallel(int workerThreads, int batchSize, int maxPendingBatches) {
+		if (workerThreads < 0 || batchSize <= 0 || maxPendingBatches <= 0) {
+			throw new IllegalArgumentException();
+		}
+		parallelWorkers = workerThreads;
+		this.batchSize = batchSize;
+		this.maxPendingBatches = maxPendingBatches;
+		return this;
+	}
+
 	/**
 	 * Similar to {@link #execute(HgChangesetHandler)}, collects and return result as a list.
 	 * 
@@ -340,7 +446,11 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 			if (firstCset < 0 || firstCset > lastCset) {
 				throw new HgBadArgumentException(String.format("Bad value %d for start revision for range [%1$d..%d]", firstCset, lastCset), null);
 			}
-			final int BATCH_SIZE = 100;
+			final int BATCH_SIZE = batchSize;
+			if (parallelWorkers > 0) {
+				pipeline = new ChangesetPipeline(Internals.getInstance(repo), parallelWorkers, batchSize, maxPendingBatches);
+				pipeline.start();
+			}
 			count = 0;
 			HgParentChildMap<HgChangelog> pw = getParentHelper(file == null); // leave it uninitialized unless we iterate whole repo
 			// ChangesetTransfrom creates a blank PathPool, and #file(String, boolean) above 
@@ -351,21 +461,47 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 			// transformer from (b), below, with alternative cset order or (b) transformer to hi-level csets. 
 			FilteringInspector filterInsp = new FilteringInspector();
 			filterInsp.changesets(firstCset, lastCset);
-			if (file == null) {
+			// with changelog digest available, figure out matching changesets without parsing changelog records 
+			final int[] selected = file == null ? selectWithIndex(firstCset, lastCset) : null;
+			if (selected != null) {
+				progressHelper.start(selected.length);
+				if (iterateDirection == HgIterateDirection.OldToNew) {
+					filterInsp.delegateTo(csetTransform);
+					changelogRange(filterInsp, selected);
+					csetTransform.checkFailure();
+				} else {
+					assert iterateDirection == HgIterateDirection.NewToOld;
+					BatchChangesetInspector batchInspector = new BatchChangesetInspector(Math.min(selected.length, BATCH_SIZE));
+					filterInsp.delegateTo(batchInspector);
+					for (int batchEnd = selected.length; batchEnd > 0; batchEnd -= BATCH_SIZE) {
+						int batchStart = Math.max(0, batchEnd - BATCH_SIZE);
+						int[] batch = new int[batchEnd - batchStart];
+						System.arraycopy(selected, batchStart, batch, 0, batch.length);
+						changelogRange(filterInsp, batch);
+						for (BatchChangesetInspector.BatchRecord br : batchInspector.iterate(true)) {
+							csetTransform.next(br.csetIndex, br.csetRevision, br.cset);
+							csetTransform.checkFailure();
+						}
+						batchInspector.reset();
+					}
+				}
+			} else if (file == null) {
 				progressHelper.start(lastCset - firstCset + 1);
 				if (iterateDirection == HgIterateDirection.OldToNew) {
 					filterInsp.delegateTo(csetTransform);
-					repo.getChangelog().range(firstCset, lastCset, filterInsp);
+					changelogRange(firstCset, lastCset, filterInsp);
 					csetTransform.checkFailure();
 				} else {
 					assert iterateDirection == HgIterateDirection.NewToOld;
-					BatchRangeHelper brh = new BatchRangeHelper(firstCset, lastCset, BATCH_SIZE, true);
-					BatchChangesetInspector batchInspector = new BatchChangesetInspector(Math.min(lastCset-firstCset+1, BATCH_SIZE));
+					// with pipeline, read few batches at once to keep workers busy
+					final int chunk = pipeline == null ? BATCH_SIZE : BATCH_SIZE * parallelWorkers;
+					BatchRangeHelper brh = new BatchRangeHelper(firstCset, lastCset, chunk, true);
+					BatchChangesetInspector batchInspector = new BatchChangesetInspector(Math.min(lastCset-firstCset+1, chunk));
 					filterInsp.delegateTo(batchInspector);
 					// XXX this batching code is bit verbose, refactor
 					while (brh.hasNext()) {
 						brh.next();
-						repo.getChangelog().range(brh.start(), brh.end(), filterInsp);
+						changelogRange(brh.start(), brh.end(), filterInsp);
 						for (BatchChangesetInspector.BatchRecord br : batchInspector.iterate(true)) {
 							csetTransform.next(br.csetIndex, br.csetRevision, br.cset);
 							csetTransform.checkFailure();
@@ -445,10 +581,114 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 			throw new HgLibraryFailureException(ex);
 		} finally {
 			csetTransform = null;
+			if (pipeline != null) {
+				pipeline.finish();
+				pipeline = null;
+			}
 			progressHelper.done();
 		}
 	}
+
+	private void changelogRange(int start, int end, HgChangelog.Inspector inspector) throws HgRuntimeException {
+		if (pipeline != null) {
+			pipeline.range(start, end, inspector);
+		} else {
+			repo.getChangelog().range(start, end, inspector);
+		}
+	}
+
+	private void changelogRange(HgChangelog.Inspector inspector, int[] sortedRevisions) throws HgRuntimeException {
+		if (pipeline != null) {
+			pipeline.range(sortedRevisions, inspector);
+		} else {
+			repo.getChangelog().range(inspector, sortedRevisions);
+		}
+	}
 	
+	/**
+	 * @return sorted indexes of changesets that match user, branch, date and file scope criteria, trimmed according to limit, 
+	 * or <code>null</code> if there are no such criteria or no index to consult
+	 */
+	private int[] selectWithIndex(int firstCset, int lastCset) throws HgRuntimeException {
+		int[] rv = null;
+		// whether indexes answered all the criteria, and FilteringInspector won't reject anything
+		boolean complete = true;
+		if (users != null || branches != null || dateSince != Long.MIN_VALUE || dateTill != Long.MAX_VALUE) {
+			ChangelogIndex ci = Internals.getInstance(repo).getChangelogIndex();
+			if (ci == null) {
+				complete = false;
+			} else {
+				rv = ci.select(firstCset, lastCset, users, branches, dateSince, dateTill);
+			}
+		}
+		if (scope != null) {
+			ChangedFilesIndex cfi = Internals.getInstance(repo).getChangedFilesIndex();
+			if (cfi == null) {
+				complete = false;
+			} else {
+				int[] touched;
+				if (scope instanceof DirectoryMatcher) {
+					touched = cfi.changesets(((DirectoryMatcher) scope).directory);
+				} else {
+					touched = cfi.changesets(scope);
+				}
+				rv = intersect(rv, touched, firstCset, lastCset);
+			}
+		}
+		if (rv == null || !complete) {
+			return rv;
+		}
+		if (limit > 0 && rv.length > limit) {
+			int[] trimmed = new int[limit];
+			// for NewToOld, limit applies to the newest ones
+			System.arraycopy(rv, iterateDirection == HgIterateDirection.OldToNew ? 0 : rv.length - limit, trimmed, 0, limit);
+			rv = trimmed;
+		}
+		return rv;
+	}
+
+	/**
+	 * @param sorted1 sorted values, or <code>null</code> to take <code>sorted2</code> as is
+	 * @return sorted values present in both arrays and within [start..end] range
+	 */
+	private static int[] intersect(int[] sorted1, int[] sorted2, int start, int end) {
+		IntVector rv = new IntVector(Math.max(1, Math.min(sorted2.length, 1024)), -1);
+		if (sorted1 == null) {
+			for (int v : sorted2) {
+				if (v >= start && v <= end) {
+					rv.add(v);
+				}
+			}
+			return rv.toArray();
+		}
+		for (int i = 0, j = 0; i < sorted1.length && j < sorted2.length;) {
+			if (sorted1[i] < sorted2[j]) {
+				i++;
+			} else if (sorted1[i] > sorted2[j]) {
+				j++;
+			} else {
+				// sorted1 has been selected within the range already
+				rv.add(sorted1[i]);
+				i++;
+				j++;
+			}
+		}
+		return rv.toArray();
+	}
+
+	private static class DirectoryMatcher implements Path.Matcher {
+		final Path directory;
+
+		DirectoryMatcher(Path dir) {
+			String s = dir.toString();
+			directory = s.charAt(s.length() - 1) == '/' ? dir : Path.create(s + '/');
+		}
+
+		public boolean accept(Path path) {
+			return path.toString().startsWith(directory.toString());
+		}
+	}
+
 	private static class BatchChangesetInspector extends AdapterPlug implements HgChangelog.Inspector {
 		private static class BatchRecord {
 			public final int csetIndex;
@@ -473,7 +713,8 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 		}
 		
 		public void next(int revisionIndex, Nodeid nodeid, RawChangeset cset) {
-			batch.add(new BatchRecord(revisionIndex, nodeid, cset.clone()));
+			// records are kept till batch is complete, while the parser moves on
+			batch.add(new BatchRecord(revisionIndex, nodeid, cset.clone().detach()));
 		}
 		
 		public Iterable<BatchRecord> iterate(final boolean reverse) {
@@ -1081,8 +1322,14 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 					return;
 				}
 			}
-			if (date != null) {
-				// TODO post-1.0 implement date support for log
+			if (dateSince != Long.MIN_VALUE || dateTill != Long.MAX_VALUE) {
+				long csetTime = cset.date().getTime();
+				if (csetTime < dateSince || csetTime >= dateTill) {
+					return;
+				}
+			}
+			if (scope != null && file == null && !inScope(cset.files())) {
+				return;
 			}
 			delegate.next(revisionNumber, nodeid, cset);
 			count++;
@@ -1092,6 +1339,16 @@ public class HgLogCommand extends HgAbstractCommand<HgLogCommand> {
 		}
 	}
 
+	private boolean inScope(List<String> csetFiles) {
+		Path.Source pathFactory = repo.getSessionContext().getPathFactory();
+		for (String f : csetFiles) {
+			if (scope.accept(pathFactory.path(f))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private HgParentChildMap<HgChangelog> getParentHelper(boolean create) throws HgRuntimeException {
 		if (parentHelper == null && create) {
 			parentHelper = new HgParentChildMap<HgChangelog>(repo.getChangelog());
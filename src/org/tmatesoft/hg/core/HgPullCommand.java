@@ -26,7 +26,6 @@ import org.tmatesoft.hg.internal.PhasesHelper;
 import org.tmatesoft.hg.internal.RepositoryComparator;
 import org.tmatesoft.hg.internal.RevisionSet;
 import org.tmatesoft.hg.internal.Transaction;
-import org.tmatesoft.hg.repo.HgBundle;
 import org.tmatesoft.hg.repo.HgChangelog;
 import org.tmatesoft.hg.repo.HgInternals;
 import org.tmatesoft.hg.repo.HgParentChildMap;
@@ -70,19 +69,28 @@ public class HgPullCommand extends HgAbstractCommand<HgPullCommand> {
 			final RepositoryComparator comparator = new RepositoryComparator(parentHelper, remote);
 			// get incoming revisions
 			comparator.compare(new ProgressSupport.Sub(progress, 50), getCancelSupport(null, true));
-			final List<Nodeid> common = comparator.getCommon();
-			// get bundle with changes from remote
-			HgBundle incoming = remote.getChanges(common);
+			// with getbundle, server sends exactly what we miss, otherwise everything that descends from common roots
+			final boolean getBundle = remote.isGetBundleSupported();
+			final List<Nodeid> common = getBundle ? comparator.getCommonHeads() : comparator.getCommon();
+			final List<Nodeid> remoteHeads = comparator.getRemoteHeads();
 			//
-			// add revisions to changelog, manifest, files
+			// get changes from remote, add revisions to changelog, manifest, files as they come
 			final Internals implRepo = HgInternals.getImplementationRepo(repo);
 			final AddRevInspector insp;
 			Transaction.Factory trFactory = implRepo.getTransactionFactory();
 			Transaction tr = trFactory.create(repo);
 			try {
-				incoming.inspectAll(insp = new AddRevInspector(implRepo, tr));
+				insp = new AddRevInspector(implRepo, tr);
+				if (!getBundle) {
+					remote.getChanges(common, insp);
+				} else if (!knownNodes(parentHelper, remoteHeads)) {
+					remote.getBundle(common, remoteHeads, insp);
+				} // else all remote heads are known, nothing to pull
 				insp.done();
 				tr.commit();
+			} catch (HgRemoteConnectionException ex) {
+				tr.rollback();
+				throw ex;
 			} catch (HgRuntimeException ex) {
 				tr.rollback();
 				throw ex;
@@ -108,7 +116,6 @@ public class HgPullCommand extends HgAbstractCommand<HgPullCommand> {
 				phaseHelper.synchronizeWithRemote(remotePhases, rsCommon.union(added));
 			}
 			progress.worked(5);
-			incoming.unlink(); // keep the file only in case of failure
 		} catch (HgRuntimeException ex) {
 			throw new HgLibraryFailureException(ex);
 		} finally {
@@ -119,4 +126,13 @@ public class HgPullCommand extends HgAbstractCommand<HgPullCommand> {
 	public Collection<Nodeid> getPulledRevisions() {
 		return added == null ? Collections.<Nodeid>emptyList() : added.asList();
 	}
+
+	private static boolean knownNodes(HgParentChildMap<HgChangelog> parentHelper, List<Nodeid> nodes) {
+		for (Nodeid n : nodes) {
+			if (!parentHelper.knownNode(n)) {
+				return false;
+			}
+		}
+		return true;
+	}
 }
@@ -16,8 +16,6 @@
  */
 package org.tmatesoft.hg.core;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -28,11 +26,8 @@ import org.tmatesoft.hg.internal.PhasesHelper;
 import org.tmatesoft.hg.internal.RepositoryComparator;
 import org.tmatesoft.hg.internal.RevisionSet;
 import org.tmatesoft.hg.repo.HgBookmarks;
-import org.tmatesoft.hg.repo.HgBundle;
 import org.tmatesoft.hg.repo.HgChangelog;
 import org.tmatesoft.hg.repo.HgInternals;
-import org.tmatesoft.hg.repo.HgInvalidStateException;
-import org.tmatesoft.hg.repo.HgLookup;
 import org.tmatesoft.hg.repo.HgParentChildMap;
 import org.tmatesoft.hg.repo.HgPhase;
 import org.tmatesoft.hg.repo.HgRemoteRepository;
@@ -87,44 +82,41 @@ public class HgPushCommand extends HgAbstractCommand<HgPushCommand> {
 			} else {
 				outgoing = new RevisionSet(l);
 			}
-			HgBundle b = null;
 			if (!outgoing.isEmpty()) {
 				//
-				// prepare bundle
+				// send changes, bundle is generated as it goes to the server
 				BundleGenerator bg = new BundleGenerator(implRepo);
-				File bundleFile = bg.create(outgoing.asList());
-				progress.worked(20);
-				b = new HgLookup(repo.getSessionContext()).loadBundle(bundleFile);
-				//
-				// send changes
-				remoteRepo.unbundle(b, comparator.getRemoteHeads());
+				remoteRepo.unbundle(bg.stream(outgoing.asList()), comparator.getRemoteHeads());
 			} // update phase information nevertheless
-			progress.worked(20);
+			progress.worked(40);
 			//
-			// update phase information
-			if (phaseHelper.isCapableOfPhases()) {
-				HgRemoteRepository.Phases remotePhases = remoteRepo.getPhases();
+			// find out remote phases and bookmarks at once, and update those that need it, at once, too
+			final boolean syncPhases = phaseHelper.isCapableOfPhases();
+			final HgBookmarks localBookmarks = repo.getBookmarks();
+			final boolean syncBookmarks = !localBookmarks.getAllBookmarks().isEmpty();
+			HgRemoteRepository.Phases remotePhases = null;
+			HgRemoteRepository.Bookmarks remoteBookmarks = null;
+			if (syncPhases && syncBookmarks) {
+				Pair<HgRemoteRepository.Phases, HgRemoteRepository.Bookmarks> remoteKeys = remoteRepo.getPhasesAndBookmarks();
+				remotePhases = remoteKeys.first();
+				remoteBookmarks = remoteKeys.second();
+			} else if (syncPhases) {
+				remotePhases = remoteRepo.getPhases();
+			} else if (syncBookmarks) {
+				remoteBookmarks = remoteRepo.getBookmarks();
+			}
+			HgRemoteRepository.KeyUpdates updates = new HgRemoteRepository.KeyUpdates();
+			if (remotePhases != null) {
 				RevisionSet remoteDraftsLocalPublic = phaseHelper.synchronizeWithRemote(remotePhases, outgoing);
 				if (!remoteDraftsLocalPublic.isEmpty()) {
 					// foreach remoteDraftsLocallyPublic.heads() do push Draft->Public
 					for (Nodeid n : remoteDraftsLocalPublic.heads(parentHelper)) {
-						try {
-							Outcome upo = remoteRepo.updatePhase(HgPhase.Draft, HgPhase.Public, n);
-							if (!upo.isOk()) {
-								implRepo.getLog().dump(getClass(), Severity.Info, "Failed to update remote phase, reason: %s", upo.getMessage());
-							}
-						} catch (HgRemoteConnectionException ex) {
-							implRepo.getLog().dump(getClass(), Severity.Error, ex, String.format("Failed to update phase of %s", n.shortNotation()));
-						}
+						updates.phase(HgPhase.Draft, HgPhase.Public, n);
 					}
 				}
 			}
-			progress.worked(5);
-			//
-			// update bookmark information
-			HgBookmarks localBookmarks = repo.getBookmarks();
-			if (!localBookmarks.getAllBookmarks().isEmpty()) {
-				for (Pair<String,Nodeid> bm : remoteRepo.getBookmarks()) {
+			if (remoteBookmarks != null) {
+				for (Pair<String,Nodeid> bm : remoteBookmarks) {
 					Nodeid localRevision = localBookmarks.getRevision(bm.first());
 					if (localRevision == null || !parentHelper.knownNode(bm.second())) {
 						continue;
@@ -132,21 +124,23 @@ public class HgPushCommand extends HgAbstractCommand<HgPushCommand> {
 					// we know both localRevision and revision of remote bookmark,
 					// need to make sure we don't push  older revision than it's at the server
 					if (parentHelper.isChild(bm.second(), localRevision)) {
-						remoteRepo.updateBookmark(bm.first(), bm.second(), localRevision);
+						updates.bookmark(bm.first(), bm.second(), localRevision);
 					}
 				}
 			}
-			// XXX WTF is obsolete in namespaces key??
 			progress.worked(5);
-			if (b != null) {
-				b.unlink(); // keep the file only in case of failure
+			try {
+				for (Outcome o : remoteRepo.update(updates)) {
+					if (!o.isOk()) {
+						implRepo.getLog().dump(getClass(), Severity.Info, "Failed to update remote phase or bookmark, reason: %s", o.getMessage());
+					}
+				}
+			} catch (HgRemoteConnectionException ex) {
+				// changes are pushed, failed bookkeeping is not a reason to fail the push
+				implRepo.getLog().dump(getClass(), Severity.Error, ex, "Failed to update remote phases and bookmarks");
 			}
-		} catch (IOException ex) {
-			throw new HgIOException(ex.getMessage(), null); // XXX not a nice idea to throw IOException from BundleGenerator#create
-		} catch (HgRepositoryNotFoundException ex) {
-			final HgInvalidStateException e = new HgInvalidStateException("Failed to load a just-created bundle");
-			e.initCause(ex);
-			throw new HgLibraryFailureException(e);
+			// XXX WTF is obsolete in namespaces key??
+			progress.worked(5);
 		} catch (HgRuntimeException ex) {
 			throw new HgLibraryFailureException(ex);
 		} finally {
@@ -16,7 +16,10 @@
  */
 package org.tmatesoft.hg.internal;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 
 import org.tmatesoft.hg.core.HgIOException;
@@ -27,38 +30,79 @@ import org.tmatesoft.hg.repo.HgDataFile;
 import org.tmatesoft.hg.repo.HgInvalidControlFileException;
 import org.tmatesoft.hg.repo.HgRepository;
 import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.util.LogFacility.Severity;
 import org.tmatesoft.hg.util.Pair;
+import org.tmatesoft.hg.util.Path;
 
 /**
  * FIXME pretty much alike HgCloneCommand.WriteDownMate, shall converge
  * 
+ * Changelog and manifest revisions are added as they come, revisions of files are written with {@link FileGroupPool},
+ * file by file. Link revisions for a file are resolved right as its group is read, new files are registered
+ * with fncache in the order they come in the bundle, once all of them are written.
+ * 
  * @author Artem Tikhomirov
  * @author TMate Software Ltd.
  */
-public final class AddRevInspector implements HgBundle.Inspector {
+public final class AddRevInspector implements HgBundle.Inspector, Lifecycle {
 	private final Internals repo;
 	private final Transaction tr;
 	private final FNCacheFile.Mediator fncache;
-	private Set<Nodeid> added;
+	private final FileGroupPool pool;
+	private Set<Nodeid> added = Collections.emptySet(); // stays empty if there was nothing to pull
 	private RevlogStreamWriter revlog;
 	private RevMap clogRevs;
 	private RevMap revlogRevs;
-	private HgDataFile fileNode;
-	private boolean newFile = false;
+	private FileGroup fileGroup;
+	private final ArrayList<FileGroup> newFiles = new ArrayList<FileGroup>();
+	// groups with revlog files open, file groups end on worker threads
+	private final Set<FileGroup> openGroups = Collections.synchronizedSet(new HashSet<FileGroup>());
+	private Callback lifecycleCallback;
 
 	public AddRevInspector(Internals implRepo, Transaction transaction) {
 		repo = implRepo;
-		tr = transaction;
-		fncache = new FNCacheFile.Mediator(implRepo, transaction);
+		// file groups are written from few threads at once
+		tr = new Transaction.Synchronized(transaction);
+		fncache = new FNCacheFile.Mediator(implRepo, tr);
+		pool = implRepo.newFileGroupPool();
+	}
+
+	public void start(int count, Callback callback, Object token) {
+		lifecycleCallback = callback;
+		pool.start();
+	}
+
+	public void finish(Object token) {
+		pool.finish();
+		// revlogs of groups that didn't come to an end (failure or stop) are still open
+		ArrayList<RevlogStreamWriter> open = new ArrayList<RevlogStreamWriter>();
+		if (revlog != null) {
+			open.add(revlog);
+			revlog = null;
+		}
+		for (FileGroup fg : openGroups) {
+			open.add(fg.revlog);
+		}
+		openGroups.clear();
+		for (RevlogStreamWriter w : open) {
+			try {
+				w.endBatch();
+			} catch (HgIOException ex) {
+				// there's a failure reported already, transaction gets rolled back
+				repo.getLog().dump(getClass(), Severity.Error, ex, null);
+			}
+		}
+		lifecycleCallback = null;
 	}
 
 	public void changelogStart() throws HgRuntimeException {
 		RevlogStream rs = repo.getImplAccess().getChangelogStream();
-		revlog = new RevlogStreamWriter(repo, rs, tr);
+		revlog = newWriter(rs);
 		revlogRevs = clogRevs = new RevMap(rs);
 	}
 
 	public void changelogEnd() throws HgRuntimeException {
+		endBatch(revlog);
 		revlog = null;
 		revlogRevs = null;
 		added = clogRevs.added();
@@ -66,55 +110,120 @@ public final class AddRevInspector implements HgBundle.Inspector {
 
 	public void manifestStart() throws HgRuntimeException {
 		RevlogStream rs = repo.getImplAccess().getManifestStream();
-		revlog = new RevlogStreamWriter(repo, rs, tr);
+		revlog = newWriter(rs);
 		revlogRevs = new RevMap(rs);
 	}
 
 	public void manifestEnd() throws HgRuntimeException {
+		endBatch(revlog);
 		revlog = null;
 		revlogRevs = null;
 	}
 
 	public void fileStart(String name) throws HgRuntimeException {
-		fileNode = repo.getRepo().getFileNode(name);
-		newFile = !fileNode.exists();
-		RevlogStream rs = repo.getImplAccess().getStream(fileNode);
-		revlog = new RevlogStreamWriter(repo, rs, tr);
-		revlogRevs = new RevMap(rs);
+		HgDataFile fileNode = repo.getRepo().getFileNode(name);
+		fileGroup = new FileGroup(fileNode.getPath(), repo.getImplAccess().getStream(fileNode));
+		if (!fileNode.exists()) {
+			newFiles.add(fileGroup);
+		}
+		pool.begin(fileGroup);
 	}
 
 	public void fileEnd(String name) throws HgRuntimeException {
-		if (newFile) {
-			fncache.registerNew(fileNode.getPath(), revlog.getRevlogStream());
-		}
-		revlog = null;
-		revlogRevs = null;
+		pool.end();
+		fileGroup = null;
 	}
 
 	public boolean element(GroupElement ge) throws HgRuntimeException {
 		assert clogRevs != null;
+		if (fileGroup != null) {
+			if (pool.isFailed()) {
+				lifecycleCallback.stop();
+				return false;
+			}
+			// changelog lookups happen here, workers don't share RevlogStream
+			fileGroup.linkRevision(ge.cset(), clogRevs.revisionIndex(ge.cset()));
+			pool.element(ge);
+			return true;
+		}
 		assert revlogRevs != null;
+		addRevision(revlog, ge, clogRevs, revlogRevs);
+		return true;
+	}
+
+	public RevisionSet addedChangesets() {
+		return new RevisionSet(added);
+	}
+	
+	public void done() throws HgIOException, HgRuntimeException {
+		pool.checkFailure();
+		for (FileGroup fg : newFiles) {
+			fncache.registerNew(fg.path, fg.revlog.getRevlogStream());
+		}
+		fncache.complete();
+	}
+
+	// revisions of a bundle come in bulk, written in a batch and compressed with the level configured for bulk writes
+	private RevlogStreamWriter newWriter(RevlogStream rs) {
+		RevlogStreamWriter rv = new RevlogStreamWriter(repo, rs, tr);
+		rv.compressionLevel(repo.getBulkCompressionLevel());
+		rv.beginBatch();
+		return rv;
+	}
+
+	private static void addRevision(RevlogStreamWriter revlog, GroupElement ge, RevlogStreamWriter.RevisionToIndexMap clogRevs, RevMap revlogRevs) throws HgRuntimeException {
 		if (revlog.getRevlogStream().findRevisionIndex(ge.node()) != HgRepository.BAD_REVISION) {
 			// HgRemoteRepository.getChanges(common) builds a bundle that includes these common
 			// revisions. Hence, shall not add these common (i.e. known locally) revisions
 			// once again
-			return true;
+			return;
 		}
 		try {
 			Pair<Integer, Nodeid> newRev = revlog.addPatchRevision(ge, clogRevs, revlogRevs);
 			revlogRevs.update(newRev.first(), newRev.second());
-			return true;
 		} catch (HgIOException ex) {
 			throw new HgInvalidControlFileException(ex, true);
 		}
 	}
 
-	public RevisionSet addedChangesets() {
-		return new RevisionSet(added);
+	private static void endBatch(RevlogStreamWriter revlog) throws HgRuntimeException {
+		try {
+			revlog.endBatch();
+		} catch (HgIOException ex) {
+			throw new HgInvalidControlFileException(ex, true);
+		}
 	}
-	
-	public void done() throws HgIOException {
-		fncache.complete();
+
+	private final class FileGroup implements FileGroupPool.Group, RevlogStreamWriter.RevisionToIndexMap {
+		final Path path;
+		final RevlogStreamWriter revlog;
+		private final RevMap revlogRevs;
+		private final HashMap<Nodeid, Integer> linkRevs = new HashMap<Nodeid, Integer>();
+
+		FileGroup(Path filePath, RevlogStream rs) {
+			path = filePath;
+			revlog = newWriter(rs);
+			revlogRevs = new RevMap(rs);
+			openGroups.add(this);
+		}
+
+		void linkRevision(Nodeid cset, int revIndex) {
+			linkRevs.put(cset, revIndex);
+		}
+
+		public int revisionIndex(Nodeid revision) {
+			Integer i = linkRevs.get(revision);
+			return i == null ? HgRepository.NO_REVISION : i;
+		}
+
+		public void element(GroupElement ge) throws HgRuntimeException {
+			addRevision(revlog, ge, this, revlogRevs);
+		}
+
+		public void end() throws HgRuntimeException {
+			openGroups.remove(this);
+			endBatch(revlog);
+		}
 	}
 
 	private static class RevMap implements RevlogStreamWriter.RevisionToIndexMap {
@@ -30,6 +30,7 @@ import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.Deflater;
 
 import org.tmatesoft.hg.core.HgIOException;
 import org.tmatesoft.hg.core.Nodeid;
@@ -43,6 +44,9 @@ import org.tmatesoft.hg.repo.HgManifest;
 import org.tmatesoft.hg.repo.HgRuntimeException;
 
 /**
+ * Changelog, manifest and file groups are generated one after another, revision by revision, 
+ * and written right away, there's no need to keep complete bundle anywhere.
+ * 
  * @see http://mercurial.selenic.com/wiki/BundleFormat
  * @author Artem Tikhomirov
  * @author TMate Software Ltd.
@@ -59,6 +63,55 @@ public class BundleGenerator {
 	 * @return never <code>null</code>. empty file if no changesets were written
 	 */
 	public File create(List<Nodeid> changesets) throws HgIOException, IOException {
+		final File bundleFile = File.createTempFile("hg4j-", ".bundle");
+		if (changesets.isEmpty()) {
+			// nothing to write
+			return bundleFile;
+		}
+		final FileOutputStream osBundle = new FileOutputStream(bundleFile);
+		try {
+			final OutputStreamSerializer outRaw = new OutputStreamSerializer(osBundle);
+			outRaw.write("HG10UN".getBytes(), 0, 6);
+			write(changesets, outRaw);
+			outRaw.done();
+			osBundle.flush();
+		} finally {
+			osBundle.close();
+		}
+		//return new HgBundle(repo.getSessionContext(), repo.getDataAccess(), bundleFile);
+		return bundleFile;
+	}
+
+	/**
+	 * Compressed bundle that is generated as it's serialized, e.g. right into a request to a server, 
+	 * group by group, without keeping complete bundle neither in memory nor in a file.
+	 * Length of the bundle is not known in advance.
+	 * 
+	 * @param changesets non-empty list of changesets to bundle
+	 * @return source of <code>HG10GZ</code> bundle
+	 */
+	public DataSerializer.DataSource stream(final List<Nodeid> changesets) {
+		return new DataSerializer.DataSource() {
+
+			public void serialize(DataSerializer out) throws HgIOException, HgRuntimeException {
+				out.write("HG10GZ".getBytes(), 0, 6);
+				final Deflater deflater = new Deflater();
+				try {
+					DeflaterDataSerializer dds = new DeflaterDataSerializer(out, deflater, 16 * 1024);
+					write(changesets, dds);
+					dds.finish();
+				} finally {
+					deflater.end();
+				}
+			}
+
+			public int serializeLength() {
+				return -1;
+			}
+		};
+	}
+
+	private void write(List<Nodeid> changesets, DataSerializer outRaw) throws HgIOException, HgRuntimeException {
 		final HgChangelog clog = repo.getRepo().getChangelog();
 		final HgManifest manifest = repo.getRepo().getManifest();
 		IntVector clogRevsVector = new IntVector(changesets.size(), 0);
@@ -87,15 +140,6 @@ public class BundleGenerator {
 		}, clogRevs);
 		manifestRevs.sort(true);
 		//
-		final File bundleFile = File.createTempFile("hg4j-", ".bundle");
-		if (clogRevs.length == 0) {
-			// nothing to write
-			return bundleFile;
-		}
-		final FileOutputStream osBundle = new FileOutputStream(bundleFile);
-		final OutputStreamSerializer outRaw = new OutputStreamSerializer(osBundle);
-		outRaw.write("HG10UN".getBytes(), 0, 6);
-		//
 		RevlogStream clogStream = repo.getImplAccess().getChangelogStream();
 		new ChunkGenerator(outRaw, clogMap).iterate(clogStream, clogRevs);
 		outRaw.writeInt(0); // null chunk for changelog group
@@ -129,11 +173,6 @@ public class BundleGenerator {
 			}
 		}
 		outRaw.writeInt(0); // null chunk to indicate no more files (although BundleFormat page doesn't mention this)
-		outRaw.done();
-		osBundle.flush();
-		osBundle.close();
-		//return new HgBundle(repo.getSessionContext(), repo.getDataAccess(), bundleFile);
-		return bundleFile;
 	}
 	
 	private static Collection<HgDataFile> sortedByName(List<HgDataFile> files) {
@@ -146,12 +185,20 @@ public class BundleGenerator {
 		return files;
 	}
 	
+	/**
+	 * Each chunk in a group is a patch against previous revision in the group. Revlog keeps revisions as patches 
+	 * against previous revision in the revlog, too, so when revisions of the group are consecutive in the revlog, 
+	 * stored patch is sent as is. Only when the stored data is complete revision, or the previous revision in the group
+	 * is not the one stored patch is against, complete revision contents are reconstructed and compared.
+	 */
 	private static class ChunkGenerator implements RevlogStream.Inspector {
 		
 		private final DataSerializer ds;
 		private final IntMap<Nodeid> parentMap;
 		private final IntMap<Nodeid> clogMap;
-		private byte[] prevContent;
+		private RevlogStream stream;
+		private int prevRevision;
+		private byte[] prevContent; // content of prevRevision, if known
 		private int startParent;
 
 		public ChunkGenerator(DataSerializer dataSerializer, IntMap<Nodeid> clogNodeidMap) {
@@ -163,6 +210,8 @@ public class BundleGenerator {
 		public void iterate(RevlogStream s, int[] revisions) throws HgRuntimeException {
 			int[] p = s.parents(revisions[0], new int[2]);
 			startParent = p[0];
+			stream = s;
+			prevRevision = NO_REVISION;
 			int[] revs2read;
 			if (startParent == NO_REVISION) {
 				revs2read = revisions;
@@ -171,6 +220,7 @@ public class BundleGenerator {
 				revs2read = new int[revisions.length + 1];
 				revs2read[0] = startParent;
 				System.arraycopy(revisions, 0, revs2read, 1, revisions.length);
+				prevContent = null;
 			}
 			// FIXME this is a hack to fill parentsMap with 
 			// parents of elements that we are not going to meet with regular
@@ -179,7 +229,9 @@ public class BundleGenerator {
 			// revisions[10, 11], parents(10) == 9, parents(11) == 7
 			// revs2read == [9,10,11], and parentsMap lacks entry for parent rev7.
 			fillMissingParentsMap(s, revisions);
-			s.iterate(revs2read, true, this);
+			s.iterateStored(revs2read, this);
+			stream = null;
+			prevContent = null;
 		}
 		
 		private void fillMissingParentsMap(RevlogStream s, int[] revisions) throws HgRuntimeException {
@@ -198,17 +250,26 @@ public class BundleGenerator {
 		public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) throws HgRuntimeException {
 			try {
 				parentMap.put(revisionIndex, Nodeid.fromBinary(nodeid, 0));
-				byte[] nextContent = data.byteArray();
-				data.done();
 				if (revisionIndex == startParent) {
-					prevContent = nextContent;
+					// content is needed only if the first revision of the group is not next to its parent
+					prevRevision = revisionIndex;
 					return;
 				}
-				Patch p = GeneratePatchInspector.delta(prevContent, nextContent);
-				prevContent = nextContent;
-				nextContent = null;
-				PatchDataSource pds = p.new PatchDataSource();
-				int len = pds.serializeLength() + 84;
+				final byte[] storedData = data.byteArray();
+				DataSerializer.DataSource chunkData;
+				if (baseRevision != revisionIndex && prevRevision != NO_REVISION && prevRevision == revisionIndex - 1) {
+					// stored patch is against the same revision bundle chunk shall be
+					chunkData = new DataSerializer.ByteArrayDataSource(storedData);
+					prevContent = null;
+				} else {
+					final byte[] prev = prevContent != null ? prevContent : content(prevRevision);
+					final byte[] next = baseRevision == revisionIndex ? storedData : content(revisionIndex);
+					Patch p = GeneratePatchInspector.delta(prev, next);
+					chunkData = p.new PatchDataSource();
+					prevContent = next;
+				}
+				prevRevision = revisionIndex;
+				int len = chunkData.serializeLength() + 84;
 				ds.writeInt(len);
 				ds.write(nodeid, 0, Nodeid.SIZE);
 				if (parent1Revision != NO_REVISION) {
@@ -222,7 +283,7 @@ public class BundleGenerator {
 					ds.writeByte(Nodeid.NULL.toByteArray());
 				}
 				ds.writeByte(clogMap.get(linkRevision).toByteArray());
-				pds.serialize(ds);
+				chunkData.serialize(ds);
 			} catch (IOException ex) {
 				// XXX odd to have object with IOException to use where no checked exception is allowed 
 				throw new HgInvalidControlFileException(ex.getMessage(), ex, null); 
@@ -230,5 +291,23 @@ public class BundleGenerator {
 				throw new HgInvalidControlFileException(ex, true); // XXX any way to refactor ChunkGenerator not to get checked exception here?
 			}
 		}
+
+		private byte[] content(int revisionIndex) throws HgRuntimeException {
+			if (revisionIndex == NO_REVISION) {
+				return new byte[0];
+			}
+			final byte[][] rv = new byte[1][];
+			stream.iterate(revisionIndex, revisionIndex, true, new RevlogStream.Inspector() {
+				
+				public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) throws HgRuntimeException {
+					try {
+						rv[0] = data.byteArray();
+					} catch (IOException ex) {
+						throw new HgInvalidControlFileException(ex.getMessage(), ex, null); 
+					}
+				}
+			});
+			return rv[0];
+		}
 	}
 }
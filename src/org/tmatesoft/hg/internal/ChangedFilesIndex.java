@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import static org.tmatesoft.hg.repo.HgRepository.TIP;
+import static org.tmatesoft.hg.util.LogFacility.Severity.Warn;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.util.Path;
+
+/**
+ * Inverted index of files listed in changesets: for each file path, and for each directory (with trailing slash)
+ * of these files, keeps a sorted list of changesets that modified anything at that location.
+ *
+ * <p>Changeset indexes of a given path are sparse, therefore kept as sorted lists, delta- and variable-length encoded
+ * when persisted (under <samp>.hg/cache/</samp>), and combined into a bitmap when answering queries.
+ * Updated incrementally from the last indexed revision up to changelog tip, rebuilt once last indexed revision
+ * doesn't match the changelog.
+ *
+ * <p>Not thread-safe.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class ChangedFilesIndex {
+	private static final int MAGIC = 0x68676669; // "hgfi"
+	private static final int VERSION = 1;
+
+	private final Internals repo;
+	private final ChangelogMonitor repoChangeTracker;
+	private final IndexCacheFile cacheFile;
+	private final Map<String, IntVector> postings = new HashMap<String, IntVector>();
+	private int indexed = 0;
+	private Nodeid lastIndexed;
+	private boolean loaded = false;
+
+	public ChangedFilesIndex(Internals implRepo) {
+		repo = implRepo;
+		repoChangeTracker = new ChangelogMonitor(implRepo.getRepo());
+		cacheFile = new IndexCacheFile(implRepo, "hg4j-files-index", MAGIC, VERSION);
+	}
+
+	/**
+	 * Bring index up to date with the changelog.
+	 */
+	public ChangedFilesIndex update() throws HgRuntimeException {
+		if (loaded && !repoChangeTracker.isChanged()) {
+			return this;
+		}
+		final HgChangelog clog = repo.getRepo().getChangelog();
+		if (!loaded) {
+			readCache();
+			loaded = true;
+		}
+		final int clogRevCount = clog.getRevisionCount();
+		if (indexed > clogRevCount || (indexed > 0 && !clog.getRevision(indexed - 1).equals(lastIndexed))) {
+			clear();
+		}
+		if (indexed < clogRevCount) {
+			clog.range(indexed, TIP, new HgChangelog.Inspector() {
+
+				public void next(int revisionIndex, Nodeid nodeid, RawChangeset cset) {
+					assert revisionIndex == indexed;
+					for (String f : cset.files()) {
+						add(f, revisionIndex);
+						for (int i = f.lastIndexOf('/'); i > 0; i = f.lastIndexOf('/', i - 1)) {
+							add(f.substring(0, i + 1), revisionIndex);
+						}
+					}
+					indexed++;
+					lastIndexed = nodeid;
+				}
+			});
+			try {
+				writeCache();
+			} catch (IOException ex) {
+				repo.getLog().dump(getClass(), Warn, ex, "Failed to write index of changed files");
+			}
+		}
+		repoChangeTracker.touch();
+		return this;
+	}
+
+	/**
+	 * @param fileOrDir file, or directory (with trailing slash) to look up
+	 * @return sorted indexes of changesets that modified the file or anything under the directory
+	 */
+	public int[] changesets(Path fileOrDir) {
+		IntVector v = postings.get(fileOrDir.toString());
+		return v == null ? new int[0] : v.toArray();
+	}
+
+	/**
+	 * @param scope selects files of interest, consulted for files only, not directories
+	 * @return sorted indexes of changesets that modified any file accepted by the matcher
+	 */
+	public int[] changesets(Path.Matcher scope) {
+		final Path.Source pathFactory = repo.getSessionContext().getPathFactory();
+		BitSet bitmap = new BitSet(indexed);
+		for (Map.Entry<String, IntVector> e : postings.entrySet()) {
+			final String p = e.getKey();
+			if (p.charAt(p.length() - 1) == '/' || !scope.accept(pathFactory.path(p))) {
+				continue;
+			}
+			IntVector v = e.getValue();
+			for (int i = 0, x = v.size(); i < x; i++) {
+				bitmap.set(v.get(i));
+			}
+		}
+		int[] rv = new int[bitmap.cardinality()];
+		for (int i = bitmap.nextSetBit(0), j = 0; i >= 0; i = bitmap.nextSetBit(i + 1)) {
+			rv[j++] = i;
+		}
+		return rv;
+	}
+
+	private void add(String path, int csetIndex) {
+		IntVector v = postings.get(path);
+		if (v == null) {
+			postings.put(path, v = new IntVector(4, -1));
+		} else if (v.get(v.size() - 1) == csetIndex) {
+			// same directory met for another file of the changeset
+			return;
+		}
+		v.add(csetIndex);
+	}
+
+	private void clear() {
+		postings.clear();
+		indexed = 0;
+		lastIndexed = null;
+	}
+
+	private void readCache() {
+		lastIndexed = cacheFile.read(new IndexCacheFile.Reader() {
+
+			public void read(DataInputStream in, int count) throws IOException {
+				for (int i = 0, keys = in.readInt(); i < keys; i++) {
+					String path = in.readUTF();
+					int size = readVarInt(in);
+					IntVector v = new IntVector(size, -1);
+					for (int j = 0, last = 0; j < size; j++) {
+						last += readVarInt(in);
+						v.add(last);
+					}
+					postings.put(path, v);
+				}
+				indexed = count;
+			}
+		});
+		if (lastIndexed == null) {
+			clear();
+		}
+	}
+
+	private void writeCache() throws IOException {
+		cacheFile.write(indexed, lastIndexed, new IndexCacheFile.Writer() {
+
+			public void write(DataOutputStream out) throws IOException {
+				out.writeInt(postings.size());
+				for (Map.Entry<String, IntVector> e : postings.entrySet()) {
+					out.writeUTF(e.getKey());
+					IntVector v = e.getValue();
+					writeVarInt(out, v.size());
+					for (int j = 0, last = 0, x = v.size(); j < x; j++) {
+						int value = v.get(j);
+						writeVarInt(out, value - last);
+						last = value;
+					}
+				}
+			}
+		});
+	}
+
+	private static void writeVarInt(DataOutputStream dos, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			dos.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dos.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream dis) throws IOException {
+		int rv = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = dis.readUnsignedByte();
+			rv |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return rv;
+			}
+		}
+		throw new IOException("Malformed variable-length integer");
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import static org.tmatesoft.hg.repo.HgRepository.BAD_REVISION;
+import static org.tmatesoft.hg.repo.HgRepository.TIP;
+import static org.tmatesoft.hg.util.LogFacility.Severity.Warn;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
+import org.tmatesoft.hg.repo.HgManifest;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+
+/**
+ * Derived, column-oriented digest of the changelog, to answer selection queries (by user, branch, date)
+ * without inflating and parsing changeset records. Each changeset is represented with an index of its user
+ * and branch names (in respective name tables), commit time, time zone and index of manifest revision.
+ *
+ * <p>Persisted under <samp>.hg/cache/</samp>, and updated incrementally from the last indexed revision
+ * up to changelog tip. Cache file is deemed stale (and is rebuilt from scratch) once last indexed revision
+ * doesn't match the one at the same index in the changelog (e.g. after rollback or strip).
+ *
+ * <p>Not thread-safe.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class ChangelogIndex {
+	private static final int MAGIC = 0x68676369; // "hgci"
+	private static final int VERSION = 1;
+
+	private final Internals repo;
+	private final ChangelogMonitor repoChangeTracker;
+	private final IndexCacheFile cacheFile;
+	private final ArrayList<String> users = new ArrayList<String>();
+	private final ArrayList<String> branches = new ArrayList<String>();
+	private final Map<String, Integer> userIds = new HashMap<String, Integer>();
+	private final Map<String, Integer> branchIds = new HashMap<String, Integer>();
+	private final IntVector userColumn = new IntVector(1024, -1);
+	private final IntVector timezoneColumn = new IntVector(1024, -1);
+	private final IntVector branchColumn = new IntVector(1024, -1);
+	private final IntVector manifestColumn = new IntVector(1024, -1);
+	private long[] timeColumn = new long[1024];
+	private Nodeid lastIndexed;
+	private boolean loaded = false;
+
+	public ChangelogIndex(Internals implRepo) {
+		repo = implRepo;
+		repoChangeTracker = new ChangelogMonitor(implRepo.getRepo());
+		cacheFile = new IndexCacheFile(implRepo, "hg4j-changelog-index", MAGIC, VERSION);
+	}
+
+	/**
+	 * Bring index up to date with the changelog. Reads persisted cache on first use, indexes changesets
+	 * missing in the cache, and writes the cache back if anything has been added.
+	 */
+	public ChangelogIndex update() throws HgRuntimeException {
+		if (loaded && !repoChangeTracker.isChanged()) {
+			return this;
+		}
+		final HgChangelog clog = repo.getRepo().getChangelog();
+		if (!loaded) {
+			readCache();
+			loaded = true;
+		}
+		final int clogRevCount = clog.getRevisionCount();
+		final int indexed = size();
+		if (indexed > clogRevCount || (indexed > 0 && !clog.getRevision(indexed - 1).equals(lastIndexed))) {
+			// cache doesn't match the changelog any more
+			clear();
+		}
+		if (size() < clogRevCount) {
+			final HgManifest manifest = repo.getRepo().getManifest();
+			final Nodeid[] last = new Nodeid[1];
+			clog.range(size(), TIP, new HgChangelog.Inspector() {
+
+				public void next(int revisionIndex, Nodeid nodeid, RawChangeset cset) throws HgRuntimeException {
+					assert revisionIndex == size();
+					Nodeid mr = cset.manifest();
+					int manifestRevIndex = mr == null || mr.isNull() ? BAD_REVISION : manifest.getRevisionIndex(mr);
+					append(cset.user(), cset.branch(), cset.date().getTime() / 1000, cset.timezone(), manifestRevIndex);
+					last[0] = nodeid;
+				}
+			});
+			lastIndexed = last[0];
+			try {
+				writeCache();
+			} catch (IOException ex) {
+				// failure to write the cache is not fatal, we've got data in memory
+				repo.getLog().dump(getClass(), Warn, ex, "Failed to write changelog index");
+			}
+		}
+		repoChangeTracker.touch();
+		return this;
+	}
+
+	/**
+	 * @return number of indexed changesets
+	 */
+	public int size() {
+		return userColumn.size();
+	}
+
+	public String user(int csetRevIndex) {
+		return users.get(userColumn.get(csetRevIndex));
+	}
+
+	public String branch(int csetRevIndex) {
+		return branches.get(branchColumn.get(csetRevIndex));
+	}
+
+	/**
+	 * @return commit time, milliseconds since epoch (UTC), like {@link RawChangeset#date()}
+	 */
+	public long time(int csetRevIndex) {
+		checkIndex(csetRevIndex);
+		return timeColumn[csetRevIndex] * 1000;
+	}
+
+	public int timezone(int csetRevIndex) {
+		return timezoneColumn.get(csetRevIndex);
+	}
+
+	/**
+	 * @return manifest revision index, or {@link org.tmatesoft.hg.repo.HgRepository#BAD_REVISION} if changeset doesn't reference any manifest
+	 */
+	public int manifestRevision(int csetRevIndex) {
+		return manifestColumn.get(csetRevIndex);
+	}
+
+	/**
+	 * Select changesets in the given range that match all of specified criteria
+	 *
+	 * @param start first changeset to consider, inclusive
+	 * @param end last changeset to consider, inclusive
+	 * @param userSubstrings lower-case user name fragments, changeset matches if its user contains any of them, or <code>null</code> to match any user
+	 * @param branchNames exact branch names, or <code>null</code> to match any branch
+	 * @param since lower bound of commit time, milliseconds, inclusive
+	 * @param till upper bound of commit time, milliseconds, exclusive
+	 * @return sorted indexes of matching changesets, never <code>null</code>
+	 */
+	public int[] select(int start, int end, Collection<String> userSubstrings, Collection<String> branchNames, long since, long till) {
+		checkIndex(start);
+		checkIndex(end);
+		// resolve criteria against name tables once, rather than for each changeset
+		final boolean[] userMatch = userSubstrings == null ? null : new boolean[users.size()];
+		if (userMatch != null) {
+			for (int i = 0; i < userMatch.length; i++) {
+				String u = users.get(i).toLowerCase();
+				for (String s : userSubstrings) {
+					if (u.indexOf(s) != -1) {
+						userMatch[i] = true;
+						break;
+					}
+				}
+			}
+		}
+		final boolean[] branchMatch = branchNames == null ? null : new boolean[branches.size()];
+		if (branchMatch != null) {
+			for (int i = 0; i < branchMatch.length; i++) {
+				branchMatch[i] = branchNames.contains(branches.get(i));
+			}
+		}
+		final boolean checkTime = since != Long.MIN_VALUE || till != Long.MAX_VALUE;
+		IntVector rv = new IntVector(Math.max(1, Math.min(end - start + 1, 1024)), -1);
+		for (int i = start; i <= end; i++) {
+			if (userMatch != null && !userMatch[userColumn.get(i)]) {
+				continue;
+			}
+			if (branchMatch != null && !branchMatch[branchColumn.get(i)]) {
+				continue;
+			}
+			if (checkTime) {
+				long t = timeColumn[i] * 1000;
+				if (t < since || t >= till) {
+					continue;
+				}
+			}
+			rv.add(i);
+		}
+		return rv.toArray();
+	}
+
+	private void append(String user, String branch, long timeSeconds, int timezone, int manifestRevIndex) {
+		userColumn.add(nameId(user, users, userIds));
+		branchColumn.add(nameId(branch, branches, branchIds));
+		timezoneColumn.add(timezone);
+		manifestColumn.add(manifestRevIndex);
+		final int i = userColumn.size() - 1;
+		if (i == timeColumn.length) {
+			long[] newTime = new long[timeColumn.length << 1];
+			System.arraycopy(timeColumn, 0, newTime, 0, i);
+			timeColumn = newTime;
+		}
+		timeColumn[i] = timeSeconds;
+	}
+
+	private static int nameId(String name, ArrayList<String> names, Map<String, Integer> ids) {
+		Integer id = ids.get(name);
+		if (id == null) {
+			ids.put(name, id = names.size());
+			names.add(name);
+		}
+		return id;
+	}
+
+	private void clear() {
+		users.clear();
+		userIds.clear();
+		branches.clear();
+		branchIds.clear();
+		userColumn.clear();
+		branchColumn.clear();
+		timezoneColumn.clear();
+		manifestColumn.clear();
+		lastIndexed = null;
+	}
+
+	private void checkIndex(int csetRevIndex) {
+		if (csetRevIndex < 0 || csetRevIndex >= size()) {
+			throw new IndexOutOfBoundsException(String.format("Index: %d, size: %d", csetRevIndex, size()));
+		}
+	}
+
+	private void readCache() {
+		lastIndexed = cacheFile.read(new IndexCacheFile.Reader() {
+
+			public void read(DataInputStream in, int count) throws IOException {
+				for (int i = 0, x = in.readInt(); i < x; i++) {
+					nameId(in.readUTF(), users, userIds);
+				}
+				for (int i = 0, x = in.readInt(); i < x; i++) {
+					nameId(in.readUTF(), branches, branchIds);
+				}
+				timeColumn = new long[Math.max(count, 1024)];
+				for (int i = 0; i < count; i++) {
+					userColumn.add(in.readInt());
+				}
+				for (int i = 0; i < count; i++) {
+					branchColumn.add(in.readInt());
+				}
+				for (int i = 0; i < count; i++) {
+					timeColumn[i] = in.readLong();
+				}
+				for (int i = 0; i < count; i++) {
+					timezoneColumn.add(in.readInt());
+				}
+				for (int i = 0; i < count; i++) {
+					manifestColumn.add(in.readInt());
+				}
+			}
+		});
+		if (lastIndexed == null) {
+			clear();
+		}
+	}
+
+	private void writeCache() throws IOException {
+		final int count = size();
+		cacheFile.write(count, lastIndexed, new IndexCacheFile.Writer() {
+
+			public void write(DataOutputStream out) throws IOException {
+				out.writeInt(users.size());
+				for (String s : users) {
+					out.writeUTF(s);
+				}
+				out.writeInt(branches.size());
+				for (String s : branches) {
+					out.writeUTF(s);
+				}
+				for (int i = 0; i < count; i++) {
+					out.writeInt(userColumn.get(i));
+				}
+				for (int i = 0; i < count; i++) {
+					out.writeInt(branchColumn.get(i));
+				}
+				for (int i = 0; i < count; i++) {
+					out.writeLong(timeColumn[i]);
+				}
+				for (int i = 0; i < count; i++) {
+					out.writeInt(timezoneColumn.get(i));
+				}
+				for (int i = 0; i < count; i++) {
+					out.writeInt(manifestColumn.get(i));
+				}
+			}
+		});
+	}
+}
@@ -80,51 +80,41 @@ public final class ChangesetParser {
 		return init(data, 0, data.length);
 	}
 
+	/**
+	 * Locate changeset fields without decoding them. Fields get decoded on demand, through {@link Fields} 
+	 * accessors, therefore <code>data</code> shall not get modified once passed here.
+	 */
+	public RawChangeset parseLazy(DataAccess da) throws IOException, HgInvalidDataFormatException {
+		byte[] data = da.byteArray();
+		return factory.create(locate(data, 0, data.length));
+	}
+
 	private RawChangeset init(byte[] data, int offset, int length) throws HgInvalidDataFormatException {
+		Fields f = locate(data, offset, length);
+		return factory.create(f.manifest(), f.user(), f.date(), f.timezone(), f.files(), f.comment(), f.extras());
+	}
+	
+	private Fields locate(byte[] data, int offset, int length) throws HgInvalidDataFormatException {
 		final int bufferEndIndex = offset + length;
 		final byte lineBreak = (byte) '\n';
 		int breakIndex1 = indexOf(data, lineBreak, offset, bufferEndIndex);
 		if (breakIndex1 == -1) {
 			throw new HgInvalidDataFormatException("Bad Changeset data");
 		}
-		Nodeid _nodeid = Nodeid.fromAscii(data, 0, breakIndex1);
 		int breakIndex2 = indexOf(data, lineBreak, breakIndex1 + 1, bufferEndIndex);
 		if (breakIndex2 == -1) {
 			throw new HgInvalidDataFormatException("Bad Changeset data");
 		}
-		String _user;
-		_user = encHelper.userFromChangeset(data, breakIndex1 + 1, breakIndex2 - breakIndex1 - 1);
-		_user = usersPool.unify(_user);
-
 		int breakIndex3 = indexOf(data, lineBreak, breakIndex2 + 1, bufferEndIndex);
 		if (breakIndex3 == -1) {
 			throw new HgInvalidDataFormatException("Bad Changeset data");
 		}
-		String _timeString = new String(data, breakIndex2 + 1, breakIndex3 - breakIndex2 - 1);
-		int space1 = _timeString.indexOf(' ');
-		if (space1 == -1) {
-			throw new HgInvalidDataFormatException(String.format("Bad Changeset data: %s in [%d..%d]", "time string", breakIndex2+1, breakIndex3));
-		}
-		int space2 = _timeString.indexOf(' ', space1 + 1);
-		if (space2 == -1) {
-			space2 = _timeString.length();
-		}
-		long unixTime = Long.parseLong(_timeString.substring(0, space1));
-		int _timezone = Integer.parseInt(_timeString.substring(space1 + 1, space2));
-		// unixTime is local time, and timezone records difference of the local time to UTC.
-		Date _time = new Date(unixTime * 1000);
-		String _extras = space2 < _timeString.length() ? _timeString.substring(space2 + 1) : null;
-		Map<String, String> _extrasMap = parseExtras(_extras);
 		//
 		int lastStart = breakIndex3 + 1;
 		int breakIndex4 = indexOf(data, lineBreak, lastStart, bufferEndIndex);
-		ArrayList<String> _files = null;
 		if (breakIndex4 > lastStart) {
 			// if breakIndex4 == lastStart, we already found \n\n and hence there are no files (e.g. merge revision)
-			_files = new ArrayList<String>(5);
 			while (breakIndex4 != -1 && breakIndex4 + 1 < bufferEndIndex) {
-				String fname = encHelper.fileFromChangeset(data, lastStart, breakIndex4 - lastStart);
-				_files.add(filesPool.unify(fname));
 				lastStart = breakIndex4 + 1;
 				if (data[breakIndex4 + 1] == lineBreak) {
 					// found \n\n
@@ -139,9 +129,98 @@ public final class ChangesetParser {
 		} else {
 			breakIndex4--;
 		}
-		String _comment = encHelper.commentFromChangeset(data, breakIndex4 + 2, bufferEndIndex - breakIndex4 - 2);
-		RawChangeset target = factory.create(_nodeid, _user, _time, _timezone, _files, _comment, _extrasMap);
-		return target; 
+		return new Fields(this, data, offset, breakIndex1, breakIndex2, breakIndex3, breakIndex4 + 2, bufferEndIndex);
+	}
+
+	/**
+	 * Boundaries of changeset fields within revision text, with the means to decode each field separately.
+	 * Not thread-safe, relies on non-synchronized pools of the parser it came from.
+	 */
+	public static final class Fields {
+		private final ChangesetParser parser;
+		private final byte[] data;
+		private final int start, manifestEnd, userEnd, timeEnd, commentStart, end;
+		// time line has 3 fields, decode all of them at once
+		private Date time;
+		private int timezone;
+		private Map<String, String> extras;
+
+		Fields(ChangesetParser csetParser, byte[] text, int textStart, int breakIndex1, int breakIndex2, int breakIndex3, int commentOffset, int textEnd) {
+			parser = csetParser;
+			data = text;
+			start = textStart;
+			manifestEnd = breakIndex1;
+			userEnd = breakIndex2;
+			timeEnd = breakIndex3;
+			commentStart = commentOffset;
+			end = textEnd;
+		}
+
+		public Nodeid manifest() {
+			return Nodeid.fromAscii(data, start, manifestEnd - start);
+		}
+
+		public String user() {
+			String _user = parser.encHelper.userFromChangeset(data, manifestEnd + 1, userEnd - manifestEnd - 1);
+			return parser.usersPool.unify(_user);
+		}
+
+		public Date date() throws HgInvalidDataFormatException {
+			parseTimeLine();
+			return time;
+		}
+
+		public int timezone() throws HgInvalidDataFormatException {
+			parseTimeLine();
+			return timezone;
+		}
+
+		public Map<String, String> extras() throws HgInvalidDataFormatException {
+			parseTimeLine();
+			return extras;
+		}
+
+		private void parseTimeLine() throws HgInvalidDataFormatException {
+			if (time != null) {
+				return;
+			}
+			String _timeString = new String(data, userEnd + 1, timeEnd - userEnd - 1);
+			int space1 = _timeString.indexOf(' ');
+			if (space1 == -1) {
+				throw new HgInvalidDataFormatException(String.format("Bad Changeset data: %s in [%d..%d]", "time string", userEnd+1, timeEnd));
+			}
+			int space2 = _timeString.indexOf(' ', space1 + 1);
+			if (space2 == -1) {
+				space2 = _timeString.length();
+			}
+			long unixTime = Long.parseLong(_timeString.substring(0, space1));
+			timezone = Integer.parseInt(_timeString.substring(space1 + 1, space2));
+			String _extras = space2 < _timeString.length() ? _timeString.substring(space2 + 1) : null;
+			extras = parser.parseExtras(_extras);
+			// unixTime is local time, and timezone records difference of the local time to UTC.
+			time = new Date(unixTime * 1000);
+		}
+
+		public List<String> files() {
+			final int filesEnd = commentStart - 2; // index of the first \n in \n\n
+			if (filesEnd <= timeEnd) {
+				return null;
+			}
+			final byte lineBreak = (byte) '\n';
+			ArrayList<String> _files = new ArrayList<String>(5);
+			int lastStart = timeEnd + 1;
+			do {
+				int breakIndex = indexOf(data, lineBreak, lastStart, filesEnd + 1);
+				String fname = parser.encHelper.fileFromChangeset(data, lastStart, breakIndex - lastStart);
+				_files.add(parser.filesPool.unify(fname));
+				lastStart = breakIndex + 1;
+			} while (lastStart <= filesEnd);
+			return _files;
+		}
+
+		public String comment() {
+			return parser.encHelper.commentFromChangeset(data, commentStart, end - commentStart);
+		}
 	}
 
 	private Map<String, String> parseExtras(String _extras) {
@@ -191,5 +270,10 @@ public final class ChangesetParser {
 
 	public interface CsetFactory {
 		public RawChangeset create(Nodeid nodeid, String user, Date time, int timezone, List<String> files, String comment, Map<String, String> extrasMap);
+
+		/**
+		 * Changeset that decodes its fields on demand
+		 */
+		public RawChangeset create(Fields lazyFields);
 	}
 }
\ No newline at end of file
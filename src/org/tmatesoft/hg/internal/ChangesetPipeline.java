@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
+import org.tmatesoft.hg.repo.HgInternals;
+import org.tmatesoft.hg.repo.HgInvalidControlFileException;
+import org.tmatesoft.hg.repo.HgInvalidDataFormatException;
+import org.tmatesoft.hg.repo.HgInvalidStateException;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+import org.tmatesoft.hg.util.Adaptable;
+
+/**
+ * Changelog iteration split into stages: revlog records are read and inflated on a dedicated thread,
+ * batches of changeset texts are parsed on a pool of worker threads, and parsed changesets are
+ * reported to {@link HgChangelog.Inspector} on the calling thread, strictly in the changelog order.
+ *
+ * <p>Number of batches that are read but not yet reported is limited, so that reader blocks once
+ * the inspector falls behind.
+ *
+ * <p>Inspector gets distinct {@link RawChangeset} instances, fully decoded. {@link Lifecycle} of the inspector,
+ * if any, is respected to stop the iteration.
+ *
+ * <p>Threads are shared by all ranges iterated between {@link #start()} and {@link #finish()}, 
+ * clients shall call the latter regardless of the outcome.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class ChangesetPipeline {
+	private final Internals repo;
+	private final int workers;
+	private final int batchSize;
+	private final int maxPendingBatches;
+	private ExecutorService executor;
+
+	/**
+	 * @param implRepo repository to read changelog of
+	 * @param workerThreads number of threads to parse changesets, positive
+	 * @param batch number of changesets a worker parses at once, positive
+	 * @param pendingBatches number of batches read ahead of the inspector, positive
+	 */
+	public ChangesetPipeline(Internals implRepo, int workerThreads, int batch, int pendingBatches) {
+		if (workerThreads <= 0 || batch <= 0 || pendingBatches <= 0) {
+			throw new IllegalArgumentException(String.format("Bad pipeline configuration: %d workers, %d changesets per batch, %d batches pending", workerThreads, batch, pendingBatches));
+		}
+		repo = implRepo;
+		workers = workerThreads;
+		batchSize = batch;
+		maxPendingBatches = pendingBatches;
+	}
+
+	public void start() {
+		if (executor == null) {
+			// one extra thread for the reader. Parse tasks are bounded with the queue of parsed batches, 
+			// rather than with executor's queue, reader shall never end up on the thread that consumes them
+			executor = Executors.newFixedThreadPool(workers + 1, new WorkerPool.DaemonThreadFactory("hg4j-changeset-pipeline"));
+		}
+	}
+
+	public void finish() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	public void range(int start, int end, HgChangelog.Inspector inspector) throws HgRuntimeException {
+		iterate(start, end, null, inspector);
+	}
+
+	public void range(int[] sortedRevisions, HgChangelog.Inspector inspector) throws HgRuntimeException {
+		if (sortedRevisions.length == 0) {
+			return;
+		}
+		iterate(0, 0, sortedRevisions, inspector);
+	}
+
+	private void iterate(final int start, final int end, final int[] sortedRevisions, HgChangelog.Inspector inspector) throws HgRuntimeException {
+		if (inspector == null) {
+			throw new IllegalArgumentException();
+		}
+		if (executor == null) {
+			throw new HgInvalidStateException("Changeset pipeline is not started");
+		}
+		// RevlogStream is not thread-safe, reader needs own instance
+		final RevlogStream clogStream = repo.createChangelogStream();
+		final BlockingQueue<Future<Batch>> parsed = new ArrayBlockingQueue<Future<Batch>>(maxPendingBatches);
+		final Reader reader = new Reader(executor, parsed);
+		final Lifecycle inspectorLifecycle = Adaptable.Factory.getAdapter(inspector, Lifecycle.class, null);
+		final Lifecycle.BasicCallback cb = new Lifecycle.BasicCallback();
+		boolean readerDone = false;
+		try {
+			executor.submit(new Runnable() {
+
+				public void run() {
+					try {
+						if (sortedRevisions == null) {
+							clogStream.iterate(start, end, true, reader);
+						} else {
+							clogStream.iterate(sortedRevisions, true, reader);
+						}
+						reader.flush();
+					} catch (Throwable th) {
+						reader.failure = th;
+					} finally {
+						reader.complete();
+					}
+				}
+			});
+			if (inspectorLifecycle != null) {
+				inspectorLifecycle.start(sortedRevisions == null ? end - start + 1 : sortedRevisions.length, cb, cb);
+			}
+			Future<Batch> next;
+			while ((next = parsed.take()) != reader.endMarker) {
+				if (reader.stop) {
+					// drain the queue, let reader get through
+					next.cancel(false);
+					continue;
+				}
+				Batch b = get(next);
+				for (int i = 0; i < b.size && !cb.isStopped(); i++) {
+					inspector.next(b.revisions[i], b.nodeids[i], b.changesets[i]);
+				}
+				if (cb.isStopped()) {
+					reader.stop = true;
+				}
+			}
+			readerDone = true;
+			if (reader.failure != null) {
+				rethrow(reader.failure);
+			}
+			if (inspectorLifecycle != null) {
+				inspectorLifecycle.finish(cb);
+			}
+		} catch (InterruptedException ex) {
+			reader.stop = true;
+			Thread.currentThread().interrupt();
+			HgInvalidStateException t = new HgInvalidStateException("Changeset pipeline interrupted");
+			t.initCause(ex);
+			throw t;
+		} finally {
+			reader.stop = true;
+			if (!readerDone) {
+				awaitReader(reader, parsed);
+			}
+		}
+	}
+
+	/**
+	 * Threads are kept for the next range, can't leave the reader of this one blocked on the queue.
+	 */
+	private static void awaitReader(Reader reader, BlockingQueue<Future<Batch>> parsed) {
+		boolean interrupted = Thread.interrupted();
+		Future<Batch> next = null;
+		while (next != reader.endMarker) {
+			try {
+				next = parsed.take();
+				next.cancel(false);
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static Batch get(Future<Batch> f) throws InterruptedException, HgRuntimeException {
+		try {
+			return f.get();
+		} catch (ExecutionException ex) {
+			rethrow(ex.getCause());
+			return null; // unreachable
+		}
+	}
+
+	private static void rethrow(Throwable th) throws HgRuntimeException {
+		if (th instanceof RuntimeException) {
+			throw (RuntimeException) th;
+		}
+		if (th instanceof Error) {
+			throw (Error) th;
+		}
+		HgInvalidStateException t = new HgInvalidStateException("Changeset pipeline failed");
+		t.initCause(th);
+		throw t;
+	}
+
+	private static final class Batch {
+		final int[] revisions;
+		final Nodeid[] nodeids;
+		final byte[][] texts;
+		final RawChangeset[] changesets;
+		int size;
+
+		Batch(int capacity) {
+			revisions = new int[capacity];
+			nodeids = new Nodeid[capacity];
+			texts = new byte[capacity][];
+			changesets = new RawChangeset[capacity];
+		}
+
+		boolean isFull() {
+			return size == revisions.length;
+		}
+	}
+
+	private final class Reader implements RevlogStream.Inspector, Lifecycle {
+		private final ExecutorService executor;
+		private final BlockingQueue<Future<Batch>> queue;
+		final Future<Batch> endMarker = new FutureTask<Batch>(new Runnable() { public void run() {} }, null);
+		volatile boolean stop = false;
+		volatile Throwable failure;
+		private Batch current;
+		private Callback callback;
+
+		Reader(ExecutorService executorService, BlockingQueue<Future<Batch>> parsed) {
+			executor = executorService;
+			queue = parsed;
+		}
+
+		public void start(int count, Callback cb, Object token) {
+			callback = cb;
+		}
+
+		public void finish(Object token) {
+			callback = null;
+		}
+
+		public void next(int revisionIndex, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess data) throws HgRuntimeException {
+			if (stop) {
+				callback.stop();
+				return;
+			}
+			if (current == null) {
+				current = new Batch(batchSize);
+			}
+			try {
+				current.texts[current.size] = data.byteArray();
+			} catch (IOException ex) {
+				throw new HgInvalidControlFileException("Failed reading changelog", ex, null).setRevisionIndex(revisionIndex);
+			}
+			current.revisions[current.size] = revisionIndex;
+			current.nodeids[current.size] = Nodeid.fromBinary(nodeid, 0);
+			current.size++;
+			if (current.isFull()) {
+				flush();
+			}
+		}
+
+		void flush() throws HgRuntimeException {
+			if (current == null || current.size == 0) {
+				return;
+			}
+			final Batch b = current;
+			current = null;
+			enqueue(executor.submit(new Callable<Batch>() {
+
+				public Batch call() throws HgInvalidDataFormatException {
+					// parser is not thread-safe, hence a new one for each batch
+					ChangesetParser p = new ChangesetParser(repo, HgInternals.newChangesetFactory());
+					for (int i = 0; i < b.size; i++) {
+						try {
+							b.changesets[i] = p.parse(b.texts[i]);
+						} catch (HgInvalidDataFormatException ex) {
+							throw ex.setRevisionIndex(b.revisions[i]);
+						}
+						b.texts[i] = null;
+					}
+					p.dispose();
+					return b;
+				}
+			}));
+		}
+
+		void complete() {
+			try {
+				queue.put(endMarker);
+			} catch (InterruptedException ex) {
+				// executor shutdown, nobody waits for the marker
+			}
+		}
+
+		private void enqueue(Future<Batch> f) {
+			try {
+				queue.put(f);
+			} catch (InterruptedException ex) {
+				stop = true;
+				f.cancel(false);
+			}
+		}
+	}
+}
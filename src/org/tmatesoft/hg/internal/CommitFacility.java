@@ -27,11 +27,10 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
 import org.tmatesoft.hg.core.HgCommitCommand;
@@ -41,6 +40,7 @@ import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.internal.DataSerializer.ByteArraySerializer;
 import org.tmatesoft.hg.internal.DataSerializer.DataSource;
 import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
 import org.tmatesoft.hg.repo.HgDataFile;
 import org.tmatesoft.hg.repo.HgPhase;
 import org.tmatesoft.hg.repo.HgRuntimeException;
@@ -106,39 +106,18 @@ public final class CommitFacility {
 	public Nodeid commit(String message, Transaction transaction) throws HgIOException, HgRepositoryLockException, HgRuntimeException {
 		final HgChangelog clog = repo.getRepo().getChangelog();
 		final int clogRevisionIndex = clog.getRevisionCount();
-		ManifestRevision c1Manifest = new ManifestRevision(null, null);
-		ManifestRevision c2Manifest = new ManifestRevision(null, null);
 		final Nodeid p1Cset = p1Commit == NO_REVISION ? null : clog.getRevision(p1Commit);
 		final Nodeid p2Cset = p2Commit == NO_REVISION ? null : clog.getRevision(p2Commit);
-		if (p1Commit != NO_REVISION) {
-			repo.getRepo().getManifest().walk(p1Commit, p1Commit, c1Manifest);
-		}
-		if (p2Commit != NO_REVISION) {
-			repo.getRepo().getManifest().walk(p2Commit, p2Commit, c2Manifest);
-		}
-//		Pair<Integer, Integer> manifestParents = getManifestParents();
-		Pair<Integer, Integer> manifestParents = new Pair<Integer, Integer>(c1Manifest.revisionIndex(), c2Manifest.revisionIndex());
-		TreeMap<Path, Nodeid> newManifestRevision = new TreeMap<Path, Nodeid>();
-		HashMap<Path, Pair<Integer, Integer>> fileParents = new HashMap<Path, Pair<Integer,Integer>>();
-		for (Path f : c1Manifest.files()) {
-			HgDataFile df = repo.getRepo().getFileNode(f);
-			Nodeid fileKnownRev1 = c1Manifest.nodeid(f), fileKnownRev2;
-			final int fileRevIndex1 = df.getRevisionIndex(fileKnownRev1);
-			final int fileRevIndex2;
-			if ((fileKnownRev2 = c2Manifest.nodeid(f)) != null) {
-				// merged files
-				fileRevIndex2 = df.getRevisionIndex(fileKnownRev2);
-			} else {
-				fileRevIndex2 = NO_REVISION;
-			}
-				
-			fileParents.put(f, new Pair<Integer, Integer>(fileRevIndex1, fileRevIndex2));
-			newManifestRevision.put(f, fileKnownRev1);
-		}
+		final Pair<Integer, Integer> manifestParents = getManifestParents();
+		final EncodingHelper encHelper = repo.buildFileNameEncodingHelper();
+		final RevlogStream manifestStream = repo.getImplAccess().getManifestStream();
+		// new manifest revision is a patch over that of p1, files not touched by the commit are not even looked at 
+		final ManifestPatchBuilder manifestBuilder = new ManifestPatchBuilder(encHelper, manifestContent(manifestStream, manifestParents.first()));
+		final ManifestPatchBuilder c2Manifest = new ManifestPatchBuilder(encHelper, manifestContent(manifestStream, manifestParents.second()));
 		//
 		// Forget removed
 		for (Path p : removals) {
-			newManifestRevision.remove(p);
+			manifestBuilder.remove(p);
 		}
 		//
 		saveCommitMessage(message);
@@ -146,58 +125,31 @@ public final class CommitFacility {
 		// Register new/changed
 		FNCacheFile.Mediator fncache = new FNCacheFile.Mediator(repo, transaction);
 		ArrayList<Path> touchInDirstate = new ArrayList<Path>();
+		final int workers = files.size() > 1 ? repo.getCommitWriters() : 1;
+		// few workers write into the same transaction
+		final Transaction fileTransaction = workers > 1 ? new Transaction.Synchronized(transaction) : transaction;
+		ArrayList<FileRevision> fileRevisions = new ArrayList<FileRevision>(files.size());
 		for (Pair<HgDataFile, DataSource> e : files.values()) {
 			HgDataFile df = e.first();
-			DataSource bds = e.second();
-			Pair<Integer, Integer> fp = fileParents.get(df.getPath());
-			if (fp == null) {
-				// NEW FILE, either just added or resurrected from p2
-				Nodeid fileRevInP2;
-				if ((fileRevInP2 = c2Manifest.nodeid(df.getPath())) != null) {
-					fp = new Pair<Integer, Integer>(df.getRevisionIndex(fileRevInP2), NO_REVISION);
-				} else {
-					// brand new
-					fp = new Pair<Integer, Integer>(NO_REVISION, NO_REVISION);
-				}
-			}
-			// TODO if fp.first() != NO_REVISION and fp.second() != NO_REVISION check if one
-			// revision is ancestor of another and use the latest as p1, then
-			Nodeid fileRev = null;
-			final boolean isNewFile = !df.exists();
-			if (fp.first() != NO_REVISION && fp.second() == NO_REVISION && !isNewFile) {
-				// compare file contents to see if anything has changed, and reuse old revision, if unchanged.
-				// XXX ineffective, need better access to revision conten
-				ByteArraySerializer bas = new ByteArraySerializer();
-				bds.serialize(bas);
-				final byte[] newContent = bas.toByteArray();
-				// unless there's a way to reset DataSource, replace it with the content just read
-				bds = new DataSerializer.ByteArrayDataSource(newContent);
-				if (new ComparatorChannel(newContent).same(df, fp.first())) {
-					fileRev = df.getRevision(fp.first());
-				}
-			}
-			if (fileRev == null) {
-				RevlogStream contentStream = repo.getImplAccess().getStream(df);
-				RevlogStreamWriter fileWriter = new RevlogStreamWriter(repo, contentStream, transaction);
-				fileRev = fileWriter.addRevision(bds, clogRevisionIndex, fp.first(), fp.second()).second();
-				if (isNewFile) {
-					// registerNew shall go after fileWriter.addRevision as it needs to know if data is inlined or not
-					fncache.registerNew(df.getPath(), contentStream);
-				}
+			final Nodeid fileKnownRev1 = manifestBuilder.nodeid(df.getPath());
+			final Nodeid fileKnownRev2 = c2Manifest.nodeid(df.getPath());
+			// revlog streams are shared by the repository, get hold of the one for the file here, not from a worker
+			RevlogStream contentStream = repo.getImplAccess().getStream(df);
+			fileRevisions.add(new FileRevision(df, contentStream, e.second(), fileKnownRev1, fileKnownRev2, clogRevisionIndex, fileTransaction));
+		}
+		writeFileRevisions(fileRevisions, workers);
+		for (FileRevision fr : fileRevisions) {
+			if (fr.isNewFile && fr.written) {
+				// registerNew shall go after fileWriter.addRevision as it needs to know if data is inlined or not
+				fncache.registerNew(fr.dataFile.getPath(), fr.contentStream);
 			}
-			newManifestRevision.put(df.getPath(), fileRev);
-			touchInDirstate.add(df.getPath());
+			manifestBuilder.add(fr.dataFile.getPath(), fr.revision);
+			touchInDirstate.add(fr.dataFile.getPath());
 		}
 		//
-		final EncodingHelper encHelper = repo.buildFileNameEncodingHelper();
-		//
 		// Manifest
-		final ManifestEntryBuilder manifestBuilder = new ManifestEntryBuilder(encHelper);
-		for (Map.Entry<Path, Nodeid> me : newManifestRevision.entrySet()) {
-			manifestBuilder.add(me.getKey().toString(), me.getValue());
-		}
-		RevlogStreamWriter manifestWriter = new RevlogStreamWriter(repo, repo.getImplAccess().getManifestStream(), transaction);
-		Nodeid manifestRev = manifestWriter.addRevision(manifestBuilder, clogRevisionIndex, manifestParents.first(), manifestParents.second()).second();
+		RevlogStreamWriter manifestWriter = new RevlogStreamWriter(repo, manifestStream, transaction);
+		Nodeid manifestRev = manifestWriter.addRevision(manifestParents.first(), manifestBuilder.baseContent(), manifestBuilder.build(), clogRevisionIndex, manifestParents.first(), manifestParents.second()).second();
 		//
 		// Changelog
 		final ChangelogEntryBuilder changelogBuilder = new ChangelogEntryBuilder(encHelper);
@@ -259,6 +211,29 @@ public final class CommitFacility {
 		return changesetRev;
 	}
 	
+	/**
+	 * Each file has its own revlog, hence revisions of distinct files are read, compared, compressed and written
+	 * independently, by a pool of worker threads if there's more than one.
+	 */
+	private void writeFileRevisions(List<FileRevision> fileRevisions, int workers) throws HgIOException, HgRuntimeException {
+		final WorkerPool pool = new WorkerPool("hg4j-commit-writer", workers, Math.max(1, workers) * 4);
+		pool.start();
+		try {
+			for (FileRevision fr : fileRevisions) {
+				if (pool.isFailed()) {
+					break;
+				}
+				pool.execute(fr);
+			}
+		} finally {
+			pool.finish();
+		}
+		if (pool.getFailure() instanceof HgIOException) {
+			throw (HgIOException) pool.getFailure();
+		}
+		pool.checkFailure("Failed to write file revision");
+	}
+
 	private void saveCommitMessage(String message) throws HgIOException {
 		File lastMessage = repo.getRepositoryFile(LastMessage);
 		// do not attempt to write if we are going to fail anyway
@@ -277,6 +252,69 @@ public final class CommitFacility {
 		}
 	}
 	
+	/**
+	 * New revision of a single file. Fields are written by a worker, and read once all the files are over.
+	 */
+	private final class FileRevision implements WorkerPool.Task {
+		public final HgDataFile dataFile;
+		public final RevlogStream contentStream;
+		private final DataSource content;
+		private final Nodeid fileKnownRev1, fileKnownRev2;
+		private final int linkRevision;
+		private final Transaction transaction;
+		public Nodeid revision;
+		public boolean isNewFile, written;
+
+		public FileRevision(HgDataFile df, RevlogStream stream, DataSource ds, Nodeid p1Rev, Nodeid p2Rev, int clogRevisionIndex, Transaction tr) {
+			dataFile = df;
+			contentStream = stream;
+			content = ds;
+			fileKnownRev1 = p1Rev;
+			fileKnownRev2 = p2Rev;
+			linkRevision = clogRevisionIndex;
+			transaction = tr;
+		}
+
+		public void run() throws HgIOException, HgRuntimeException {
+			final HgDataFile df = dataFile;
+			DataSource bds = content;
+			Pair<Integer, Integer> fp;
+			if (fileKnownRev1 != null) {
+				// merged files get both parents
+				final int fileRevIndex2 = fileKnownRev2 == null ? NO_REVISION : df.getRevisionIndex(fileKnownRev2);
+				fp = new Pair<Integer, Integer>(df.getRevisionIndex(fileKnownRev1), fileRevIndex2);
+			} else if (fileKnownRev2 != null) {
+				// NEW FILE, resurrected from p2
+				fp = new Pair<Integer, Integer>(df.getRevisionIndex(fileKnownRev2), NO_REVISION);
+			} else {
+				// brand new
+				fp = new Pair<Integer, Integer>(NO_REVISION, NO_REVISION);
+			}
+			// TODO if fp.first() != NO_REVISION and fp.second() != NO_REVISION check if one
+			// revision is ancestor of another and use the latest as p1, then
+			Nodeid fileRev = null;
+			isNewFile = !df.exists();
+			if (fp.first() != NO_REVISION && fp.second() == NO_REVISION && !isNewFile) {
+				// compare file contents to see if anything has changed, and reuse old revision, if unchanged.
+				// XXX ineffective, need better access to revision conten
+				ByteArraySerializer bas = new ByteArraySerializer();
+				bds.serialize(bas);
+				final byte[] newContent = bas.toByteArray();
+				// unless there's a way to reset DataSource, replace it with the content just read
+				bds = new DataSerializer.ByteArrayDataSource(newContent);
+				if (new ComparatorChannel(newContent).same(df, fp.first())) {
+					fileRev = df.getRevision(fp.first());
+				}
+			}
+			if (fileRev == null) {
+				RevlogStreamWriter fileWriter = new RevlogStreamWriter(repo, contentStream, transaction);
+				fileRev = fileWriter.addRevision(bds, linkRevision, fp.first(), fp.second()).second();
+				written = true;
+			}
+			revision = fileRev;
+		}
+	}
+
 	private static class ComparatorChannel implements ByteChannel {
 		private int index;
 		private final byte[] content;
@@ -309,21 +347,26 @@ public final class CommitFacility {
 		}
 	}
 
-/*
-	private Pair<Integer, Integer> getManifestParents() {
+	private Pair<Integer, Integer> getManifestParents() throws HgRuntimeException {
 		return new Pair<Integer, Integer>(extractManifestRevisionIndex(p1Commit), extractManifestRevisionIndex(p2Commit));
 	}
 
-	private int extractManifestRevisionIndex(int clogRevIndex) {
+	private int extractManifestRevisionIndex(int clogRevIndex) throws HgRuntimeException {
 		if (clogRevIndex == NO_REVISION) {
 			return NO_REVISION;
 		}
-		RawChangeset commitObject = repo.getChangelog().range(clogRevIndex, clogRevIndex).get(0);
+		RawChangeset commitObject = repo.getRepo().getChangelog().range(clogRevIndex, clogRevIndex).get(0);
 		Nodeid manifestRev = commitObject.manifest();
 		if (manifestRev.isNull()) {
 			return NO_REVISION;
 		}
-		return repo.getManifest().getRevisionIndex(manifestRev);
+		return repo.getRepo().getManifest().getRevisionIndex(manifestRev);
+	}
+
+	private static byte[] manifestContent(RevlogStream manifestStream, int manifestRevIndex) throws HgIOException, HgRuntimeException {
+		if (manifestRevIndex == NO_REVISION) {
+			return new byte[0];
+		}
+		return new RevlogStreamWriter.ReadContentInspector().read(manifestStream, manifestRevIndex).content;
 	}
-*/
 }
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
+import static org.tmatesoft.hg.util.LogFacility.Severity.Warn;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgInvalidStateException;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+
+/**
+ * Parent-child relationship of changesets in terms of revision indexes, with generation number of each
+ * changeset (1 for a changeset without parents, 1 + greatest generation of parents otherwise).
+ *
+ * <p>Ancestor can't have index or generation greater than or equal to that of its descendant, which lets
+ * {@link #isAncestor(int, int)} stop early rather than walk complete history.
+ *
+ * <p>Persisted under <samp>.hg/cache/</samp> and updated incrementally, like {@link ChangelogIndex}.
+ *
+ * <p>Not thread-safe.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class CommitGraph {
+	private static final int MAGIC = 0x68676367; // "hgcg"
+	private static final int VERSION = 1;
+
+	private final Internals repo;
+	private final ChangelogMonitor repoChangeTracker;
+	private final IndexCacheFile cacheFile;
+	private int[] parent1 = new int[1024];
+	private int[] parent2 = new int[1024];
+	private int[] generation = new int[1024];
+	private int size = 0;
+	private Nodeid lastIndexed;
+	private boolean loaded = false;
+
+	public CommitGraph(Internals implRepo) {
+		repo = implRepo;
+		repoChangeTracker = new ChangelogMonitor(implRepo.getRepo());
+		cacheFile = new IndexCacheFile(implRepo, "hg4j-commit-graph", MAGIC, VERSION);
+	}
+
+	/**
+	 * Bring the graph up to date with the changelog.
+	 */
+	public CommitGraph update() throws HgRuntimeException {
+		if (loaded && !repoChangeTracker.isChanged()) {
+			return this;
+		}
+		final HgChangelog clog = repo.getRepo().getChangelog();
+		if (!loaded) {
+			readCache();
+			loaded = true;
+		}
+		final int clogRevCount = clog.getRevisionCount();
+		if (size > clogRevCount || (size > 0 && !clog.getRevision(size - 1).equals(lastIndexed))) {
+			clear();
+		}
+		if (size < clogRevCount) {
+			ensureCapacity(clogRevCount);
+			clog.indexWalk(size, clogRevCount - 1, new HgChangelog.ParentInspector() {
+
+				public void next(int revisionIndex, Nodeid revision, int p1, int p2, Nodeid nidParent1, Nodeid nidParent2) {
+					if (revisionIndex != size || p1 >= revisionIndex || p2 >= revisionIndex) {
+						throw new HgInvalidStateException(String.format("Sanity check failed. Revision %d, parents %d and %d, expected revision %d", revisionIndex, p1, p2, size));
+					}
+					append(p1, p2);
+					lastIndexed = revision;
+				}
+			});
+			try {
+				writeCache();
+			} catch (IOException ex) {
+				repo.getLog().dump(getClass(), Warn, ex, "Failed to write commit graph");
+			}
+		}
+		repoChangeTracker.touch();
+		return this;
+	}
+
+	/**
+	 * @return number of changesets in the graph
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return index of the first parent, or {@link org.tmatesoft.hg.repo.HgRepository#NO_REVISION} if none
+	 */
+	public int parent1(int revisionIndex) {
+		checkIndex(revisionIndex);
+		return parent1[revisionIndex];
+	}
+
+	/**
+	 * @return index of the second parent, or {@link org.tmatesoft.hg.repo.HgRepository#NO_REVISION} if none
+	 */
+	public int parent2(int revisionIndex) {
+		checkIndex(revisionIndex);
+		return parent2[revisionIndex];
+	}
+
+	public int generation(int revisionIndex) {
+		checkIndex(revisionIndex);
+		return generation[revisionIndex];
+	}
+
+	/**
+	 * @return <code>true</code> if <code>ancestor</code> is the same revision as <code>descendant</code> or one of its (grand-)*parents
+	 */
+	public boolean isAncestor(int ancestor, int descendant) {
+		checkIndex(ancestor);
+		checkIndex(descendant);
+		if (ancestor == descendant) {
+			return true;
+		}
+		final int ancestorGeneration = generation[ancestor];
+		if (ancestor > descendant || ancestorGeneration >= generation[descendant]) {
+			return false;
+		}
+		BitSet visited = new BitSet(descendant - ancestor);
+		IntVector queue = new IntVector(16, 16);
+		queue.add(descendant);
+		while (!queue.isEmpty()) {
+			final int r = queue.get(queue.size() - 1);
+			queue.trimTo(queue.size() - 1);
+			for (int k = 0; k < 2; k++) {
+				final int p = k == 0 ? parent1[r] : parent2[r];
+				if (p == NO_REVISION) {
+					continue;
+				}
+				if (p == ancestor) {
+					return true;
+				}
+				// neither index nor generation of a parent on the way to ancestor could be lower than that of the ancestor
+				if (p < ancestor || generation[p] <= ancestorGeneration || visited.get(p - ancestor)) {
+					continue;
+				}
+				visited.set(p - ancestor);
+				queue.add(p);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return supplied revisions along with all their ancestors
+	 */
+	public BitSet ancestors(int... revisionIndexes) {
+		BitSet rv = new BitSet(size);
+		int max = NO_REVISION;
+		for (int r : revisionIndexes) {
+			checkIndex(r);
+			rv.set(r);
+			max = Math.max(max, r);
+		}
+		for (int i = max; i >= 0; i--) {
+			if (rv.get(i)) {
+				setParents(rv, i);
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * @return supplied revisions along with all their descendants
+	 */
+	public BitSet descendants(int... revisionIndexes) {
+		BitSet rv = new BitSet(size);
+		int min = size;
+		for (int r : revisionIndexes) {
+			checkIndex(r);
+			rv.set(r);
+			min = Math.min(min, r);
+		}
+		for (int i = min + 1; i < size; i++) {
+			if ((parent1[i] != NO_REVISION && rv.get(parent1[i])) || (parent2[i] != NO_REVISION && rv.get(parent2[i]))) {
+				rv.set(i);
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * @return elements of the set that have no parents within the set
+	 */
+	public BitSet roots(BitSet revisions) {
+		BitSet rv = new BitSet(size);
+		for (int i = revisions.nextSetBit(0); i >= 0; i = revisions.nextSetBit(i + 1)) {
+			checkIndex(i);
+			if ((parent1[i] == NO_REVISION || !revisions.get(parent1[i])) && (parent2[i] == NO_REVISION || !revisions.get(parent2[i]))) {
+				rv.set(i);
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * @return elements of the set that have no children within the set
+	 */
+	public BitSet heads(BitSet revisions) {
+		BitSet rv = (BitSet) revisions.clone();
+		for (int i = revisions.nextSetBit(0); i >= 0; i = revisions.nextSetBit(i + 1)) {
+			checkIndex(i);
+			if (parent1[i] != NO_REVISION) {
+				rv.clear(parent1[i]);
+			}
+			if (parent2[i] != NO_REVISION) {
+				rv.clear(parent2[i]);
+			}
+		}
+		return rv;
+	}
+
+	private void setParents(BitSet bits, int revisionIndex) {
+		if (parent1[revisionIndex] != NO_REVISION) {
+			bits.set(parent1[revisionIndex]);
+		}
+		if (parent2[revisionIndex] != NO_REVISION) {
+			bits.set(parent2[revisionIndex]);
+		}
+	}
+
+	private void append(int p1, int p2) {
+		ensureCapacity(size + 1);
+		parent1[size] = p1;
+		parent2[size] = p2;
+		int g1 = p1 == NO_REVISION ? 0 : generation[p1];
+		int g2 = p2 == NO_REVISION ? 0 : generation[p2];
+		generation[size] = 1 + Math.max(g1, g2);
+		size++;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= parent1.length) {
+			return;
+		}
+		int newCapacity = Math.max(capacity, parent1.length << 1);
+		int[] n1 = new int[newCapacity], n2 = new int[newCapacity], ng = new int[newCapacity];
+		System.arraycopy(parent1, 0, n1, 0, size);
+		System.arraycopy(parent2, 0, n2, 0, size);
+		System.arraycopy(generation, 0, ng, 0, size);
+		parent1 = n1;
+		parent2 = n2;
+		generation = ng;
+	}
+
+	private void clear() {
+		size = 0;
+		lastIndexed = null;
+	}
+
+	private void checkIndex(int revisionIndex) {
+		if (revisionIndex < 0 || revisionIndex >= size) {
+			throw new IndexOutOfBoundsException(String.format("Index: %d, size: %d", revisionIndex, size));
+		}
+	}
+
+	private void readCache() {
+		lastIndexed = cacheFile.read(new IndexCacheFile.Reader() {
+
+			public void read(DataInputStream in, int count) throws IOException {
+				ensureCapacity(count);
+				for (int i = 0; i < count; i++) {
+					parent1[i] = in.readInt();
+				}
+				for (int i = 0; i < count; i++) {
+					parent2[i] = in.readInt();
+				}
+				for (int i = 0; i < count; i++) {
+					generation[i] = in.readInt();
+				}
+				size = count;
+			}
+		});
+		if (lastIndexed == null) {
+			clear();
+		}
+	}
+
+	private void writeCache() throws IOException {
+		cacheFile.write(size, lastIndexed, new IndexCacheFile.Writer() {
+
+			public void write(DataOutputStream out) throws IOException {
+				for (int i = 0; i < size; i++) {
+					out.writeInt(parent1[i]);
+				}
+				for (int i = 0; i < size; i++) {
+					out.writeInt(parent2[i]);
+				}
+				for (int i = 0; i < size; i++) {
+					out.writeInt(generation[i]);
+				}
+			}
+		});
+	}
+}
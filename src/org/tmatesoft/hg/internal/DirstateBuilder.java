@@ -124,7 +124,11 @@ public class DirstateBuilder {
 	}
 
 	
-	private HgDirstate.Record forget(Path fname) {
+	/**
+	 * Drop any record of the file, as if it has never been tracked
+	 * @return record of the file, if any
+	 */
+	public HgDirstate.Record forget(Path fname) {
 		HgDirstate.Record r;
 		if ((r = normal.remove(fname)) != null) {
 			return r;
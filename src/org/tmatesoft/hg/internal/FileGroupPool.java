@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.util.ArrayList;
+
+import org.tmatesoft.hg.repo.HgBundle.GroupElement;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+
+/**
+ * Applies file groups of a bundle on a pool of worker threads. Bundle is read on the calling thread, elements of
+ * a file group are collected as they come and once the group is over, it's handed to a worker that writes the whole group.
+ * Groups of distinct files are independent, elements of a group are processed in the bundle order by a single thread.
+ *
+ * <p>Number of groups waiting for a worker is limited, once there's no room, calling thread writes the group itself.
+ * Group with too much data to keep in memory is written by the calling thread as well, as it's read.
+ *
+ * <p>First failure stops processing of any other group, it's reported with {@link #checkFailure()}.
+ * Clients shall call {@link #finish()} regardless of the outcome, so that nothing gets written after it returns.
+ *
+ * <p>Not thread-safe, single client only.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class FileGroupPool {
+	private final WorkerPool pool;
+	private final int maxGroupBytes;
+	// group being read
+	private Group group;
+	private ArrayList<GroupElement> elements;
+	private int groupBytes;
+	private boolean writeAsRead;
+
+	/**
+	 * Elements of a single group. Both methods are invoked from the same thread, not necessarily the one that reads the bundle.
+	 */
+	public interface Group {
+		public void element(GroupElement ge) throws HgRuntimeException;
+		public void end() throws HgRuntimeException;
+	}
+
+	/**
+	 * @param workerThreads number of threads to write groups, with 1 or less groups are written right as they are read
+	 * @param pendingGroups number of groups read but not yet written, positive
+	 * @param groupBytes amount of data to keep for a single group
+	 */
+	public FileGroupPool(int workerThreads, int pendingGroups, int groupBytes) {
+		pool = new WorkerPool("hg4j-file-group-writer", workerThreads, pendingGroups);
+		maxGroupBytes = groupBytes;
+	}
+
+	public void start() {
+		pool.start();
+	}
+
+	public void begin(Group g) {
+		assert group == null;
+		group = g;
+		groupBytes = 0;
+		writeAsRead = !pool.isParallel();
+		if (!writeAsRead) {
+			elements = new ArrayList<GroupElement>();
+		}
+	}
+
+	public void element(GroupElement ge) throws HgRuntimeException {
+		assert group != null;
+		if (writeAsRead) {
+			group.element(ge);
+			return;
+		}
+		elements.add(ge);
+		groupBytes += ge.dataLength();
+		if (groupBytes > maxGroupBytes) {
+			// no reason to keep the rest of the group in memory, write it as it comes
+			writeAsRead = true;
+			for (GroupElement e : elements) {
+				group.element(e);
+			}
+			elements = null;
+		}
+	}
+
+	public void end() throws HgRuntimeException {
+		assert group != null;
+		final Group g = group;
+		group = null;
+		if (writeAsRead) {
+			g.end();
+			return;
+		}
+		final ArrayList<GroupElement> ge = elements;
+		elements = null;
+		pool.execute(new WorkerPool.Task() {
+
+			public void run() throws HgRuntimeException {
+				for (GroupElement e : ge) {
+					if (pool.isFailed()) {
+						return;
+					}
+					g.element(e);
+				}
+				g.end();
+			}
+		});
+	}
+
+	/**
+	 * @return <code>true</code> if writing any group has failed, there's no reason to read further
+	 */
+	public boolean isFailed() {
+		return pool.isFailed();
+	}
+
+	/**
+	 * Wait for all groups to get written, or given up in case of failure.
+	 */
+	public void finish() {
+		group = null;
+		elements = null;
+		pool.finish();
+	}
+
+	public void checkFailure() throws HgRuntimeException {
+		pool.checkFailure("Failed to write file group");
+	}
+}
@@ -30,13 +30,22 @@ public interface Filter {
 
 	/**
 	 * Filters data and returns a new buffer with data or an original buffer.
-	 * Original buffer may not be fully consumed, #compact() might be operation to perform
+	 * Original buffer may not be fully consumed, #compact() might be operation to perform.
+	 * Filters are free to reuse the buffer they return for the next invocation, clients shall not keep it once 
+	 * they pass next portion of data to the filter.
 	 * @param src
 	 * @return a buffer ready to be read
 	 */
 	//  
 	ByteBuffer filter(ByteBuffer src);
 
+	/**
+	 * Tells there's no more data to come, and filter shall give away whatever it kept from previous invocations 
+	 * in anticipation of more data. Same reuse rules as for {@link #filter(ByteBuffer)} apply to returned buffer.
+	 * @return a buffer ready to be read, or <code>null</code> if there's nothing left
+	 */
+	ByteBuffer flush();
+
 	/*
 	 * Factory doesn't look into data (i.e. could't do a preview), works solely with path
 	 */
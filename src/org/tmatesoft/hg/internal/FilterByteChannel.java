@@ -55,6 +55,23 @@ public class FilterByteChannel implements ByteChannel, Adaptable {
 		return buffer.position() - srcPos; // consumed as much from original buffer
 	}
 
+	/**
+	 * Tell filters the stream is over, and write out anything they kept waiting for more data.
+	 */
+	public void flush() throws IOException, CancelledException {
+		for (int i = 0; i < filters.length; i++) {
+			ByteBuffer processed = filters[i].flush();
+			if (processed == null) {
+				continue;
+			}
+			// leftover of a filter goes through the rest of the chain, as regular data would
+			for (int j = i + 1; j < filters.length; j++) {
+				processed = filters[j].filter(processed);
+			}
+			delegate.write(processed);
+		}
+	}
+
 	// adapters or implemented interfaces of the original class shall not be obfuscated by filter
 	public <T> T getAdapter(Class<T> adapterClass) {
 		if (adapterClass == Preview.class) {
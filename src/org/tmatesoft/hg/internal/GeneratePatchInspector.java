@@ -29,6 +29,10 @@ class GeneratePatchInspector extends DeltaInspector<LineSequence> {
 	}
 	
 	public static Patch delta(byte[] prev, byte[] content) {
+		if (RollingHashDelta.suits(prev, content)) {
+			// binary content or very long lines, no sense to diff as lines 
+			return RollingHashDelta.delta(prev, content);
+		}
 		Patch rv = new Patch();
 		DiffHelper<LineSequence> pg = new DiffHelper<LineSequence>();
 		pg.init(new LineSequence(prev).splitByNewlines(), new LineSequence(content).splitByNewlines());
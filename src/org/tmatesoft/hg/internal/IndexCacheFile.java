@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import static org.tmatesoft.hg.util.LogFacility.Severity.Warn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.tmatesoft.hg.core.Nodeid;
+
+/**
+ * Cache file of an index derived from the changelog, under <samp>.hg/cache/</samp>.
+ * File starts with a header that tells kind and format version of the index, number of indexed changesets and the last of them,
+ * the rest of the file is up to the index.
+ * 
+ * <p>File of another kind or version is ignored, as is any file that fails to read, index is rebuilt then.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+final class IndexCacheFile {
+	private final Internals repo;
+	private final File file;
+	private final int magic, version;
+
+	/**
+	 * @param name file name within cache directory
+	 * @param fileMagic marker of the index kind
+	 * @param formatVersion version of index payload format
+	 */
+	public IndexCacheFile(Internals implRepo, String name, int fileMagic, int formatVersion) {
+		repo = implRepo;
+		file = implRepo.getFileFromRepoDir("cache/" + name);
+		magic = fileMagic;
+		version = formatVersion;
+	}
+
+	public interface Reader {
+		/**
+		 * @param in stream positioned right after the header
+		 * @param count number of indexed changesets, as recorded in the header
+		 */
+		void read(DataInputStream in, int count) throws IOException;
+	}
+
+	public interface Writer {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * @return last indexed changeset, or <code>null</code> if there's no valid cache file, in which case reader may have been 
+	 * invoked and failed half-way, and index shall start from scratch
+	 */
+	public Nodeid read(Reader payload) {
+		if (!file.canRead()) {
+			return null;
+		}
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (dis.readInt() != magic || dis.readInt() != version) {
+				return null;
+			}
+			final int count = dis.readInt();
+			byte[] nid = new byte[Nodeid.SIZE];
+			dis.readFully(nid);
+			payload.read(dis, count);
+			return Nodeid.fromBinary(nid, 0);
+		} catch (IOException ex) {
+			repo.getLog().dump(getClass(), Warn, ex, String.format("Failed to read %s, shall rebuild", file.getName()));
+			return null;
+		} finally {
+			new FileUtils(repo.getLog(), this).closeQuietly(dis);
+		}
+	}
+
+	/**
+	 * @param count number of indexed changesets
+	 * @param lastIndexed last indexed changeset, or <code>null</code> if none
+	 */
+	public void write(int count, Nodeid lastIndexed, Writer payload) throws IOException {
+		if (!file.exists()) {
+			file.getParentFile().mkdirs(); // just in case cache/ doesn't exist yet
+		}
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			dos.writeInt(magic);
+			dos.writeInt(version);
+			dos.writeInt(count);
+			dos.write(lastIndexed == null ? Nodeid.NULL.toByteArray() : lastIndexed.toByteArray());
+			payload.write(dos);
+		} finally {
+			dos.close();
+		}
+	}
+}
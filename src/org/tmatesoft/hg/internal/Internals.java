@@ -27,6 +27,7 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.zip.Deflater;
 
 import org.tmatesoft.hg.core.HgIOException;
 import org.tmatesoft.hg.core.SessionContext;
@@ -122,6 +123,88 @@ public final class Internals implements SessionContext.Source {
 	 */
 	public static final String CFG_PROPERTY_CREATE_PHASEROOTS = "hg4j.repo.create_phaseroots";
 
+	/**
+	 * Whether to keep {@link ChangelogIndex columnar digest} of the changelog under <samp>.hg/cache/</samp> and use it
+	 * to select changesets by user, branch or date without parsing changelog records.
+	 * 
+	 * <p>Default value: <code>true</code>
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_CHANGELOG_INDEX = "hg4j.repo.changelog_index";
+
+	/**
+	 * Whether to keep {@link ChangedFilesIndex index of files} modified in each changeset under <samp>.hg/cache/</samp>
+	 * and use it to answer path-scoped history queries without parsing changelog records.
+	 * 
+	 * <p>Default value: <code>true</code>
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_CHANGED_FILES_INDEX = "hg4j.repo.changed_files_index";
+
+	/**
+	 * Whether to keep {@link CommitGraph graph of changesets} with generation numbers under <samp>.hg/cache/</samp> 
+	 * and use it to answer ancestry questions.
+	 * 
+	 * <p>Default value: <code>true</code>
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_COMMIT_GRAPH = "hg4j.repo.commit_graph";
+
+	/**
+	 * Number of threads to write down revisions of distinct files when changes from a bundle are applied (clone, pull).
+	 * With value of 1 or less, files are written one by one, as they come in the bundle.
+	 * 
+	 * <p>Default value: number of available processors
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_BUNDLE_WRITERS = "hg4j.repo.bundle_writers";
+
+	/**
+	 * Number of threads to write down files of the working directory on checkout. With value of 1 or less,
+	 * files are written one by one, in the manifest order. Keyword expansion needs changelog access, and
+	 * files are written one by one whenever the extension is enabled.
+	 * 
+	 * <p>Default value: number of available processors
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_CHECKOUT_WRITERS = "hg4j.repo.checkout_writers";
+
+	/**
+	 * Number of threads to read, compress and write down revisions of distinct files on commit. With value of 1 or less,
+	 * files are committed one by one. Like checkout, commit goes file by file whenever keyword extension is enabled.
+	 * 
+	 * <p>Default value: number of available processors
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_COMMIT_WRITERS = "hg4j.repo.commit_writers";
+
+	/**
+	 * Deflate level for revisions written to revlogs, from 1 (fastest) to 9 (smallest), or -1 for zlib default.
+	 * 
+	 * <p>Default value: -1
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_COMPRESSION_LEVEL = "hg4j.repo.compression_level";
+
+	/**
+	 * Deflate level for revisions that come in bulk, from a bundle on pull or clone. With 1, bulk writes spend
+	 * notably less time compressing, at the cost of somewhat bigger revlogs.
+	 * 
+	 * <p>Default value: same as {@link #CFG_PROPERTY_COMPRESSION_LEVEL}
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_BULK_COMPRESSION_LEVEL = "hg4j.repo.bulk_compression_level";
+
+	/**
+	 * How to keep repository files intact should a write operation (commit, pull) fail. With <code>"journal"</code>, only
+	 * original length of revlogs is recorded, and they get truncated on rollback, so that the cost of a transaction doesn't depend on
+	 * size of revlogs. With <code>"cow"</code>, each file is copied to backup before modification.
+	 * 
+	 * <p>Default value: "cow"
+	 * @since 1.2
+	 */
+	public static final String CFG_PROPERTY_TRANSACTION = "hg4j.repo.transaction";
+
 	public static final int REVLOGV1_RECORD_SIZE = 64;
 
 	private List<Filter.Factory> filterFactories;
@@ -139,6 +222,17 @@ public final class Internals implements SessionContext.Source {
 	private final boolean shallMergePatches;
 	private final boolean shallWritePhaseroots;
 	private final RevlogStreamFactory streamProvider;
+	private final boolean shallUseChangelogIndex;
+	private ChangelogIndex changelogIndex;
+	private final boolean shallUseChangedFilesIndex;
+	private ChangedFilesIndex changedFilesIndex;
+	private final boolean shallUseCommitGraph;
+	private CommitGraph commitGraph;
+	private final int bundleWriters;
+	private final int checkoutWriters;
+	private final int commitWriters;
+	private final int bulkCompressionLevel;
+	private final boolean shallUseJournal;
 
 	public Internals(HgRepository hgRepo, File hgDir, ImplAccess implementationAccess) throws HgRuntimeException {
 		repo = hgRepo;
@@ -156,6 +250,15 @@ public final class Internals implements SessionContext.Source {
 		streamProvider = new RevlogStreamFactory(this, shallCacheRevlogsInRepo); 
 		shallMergePatches = pm.getBoolean(Internals.CFG_PROPERTY_PATCH_MERGE, true);
 		shallWritePhaseroots = pm.getBoolean(Internals.CFG_PROPERTY_CREATE_PHASEROOTS, false);
+		shallUseChangelogIndex = pm.getBoolean(Internals.CFG_PROPERTY_CHANGELOG_INDEX, true);
+		shallUseChangedFilesIndex = pm.getBoolean(Internals.CFG_PROPERTY_CHANGED_FILES_INDEX, true);
+		shallUseCommitGraph = pm.getBoolean(Internals.CFG_PROPERTY_COMMIT_GRAPH, true);
+		bundleWriters = pm.getInt(Internals.CFG_PROPERTY_BUNDLE_WRITERS, Runtime.getRuntime().availableProcessors());
+		checkoutWriters = pm.getInt(Internals.CFG_PROPERTY_CHECKOUT_WRITERS, Runtime.getRuntime().availableProcessors());
+		commitWriters = pm.getInt(Internals.CFG_PROPERTY_COMMIT_WRITERS, Runtime.getRuntime().availableProcessors());
+		final int compressionLevel = pm.getInt(Internals.CFG_PROPERTY_COMPRESSION_LEVEL, Deflater.DEFAULT_COMPRESSION);
+		bulkCompressionLevel = pm.getInt(Internals.CFG_PROPERTY_BULK_COMPRESSION_LEVEL, compressionLevel);
+		shallUseJournal = "journal".equals(pm.getString(Internals.CFG_PROPERTY_TRANSACTION, "cow"));
 	}
 	
 	public boolean isInvalid() {
@@ -517,7 +620,90 @@ public final class Internals implements SessionContext.Source {
 		return streamProvider.getStoreFile(path, false);
 	}
 	
+	/**
+	 * @return up-to-date changelog digest, or <code>null</code> if its use is disabled with {@link #CFG_PROPERTY_CHANGELOG_INDEX}
+	 */
+	public ChangelogIndex getChangelogIndex() throws HgRuntimeException {
+		if (!shallUseChangelogIndex) {
+			return null;
+		}
+		if (changelogIndex == null) {
+			changelogIndex = new ChangelogIndex(this);
+		}
+		return changelogIndex.update();
+	}
+
+	/**
+	 * @return up-to-date index of changed files, or <code>null</code> if its use is disabled with {@link #CFG_PROPERTY_CHANGED_FILES_INDEX}
+	 */
+	public ChangedFilesIndex getChangedFilesIndex() throws HgRuntimeException {
+		if (!shallUseChangedFilesIndex) {
+			return null;
+		}
+		if (changedFilesIndex == null) {
+			changedFilesIndex = new ChangedFilesIndex(this);
+		}
+		return changedFilesIndex.update();
+	}
+
+	/**
+	 * @return up-to-date graph of changesets, or <code>null</code> if its use is disabled with {@link #CFG_PROPERTY_COMMIT_GRAPH}
+	 */
+	public CommitGraph getCommitGraph() throws HgRuntimeException {
+		if (!shallUseCommitGraph) {
+			return null;
+		}
+		if (commitGraph == null) {
+			commitGraph = new CommitGraph(this);
+		}
+		return commitGraph.update();
+	}
+
+	/**
+	 * @return pool to write file groups of a bundle being applied to this repository, configured with {@link #CFG_PROPERTY_BUNDLE_WRITERS}
+	 */
+	public FileGroupPool newFileGroupPool() {
+		return new FileGroupPool(bundleWriters, Math.max(1, bundleWriters * 2), 4 * 1024 * 1024);
+	}
+
+	/**
+	 * @return number of threads to write working directory files with, as configured with {@link #CFG_PROPERTY_CHECKOUT_WRITERS}
+	 */
+	public int getCheckoutWriters() {
+		return hasKeywordFilter() ? 1 : checkoutWriters;
+	}
+
+	/**
+	 * @return number of threads to write file revisions with, as configured with {@link #CFG_PROPERTY_COMMIT_WRITERS}
+	 */
+	public int getCommitWriters() {
+		return hasKeywordFilter() ? 1 : commitWriters;
+	}
+
+	/**
+	 * @return deflate level for revisions that come from a bundle, as configured with {@link #CFG_PROPERTY_BULK_COMPRESSION_LEVEL}
+	 */
+	public int getBulkCompressionLevel() {
+		return bulkCompressionLevel;
+	}
+
+	private boolean hasKeywordFilter() {
+		for (Filter.Factory ff : getFilters()) {
+			if (ff instanceof KeywordFilter.Factory) {
+				// keywords come from changelog and file history, not for concurrent access
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return transactions of the kind configured with {@link #CFG_PROPERTY_TRANSACTION}
+	 */
 	public Transaction.Factory getTransactionFactory() {
+		if (shallUseJournal) {
+			return new JournalTransaction.Factory(this);
+		}
 		return new COWTransaction.Factory();
 	}
 
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.ListIterator;
+
+import org.tmatesoft.hg.core.HgIOException;
+import org.tmatesoft.hg.core.SessionContext;
+import org.tmatesoft.hg.repo.HgInvalidStateException;
+import org.tmatesoft.hg.repo.HgRepositoryFiles;
+
+/**
+ * This transaction strategy doesn't copy files that get appended (revlogs, fncache), just records their original length in a journal,
+ * the way Mercurial does, so that the cost of a transaction depends on amount of data written, not on the size of files touched.
+ * Files that get overwritten ({@link #prepare(File, File)}) are copied to backup, like {@link COWTransaction} does.
+ * Existing empty files are journaled with zero length, the way Mercurial does, so that <samp>hg recover</samp> deletes them,
+ * which is the same as empty for a store file (revlog, fncache). 
+ * Files outside of the store (e.g. <samp>.hg/branch</samp>, <samp>.hg/dirstate</samp>) don't get into the journal, as native
+ * client would resolve them against the store; these are copied to backup instead.
+ *
+ * On rollback, appended files are truncated to their original length (or deleted, if didn't exist), backups are moved back in place.
+ * On commit, appended files are forced to disk all at once, and the journal is removed.
+ *
+ * Journal lives at <samp>.hg/store/journal</samp>, in the format of Mercurial (<code>file\0length\n</code>, names relative to the store),
+ * therefore native client recognizes transaction interrupted by a crash and would <samp>hg recover</samp> it.
+ * Each journal record is forced to disk before the file it describes is modified.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class JournalTransaction extends Transaction {
+
+	private final FileUtils fileHelper;
+	private final File journal;
+	private final String storePrefix;
+	// in order files were prepared, to roll back in reverse
+	private final LinkedHashMap<File, RollbackEntry> entries = new LinkedHashMap<File, RollbackEntry>();
+	private FileOutputStream journalStream;
+
+	/**
+	 * @param journalFile location of the journal, files under its directory are recorded with relative names
+	 */
+	public JournalTransaction(SessionContext.Source ctxSource, File journalFile) {
+		fileHelper = new FileUtils(ctxSource.getSessionContext().getLog(), this);
+		journal = journalFile;
+		storePrefix = journalFile.getParentFile().getAbsolutePath() + File.separatorChar;
+	}
+
+	@Override
+	public File prepare(File f) throws HgIOException {
+		if (entries.containsKey(f)) {
+			return f;
+		}
+		final boolean exists = f.exists();
+		final long length = exists ? f.length() : -1;
+		if (!isInStore(f)) {
+			File backup = null;
+			if (exists) {
+				backup = new File(f.getParentFile(), f.getName() + ".hg4j.orig");
+				fileHelper.copy(f, backup);
+			}
+			record(f, length, backup);
+		} else {
+			journal(f, length);
+			record(f, length, null);
+		}
+		if (!exists) {
+			createNew(f);
+		}
+		return f;
+	}
+
+	@Override
+	public File prepare(File origin, File backup) throws HgIOException {
+		if (entries.containsKey(origin)) {
+			return origin;
+		}
+		if (!origin.exists()) {
+			if (isInStore(origin)) {
+				journal(origin, -1);
+			}
+			record(origin, -1, null);
+			createNew(origin);
+			return origin;
+		}
+		fileHelper.copy(origin, backup);
+		record(origin, origin.length(), backup).keepBackup = true;
+		return origin;
+	}
+
+	@Override
+	public void done(File f) throws HgIOException {
+		find(f).success = true;
+	}
+
+	@Override
+	public void failure(File f, IOException ex) {
+		find(f).failure = ex;
+	}
+
+	@Override
+	public void commit() throws HgIOException {
+		for (RollbackEntry e : entries.values()) {
+			if (!e.success) {
+				throw new HgInvalidStateException(String.format("Attempt to commit transaction without successful clearance of file %s", e.origin));
+			}
+			if (e.failure != null) {
+				throw new HgIOException("Can't close transaction with a failure.", e.failure, e.origin);
+			}
+		}
+		// files were written without being forced to disk, do it once for all of them
+		for (RollbackEntry e : entries.values()) {
+			if (e.backup == null) {
+				sync(e.origin);
+			} else if (!e.keepBackup) {
+				e.backup.delete();
+			}
+		}
+		entries.clear();
+		closeJournal();
+	}
+
+	@Override
+	public void rollback() throws HgIOException {
+		ArrayList<RollbackEntry> toRollback = new ArrayList<RollbackEntry>(entries.values());
+		for (ListIterator<RollbackEntry> it = toRollback.listIterator(toRollback.size()); it.hasPrevious();) {
+			RollbackEntry e = it.previous();
+			if (e.backup != null) {
+				e.origin.delete();
+				if (!e.backup.renameTo(e.origin)) {
+					String msg = String.format("Transaction rollback failed, could not rename backup %s back to %s", e.backup.getName(), e.origin.getName());
+					throw new HgIOException(msg, e.origin);
+				}
+			} else if (e.length < 0) {
+				e.origin.delete();
+			} else {
+				truncate(e.origin, e.length);
+			}
+			// the rest of the code relies on file timestamp to detect revlog changes,
+			// and rollback *is* a change, even if it brings the old state.
+			e.origin.setLastModified(System.currentTimeMillis());
+			entries.remove(e.origin);
+		}
+		closeJournal();
+	}
+
+	private void journal(File f, long length) throws HgIOException {
+		try {
+			if (journalStream == null) {
+				if (journal.exists()) {
+					throw new HgIOException("Abandoned transaction found, run 'hg recover'", journal);
+				}
+				journalStream = new FileOutputStream(journal);
+			}
+			String name = f.getAbsolutePath().substring(storePrefix.length()).replace(File.separatorChar, '/');
+			// Mercurial deletes files recorded with zero length on recover, that's what we need for files we create
+			journalStream.write(String.format("%s\0%d\n", name, length < 0 ? 0 : length).getBytes());
+			// record is on disk before the file is touched
+			journalStream.getFD().sync();
+		} catch (IOException ex) {
+			throw new HgIOException("Failed to write transaction journal", ex, journal);
+		}
+	}
+
+	private boolean isInStore(File f) {
+		return f.getAbsolutePath().startsWith(storePrefix);
+	}
+
+	private void closeJournal() throws HgIOException {
+		if (journalStream == null) {
+			return;
+		}
+		fileHelper.closeQuietly(journalStream, journal);
+		journalStream = null;
+		if (!journal.delete()) {
+			throw new HgIOException("Failed to delete transaction journal", journal);
+		}
+	}
+
+	private RollbackEntry record(File origin, long length, File backup) {
+		final RollbackEntry e = new RollbackEntry(origin, length, backup);
+		entries.put(origin, e);
+		return e;
+	}
+
+	private RollbackEntry find(File f) {
+		RollbackEntry e = entries.get(f);
+		if (e != null) {
+			return e;
+		}
+		assert false;
+		return new RollbackEntry(f, -1, null);
+	}
+
+	private static void createNew(File f) throws HgIOException {
+		try {
+			f.getParentFile().mkdirs();
+			f.createNewFile();
+		} catch (IOException ex) {
+			throw new HgIOException("Failed to create new file", ex, f);
+		}
+	}
+
+	private void sync(File f) throws HgIOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "rw");
+			raf.getFD().sync();
+		} catch (IOException ex) {
+			throw new HgIOException("Failed to force file content to disk", ex, f);
+		} finally {
+			fileHelper.closeQuietly(raf, f);
+		}
+	}
+
+	private void truncate(File f, long length) throws HgIOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "rw");
+			raf.setLength(length);
+		} catch (IOException ex) {
+			throw new HgIOException(String.format("Transaction rollback failed, could not truncate %s to %d bytes", f.getName(), length), ex, f);
+		} finally {
+			fileHelper.closeQuietly(raf, f);
+		}
+	}
+
+	private static class RollbackEntry {
+		public final File origin;
+		public final long length; // original length of the file, -1 if file didn't exist
+		public final File backup; // not null for files overwritten rather than appended, and for existing files outside of the store
+		public boolean keepBackup = false; // backups requested by the caller are left for him
+		public boolean success = false;
+		public IOException failure = null;
+
+		public RollbackEntry(File o, long l, File b) {
+			origin = o;
+			length = l;
+			backup = b;
+		}
+	}
+
+	public static class Factory implements Transaction.Factory {
+		private final Internals repo;
+
+		public Factory(Internals implRepo) {
+			repo = implRepo;
+		}
+
+		public Transaction create(SessionContext.Source ctxSource) {
+			return new JournalTransaction(ctxSource, repo.getRepositoryFile(HgRepositoryFiles.Journal));
+		}
+	}
+}
@@ -37,12 +37,16 @@ import org.tmatesoft.hg.util.Path;
  * @author TMate Software Ltd.
  */
 public class KeywordFilter implements Filter {
+	// '$' with no closing one within this many bytes is not a keyword start
+	private static final int MAX_KEYWORD_LENGTH = 4096;
 	private final HgRepository repo;
 	private final boolean isExpanding;
 	private final Map<String,String> keywords;
 	private final Path path;
 	private RawChangeset latestFileCset;
 	private final ByteVector unprocessedBuffer;
+	// output of the filter, reused from call to call
+	private ByteBuffer output;
 
 	/**
 	 * 
@@ -55,19 +59,34 @@ public class KeywordFilter implements Filter {
 		path = p;
 		isExpanding = expand;
 		keywords = kw;
-		unprocessedBuffer = expand ? new ByteVector(0, 0) :  new ByteVector(120, 50);
+		unprocessedBuffer = expand ? new ByteVector(20, 50) :  new ByteVector(120, 50);
 	}
 
 	/**
 	 * @param src buffer ready to be read
 	 * @return buffer ready to be read and original buffer's position modified to reflect consumed bytes. IOW, if source buffer
 	 * on return has remaining bytes, they are assumed not-read (not processed) and next chunk passed to filter is supposed to 
-	 * start with them  
+	 * start with them. Returned buffer, unless it's the source one, is reused by next call.  
 	 */
 	public ByteBuffer filter(ByteBuffer src) {
 		// when unprocessedBuffer is empty, we are looking for first $ in the input,
 		// when we've already got anything unprocessed, newline is of interest, too
 		int kwBreak = indexOf(src, '$', src.position(), !unprocessedBuffer.isEmpty());
+		if (kwBreak == -1 && !unprocessedBuffer.isEmpty()) {
+			if (unprocessedBuffer.size() + src.remaining() > MAX_KEYWORD_LENGTH) {
+				// too long for a keyword, just a stray '$'
+				ByteBuffer outBuffer = append(null, unprocessedBuffer.toByteArray());
+				unprocessedBuffer.clear();
+				outBuffer = ensureCapacityFor(outBuffer, src.remaining());
+				outBuffer.put(src);
+				return (ByteBuffer) outBuffer.flip();
+			}
+			// keyword goes on past this chunk, nothing to output until it ends
+			while (src.hasRemaining()) {
+				unprocessedBuffer.add(src.get());
+			}
+			return (ByteBuffer) ensureCapacityFor(null, 0).flip();
+		}
 		ByteBuffer outBuffer = null;
 		while (kwBreak != -1) {
 			if (unprocessedBuffer.isEmpty()) {
@@ -75,7 +94,10 @@ public class KeywordFilter implements Filter {
 				assert src.get(kwBreak) == '$';
 				
 				int end = indexOf(src, '$', kwBreak+1, true);
-				if (end == -1) {
+				if (end == -1 && src.limit() - kwBreak > MAX_KEYWORD_LENGTH) {
+					// too long for a keyword, src goes out as is
+					kwBreak = -1;
+				} else if (end == -1) {
 					for (int i = kwBreak; i < src.limit(); i++) {
 						unprocessedBuffer.add(src.get(i));
 					}
@@ -144,11 +166,15 @@ public class KeywordFilter implements Filter {
 							outBuffer.put((byte) ' ');
 						}
 						outBuffer.put((byte) '$');
+						// src part is consumed already, do nothing here, look for next possible kw
+						kwBreak = indexOf(src, '$', kwBreak+1, false);
 					} else {
-						outBuffer = append(outBuffer, unprocessedBuffer.toByteArray());
+						// not a keyword, but closing '$' may start one, give it another try
+						final byte[] literal = unprocessedBuffer.toByteArray();
+						outBuffer = ensureCapacityFor(outBuffer, literal.length - 1);
+						outBuffer.put(literal, 0, literal.length - 1);
+						src.position(kwBreak);
 					}
-					// src part is consumed already, do nothing here, look for next possible kw
-					kwBreak = indexOf(src, '$', kwBreak+1, false);
 				} else {
 					// newline => tag without close
 					outBuffer = append(outBuffer, unprocessedBuffer.toByteArray());
@@ -165,32 +191,48 @@ public class KeywordFilter implements Filter {
 		outBuffer.flip();
 		return outBuffer;
 	}
+
+	/**
+	 * Keyword start that didn't close till the end of the stream is not a keyword, give it away as is.
+	 */
+	public ByteBuffer flush() {
+		if (unprocessedBuffer.isEmpty()) {
+			return null;
+		}
+		ByteBuffer outBuffer = append(null, unprocessedBuffer.toByteArray());
+		unprocessedBuffer.clear();
+		return (ByteBuffer) outBuffer.flip();
+	}
+
 	private boolean knownKeyword(String kw) {
 		return keywords.containsKey(kw);
 	}
 
-	private static ByteBuffer append(ByteBuffer out, byte[] data) {
+	private ByteBuffer append(ByteBuffer out, byte[] data) {
 		out = ensureCapacityFor(out, data.length);
 		out.put(data);
 		return out;
 	}
-	private static ByteBuffer append(ByteBuffer out, ByteBuffer in, int count) {
+	private ByteBuffer append(ByteBuffer out, ByteBuffer in, int count) {
 		out = ensureCapacityFor(out, count);
-		while (count-- > 0) {
-			out.put(in.get());
-		}
+		copySlice(in, in.position(), in.position() + count, out);
+		in.position(in.position() + count);
 		return out;
 	}
-	private static ByteBuffer ensureCapacityFor(ByteBuffer out, int exansion) {
+	// null out stands for the output buffer of the previous call, which is no longer in use
+	private ByteBuffer ensureCapacityFor(ByteBuffer out, int exansion) {
+		if (out == null) {
+			out = output == null ? null : (ByteBuffer) output.clear();
+		}
 		if (out == null || out.remaining() < exansion) {
-			ByteBuffer newOut = ByteBuffer.allocate(out == null ? exansion*2 : out.capacity() + exansion);
+			ByteBuffer newOut = ByteBuffer.allocate(out == null ? exansion*2 : out.capacity() + Math.max(exansion, out.capacity() >>> 1));
 			if (out != null) {
 				out.flip();
 				newOut.put(out);
 			}
-			return newOut;
+			out = newOut;
 		}
-		return out;
+		return output = out;
 	}
 	
 	private ByteBuffer expandKeywordValue(String keyword, ByteBuffer rv) {
@@ -219,12 +261,27 @@ public class KeywordFilter implements Filter {
 		if (dst.remaining() < to - from) {
 			throw new IllegalArgumentException("Not enough room in the destination buffer");
 		}
+		if (src.hasArray()) {
+			dst.put(src.array(), src.arrayOffset() + from, to - from);
+			return;
+		}
 		for (int i = from; i < to; i++) {
 			dst.put(src.get(i));
 		}
 	}
 
 	private static int indexOf(ByteBuffer b, char ch, int from, boolean newlineBreaks) {
+		if (b.hasArray() && !newlineBreaks) {
+			// the most common case, looking for a keyword start
+			final byte[] a = b.array();
+			final int offset = b.arrayOffset();
+			for (int i = from, x = b.limit(); i < x; i++) {
+				if (a[offset + i] == ch) {
+					return i;
+				}
+			}
+			return -1;
+		}
 		for (int i = from; i < b.limit(); i++) {
 			byte c = b.get(i);
 			if (ch == c) {
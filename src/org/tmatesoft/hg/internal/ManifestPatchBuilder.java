@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.util.Path;
+
+/**
+ * New manifest revision as a patch over complete text of another one (usually, first parent of a commit).
+ * Entries of the base text are looked up with a binary search (manifest lines are sorted by file name),
+ * only lines of changed files get into the patch, so that effort depends on number of changes, not on number of files.
+ * <p>Usage:
+ * <pre>
+ *   ManifestPatchBuilder mb = new ManifestPatchBuilder(encodingHelper, parentManifestContent);
+ *   Nodeid parentFileRev = mb.nodeid(file1);
+ *   mb.add(file1, newFileRev).remove(file2);
+ *   Patch patch = mb.build();
+ * </pre>
+ * Flags of a file (e.g. executable bit) recorded in the base text are kept when the file gets new revision.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class ManifestPatchBuilder {
+	private static final int NODEID_HEX_LENGTH = 40;
+	private final EncodingHelper encHelper;
+	private final byte[] base;
+	// encoded file name to new revision, null for removed files
+	private final TreeMap<byte[], Nodeid> changes = new TreeMap<byte[], Nodeid>(new NameComparator());
+
+	/**
+	 * @param encodingHelper to encode file names the way manifest does
+	 * @param baseContent complete text of the base manifest revision, empty array if none
+	 */
+	public ManifestPatchBuilder(EncodingHelper encodingHelper, byte[] baseContent) {
+		encHelper = encodingHelper;
+		base = baseContent;
+	}
+
+	public byte[] baseContent() {
+		return base;
+	}
+
+	/**
+	 * @return revision of the file as recorded in the base manifest, or <code>null</code> if base doesn't have the file
+	 */
+	public Nodeid nodeid(Path fname) {
+		int lineStart = find(encHelper.toManifest(fname.toString()));
+		if (lineStart < 0) {
+			return null;
+		}
+		return Nodeid.fromAscii(base, nameEnd(lineStart) + 1, NODEID_HEX_LENGTH);
+	}
+
+	public ManifestPatchBuilder add(Path fname, Nodeid revision) {
+		assert revision != null;
+		changes.put(encHelper.toManifest(fname.toString()), revision);
+		return this;
+	}
+
+	public ManifestPatchBuilder remove(Path fname) {
+		changes.put(encHelper.toManifest(fname.toString()), null);
+		return this;
+	}
+
+	/**
+	 * @return changes to the base text, recorded so far
+	 */
+	public Patch build() {
+		Patch rv = new Patch(true);
+		// changes go in the order of manifest lines, hence patch entries come sorted
+		for (Map.Entry<byte[], Nodeid> e : changes.entrySet()) {
+			final byte[] name = e.getKey();
+			final int lineStart = find(name);
+			final int start, end;
+			byte[] flags = null;
+			if (lineStart >= 0) {
+				start = lineStart;
+				end = lineEnd(lineStart) + 1;
+				int flagsStart = nameEnd(lineStart) + 1 + NODEID_HEX_LENGTH;
+				flags = new byte[end - 1 - flagsStart];
+				System.arraycopy(base, flagsStart, flags, 0, flags.length);
+			} else {
+				start = end = -lineStart - 1;
+			}
+			if (e.getValue() == null) {
+				// removal of a file that is not in the base is no-op
+				rv.add(start, end, new byte[0]);
+			} else {
+				rv.add(start, end, line(name, e.getValue(), flags));
+			}
+		}
+		return rv;
+	}
+
+	private static byte[] line(byte[] name, Nodeid revision, byte[] flags) {
+		final int flagsLength = flags == null ? 0 : flags.length;
+		byte[] rv = new byte[name.length + 1 + NODEID_HEX_LENGTH + flagsLength + 1];
+		System.arraycopy(name, 0, rv, 0, name.length);
+		rv[name.length] = 0;
+		byte[] hex = revision.toString().getBytes();
+		System.arraycopy(hex, 0, rv, name.length + 1, NODEID_HEX_LENGTH);
+		if (flagsLength > 0) {
+			System.arraycopy(flags, 0, rv, name.length + 1 + NODEID_HEX_LENGTH, flagsLength);
+		}
+		rv[rv.length - 1] = '\n';
+		return rv;
+	}
+
+	/**
+	 * @return offset of the line with the file in the base text, or <code>(-(insertion point) - 1)</code>,
+	 * 	like {@link java.util.Arrays#binarySearch(byte[], byte)} does.
+	 */
+	private int find(byte[] name) {
+		int lo = 0, hi = base.length;
+		// both lo and hi are always at line start
+		while (lo < hi) {
+			int lineStart = (lo + hi) >>> 1;
+			while (lineStart > lo && base[lineStart - 1] != '\n') {
+				lineStart--;
+			}
+			int cmp = compareName(lineStart, name);
+			if (cmp == 0) {
+				return lineStart;
+			}
+			if (cmp < 0) {
+				lo = lineEnd(lineStart) + 1;
+			} else {
+				hi = lineStart;
+			}
+		}
+		return -lo - 1;
+	}
+
+	private int compareName(int lineStart, byte[] name) {
+		for (int i = lineStart, j = 0; ; i++, j++) {
+			final int b1 = base[i] == 0 ? -1 : base[i] & 0xFF;
+			final int b2 = j == name.length ? -1 : name[j] & 0xFF;
+			if (b1 != b2 || b1 == -1) {
+				return b1 - b2;
+			}
+		}
+	}
+
+	private int nameEnd(int lineStart) {
+		int i = lineStart;
+		while (base[i] != 0) {
+			i++;
+		}
+		return i;
+	}
+
+	private int lineEnd(int lineStart) {
+		int i = lineStart;
+		while (i < base.length && base[i] != '\n') {
+			i++;
+		}
+		return i;
+	}
+
+	// manifest orders file names by their bytes
+	private static class NameComparator implements Comparator<byte[]> {
+		public int compare(byte[] o1, byte[] o2) {
+			final int len = Math.min(o1.length, o2.length);
+			for (int i = 0; i < len; i++) {
+				int d = (o1[i] & 0xFF) - (o2[i] & 0xFF);
+				if (d != 0) {
+					return d;
+				}
+			}
+			return o1.length - o2.length;
+		}
+	}
+}
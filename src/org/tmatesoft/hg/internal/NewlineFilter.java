@@ -50,6 +50,8 @@ public class NewlineFilter implements Filter, Preview, Adaptable {
 	// NOTE, if processInconsistent == true, foundCRLF and foundLoneLF are not initialized
 	private boolean foundLoneLF = false;
 	private boolean foundCRLF = false;
+	// output of the filter, reused from call to call
+	private ByteBuffer output;
 
 	// next two factory methods for test purposes
 	public static NewlineFilter createWin2Nix(boolean processMixed) {
@@ -78,14 +80,26 @@ public class NewlineFilter implements Filter, Preview, Adaptable {
 				// no reason to process if no CRLF in the data stream
 				return src;
 			}
+			if (indexOf((byte) '\r', src, src.position()) == -1) {
+				// nothing to convert in this chunk (CR left from previous chunk, if any, comes at its start)
+				return src;
+			}
 			return win2nix(src);
 		} else {
 			if (!processInconsistent && !foundLoneLF) {
 				return src;
 			}
+			if (indexOf((byte) '\n', src, src.position()) == -1) {
+				return src;
+			}
 			return nix2win(src);
 		}
 	}
+
+	public ByteBuffer flush() {
+		// nothing kept, trailing CR, if any, is left unconsumed in the source buffer
+		return null;
+	}
 	
 	public <T> T getAdapter(Class<T> adapterClass) {
 		// conditionally through getAdapter 
@@ -147,10 +161,17 @@ public class NewlineFilter implements Filter, Preview, Adaptable {
 		ByteBuffer dst = null;
 		final byte CR = (byte) '\r';
 		final byte LF = (byte) '\n';
+		// x, lookupStart, ir and in are absolute positions within src buffer, which is never read with modifying operations
+		// positions found are kept till passed, not to scan the rest of the buffer anew for each line
+		int ir = indexOf(CR, src, lookupStart);
+		int in = indexOf(LF, src, lookupStart);
 		while (lookupStart < src.limit()) {
-			// x, lookupStart, ir and in are absolute positions within src buffer, which is never read with modifying operations
-			int ir = indexOf(CR, src, lookupStart);
-			int in = indexOf(LF, src, lookupStart);
+			if (ir != -1 && ir < lookupStart) {
+				ir = indexOf(CR, src, lookupStart);
+			}
+			if (in != -1 && in < lookupStart) {
+				in = indexOf(LF, src, lookupStart);
+			}
 			if (in != -1) {
 				if (ir == -1 || ir > in) {
 					// lone LF. CR, if present, goes after LF, process up to that lone, closest LF; let next iteration decide what to do with CR@ir
@@ -209,14 +230,23 @@ public class NewlineFilter implements Filter, Preview, Adaptable {
 		}
 		return true;
 	}
-	private static ByteBuffer consume(ByteBuffer src, int from, int to, ByteBuffer dst) {
+	private ByteBuffer consume(ByteBuffer src, int from, int to, ByteBuffer dst) {
 		if (dst == null) {
-			dst = ByteBuffer.allocate(src.remaining());
+			dst = outputBuffer(src.remaining());
 		}
 		copySlice(src, from, to, dst);
 		return dst;
 	}
 
+	// the buffer returned from previous filter() call is no longer in use once filter is invoked anew
+	private ByteBuffer outputBuffer(int capacity) {
+		if (output == null || output.capacity() < capacity) {
+			output = ByteBuffer.allocate(capacity);
+		}
+		output.clear();
+		return output;
+	}
+
 	private ByteBuffer nix2win(ByteBuffer src) {
 		int x = src.position();
 		ByteBuffer dst = null;
@@ -232,7 +262,7 @@ public class NewlineFilter implements Filter, Preview, Adaptable {
 						fail(src, in-1);
 					}
 					if (dst == null) {
-						dst = ByteBuffer.allocate(src.remaining() * 2);
+						dst = outputBuffer(src.remaining() * 2);
 					}
 					copySlice(src, x, in+1, dst);
 					x = in + 1;
@@ -243,7 +273,7 @@ public class NewlineFilter implements Filter, Preview, Adaptable {
 						fail(src, in);
 					}
 					if (dst == null) {
-						dst = ByteBuffer.allocate(src.remaining() * 2);
+						dst = outputBuffer(src.remaining() * 2);
 					}
 					copySlice(src, x, in, dst);
 					dst.put(CR);
@@ -281,6 +311,16 @@ public class NewlineFilter implements Filter, Preview, Adaptable {
 
 	// looks up in buf[from..to)
 	private static int indexOf(byte ch, ByteBuffer b, int from, int to) {
+		if (b.hasArray()) {
+			final byte[] a = b.array();
+			final int offset = b.arrayOffset();
+			for (int i = from; i < to; i++) {
+				if (a[offset + i] == ch) {
+					return i;
+				}
+			}
+			return -1;
+		}
 		for (int i = from; i < to; i++) {
 			byte c = b.get(i);
 			if (ch == c) {
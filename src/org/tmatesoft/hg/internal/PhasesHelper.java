@@ -25,6 +25,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -60,6 +61,12 @@ public final class PhasesHelper {
 	private List<Nodeid> draftPhaseRoots;
 	private List<Nodeid> secretPhaseRoots;
 	private RevisionDescendants[][] phaseDescendants = new RevisionDescendants[HgPhase.values().length][];
+	// phase roots and their descendants, as of commit graph of specific size
+	private BitSet[] phaseRevisions = new BitSet[HgPhase.values().length];
+	private int phaseRevisionsGraphSize = -1;
+	// graph is brought up to date once, when first needed, revisions added later are answered without it
+	private CommitGraph commitGraph;
+	private boolean commitGraphRequested = false;
 
 	public PhasesHelper(Internals internalRepo) {
 		this(internalRepo, null);
@@ -115,6 +122,15 @@ public final class PhasesHelper {
 		if (!isCapableOfPhases()) {
 			return HgPhase.Undefined;
 		}
+		final CommitGraph graph = getCommitGraph();
+		if (graph != null && csetRevIndex >= 0 && csetRevIndex < graph.size()) {
+			for (HgPhase phase : new HgPhase[] { HgPhase.Secret, HgPhase.Draft }) {
+				if (getPhaseRevisions(phase, graph).get(csetRevIndex)) {
+					return phase;
+				}
+			}
+			return HgPhase.Public;
+		}
 		// csetRev is only used when parentHelper is available
 		if (parentHelper != null && (csetRev == null || csetRev.isNull())) {
 			csetRev = getRepo().getChangelog().getRevision(csetRevIndex);
@@ -164,6 +180,8 @@ public final class PhasesHelper {
 	public void updateRoots(Collection<Nodeid> draftRoots, Collection<Nodeid> secretRoots) throws HgInvalidControlFileException {
 		draftPhaseRoots = draftRoots.isEmpty() ? Collections.<Nodeid> emptyList() : new ArrayList<Nodeid>(draftRoots);
 		secretPhaseRoots = secretRoots.isEmpty() ? Collections.<Nodeid> emptyList() : new ArrayList<Nodeid>(secretRoots);
+		phaseDescendants = new RevisionDescendants[HgPhase.values().length][];
+		phaseRevisions = new BitSet[HgPhase.values().length];
 		String fmt = "%d %s\n";
 		File phaseroots = repo.getRepositoryFile(Phaseroots);
 		FileWriter fw = null;
@@ -315,6 +333,17 @@ public final class PhasesHelper {
 			return new RevisionSet(Collections.<Nodeid> emptyList());
 		}
 		final List<Nodeid> roots = getPhaseRoots(phase);
+		final CommitGraph graph = getCommitGraph();
+		if (graph != null) {
+			final BitSet revisions = getPhaseRevisions(phase, graph);
+			final HgChangelog clog = getRepo().getChangelog();
+			final List<Nodeid> known = parentHelper == null ? Collections.<Nodeid> emptyList() : parentHelper.all();
+			ArrayList<Nodeid> rv = new ArrayList<Nodeid>(revisions.cardinality());
+			for (int i = revisions.nextSetBit(0); i >= 0; i = revisions.nextSetBit(i + 1)) {
+				rv.add(i < known.size() ? known.get(i) : clog.getRevision(i));
+			}
+			return new RevisionSet(rv);
+		}
 		if (parentHelper != null) {
 			return new RevisionSet(roots).union(new RevisionSet(parentHelper.childrenOf(roots)));
 		} else {
@@ -380,6 +409,27 @@ public final class PhasesHelper {
 		return Collections.emptyList();
 	}
 
+	private CommitGraph getCommitGraph() throws HgRuntimeException {
+		if (!commitGraphRequested) {
+			commitGraph = repo.getCommitGraph();
+			commitGraphRequested = true;
+		}
+		return commitGraph;
+	}
+
+	private BitSet getPhaseRevisions(HgPhase phase, CommitGraph graph) throws HgRuntimeException {
+		if (phaseRevisionsGraphSize != graph.size()) {
+			phaseRevisions = new BitSet[HgPhase.values().length];
+			phaseRevisionsGraphSize = graph.size();
+		}
+		int ordinal = phase.ordinal();
+		if (phaseRevisions[ordinal] == null) {
+			int[] roots = toIndexes(getPhaseRoots(phase));
+			phaseRevisions[ordinal] = roots.length == 0 ? new BitSet() : graph.descendants(roots);
+		}
+		return phaseRevisions[ordinal];
+	}
+
 	private RevisionDescendants[] getPhaseDescendants(HgPhase phase) throws HgRuntimeException {
 		int ordinal = phase.ordinal();
 		if (phaseDescendants[ordinal] == null) {
@@ -45,4 +45,9 @@ public class PropertyMarshal {
 		}
 		return ((Number) v).intValue();
 	}
+
+	public String getString(String propertyName, String defaultValue) {
+		Object v = sessionContext.getConfigurationProperty(propertyName, defaultValue);
+		return v == null ? null : String.valueOf(v);
+	}
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the source stream on a dedicated thread, so that data keeps coming (e.g. from the network)
+ * while the client of this stream is busy processing what it has got already.
+ *
+ * <p>Memory is bounded: data is kept in a fixed number of chunks, reader blocks once all of them are filled
+ * and waits for the client to consume one. Chunk is handed over as soon as anything is read into it,
+ * so that a client that knows where its data ends doesn't wait for a source that never ends.
+ *
+ * <p>Not thread-safe, single client only.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class ReadAheadInputStream extends InputStream {
+	private static final Chunk END = new Chunk(0);
+
+	private final InputStream source;
+	private final BlockingQueue<Chunk> filled;
+	private final BlockingQueue<Chunk> empty;
+	private final Thread reader;
+	private volatile boolean closed = false;
+	private volatile IOException failure;
+	private Chunk current;
+	private int pos;
+
+	/**
+	 * @param in stream to read from
+	 * @param chunkSize size of a single read from the source, positive
+	 * @param chunkCount number of chunks read ahead of the client, positive
+	 */
+	public ReadAheadInputStream(InputStream in, int chunkSize, int chunkCount) {
+		if (chunkSize <= 0 || chunkCount <= 0) {
+			throw new IllegalArgumentException(String.format("Bad read-ahead configuration: %d chunks, %d bytes each", chunkCount, chunkSize));
+		}
+		source = in;
+		filled = new ArrayBlockingQueue<Chunk>(chunkCount + 1); // extra room for END
+		empty = new ArrayBlockingQueue<Chunk>(chunkCount);
+		for (int i = 0; i < chunkCount; i++) {
+			empty.add(new Chunk(chunkSize));
+		}
+		reader = new Thread(new Runnable() {
+
+			public void run() {
+				fill();
+			}
+		}, "hg4j-read-ahead");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@Override
+	public int read() throws IOException {
+		final Chunk c = current();
+		if (c == END) {
+			return -1;
+		}
+		return c.data[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		final Chunk c = current();
+		if (c == END) {
+			return -1;
+		}
+		final int x = Math.min(len, c.length - pos);
+		System.arraycopy(c.data, pos, b, off, x);
+		pos += x;
+		return x;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current == null || current == END ? 0 : current.length - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		reader.interrupt();
+		// interrupt doesn't help a thread blocked in I/O
+		source.close();
+	}
+
+	private Chunk current() throws IOException {
+		while (current == null || (current != END && pos == current.length)) {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (current != null) {
+				empty.offer(current);
+			}
+			try {
+				current = filled.take();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				InterruptedIOException t = new InterruptedIOException("Interrupted while waiting for data");
+				t.initCause(ex);
+				throw t;
+			}
+			pos = 0;
+		}
+		if (current == END && failure != null) {
+			throw failure;
+		}
+		return current;
+	}
+
+	private void fill() {
+		try {
+			while (!closed) {
+				Chunk c = empty.take();
+				int r = source.read(c.data, 0, c.data.length);
+				if (r == -1) {
+					break;
+				}
+				c.length = r;
+				filled.put(c);
+			}
+		} catch (IOException ex) {
+			if (!closed) {
+				failure = ex;
+			}
+		} catch (InterruptedException ex) {
+			// closed
+		} finally {
+			// there are no more chunks than room in the queue, won't block
+			filled.offer(END);
+		}
+	}
+
+	private static final class Chunk {
+		final byte[] data;
+		int length;
+
+		Chunk(int size) {
+			data = new byte[size];
+		}
+	}
+}
@@ -20,6 +20,7 @@ import static org.tmatesoft.hg.core.Nodeid.NULL;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -29,6 +30,7 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Set;
 
 import org.tmatesoft.hg.core.HgRemoteConnectionException;
@@ -39,6 +41,7 @@ import org.tmatesoft.hg.repo.HgParentChildMap;
 import org.tmatesoft.hg.repo.HgRemoteRepository;
 import org.tmatesoft.hg.repo.HgRemoteRepository.Range;
 import org.tmatesoft.hg.repo.HgRemoteRepository.RemoteBranch;
+import org.tmatesoft.hg.repo.HgRevisionMap;
 import org.tmatesoft.hg.util.CancelSupport;
 import org.tmatesoft.hg.util.CancelledException;
 import org.tmatesoft.hg.util.ProgressSupport;
@@ -55,6 +58,7 @@ public class RepositoryComparator {
 	private final HgRemoteRepository remoteRepo;
 	private List<Nodeid> common;
 	private List<Nodeid> remoteHeads;
+	private SetDiscovery discovery; // non-null if remote answers 'known' queries
 
 	public RepositoryComparator(HgParentChildMap<HgChangelog> pwLocal, HgRemoteRepository hgRemote) {
 		localRepo = pwLocal;
@@ -64,23 +68,99 @@ public class RepositoryComparator {
 	public RepositoryComparator compare(ProgressSupport progressSupport, CancelSupport cancelSupport) throws HgRemoteConnectionException, CancelledException {
 		cancelSupport.checkCancelled();
 		progressSupport.start(10);
-		common = Collections.unmodifiableList(findCommonWithRemote());
-		// sanity check
-		for (Nodeid n : common) {
-			if (!localRepo.knownNode(n)) {
-				throw new HgInvalidStateException("Unknown node reported as common:" + n);
+		common = null;
+		discovery = null;
+		if (remoteRepo.isKnownQuerySupported()) {
+			// ask about local heads right away, in the same request with remote heads if server takes batches
+			final List<Nodeid> localHeads = new ArrayList<Nodeid>(localRepo.heads());
+			final boolean[] known = new boolean[localHeads.size()];
+			remoteHeads = remoteRepo.heads(localHeads, known);
+			discovery = new SetDiscovery(localRepo, remoteRepo, 200, new Random());
+			discovery.run(remoteHeads, localHeads, known, cancelSupport);
+			if (debug) {
+				System.out.printf("Set discovery took %d queries\n", discovery.getQueryCount());
 			}
+		} else {
+			remoteHeads = remoteRepo.heads();
+			common = checkCommon(findCommonWithRemote(remoteHeads));
 		}
 		progressSupport.done();
 		return this;
 	}
 	
-	public List<Nodeid> getCommon() {
+	/**
+	 * @return common revisions to serve as roots to get changes from the remote, i.e. for each changeset missing 
+	 * locally, one of its ancestors is in the list
+	 */
+	public List<Nodeid> getCommon() throws HgRemoteConnectionException {
 		if (common == null) {
-			throw new HgInvalidStateException("Call #compare(Object) first");
+			if (discovery == null) {
+				throw new HgInvalidStateException("Call #compare(Object) first");
+			}
+			// set discovery tells complete set of common changesets, it's ancestors of common heads. Servers that
+			// answer 'known' don't need anything else to find out changes missing locally, no reason to walk remote branches
+			common = checkCommon(discovery.getCommonHeads());
 		}
 		return common;
 	}
+
+	/**
+	 * @return changesets known both locally and at remote, that have no children known to both. Along with
+	 * {@link #getRemoteHeads()}, tells exactly what's missing locally, see {@link HgRemoteRepository#getBundle(List, List)}
+	 */
+	public List<Nodeid> getCommonHeads() throws HgRemoteConnectionException {
+		if (discovery != null) {
+			return discovery.getCommonHeads();
+		}
+		// without set discovery, common roots are the best we've got, just need to drop ancestors of other roots 
+		final List<Nodeid> c = getCommon();
+		if (c.size() < 2) {
+			return c;
+		}
+		final HgRevisionMap<HgChangelog> revMap = localRepo.getRevisionMap();
+		final List<Nodeid> all = localRepo.all();
+		final BitSet roots = new BitSet(all.size());
+		for (Nodeid n : c) {
+			roots.set(revMap.revisionIndex(n));
+		}
+		// single walk from the most recent root towards older revisions, parents come before children
+		final BitSet ancestors = new BitSet(all.size());
+		final BitSet heads = new BitSet(all.size());
+		for (int i = roots.length() - 1; i >= 0; i--) {
+			final boolean root = roots.get(i);
+			if (!root && !ancestors.get(i)) {
+				continue;
+			}
+			if (root && !ancestors.get(i)) {
+				heads.set(i);
+			}
+			final Nodeid n = all.get(i);
+			final Nodeid p1 = localRepo.firstParent(n), p2 = localRepo.secondParent(n);
+			if (p1 != null) {
+				ancestors.set(revMap.revisionIndex(p1));
+			}
+			if (p2 != null) {
+				ancestors.set(revMap.revisionIndex(p2));
+			}
+		}
+		ArrayList<Nodeid> rv = new ArrayList<Nodeid>(heads.cardinality());
+		for (Nodeid n : c) {
+			if (heads.get(revMap.revisionIndex(n))) {
+				rv.add(n);
+			}
+		}
+		return rv;
+	}
+	
+	private List<Nodeid> checkCommon(List<Nodeid> c) {
+		// sanity check
+		for (Nodeid n : c) {
+			if (!localRepo.knownNode(n)) {
+				throw new HgInvalidStateException("Unknown node reported as common:" + n);
+			}
+		}
+		return Collections.unmodifiableList(c);
+	}
 	
 	public List<Nodeid> getRemoteHeads() {
 		assert remoteHeads != null;
@@ -90,7 +170,11 @@ public class RepositoryComparator {
 	/**
 	 * @return revisions that are children of common entries, i.e. revisions that are present on the local server and not on remote.
 	 */
-	public List<Nodeid> getLocalOnlyRevisions() {
+	public List<Nodeid> getLocalOnlyRevisions() throws HgRemoteConnectionException {
+		if (discovery != null) {
+			// exact answer, unlike the one calculated from common below
+			return discovery.toNodeids(discovery.getMissing());
+		}
 		final List<Nodeid> c = getCommon();
 		if (c.isEmpty()) {
 			return localRepo.all();
@@ -117,8 +201,7 @@ public class RepositoryComparator {
 		}
 	}
 	
-	private List<Nodeid> findCommonWithRemote() throws HgRemoteConnectionException {
-		remoteHeads = remoteRepo.heads();
+	private List<Nodeid> findCommonWithRemote(List<Nodeid> remoteHeads) throws HgRemoteConnectionException {
 		LinkedList<Nodeid> resultCommon = new LinkedList<Nodeid>(); // these remotes are known in local
 		LinkedList<Nodeid> toQuery = new LinkedList<Nodeid>(); // these need further queries to find common
 		for (Nodeid rh : remoteHeads) {
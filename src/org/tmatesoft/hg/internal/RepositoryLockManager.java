@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Coordinates threads of this JVM that lock the same repository, so that they queue up in order of their arrival
+ * instead of polling the lock file, and the file lock, once taken, is handed from one in-process holder to the next one
+ * without being released, as long as there's anyone waiting. Other processes get the file lock once the queue is empty.
+ *
+ * <p>Lock is reentrant for a thread, and keeps track of time spent waiting for and holding it.
+ *
+ * <p>Thread-safe.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class RepositoryLockManager {
+	private static final RepositoryLockManager instance = new RepositoryLockManager();
+
+	private final Map<String, Entry> locks = new HashMap<String, Entry>();
+
+	public static RepositoryLockManager getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param lockFile lock file, distinct {@link File} instances of the same file give the same lock
+	 * @return in-process lock for the file, never <code>null</code>
+	 */
+	public synchronized Entry get(File lockFile) {
+		String key;
+		try {
+			key = lockFile.getCanonicalPath();
+		} catch (IOException ex) {
+			key = lockFile.getAbsolutePath();
+		}
+		Entry e = locks.get(key);
+		if (e == null) {
+			locks.put(key, e = new Entry(lockFile));
+		}
+		return e;
+	}
+
+	public static final class Entry {
+		private final File lockFile;
+		// threads waiting for the lock, first in gets it next
+		private final LinkedList<Thread> queue = new LinkedList<Thread>();
+		private Thread owner;
+		private int holds;
+		private boolean fileHeld;
+		private long holdStart;
+		// statistics
+		private int acquisitions, contended, fileAcquisitions;
+		private long waitNanos, maxWaitNanos, holdNanos;
+
+		Entry(File lock) {
+			lockFile = lock;
+		}
+
+		/**
+		 * Wait for the threads that came earlier to release the lock, and take it.
+		 * @param timeoutMillis how long to wait, negative value to wait as long as needed
+		 * @return <code>true</code> if current thread holds the lock
+		 */
+		public synchronized boolean enter(long timeoutMillis) {
+			final Thread current = Thread.currentThread();
+			if (owner == current) {
+				holds++;
+				return true;
+			}
+			final long start = System.nanoTime();
+			final long stopTime = timeoutMillis < 0 ? -1 : System.currentTimeMillis() + timeoutMillis;
+			final boolean contention = owner != null || !queue.isEmpty();
+			queue.add(current);
+			while (owner != null || queue.getFirst() != current) {
+				long left = 0;
+				if (stopTime != -1 && (left = stopTime - System.currentTimeMillis()) <= 0) {
+					queue.remove(current);
+					// next one in the queue may be the first now
+					notifyAll();
+					return false;
+				}
+				try {
+					wait(left);
+				} catch (InterruptedException ex) {
+					// deliberately ignored, like file lock does
+				}
+			}
+			queue.removeFirst();
+			owner = current;
+			holds = 1;
+			holdStart = System.nanoTime();
+			final long waited = holdStart - start;
+			acquisitions++;
+			if (contention) {
+				contended++;
+			}
+			waitNanos += waited;
+			maxWaitNanos = Math.max(maxWaitNanos, waited);
+			return true;
+		}
+
+		/**
+		 * Release the lock, once for each {@link #enter(long)} of the owner thread. Once released completely, 
+		 * lock file is deleted unless there's another thread waiting.
+		 * @throws IllegalStateException if current thread doesn't hold the lock
+		 */
+		public synchronized void exit() {
+			if (owner != Thread.currentThread()) {
+				throw new IllegalStateException("Lock is not held by current thread");
+			}
+			if (--holds > 0) {
+				return;
+			}
+			holdNanos += System.nanoTime() - holdStart;
+			owner = null;
+			if (queue.isEmpty() && fileHeld) {
+				// nobody in this JVM needs the lock, let others get it
+				fileHeld = false;
+				lockFile.delete();
+			}
+			notifyAll();
+		}
+
+		/**
+		 * @return <code>true</code> if current thread has entered the lock and hasn't exited yet
+		 */
+		public synchronized boolean isHeldByCurrentThread() {
+			return owner == Thread.currentThread();
+		}
+
+		/**
+		 * @return <code>true</code> if lock file has been created by this process and is kept for the holder of the lock
+		 */
+		public synchronized boolean isFileHeld() {
+			return fileHeld;
+		}
+
+		/**
+		 * Owner of the lock tells it has created lock file
+		 */
+		public synchronized void fileAcquired() {
+			assert owner == Thread.currentThread();
+			fileHeld = true;
+			fileAcquisitions++;
+		}
+
+		/**
+		 * @return number of times the lock was taken (reentrant use not counted)
+		 */
+		public synchronized int getAcquisitions() {
+			return acquisitions;
+		}
+
+		/**
+		 * @return number of times a thread had to wait for another one to release the lock
+		 */
+		public synchronized int getContendedAcquisitions() {
+			return contended;
+		}
+
+		/**
+		 * @return number of times the lock file was created, less than {@link #getAcquisitions()} when file lock got handed over
+		 */
+		public synchronized int getFileAcquisitions() {
+			return fileAcquisitions;
+		}
+
+		/**
+		 * @return total time threads spent waiting for in-process lock, in nanoseconds
+		 */
+		public synchronized long getWaitTime() {
+			return waitNanos;
+		}
+
+		/**
+		 * @return longest time a thread has waited for in-process lock, in nanoseconds
+		 */
+		public synchronized long getMaxWaitTime() {
+			return maxWaitNanos;
+		}
+
+		/**
+		 * @return total time the lock was held, in nanoseconds, not including present holder
+		 */
+		public synchronized long getHoldTime() {
+			return holdNanos;
+		}
+	}
+}
@@ -59,6 +59,14 @@ public class RevisionDescendants {
 		if (rootRevIndex == tipRevIndex) {
 			return;
 		}
+		final CommitGraph graph = Internals.getInstance(repo).getCommitGraph();
+		if (graph != null && graph.size() > tipRevIndex) {
+			final BitSet d = graph.descendants(rootRevIndex);
+			for (int i = d.nextSetBit(rootRevIndex + 1); i >= 0 && i <= tipRevIndex; i = d.nextSetBit(i + 1)) {
+				result.set(i - rootRevIndex);
+			}
+			return;
+		}
 		repo.getChangelog().indexWalk(rootRevIndex+1, tipRevIndex, new HgChangelog.ParentInspector() {
 			// TODO ParentRevisionInspector, with no parent nodeids, just indexes?
 
@@ -20,6 +20,7 @@ import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -85,8 +86,27 @@ public final class RevisionSet implements Iterable<Nodeid> {
 	public RevisionSet roots(HgRepository repo) {
 		// TODO introduce parent access interface, use it here, provide implementations 
 		// that delegate to HgParentChildMap or HgRepository
-		HashSet<Nodeid> copy = new HashSet<Nodeid>(elements);
 		final HgChangelog clog = repo.getChangelog();
+		final CommitGraph graph = Internals.getInstance(repo).getCommitGraph();
+		if (graph != null) {
+			final IntMap<Nodeid> indexes = new IntMap<Nodeid>(elements.size());
+			final BitSet bits = new BitSet(graph.size());
+			for (Nodeid n : elements) {
+				int i = clog.getRevisionIndex(n);
+				indexes.put(i, n);
+				bits.set(i);
+			}
+			final BitSet roots = graph.roots(bits);
+			if (roots.cardinality() == elements.size()) {
+				return this;
+			}
+			HashSet<Nodeid> rv = new HashSet<Nodeid>();
+			for (int i = roots.nextSetBit(0); i >= 0; i = roots.nextSetBit(i + 1)) {
+				rv.add(indexes.get(i));
+			}
+			return new RevisionSet(rv);
+		}
+		HashSet<Nodeid> copy = new HashSet<Nodeid>(elements);
 		byte[] parent1 = new byte[Nodeid.SIZE], parent2 = new byte[Nodeid.SIZE];
 		int[] parentRevs = new int[2];
 		for (Nodeid n : elements) {
@@ -20,68 +20,113 @@ import java.util.zip.Deflater;
 
 import org.tmatesoft.hg.core.HgIOException;
 import org.tmatesoft.hg.core.SessionContext;
+import org.tmatesoft.hg.repo.HgInvalidStateException;
 import org.tmatesoft.hg.repo.HgRuntimeException;
-import org.tmatesoft.hg.util.LogFacility.Severity;
 
 /**
+ * Deflates revision data. Data is compressed once, into a buffer the compressor keeps for subsequent revisions,
+ * so that the same bytes serve both to decide whether compression is worth it, and to write the revision.
+ * 
+ * <p>Level of compression comes from {@link Internals#CFG_PROPERTY_COMPRESSION_LEVEL}, unless set explicitly for
+ * a specific operation (e.g. fast compression for bulk writes). 
+ * 
+ * <p>Not thread-safe, distinct instances are independent and may be used by distinct threads at once.
  * 
  * @author Artem Tikhomirov
  * @author TMate Software Ltd.
  */
 public class RevlogCompressor {
-	private final SessionContext ctx;
+	// don't keep buffers of huge revisions for subsequent (likely, much smaller) ones 
+	private static final int MAX_KEPT_BUFFER = 1024 * 1024;
 	private final Deflater zip;
+	private final CompressedData compressed = new CompressedData();
 	private DataSerializer.DataSource sourceData;
 	private int compressedLen;
 	
 	public RevlogCompressor(SessionContext sessionCtx) {
-		ctx = sessionCtx;
-		zip = new Deflater();
+		this(new PropertyMarshal(sessionCtx).getInt(Internals.CFG_PROPERTY_COMPRESSION_LEVEL, Deflater.DEFAULT_COMPRESSION));
+	}
+
+	/**
+	 * @param level compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}, or {@link Deflater#DEFAULT_COMPRESSION} 
+	 */
+	public RevlogCompressor(int level) {
+		zip = new Deflater(checkLevel(level));
+	}
+
+	/**
+	 * Level to use for the revisions to come
+	 */
+	public void setLevel(int level) {
+		zip.setLevel(checkLevel(level));
+		compressedLen = -1;
 	}
 
 	public void reset(DataSerializer.DataSource source) {
 		sourceData = source;
 		compressedLen = -1;
+		if (compressed.buffer.length > MAX_KEPT_BUFFER) {
+			compressed.buffer = new byte[CompressedData.INITIAL_CAPACITY];
+		}
 	}
 	
 	// out stream is not closed!
 	public int writeCompressedData(DataSerializer out) throws HgIOException, HgRuntimeException {
-		zip.reset();
-		DeflaterDataSerializer dds = new DeflaterDataSerializer(out, zip, sourceData.serializeLength());
-		sourceData.serialize(dds);
-		dds.finish();
-		return zip.getTotalOut();
+		final int len = getCompressedLength();
+		out.write(compressed.buffer, 0, len);
+		return len;
 	}
 
 	public int getCompressedLength() throws HgRuntimeException {
 		if (compressedLen != -1) {
 			return compressedLen;
 		}
-		Counter counter = new Counter();
+		zip.reset();
+		compressed.count = 0;
 		try {
-			compressedLen = writeCompressedData(counter);
-			assert counter.totalWritten == compressedLen;
-	        return compressedLen;
+			sourceData.serialize(compressed);
+			compressed.finish();
 		} catch (HgIOException ex) {
-			// can't happen provided we write to our stream that does nothing but byte counting
-			ctx.getLog().dump(getClass(), Severity.Error, ex, "Failed estimating compressed length of revlog data");
-			return counter.totalWritten; // use best known value so far
+			// can't happen provided we write to our own buffer
+			throw new HgInvalidStateException(String.format("Failed to compress revision data: %s", ex.getMessage()));
 		}
+		return compressedLen = compressed.count;
 	}
 
-	private static class Counter extends DataSerializer {
-		public int totalWritten = 0;
+	private static int checkLevel(int level) {
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException(String.format("Bad compression level: %d", level));
+		}
+		return level;
+	}
 
-		public void writeByte(byte... values) throws HgIOException {
-			totalWritten += values.length;
+	private final class CompressedData extends DataSerializer {
+		static final int INITIAL_CAPACITY = 8 * 1024;
+		public byte[] buffer = new byte[INITIAL_CAPACITY];
+		public int count;
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws HgIOException {
+			zip.setInput(data, offset, length);
+			while (!zip.needsInput()) {
+				deflate();
+			}
 		}
 
-		public void writeInt(int... values) throws HgIOException {
-			totalWritten += 4 * values.length;
+		public void finish() {
+			zip.finish();
+			while (!zip.finished()) {
+				deflate();
+			}
 		}
 
-		public void write(byte[] data, int offset, int length) throws HgIOException {
-			totalWritten += length;
+		private void deflate() {
+			if (count == buffer.length) {
+				byte[] b = new byte[buffer.length << 1];
+				System.arraycopy(buffer, 0, b, 0, count);
+				buffer = b;
+			}
+			count += zip.deflate(buffer, count, buffer.length - count);
 		}
 	}
 }
@@ -82,6 +82,8 @@ public class RevlogStream {
 	private final RevlogChangeMonitor changeTracker;
 	private List<Observer> observers;
 	private boolean shallDropDerivedCaches = false;
+	// writer with revisions added yet not written to disk
+	private RevlogStreamWriter pendingWriter;
 
 	public RevlogStream(Internals hgRepo, File indexFile) {
 		repo = hgRepo;
@@ -98,6 +100,7 @@ public class RevlogStream {
 	 * @return never <code>null</code>, empty {@link DataAccess} if no stream is available
 	 */
 	/*package*/ DataAccess getIndexStream(boolean shortRead) {
+		flushPendingWrites();
 		// shortRead hint helps  to avoid mmap files when only 
 		// few bytes are to be read (i.e. #dataLength())
 		DataAccessProvider dataAccess = repo.getDataAccess();
@@ -105,6 +108,7 @@ public class RevlogStream {
 	}
 
 	/*package*/ DataAccess getDataStream() {
+		flushPendingWrites();
 		DataAccessProvider dataAccess = repo.getDataAccess();
 		return dataAccess.createReader(getDataFile(), false);
 	}
@@ -119,6 +123,28 @@ public class RevlogStream {
 		return dataAccess.createWriter(tr, getDataFile(), true);
 	}
 	
+	/**
+	 * Tell there are revisions {@link #revisionAdded(int, Nodeid, int, long) added} but not yet written to disk, 
+	 * writer gets flushed prior to any read from the revlog.
+	 * @param writer revlog writer with pending data, or <code>null</code> once all data is on disk
+	 */
+	/*package*/ void pendingWrites(RevlogStreamWriter writer) {
+		pendingWriter = writer;
+	}
+
+	private void flushPendingWrites() throws HgInvalidControlFileException {
+		if (pendingWriter == null) {
+			return;
+		}
+		final RevlogStreamWriter w = pendingWriter;
+		pendingWriter = null;
+		try {
+			w.flush();
+		} catch (HgIOException ex) {
+			throw new HgInvalidControlFileException("Failed to write revisions added to the revlog", ex, indexFile);
+		}
+	}
+
 	/**
 	 * Constructs file object that corresponds to .d revlog counterpart. 
 	 * Note, it's caller responsibility to ensure this file makes any sense (i.e. check {@link #inline} attribute)
@@ -367,6 +393,24 @@ public class RevlogStream {
 	 * @throws HgRuntimeException subclass thereof to indicate issues with the library. <em>Runtime exception</em>
 	 */
 	public void iterate(int[] sortedRevisions, boolean needData, Inspector inspector) throws HgRuntimeException {
+		iterate(sortedRevisions, needData, false, inspector);
+	}
+
+	/**
+	 * Walk selected revisions and pass data as it's kept in the revlog, without reconstruction of revision content.
+	 * For a revision with <code>baseRevision != revisionIndex</code> inspector gets a patch against previous revision 
+	 * in the revlog (i.e. <code>revisionIndex - 1</code>), otherwise complete revision content. Data is uncompressed in either case,
+	 * and <code>actualLen</code> is the length of the revision content, not that of data passed.
+	 *  
+	 * @param sortedRevisions revisions to walk, in ascending order.
+	 * @param inspector callback to process entries
+	 * @throws HgRuntimeException subclass thereof to indicate issues with the library. <em>Runtime exception</em>
+	 */
+	public void iterateStored(int[] sortedRevisions, Inspector inspector) throws HgRuntimeException {
+		iterate(sortedRevisions, true, true, inspector);
+	}
+
+	private void iterate(int[] sortedRevisions, boolean needData, boolean storedData, Inspector inspector) throws HgRuntimeException {
 		final int indexSize = revisionCount();
 		if (indexSize == 0 || sortedRevisions.length == 0) {
 			return;
@@ -380,7 +424,8 @@ public class RevlogStream {
 
 		ReaderN1 r = new ReaderN1(needData, inspector, repo.shallMergePatches());
 		try {
-			r.start(sortedRevisions.length, getLastRevisionRead());
+			// stored data doesn't need complete revision to start with, neither it produces one to cache
+			r.start(sortedRevisions.length, storedData ? null : getLastRevisionRead());
 			for (int i = 0; i < sortedRevisions.length; ) {
 				int x = i;
 				i++;
@@ -392,7 +437,13 @@ public class RevlogStream {
 					}
 				}
 				// commitRevisions[x..i-1] are sequential
-				if (!r.range(sortedRevisions[x], sortedRevisions[i-1])) {
+				final boolean goOn;
+				if (storedData) {
+					goOn = r.stored(sortedRevisions[x], sortedRevisions[i-1]);
+				} else {
+					goOn = r.range(sortedRevisions[x], sortedRevisions[i-1]);
+				}
+				if (!goOn) {
 					return;
 				}
 			}
@@ -510,6 +561,8 @@ public class RevlogStream {
 
 	// every access to index revlog goes after this method only.
 	private void initOutline() throws HgInvalidControlFileException {
+		// file change is detected with its length, shall see complete file 
+		flushPendingWrites();
 		// true to send out 'drop-your-caches' event after outline has been built
 		final boolean notifyReload;
 		if (outlineCached()) {
@@ -761,6 +814,29 @@ public class RevlogStream {
 			return userDataAccess;
 		}
 
+		// may be invoked few times per instance life, unlike range(), passes stored data as is, without applying patches.
+		// Doesn't touch lastUserData, nothing to cache
+		public boolean stored(int start, int end) throws IOException, HgRuntimeException {
+			assert needData;
+			daIndex.seek(getIndexOffsetInt(start));
+			for (int i = start; i <= end; i++) {
+				readHeaderRecord(i);
+				DataAccess userDataAccess = getStoredData(i);
+				try {
+					inspector.next(i, actualLen, baseRevision, linkRevision, parent1Revision, parent2Revision, nodeidBuf, userDataAccess);
+				} finally {
+					userDataAccess.done();
+				}
+				if (cb != null) {
+					if (cb.isStopped()) {
+						return false;
+					}
+				}
+			}
+			lastRevisionRead = end;
+			return true;
+		}
+
 		// may be invoked few times per instance life
 		public boolean range(int start, int end) throws IOException, HgRuntimeException {
 			int i;
@@ -40,6 +40,12 @@ import org.tmatesoft.hg.repo.HgRuntimeException;
 import org.tmatesoft.hg.util.Pair;
 
 /**
+ * Appends revisions to a revlog.
+ * 
+ * <p>Each revision is written as it's added, with revlog files opened and closed for each one. When a lot of
+ * revisions go into the same revlog (e.g. pull), {@link #beginBatch() batch} keeps files open till {@link #endBatch()},
+ * and writes index records and data in bulk. Revisions of a batch are written down once there's enough of them, 
+ * or anyone reads the revlog.
  * 
  * TODO [post-1.1] separate operation to check if index is too big and split into index+data
  * 
@@ -59,6 +65,11 @@ public class RevlogStreamWriter {
 	private Nodeid lastEntryRevision;
 	private IntMap<Nodeid> revisionCache = new IntMap<Nodeid>(32);
 	private RevlogStream revlogStream;
+	private boolean batch;
+	// non-null once batch has written a revision, till the end of the batch
+	private BatchSerializer batchIndex, batchData;
+	private boolean batchInline;
+	private long batchEntryOffset;
 	
 	public RevlogStreamWriter(SessionContext.Source ctxSource, RevlogStream stream, Transaction tr) {
 		assert ctxSource != null;
@@ -73,6 +84,53 @@ public class RevlogStreamWriter {
 	public RevlogStream getRevlogStream() {
 		return revlogStream;
 	}
+
+	/**
+	 * Deflate level for revisions added from now on, e.g. faster compression for revisions that come in bulk
+	 * @see Internals#CFG_PROPERTY_BULK_COMPRESSION_LEVEL
+	 */
+	public void compressionLevel(int level) {
+		revlogDataZip.setLevel(level);
+	}
+
+	/**
+	 * Keep revlog files open for revisions added from now on, till {@link #endBatch()}.
+	 */
+	public void beginBatch() {
+		batch = true;
+	}
+
+	/**
+	 * Write down revisions of the batch and close revlog files. Clients shall invoke this method
+	 * regardless of success of revisions added, so that no file is left open.
+	 */
+	public void endBatch() throws HgIOException {
+		batch = false;
+		final BatchSerializer index = batchIndex, data = batchData;
+		batchIndex = batchData = null;
+		if (index == null) {
+			return;
+		}
+		revlogStream.pendingWrites(null);
+		try {
+			if (data != index) {
+				// data first, index never refers to data not in the file
+				data.done();
+			}
+		} finally {
+			index.done();
+		}
+	}
+
+	/*package*/ void flush() throws HgIOException {
+		if (batchIndex == null) {
+			return;
+		}
+		if (batchData != batchIndex) {
+			batchData.flush();
+		}
+		batchIndex.flush();
+	}
 	
 	public Pair<Integer,Nodeid> addPatchRevision(GroupElement ge, RevisionToIndexMap clogRevs, RevisionToIndexMap revlogRevs) throws HgIOException, HgRuntimeException {
 		populateLastEntryIndex();
@@ -99,7 +157,15 @@ public class RevlogStreamWriter {
 		//
 		final Nodeid patchBase = ge.patchBase();
 		int patchBaseRev = patchBase.isNull() ? NO_REVISION : revlogRevs.revisionIndex(patchBase);
-		int baseRev = lastEntryIndex == NO_REVISION ? 0 : revlogStream.baseRevision(patchBaseRev);
+		int baseRev;
+		if (lastEntryIndex == NO_REVISION) {
+			baseRev = 0;
+		} else if (patchBaseRev == lastEntryIndex && lastEntryBase != BAD_REVISION) {
+			// base of the revision we've just written, no need to read the revlog
+			baseRev = lastEntryBase;
+		} else {
+			baseRev = revlogStream.baseRevision(patchBaseRev);
+		}
 		int revLen;
 		DataSource ds;
 		byte[] complete = null;
@@ -144,6 +210,41 @@ public class RevlogStreamWriter {
 		populateLastEntryContent();
 		//
 		byte[] contentByteArray = toByteArray(content);
+		return addRevision(contentByteArray, null, linkRevision, p1, p2);
+	}
+
+	/**
+	 * Add revision which content is known as a patch against another revision (e.g. manifest revision that changes few lines of its parent).
+	 * When the base revision is the last one in the revlog, the patch is written as is, without effort to build a delta. 
+	 * 
+	 * @param baseRevision index of existing revision the patch applies to, or {@link HgRepository#NO_REVISION} for a patch against empty content 
+	 * @param baseContent complete content of the base revision
+	 * @param patch changes to the base content
+	 * @return nodeid of added revision
+	 */
+	public Pair<Integer,Nodeid> addRevision(int baseRevision, byte[] baseContent, Patch patch, int linkRevision, int p1, int p2) throws HgIOException, HgRuntimeException {
+		populateLastEntryIndex();
+		final byte[] contentByteArray;
+		try {
+			contentByteArray = patch.apply(new ByteArrayDataAccess(baseContent), -1);
+		} catch (IOException ex) {
+			throw new HgIOException("Failed to apply patch", ex, null);
+		}
+		if (baseRevision != NO_REVISION && baseRevision == lastEntryIndex) {
+			if (lastFullContent == null || lastFullContent.first() != lastEntryIndex) {
+				// don't need to read what caller has supplied
+				lastEntryBase = revlogStream.baseRevision(lastEntryIndex);
+				lastEntryRevision = revision(lastEntryIndex);
+				lastFullContent = new Pair<Integer, byte[]>(lastEntryIndex, baseContent);
+			}
+			return addRevision(contentByteArray, patch, linkRevision, p1, p2);
+		}
+		populateLastEntryContent();
+		return addRevision(contentByteArray, null, linkRevision, p1, p2);
+	}
+
+	// delta is either null or a patch against lastFullContent
+	private Pair<Integer,Nodeid> addRevision(byte[] contentByteArray, Patch delta, int linkRevision, int p1, int p2) throws HgIOException, HgRuntimeException {
 		Nodeid p1Rev = revision(p1);
 		Nodeid p2Rev = revision(p2);
 		Nodeid newRev = Nodeid.fromBinary(dh.sha1(p1Rev, p2Rev, contentByteArray).asBinary(), 0);
@@ -152,7 +253,7 @@ public class RevlogStreamWriter {
 			return new Pair<Integer, Nodeid>(p1, p1Rev);
 		}
 		//
-		Patch patch = GeneratePatchInspector.delta(lastFullContent.second(), contentByteArray);
+		Patch patch = delta != null ? delta : GeneratePatchInspector.delta(lastFullContent.second(), contentByteArray);
 		int patchSerializedLength = patch.serializedLength();
 		final boolean writeComplete = preferCompleteOverPatch(patchSerializedLength, contentByteArray.length);
 		DataSerializer.DataSource dataSource = writeComplete ? new ByteArrayDataSource(contentByteArray) : patch.new PatchDataSource();
@@ -182,16 +283,27 @@ public class RevlogStreamWriter {
 		DataSerializer indexFile, dataFile;
 		indexFile = dataFile = null;
 		try {
-			// FIXME perhaps, not a good idea to open stream for each revision added (e.g, when we pull a lot of them)
-			indexFile = revlogStream.getIndexStreamWriter(transaction);
-			final boolean isInlineData = revlogStream.isInlineData();
+			final boolean isInlineData;
+			final long lastEntryOffset;
+			if (batch) {
+				if (batchIndex == null) {
+					startBatchFiles();
+				}
+				indexFile = batchIndex;
+				isInlineData = batchInline;
+				// revlog doesn't know the offset unless batch is written down
+				lastEntryOffset = batchEntryOffset;
+			} else {
+				indexFile = revlogStream.getIndexStreamWriter(transaction);
+				isInlineData = revlogStream.isInlineData();
+				lastEntryOffset = revlogStream.newEntryOffset();
+			}
 			HeaderWriter revlogHeader = new HeaderWriter(isInlineData);
 			revlogHeader.length(revLen, compressedLen);
 			revlogHeader.nodeid(rev.toByteArray());
 			revlogHeader.linkRevision(linkRevision);
 			revlogHeader.parents(p1, p2);
 			revlogHeader.baseRevision(baseRevision);
-			long lastEntryOffset = revlogStream.newEntryOffset();
 			revlogHeader.offset(lastEntryOffset);
 			//
 			revlogHeader.serialize(indexFile);
@@ -199,7 +311,7 @@ public class RevlogStreamWriter {
 			if (isInlineData) {
 				dataFile = indexFile;
 			} else {
-				dataFile = revlogStream.getDataStreamWriter(transaction);
+				dataFile = batch ? batchData : revlogStream.getDataStreamWriter(transaction);
 			}
 			if (useCompressedData) {
 				int actualCompressedLenWritten = revlogDataZip.writeCompressedData(dataFile);
@@ -218,14 +330,29 @@ public class RevlogStreamWriter {
 			revisionCache.put(lastEntryIndex, lastEntryRevision);
 
 			revlogStream.revisionAdded(lastEntryIndex, lastEntryRevision, lastEntryBase, lastEntryOffset);
+			if (batch) {
+				batchEntryOffset = lastEntryOffset + compressedLen;
+				revlogStream.pendingWrites(this);
+			}
 		} finally {
-			indexFile.done();
-			if (dataFile != null && dataFile != indexFile) {
-				dataFile.done();
+			if (!batch) {
+				if (indexFile != null) {
+					indexFile.done();
+				}
+				if (dataFile != null && dataFile != indexFile) {
+					dataFile.done();
+				}
 			}
 		}
 		return lastEntryRevision;
 	}
+
+	private void startBatchFiles() throws HgIOException, HgRuntimeException {
+		batchInline = revlogStream.isInlineData();
+		batchEntryOffset = revlogStream.newEntryOffset();
+		batchIndex = new BatchSerializer(revlogStream.getIndexStreamWriter(transaction));
+		batchData = batchInline ? batchIndex : new BatchSerializer(revlogStream.getDataStreamWriter(transaction));
+	}
 	
 	private byte[] toByteArray(DataSource content) throws HgIOException, HgRuntimeException {
 		ByteArraySerializer ba = new ByteArraySerializer();
@@ -261,6 +388,10 @@ public class RevlogStreamWriter {
 	}
 	
 	private void populateLastEntryIndex() throws HgRuntimeException {
+		if (batchIndex != null) {
+			// we know the last revision of the batch, and the revlog might not have it written down yet
+			return;
+		}
 		int revCount = revlogStream.revisionCount();
 		lastEntryIndex = revCount == 0 ? NO_REVISION : revCount - 1;
 	}
@@ -387,6 +518,49 @@ public class RevlogStreamWriter {
 		}
 	}
 	
+	/**
+	 * Collects data to write into a file that stays open, writes it once there's enough. 
+	 */
+	private static class BatchSerializer extends DataSerializer {
+		private final DataSerializer file;
+		private final byte[] pending = new byte[64 * 1024];
+		private int count;
+
+		public BatchSerializer(DataSerializer fileSerializer) {
+			file = fileSerializer;
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws HgIOException {
+			if (count + length > pending.length) {
+				flush();
+				if (length > pending.length) {
+					file.write(data, offset, length);
+					return;
+				}
+			}
+			System.arraycopy(data, offset, pending, count, length);
+			count += length;
+		}
+
+		public void flush() throws HgIOException {
+			if (count > 0) {
+				final int c = count;
+				count = 0;
+				file.write(pending, 0, c);
+			}
+		}
+
+		@Override
+		public void done() throws HgIOException {
+			try {
+				flush();
+			} finally {
+				file.done();
+			}
+		}
+	}
+
 	// XXX part of HgRevisionMap contract, need public counterparts (along with IndexToRevisionMap)
 	public interface RevisionToIndexMap {
 		
@@ -396,7 +570,7 @@ public class RevlogStreamWriter {
 		int revisionIndex(Nodeid revision);
 	}
 
-	private static class ReadContentInspector implements RevlogStream.Inspector {
+	/*package*/ static class ReadContentInspector implements RevlogStream.Inspector {
 		public int baseRev;
 		public Nodeid rev;
 		public byte[] content;
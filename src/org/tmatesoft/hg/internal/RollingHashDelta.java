@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.util.Arrays;
+
+/**
+ * Byte-granular delta for content that is not split into lines well (binary files, minified text with few very long lines),
+ * where line-based {@link GeneratePatchInspector} yields either huge patches or wastes effort on long 'lines'.
+ *
+ * <p>Blocks of the origin get indexed by their rolling hash, window of the same size slides over the new content
+ * looking for blocks it has seen, and matches are extended as far as bytes keep equal. Unlike xdelta, revlog patch can't
+ * copy origin bytes out of order, thus only matches that go past previous one are taken, and everything in between is
+ * replaced with new bytes.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class RollingHashDelta {
+	// content with lines longer than that (on average) is not worth splitting into lines
+	private static final int LONG_LINE = 256;
+	// look that far for zero byte to tell binary content
+	private static final int BINARY_PROBE_LENGTH = 8000;
+	private static final int BLOCK = 16;
+	private static final int HASH_MULTIPLIER = 0x01000193;
+	// bounds effort on highly repetitive content
+	private static final int MAX_CHAIN = 64;
+
+	/**
+	 * @return <code>true</code> if content is better split into bytes than into lines
+	 */
+	public static boolean suits(byte[] prev, byte[] content) {
+		if (isBinary(prev) || isBinary(content)) {
+			return true;
+		}
+		int lines = 1;
+		for (byte b : content) {
+			if (b == '\n') {
+				lines++;
+			}
+		}
+		return content.length / lines > LONG_LINE;
+	}
+
+	private static boolean isBinary(byte[] content) {
+		for (int i = 0, x = Math.min(content.length, BINARY_PROBE_LENGTH); i < x; i++) {
+			if (content[i] == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static Patch delta(byte[] prev, byte[] content) {
+		Patch rv = new Patch();
+		final int blocks = prev.length / BLOCK;
+		int srcPos = 0, tgtPos = 0;
+		if (blocks > 0 && content.length >= BLOCK) {
+			// chains of blocks with the same hash, in ascending order of their offsets
+			final int mask = tableSize(blocks) - 1;
+			final int[] head = new int[mask + 1];
+			Arrays.fill(head, -1);
+			final int[] next = new int[blocks];
+			for (int i = blocks - 1; i >= 0; i--) {
+				final int h = hash(prev, i * BLOCK) & mask;
+				next[i] = head[h];
+				head[h] = i;
+			}
+			int powerOut = 1; // multiplier of the byte that leaves the window
+			for (int i = 1; i < BLOCK; i++) {
+				powerOut *= HASH_MULTIPLIER;
+			}
+			int j = 0, h = hash(content, 0);
+			while (true) {
+				int bestStart = -1, bestLen = 0, bestBack = 0;
+				// in-place change is the most common, check if the window goes on from the previous match,
+				// and look up the blocks only if it doesn't
+				final int diagonal = srcPos + (j - tgtPos);
+				if (diagonal + BLOCK <= prev.length && same(prev, diagonal, content, j)) {
+					bestStart = diagonal;
+					bestLen = matchForward(prev, diagonal, content, j);
+					bestBack = matchBackward(prev, diagonal, srcPos, content, j, tgtPos);
+				}
+				for (int c = bestStart == -1 ? head[h & mask] : -1, steps = 0; c != -1 && steps < MAX_CHAIN; c = next[c], steps++) {
+					final int s = c * BLOCK;
+					if (s < srcPos || !same(prev, s, content, j)) {
+						continue;
+					}
+					final int len = matchForward(prev, s, content, j);
+					final int back = matchBackward(prev, s, srcPos, content, j, tgtPos);
+					if (len + back > bestLen + bestBack) {
+						bestStart = s;
+						bestLen = len;
+						bestBack = back;
+					}
+				}
+				if (bestStart != -1) {
+					final int matchSrc = bestStart - bestBack, matchTgt = j - bestBack;
+					rv.add(srcPos, matchSrc, subarray(content, tgtPos, matchTgt));
+					srcPos = bestStart + bestLen;
+					tgtPos = j = j + bestLen;
+					if (j + BLOCK > content.length) {
+						break;
+					}
+					h = hash(content, j);
+					continue;
+				}
+				if (j + BLOCK >= content.length) {
+					break;
+				}
+				h = (h - content[j] * powerOut) * HASH_MULTIPLIER + content[j + BLOCK];
+				j++;
+			}
+		}
+		rv.add(srcPos, prev.length, subarray(content, tgtPos, content.length));
+		return rv;
+	}
+
+	private static int tableSize(int blocks) {
+		int rv = 16;
+		while (rv < blocks * 2 && rv < (1 << 30)) {
+			rv <<= 1;
+		}
+		return rv;
+	}
+
+	private static int hash(byte[] data, int offset) {
+		int h = 0;
+		for (int i = offset, x = offset + BLOCK; i < x; i++) {
+			h = h * HASH_MULTIPLIER + data[i];
+		}
+		return h;
+	}
+
+	private static boolean same(byte[] src, int srcOffset, byte[] tgt, int tgtOffset) {
+		for (int i = 0; i < BLOCK; i++) {
+			if (src[srcOffset + i] != tgt[tgtOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// length of the match, starting with a block known to be the same
+	private static int matchForward(byte[] src, int srcOffset, byte[] tgt, int tgtOffset) {
+		int len = BLOCK;
+		while (srcOffset + len < src.length && tgtOffset + len < tgt.length && src[srcOffset + len] == tgt[tgtOffset + len]) {
+			len++;
+		}
+		return len;
+	}
+
+	// how many bytes before the match are the same, up to the end of the previous one
+	private static int matchBackward(byte[] src, int srcOffset, int srcLimit, byte[] tgt, int tgtOffset, int tgtLimit) {
+		int back = 0;
+		while (srcOffset - back > srcLimit && tgtOffset - back > tgtLimit && src[srcOffset - back - 1] == tgt[tgtOffset - back - 1]) {
+			back++;
+		}
+		return back;
+	}
+
+	private static byte[] subarray(byte[] d, int start, int end) {
+		byte[] r = new byte[end - start];
+		System.arraycopy(d, start, r, 0, r.length);
+		return r;
+	}
+}
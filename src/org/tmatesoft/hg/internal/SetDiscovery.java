@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.tmatesoft.hg.core.HgRemoteConnectionException;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgParentChildMap;
+import org.tmatesoft.hg.repo.HgRemoteRepository;
+import org.tmatesoft.hg.repo.HgRevisionMap;
+import org.tmatesoft.hg.util.CancelSupport;
+import org.tmatesoft.hg.util.CancelledException;
+
+/**
+ * Finds out which local changesets are known to the remote server, asking it about samples of local changesets
+ * that are not yet classified. Answer for a single changeset classifies many: if remote knows a changeset, it knows
+ * all its ancestors, if it doesn't, it doesn't know any of its descendants either.
+ *
+ * <p>Sample includes heads and roots of unclassified changesets, ancestors of the heads at exponentially growing distance,
+ * and random changesets, if there's room left. Number of queries grows as logarithm of the number of local changesets.
+ *
+ * @see http://mercurial.selenic.com/wiki/WireProtocol (known command)
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class SetDiscovery {
+	private final HgParentChildMap<HgChangelog> localRepo;
+	private final HgRemoteRepository remoteRepo;
+	private final int sampleSize;
+	private final Random random;
+	private List<Nodeid> revisions;
+	private int[] parent1, parent2;
+	private BitSet common, missing;
+	private int queries;
+
+	/**
+	 * @param pwLocal initialized map of local changelog
+	 * @param hgRemote server that supports {@link HgRemoteRepository#known(List)} queries
+	 * @param maxSample number of changesets to ask about at once, positive
+	 * @param rnd source of randomness for samples
+	 */
+	public SetDiscovery(HgParentChildMap<HgChangelog> pwLocal, HgRemoteRepository hgRemote, int maxSample, Random rnd) {
+		if (maxSample <= 0) {
+			throw new IllegalArgumentException(String.valueOf(maxSample));
+		}
+		localRepo = pwLocal;
+		remoteRepo = hgRemote;
+		sampleSize = maxSample;
+		random = rnd;
+	}
+
+	/**
+	 * @param remoteHeads heads of the remote repository, to start with
+	 */
+	public SetDiscovery run(List<Nodeid> remoteHeads, CancelSupport cancelSupport) throws HgRemoteConnectionException, CancelledException {
+		return run(remoteHeads, Collections.<Nodeid>emptyList(), new boolean[0], cancelSupport);
+	}
+
+	/**
+	 * @param remoteHeads heads of the remote repository, to start with
+	 * @param asked local changesets remote has been asked about already, e.g. along with its heads
+	 * @param known answers for <code>asked</code>, as from {@link HgRemoteRepository#known(List)}
+	 */
+	public SetDiscovery run(List<Nodeid> remoteHeads, List<Nodeid> asked, boolean[] known, CancelSupport cancelSupport) throws HgRemoteConnectionException, CancelledException {
+		initGraph();
+		final int n = revisions.size();
+		common = new BitSet(n);
+		missing = new BitSet(n);
+		queries = asked.isEmpty() ? 0 : 1;
+		final HgRevisionMap<HgChangelog> revMap = localRepo.getRevisionMap();
+		for (Nodeid rh : remoteHeads) {
+			if (localRepo.knownNode(rh)) {
+				common.set(revMap.revisionIndex(rh));
+			}
+		}
+		for (int i = 0; i < known.length; i++) {
+			(known[i] ? common : missing).set(revMap.revisionIndex(asked.get(i)));
+		}
+		spreadCommon();
+		spreadMissing();
+		BitSet undecided = undecided();
+		while (!undecided.isEmpty()) {
+			cancelSupport.checkCancelled();
+			final int[] sample = sample(undecided);
+			ArrayList<Nodeid> query = new ArrayList<Nodeid>(sample.length);
+			for (int i : sample) {
+				query.add(revisions.get(i));
+			}
+			final boolean[] answers = remoteRepo.known(query);
+			queries++;
+			for (int i = 0; i < sample.length; i++) {
+				(answers[i] ? common : missing).set(sample[i]);
+			}
+			spreadCommon();
+			spreadMissing();
+			undecided = undecided();
+		}
+		return this;
+	}
+
+	/**
+	 * @return indexes of local changesets known to remote
+	 */
+	public BitSet getCommon() {
+		return (BitSet) common.clone();
+	}
+
+	/**
+	 * @return indexes of local changesets missing at remote
+	 */
+	public BitSet getMissing() {
+		return (BitSet) missing.clone();
+	}
+
+	/**
+	 * @return changesets known to remote that have no children known to remote
+	 */
+	public List<Nodeid> getCommonHeads() {
+		BitSet heads = (BitSet) common.clone();
+		for (int i = common.nextSetBit(0); i >= 0; i = common.nextSetBit(i + 1)) {
+			if (parent1[i] != NO_REVISION) {
+				heads.clear(parent1[i]);
+			}
+			if (parent2[i] != NO_REVISION) {
+				heads.clear(parent2[i]);
+			}
+		}
+		return toNodeids(heads);
+	}
+
+	public List<Nodeid> toNodeids(BitSet indexes) {
+		ArrayList<Nodeid> rv = new ArrayList<Nodeid>(indexes.cardinality());
+		for (int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1)) {
+			rv.add(revisions.get(i));
+		}
+		return rv;
+	}
+
+	/**
+	 * @return number of {@link HgRemoteRepository#known(List)} queries the last {@link #run(List, CancelSupport)} took
+	 */
+	public int getQueryCount() {
+		return queries;
+	}
+
+	private void initGraph() {
+		revisions = localRepo.all();
+		final int n = revisions.size();
+		final HgRevisionMap<HgChangelog> revMap = localRepo.getRevisionMap();
+		parent1 = new int[n];
+		parent2 = new int[n];
+		for (int i = 0; i < n; i++) {
+			Nodeid r = revisions.get(i);
+			Nodeid p1 = localRepo.firstParent(r), p2 = localRepo.secondParent(r);
+			parent1[i] = p1 == null ? NO_REVISION : revMap.revisionIndex(p1);
+			parent2[i] = p2 == null ? NO_REVISION : revMap.revisionIndex(p2);
+		}
+	}
+
+	// ancestors of common are common, parents come before children
+	private void spreadCommon() {
+		for (int i = common.length() - 1; i >= 0; i--) {
+			if (!common.get(i)) {
+				continue;
+			}
+			if (parent1[i] != NO_REVISION) {
+				common.set(parent1[i]);
+			}
+			if (parent2[i] != NO_REVISION) {
+				common.set(parent2[i]);
+			}
+		}
+	}
+
+	// descendants of missing are missing
+	private void spreadMissing() {
+		final int first = missing.nextSetBit(0);
+		if (first == -1) {
+			return;
+		}
+		for (int i = first + 1, n = revisions.size(); i < n; i++) {
+			if ((parent1[i] != NO_REVISION && missing.get(parent1[i])) || (parent2[i] != NO_REVISION && missing.get(parent2[i]))) {
+				missing.set(i);
+			}
+		}
+	}
+
+	private BitSet undecided() {
+		BitSet rv = new BitSet(revisions.size());
+		rv.set(0, revisions.size());
+		rv.andNot(common);
+		rv.andNot(missing);
+		return rv;
+	}
+
+	private int[] sample(BitSet undecided) {
+		final int n = revisions.size();
+		// heads (no undecided children) and roots (no undecided parents) of undecided changesets
+		BitSet hasChild = new BitSet(n);
+		BitSet sample = new BitSet(n);
+		for (int i = undecided.nextSetBit(0); i >= 0; i = undecided.nextSetBit(i + 1)) {
+			boolean root = true;
+			if (parent1[i] != NO_REVISION && undecided.get(parent1[i])) {
+				hasChild.set(parent1[i]);
+				root = false;
+			}
+			if (parent2[i] != NO_REVISION && undecided.get(parent2[i])) {
+				hasChild.set(parent2[i]);
+				root = false;
+			}
+			if (root) {
+				sample.set(i);
+			}
+		}
+		BitSet heads = (BitSet) undecided.clone();
+		heads.andNot(hasChild);
+		sample.or(heads);
+		// first parent line from each head, at distance 1, 2, 4, 8...
+		for (int h = heads.nextSetBit(0); h >= 0; h = heads.nextSetBit(h + 1)) {
+			for (int r = h, distance = 0, next = 1; r != NO_REVISION && undecided.get(r); r = parent1[r], distance++) {
+				if (distance == next) {
+					sample.set(r);
+					next <<= 1;
+				}
+			}
+		}
+		int[] candidates = toArray(sample);
+		if (candidates.length > sampleSize) {
+			return randomSubset(candidates, sampleSize);
+		}
+		if (candidates.length < sampleSize) {
+			BitSet rest = (BitSet) undecided.clone();
+			rest.andNot(sample);
+			int[] others = randomSubset(toArray(rest), Math.min(rest.cardinality(), sampleSize - candidates.length));
+			int[] rv = new int[candidates.length + others.length];
+			System.arraycopy(candidates, 0, rv, 0, candidates.length);
+			System.arraycopy(others, 0, rv, candidates.length, others.length);
+			return rv;
+		}
+		return candidates;
+	}
+
+	private int[] randomSubset(int[] values, int count) {
+		// partial Fisher-Yates shuffle
+		for (int i = 0; i < count; i++) {
+			int j = i + random.nextInt(values.length - i);
+			int t = values[i];
+			values[i] = values[j];
+			values[j] = t;
+		}
+		int[] rv = new int[count];
+		System.arraycopy(values, 0, rv, 0, count);
+		return rv;
+	}
+
+	private static int[] toArray(BitSet bits) {
+		int[] rv = new int[bits.cardinality()];
+		for (int i = bits.nextSetBit(0), j = 0; i >= 0; i = bits.nextSetBit(i + 1)) {
+			rv[j++] = i;
+		}
+		return rv;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Forward-only {@link DataAccess} over an {@link InputStream}, e.g. a server response.
+ * Length is not known in advance, and it's not possible to get back to data already read.
+ *
+ * Stream is closed with {@link #done()}.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class StreamDataAccess extends DataAccess {
+	private final InputStream stream;
+	private final byte[] buffer;
+	private int bufferPos, bufferLen;
+	private long position;
+	private boolean eof;
+
+	public StreamDataAccess(InputStream is, int bufferSize) {
+		stream = is;
+		buffer = new byte[bufferSize];
+	}
+
+	@Override
+	public boolean isEmpty() throws IOException {
+		return !ensureBuffer();
+	}
+
+	@Override
+	public int length() throws IOException {
+		throw new IOException("Length of a stream is not known in advance");
+	}
+
+	@Override
+	public DataAccess reset() throws IOException {
+		if (position != 0) {
+			throw new IOException("Can't get back to the beginning of a stream");
+		}
+		return this;
+	}
+
+	@Override
+	public void seek(int offset) throws IOException {
+		if (offset < position) {
+			throw new IOException(String.format("Can't seek backwards to %d, already at %d", offset, position));
+		}
+		skip((int) (offset - position));
+	}
+
+	@Override
+	public void skip(int bytes) throws IOException {
+		if (bytes < 0) {
+			throw new IOException(String.format("Can't skip %d bytes backwards in a stream", -bytes));
+		}
+		while (bytes > 0) {
+			if (!ensureBuffer()) {
+				throw new EOFException(String.format("Failed to skip %d bytes at %d", bytes, position));
+			}
+			int x = Math.min(bytes, bufferLen - bufferPos);
+			bufferPos += x;
+			position += x;
+			bytes -= x;
+		}
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		if (!ensureBuffer()) {
+			throw new EOFException();
+		}
+		position++;
+		return buffer[bufferPos++];
+	}
+
+	@Override
+	public void readBytes(byte[] buf, int offset, int length) throws IOException {
+		final int fromBuffer = Math.min(length, bufferLen - bufferPos);
+		System.arraycopy(buffer, bufferPos, buf, offset, fromBuffer);
+		bufferPos += fromBuffer;
+		position += fromBuffer;
+		offset += fromBuffer;
+		length -= fromBuffer;
+		if (length >= buffer.length) {
+			// buffer is empty and there's a lot to read, don't copy it twice
+			while (length > 0) {
+				int r = stream.read(buf, offset, length);
+				if (r == -1) {
+					eof = true;
+					throw new EOFException(String.format("Missing %d bytes at %d", length, position));
+				}
+				position += r;
+				offset += r;
+				length -= r;
+			}
+			return;
+		}
+		while (length > 0) {
+			if (!ensureBuffer()) {
+				throw new EOFException(String.format("Missing %d bytes at %d", length, position));
+			}
+			int x = Math.min(length, bufferLen - bufferPos);
+			System.arraycopy(buffer, bufferPos, buf, offset, x);
+			bufferPos += x;
+			position += x;
+			offset += x;
+			length -= x;
+		}
+	}
+
+	@Override
+	public void done() {
+		try {
+			stream.close();
+		} catch (IOException ex) {
+			// there's nothing we need from the stream any more
+		}
+	}
+
+	// true if there's at least one byte in the buffer
+	private boolean ensureBuffer() throws IOException {
+		while (bufferPos == bufferLen) {
+			if (eof) {
+				return false;
+			}
+			bufferPos = 0;
+			bufferLen = stream.read(buffer, 0, buffer.length);
+			if (bufferLen == -1) {
+				bufferLen = 0;
+				eof = true;
+			}
+		}
+		return true;
+	}
+}
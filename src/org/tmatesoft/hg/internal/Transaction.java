@@ -72,6 +72,47 @@ public abstract class Transaction {
 		public Transaction create(SessionContext.Source ctxSource);
 	}
 
+	/**
+	 * Lets few threads write files within the same transaction, serializes access to the actual one.
+	 */
+	public static class Synchronized extends Transaction {
+		private final Transaction tr;
+
+		public Synchronized(Transaction transaction) {
+			tr = transaction;
+		}
+
+		@Override
+		public synchronized File prepare(File f) throws HgIOException {
+			return tr.prepare(f);
+		}
+
+		@Override
+		public synchronized File prepare(File origin, File backup) throws HgIOException {
+			return tr.prepare(origin, backup);
+		}
+
+		@Override
+		public synchronized void done(File f) throws HgIOException {
+			tr.done(f);
+		}
+
+		@Override
+		public synchronized void failure(File f, IOException ex) {
+			tr.failure(f, ex);
+		}
+
+		@Override
+		public synchronized void commit() throws HgIOException {
+			tr.commit();
+		}
+
+		@Override
+		public synchronized void rollback() throws HgIOException {
+			tr.rollback();
+		}
+	}
+
 	public static class NoRollback extends Transaction {
 
 		@Override
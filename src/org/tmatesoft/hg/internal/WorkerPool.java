@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.tmatesoft.hg.repo.HgInvalidStateException;
+import org.tmatesoft.hg.repo.HgRuntimeException;
+
+/**
+ * Runs independent tasks on a pool of daemon worker threads. Number of tasks waiting for a worker is limited, 
+ * once there's no room, calling thread runs the task itself. With a single worker, tasks run right away, on the calling thread. 
+ *
+ * <p>First failure of a task is recorded, and tasks that didn't start yet are skipped. 
+ * Clients shall call {@link #finish()} regardless of the outcome, so that no task is running once it returns, 
+ * and then {@link #checkFailure(String)}.
+ *
+ * <p>Not thread-safe, single client only, tasks may use {@link #isFailed()} and {@link #fail(Throwable)}.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class WorkerPool {
+	private final String threadName;
+	private final int workers;
+	private final int maxPendingTasks;
+	private ThreadPoolExecutor executor;
+	private volatile Throwable failure;
+
+	public interface Task {
+		public void run() throws Exception;
+	}
+
+	/**
+	 * @param name name of worker threads
+	 * @param workerThreads number of threads to run tasks, with 1 or less tasks are run on the calling thread
+	 * @param pendingTasks number of tasks waiting for a worker, positive
+	 */
+	public WorkerPool(String name, int workerThreads, int pendingTasks) {
+		if (pendingTasks <= 0) {
+			throw new IllegalArgumentException(String.format("Bad pool configuration: %d tasks pending", pendingTasks));
+		}
+		threadName = name;
+		workers = workerThreads;
+		maxPendingTasks = pendingTasks;
+	}
+
+	public void start() {
+		failure = null;
+		if (workers > 1) {
+			executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxPendingTasks), new DaemonThreadFactory(threadName), new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if tasks may run on threads other than the calling one 
+	 */
+	public boolean isParallel() {
+		return executor != null;
+	}
+
+	public void execute(final Task task) {
+		Runnable r = new Runnable() {
+
+			public void run() {
+				if (failure != null) {
+					return;
+				}
+				try {
+					task.run();
+				} catch (Throwable th) {
+					fail(th);
+				}
+			}
+		};
+		if (executor == null) {
+			r.run();
+		} else {
+			executor.execute(r);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if any task has failed, there's no reason to go on
+	 */
+	public boolean isFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * @return first failure, if any
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Record failure (unless there's one already), tasks that didn't start yet won't run. 
+	 */
+	public synchronized void fail(Throwable th) {
+		if (failure == null) {
+			failure = th;
+		}
+	}
+
+	/**
+	 * Wait for all tasks to complete, or give up in case of failure.
+	 */
+	public void finish() {
+		if (executor == null) {
+			return;
+		}
+		executor.shutdown();
+		boolean interrupted = false;
+		while (!executor.isTerminated()) {
+			try {
+				executor.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				// can't leave workers running after we return, tell them to stop and keep waiting
+				HgInvalidStateException t = new HgInvalidStateException(String.format("Interrupted while waiting for %s threads", threadName));
+				t.initCause(ex);
+				fail(t);
+				interrupted = true;
+			}
+		}
+		executor = null;
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Rethrows runtime exception or error of the first failed task, wraps any other into {@link HgInvalidStateException}. 
+	 * Clients that expect checked exceptions shall check {@link #getFailure()} first. 
+	 * @param message description of the failure for the wrapping exception
+	 */
+	public void checkFailure(String message) throws HgRuntimeException {
+		final Throwable th = failure;
+		if (th == null) {
+			return;
+		}
+		if (th instanceof RuntimeException) {
+			throw (RuntimeException) th;
+		}
+		if (th instanceof Error) {
+			throw (Error) th;
+		}
+		HgInvalidStateException t = new HgInvalidStateException(message);
+		t.initCause(th);
+		throw t;
+	}
+
+	public static final class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+
+		public DaemonThreadFactory(String threadName) {
+			name = threadName;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal.remote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.tmatesoft.hg.util.Pair;
+
+/**
+ * Few commands sent to the server in a single request with <code>batch</code> wire command.
+ *
+ * Commands go in <code>cmds</code> argument, separated with ';', each command is its name, space and
+ * comma-separated <code>name=value</code> arguments. Answers come separated with ';', too. Both arguments
+ * and answers escape characters significant for the format (':', ',', ';' and '=') with ':' and a letter.
+ *
+ * @see http://mercurial.selenic.com/wiki/WireProtocol (batch command)
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class Batch {
+	private final StringBuilder commands = new StringBuilder();
+	private final List<Pair<String, String[]>> entries = new ArrayList<Pair<String,String[]>>();
+	private int size = 0;
+
+	/**
+	 * @param cmd name of the command
+	 * @param args pairs of argument name and value
+	 * @return <code>this</code> for convenience
+	 */
+	public Batch add(String cmd, String... args) {
+		if (args.length % 2 != 0) {
+			throw new IllegalArgumentException(String.format("Odd number of arguments for command %s", cmd));
+		}
+		if (size > 0) {
+			commands.append(';');
+		}
+		commands.append(cmd);
+		commands.append(' ');
+		for (int i = 0; i < args.length; i += 2) {
+			if (i > 0) {
+				commands.append(',');
+			}
+			escape(args[i], commands);
+			commands.append('=');
+			escape(args[i + 1], commands);
+		}
+		entries.add(new Pair<String, String[]>(cmd, args.clone()));
+		size++;
+		return this;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return <code>true</code> if any command with the given name has been added
+	 */
+	public boolean contains(String cmd) {
+		for (Pair<String, String[]> c : entries) {
+			if (c.first().equals(cmd)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return value of <code>cmds</code> argument of the batch command
+	 */
+	public String encode() {
+		return commands.toString();
+	}
+
+	/**
+	 * @param response server answer to the batch command, read completely but not closed
+	 * @return answers to individual commands, in the order commands were added
+	 * @throws IOException if failed to read the response, or the number of answers doesn't match that of commands
+	 */
+	public List<byte[]> decode(InputStream response) throws IOException {
+		ArrayList<byte[]> rv = new ArrayList<byte[]>(size);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		int b;
+		while ((b = response.read()) != -1) {
+			if (b == ';') {
+				rv.add(bos.toByteArray());
+				bos.reset();
+			} else if (b == ':') {
+				bos.write(unescape(response.read()));
+			} else {
+				bos.write(b);
+			}
+		}
+		rv.add(bos.toByteArray());
+		if (rv.size() != size) {
+			throw new IOException(String.format("Server answered %d commands out of %d", rv.size(), size));
+		}
+		return rv;
+	}
+
+	/**
+	 * For connectors that don't send the batch command, but pass commands one by one
+	 * @return command names along with their argument name and value pairs, in the order commands were added
+	 */
+	/*package-local*/ List<Pair<String, String[]>> commands() {
+		return entries;
+	}
+
+	/**
+	 * For connectors that don't send the batch command, present individual answers as server would answer batch command
+	 * @param answers responses to commands, in the order commands were added
+	 * @return stream {@link #decode(InputStream)} would understand
+	 */
+	/*package-local*/ InputStream answer(List<byte[]> answers) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for (int i = 0; i < answers.size(); i++) {
+			if (i > 0) {
+				bos.write(';');
+			}
+			for (byte b : answers.get(i)) {
+				switch (b) {
+				case ':' : bos.write(':'); bos.write('c'); break;
+				case ',' : bos.write(':'); bos.write('o'); break;
+				case ';' : bos.write(':'); bos.write('s'); break;
+				case '=' : bos.write(':'); bos.write('e'); break;
+				default : bos.write(b);
+				}
+			}
+		}
+		return new ByteArrayInputStream(bos.toByteArray());
+	}
+
+	private static void escape(String s, StringBuilder sb) {
+		for (int i = 0, x = s.length(); i < x; i++) {
+			final char ch = s.charAt(i);
+			switch (ch) {
+			case ':' : sb.append(":c"); break;
+			case ',' : sb.append(":o"); break;
+			case ';' : sb.append(":s"); break;
+			case '=' : sb.append(":e"); break;
+			default : sb.append(ch);
+			}
+		}
+	}
+
+	private static int unescape(int code) throws IOException {
+		switch (code) {
+		case 'c' : return ':';
+		case 'o' : return ',';
+		case 's' : return ';';
+		case 'e' : return '=';
+		default : throw new IOException(String.format("Bad escape sequence in batch response: ':%c'", (char) code));
+		}
+	}
+}
@@ -44,6 +44,10 @@ public interface Connector {
 	static final String CMD_UNBUNDLE = "unbundle";
 	static final String CMD_PUSHKEY = "pushkey";
 	static final String CMD_LISTKEYS = "listkeys";
+	static final String CMD_STREAM_OUT = "stream_out";
+	static final String CMD_KNOWN = "known";
+	static final String CMD_GETBUNDLE = "getbundle";
+	static final String CMD_BATCH = "batch";
 	static final String NS_BOOKMARKS = "bookmarks";
 	static final String NS_PHASES = "phases";
 	
@@ -65,4 +69,13 @@ public interface Connector {
 	OutputStream unbundle(long outputLen, List<Nodeid> remoteHeads) throws HgRemoteConnectionException, HgRuntimeException;
 	InputStream pushkey(String opName, String namespace, String key, String oldValue, String newValue) throws HgRemoteConnectionException, HgRuntimeException;
 	InputStream listkeys(String namespace, String actionName) throws HgRemoteConnectionException, HgRuntimeException;
+	InputStream streamOut() throws HgRemoteConnectionException, HgRuntimeException;
+	InputStream known(List<Nodeid> nodes) throws HgRemoteConnectionException, HgRuntimeException;
+	InputStream getbundle(List<Nodeid> common, List<Nodeid> heads) throws HgRemoteConnectionException, HgRuntimeException;
+	InputStream batch(Batch commands) throws HgRemoteConnectionException, HgRuntimeException;
+	/**
+	 * @return <code>true</code> if {@link #batch(Batch)} sends commands one after another in a single round-trip by itself, 
+	 * so that it doesn't need server's <code>batch</code> capability
+	 */
+	boolean isBatchPipelined();
 }
@@ -114,4 +114,24 @@ public abstract class ConnectorBase implements Connector {
 	public InputStream listkeys(String namespace, String actionName) throws HgRemoteConnectionException, HgRuntimeException {
 		return null;
 	}
+
+	public InputStream streamOut() throws HgRemoteConnectionException, HgRuntimeException {
+		return null;
+	}
+
+	public InputStream known(List<Nodeid> nodes) throws HgRemoteConnectionException, HgRuntimeException {
+		return null;
+	}
+
+	public InputStream getbundle(List<Nodeid> common, List<Nodeid> heads) throws HgRemoteConnectionException, HgRuntimeException {
+		return null;
+	}
+
+	public boolean isBatchPipelined() {
+		return false;
+	}
+
+	public InputStream batch(Batch commands) throws HgRemoteConnectionException, HgRuntimeException {
+		return null;
+	}
 }
@@ -124,6 +124,7 @@ public class HttpAuthMethod implements HgAuthMethod {
 	private void checkConnection() throws HgAuthFailedException {
 		// we've checked the protocol to be http(s)
 		HttpURLConnection c = null;
+		boolean reusable = false;
 		try {
 			c = (HttpURLConnection) url.openConnection();
 			c = setupConnection(c);
@@ -132,6 +133,8 @@ public class HttpAuthMethod implements HgAuthMethod {
 			while (is.read() != -1) {
 			}
 			is.close();
+			// response read completely, connection may serve subsequent requests
+			reusable = true;
 			final int HTTP_UNAUTHORIZED = 401;
 			if (c.getResponseCode() == HTTP_UNAUTHORIZED) {
 				throw new HgAuthFailedException(c.getResponseMessage(), null);
@@ -139,7 +142,7 @@ public class HttpAuthMethod implements HgAuthMethod {
 		} catch (IOException ex) {
 			throw new HgAuthFailedException("Communication failure while authenticating", ex);
 		} finally {
-			if (c != null) {
+			if (c != null && !reusable) {
 				c.disconnect();
 			}
 		}
@@ -16,8 +16,12 @@
  */
 package org.tmatesoft.hg.internal.remote;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -28,6 +32,7 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.URLEncoder;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -37,20 +42,35 @@ import org.tmatesoft.hg.auth.HgAuthenticator;
 import org.tmatesoft.hg.core.HgRemoteConnectionException;
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.core.SessionContext;
+import org.tmatesoft.hg.internal.FileUtils;
+import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.PropertyMarshal;
 import org.tmatesoft.hg.repo.HgRemoteRepository.Range;
 import org.tmatesoft.hg.repo.HgRemoteRepository.RemoteDescriptor;
 import org.tmatesoft.hg.repo.HgRuntimeException;
 
 /**
+ * Each command is a distinct HTTP request. Underlying TCP connections are kept alive by {@link HttpURLConnection}
+ * and get reused for subsequent commands, as long as response of a command is read completely, hence 
+ * the unread rest of a response is drained at the end of a session rather than the connection being closed.
  * 
  * @author Artem Tikhomirov
  * @author TMate Software Ltd.
  */
 public class HttpConnector extends ConnectorBase {
+	/**
+	 * Boolean value, whether to send request body of unknown length (e.g. bundle that is generated as it's pushed) 
+	 * in chunks, as it's written. Not every server accepts chunked requests, e.g. hgweb reads request body by its
+	 * <code>Content-Length</code>, therefore by default such body is written to a temporary file first, to find out its length.
+	 * Default: <code>false</code>
+	 */
+	public static final String CFG_PROPERTY_HTTP_CHUNKED_UPLOAD = "hg4j.remote.http_chunked_upload";
+	// reading the rest of a response longer than this is likely to take longer than opening a new connection
+	private static final int DRAIN_LIMIT = 64 * 1024;
 	private RemoteDescriptor rd;
 	private URL url;
 	private boolean debug;
+	private boolean chunkedUpload;
 	private SessionContext sessionCtx;
 	//
 	private HttpURLConnection conn;
@@ -60,7 +80,9 @@ public class HttpConnector extends ConnectorBase {
 		rd = remote;
 		setURI(remote.getURI());
 		sessionCtx = sessionContext;
-		debug = new PropertyMarshal(sessionContext).getBoolean("hg4j.remote.debug", false);
+		final PropertyMarshal pm = new PropertyMarshal(sessionContext);
+		debug = pm.getBoolean("hg4j.remote.debug", false);
+		chunkedUpload = pm.getBoolean(CFG_PROPERTY_HTTP_CHUNKED_UPLOAD, false);
 	}
 	
 	public void connect() throws HgAuthFailedException, HgRemoteConnectionException, HgRuntimeException {
@@ -98,7 +120,7 @@ public class HttpConnector extends ConnectorBase {
 
 	public void sessionEnd() throws HgRemoteConnectionException, HgRuntimeException {
 		if (conn != null) {
-			conn.disconnect();
+			release(conn);
 			conn = null;
 		}
 	}
@@ -114,7 +136,7 @@ public class HttpConnector extends ConnectorBase {
 			}
 			BufferedReader r = new BufferedReader(new InputStreamReader(c.getInputStream(), "US-ASCII"));
 			String line = r.readLine();
-			c.disconnect();
+			release(c);
 			final String capsPrefix = CMD_CAPABILITIES + ':';
 			if (line != null && line.startsWith(capsPrefix)) {
 				return line.substring(capsPrefix.length()).trim();
@@ -130,7 +152,7 @@ public class HttpConnector extends ConnectorBase {
 			}
 			r = new BufferedReader(new InputStreamReader(c.getInputStream(), "US-ASCII"));
 			line = r.readLine();
-			c.disconnect();
+			release(c);
 			if (line != null && line.startsWith(capsPrefix)) {
 				return line.substring(capsPrefix.length()).trim();
 			}
@@ -174,15 +196,7 @@ public class HttpConnector extends ConnectorBase {
 			URL u = new URL(url, url.getPath() + "?cmd=between" + (usePOST ? "" : '&' + sb.toString()));
 			conn = setupConnection(u.openConnection());
 			if (usePOST) {
-				conn.setRequestMethod("POST");
-				conn.setRequestProperty("Content-Length", String.valueOf(sb.length()/*nodeids are ASCII, bytes == characters */));
-				conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-				conn.setDoOutput(true);
-				conn.connect();
-				OutputStream os = conn.getOutputStream();
-				os.write(sb.toString().getBytes());
-				os.flush();
-				os.close();
+				postForm(sb);
 			} else {
 				conn.connect();
 			}
@@ -238,42 +252,88 @@ public class HttpConnector extends ConnectorBase {
 	}
 
 	//
-	// FIXME consider HttpURLConnection#setChunkedStreamingMode() as described at
-	// http://stackoverflow.com/questions/2793150/how-to-use-java-net-urlconnection-to-fire-and-handle-http-requests
+	// Request body goes to the server as it's written, with known length, or in chunks if outputLen is negative and 
+	// chunked upload is enabled. Otherwise, body of unknown length is spooled to a temporary file and goes to the server 
+	// once complete. Without streaming mode set, HttpURLConnection would keep complete body in memory to find out its length.
+	// Note, streamed request can't get repeated, e.g. on authentication challenge
 	public OutputStream unbundle(long outputLen, List<Nodeid> remoteHeads) throws HgRemoteConnectionException, HgRuntimeException {
 		StringBuilder sb = appendNodeidListArgument(CMD_HEADS, remoteHeads, null);
 		try {
 			final URL u = new URL(url, url.getPath() + "?cmd=unbundle&" + sb.toString());
-			conn = setupConnection(u.openConnection());
-			conn.setRequestMethod("POST");
-			conn.setDoOutput(true);
-			conn.setRequestProperty("Content-Type", "application/mercurial-0.1");
-			conn.setRequestProperty("Content-Length", String.valueOf(outputLen));
-			conn.connect();
-			return new FilterOutputStream(conn.getOutputStream()) {
-				public void close() throws IOException {
-					super.close();
-					if (debug) {
-						dumpResponseHeader(u);
+			if (outputLen < 0 && !chunkedUpload) {
+				final File spool = FileUtils.createTempFile();
+				return new FilterOutputStream(new BufferedOutputStream(new FileOutputStream(spool), 64 * 1024)) {
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						out.write(b, off, len);
 					}
-					try {
-						checkResponseOk("Push", CMD_UNBUNDLE);
-					} catch (HgRemoteConnectionException ex) {
-						IOException e = new IOException(ex.getMessage());
-						// not e.initCause(ex); as HgRemoteConnectionException is just a message holder
-						e.setStackTrace(ex.getStackTrace());
-						throw e;
+
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+							final OutputStream os = unbundle(u, spool.length());
+							FileInputStream fis = new FileInputStream(spool);
+							try {
+								byte[] buf = new byte[64 * 1024];
+								for (int r; (r = fis.read(buf)) != -1;) {
+									os.write(buf, 0, r);
+								}
+							} finally {
+								fis.close();
+							}
+							os.close();
+						} finally {
+							spool.delete();
+						}
 					}
-				}
-			};
+				};
+			}
+			return unbundle(u, outputLen);
 		} catch (MalformedURLException ex) {
 			throw new HgRemoteConnectionException("Bad URL", ex).setRemoteCommand(CMD_UNBUNDLE).setServerInfo(getServerLocation());
 		} catch (IOException ex) {
-			// FIXME consume c.getErrorStream as http://docs.oracle.com/javase/6/docs/technotes/guides/net/http-keepalive.html suggests
+			// error stream, if any, is consumed with sessionEnd
 			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_UNBUNDLE).setServerInfo(getServerLocation());
 		}
 	}
 
+	// outputLen < 0 for chunked request
+	private OutputStream unbundle(final URL u, long outputLen) throws IOException {
+		conn = setupConnection(u.openConnection());
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		conn.setRequestProperty("Content-Type", "application/mercurial-0.1");
+		if (outputLen < 0) {
+			conn.setChunkedStreamingMode(64 * 1024);
+		} else {
+			conn.setFixedLengthStreamingMode(Internals.ltoi(outputLen));
+		}
+		conn.connect();
+		return new FilterOutputStream(conn.getOutputStream()) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len); // FilterOutputStream writes byte by byte
+			}
+
+			@Override
+			public void close() throws IOException {
+				super.close();
+				if (debug) {
+					dumpResponseHeader(u);
+				}
+				try {
+					checkResponseOk("Push", CMD_UNBUNDLE);
+				} catch (HgRemoteConnectionException ex) {
+					IOException e = new IOException(ex.getMessage());
+					// not e.initCause(ex); as HgRemoteConnectionException is just a message holder
+					e.setStackTrace(ex.getStackTrace());
+					throw e;
+				}
+			}
+		};
+	}
+
 	public InputStream pushkey(String opName, String namespace, String key, String oldValue, String newValue) throws HgRemoteConnectionException, HgRuntimeException {
 		try {
 			final String p = String.format("%s?cmd=pushkey&namespace=%s&key=%s&old=%s&new=%s", url.getPath(), namespace, key, oldValue, newValue);
@@ -310,6 +370,139 @@ public class HttpConnector extends ConnectorBase {
 		}
 	}
 	
+	public InputStream streamOut() throws HgRemoteConnectionException, HgRuntimeException {
+		try {
+			URL u = new URL(url, url.getPath() + "?cmd=stream_out");
+			conn = setupConnection(u.openConnection());
+			conn.connect();
+			if (debug) {
+				dumpResponseHeader(u);
+			}
+			checkResponseOk("Stream", CMD_STREAM_OUT);
+			return conn.getInputStream();
+		} catch (MalformedURLException ex) {
+			throw new HgRemoteConnectionException("Bad URL", ex).setRemoteCommand(CMD_STREAM_OUT).setServerInfo(getServerLocation());
+		} catch (IOException ex) {
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_STREAM_OUT).setServerInfo(getServerLocation());
+		}
+	}
+	
+	public InputStream known(List<Nodeid> nodes) throws HgRemoteConnectionException, HgRuntimeException {
+		StringBuilder sb = appendNodeidListArgument("nodes", nodes, null);
+		try {
+			// same as with between, long argument lists go into request body
+			boolean usePOST = nodes.size() > 3;
+			URL u = new URL(url, url.getPath() + "?cmd=known" + (usePOST ? "" : '&' + sb.toString()));
+			conn = setupConnection(u.openConnection());
+			if (usePOST) {
+				postForm(sb);
+			} else {
+				conn.connect();
+			}
+			if (debug) {
+				dumpResponseHeader(u);
+			}
+			checkResponseOk("Known", CMD_KNOWN);
+			return conn.getInputStream();
+		} catch (MalformedURLException ex) {
+			throw new HgRemoteConnectionException("Bad URL", ex).setRemoteCommand(CMD_KNOWN).setServerInfo(getServerLocation());
+		} catch (IOException ex) {
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_KNOWN).setServerInfo(getServerLocation());
+		}
+	}
+
+	public InputStream getbundle(List<Nodeid> common, List<Nodeid> heads) throws HgRemoteConnectionException, HgRuntimeException {
+		StringBuilder sb = appendNodeidListArgument("common", common, null);
+		sb.append('&');
+		appendNodeidListArgument("heads", heads, sb);
+		try {
+			boolean usePOST = common.size() + heads.size() > 3;
+			URL u = new URL(url, url.getPath() + "?cmd=getbundle" + (usePOST ? "" : '&' + sb.toString()));
+			conn = setupConnection(u.openConnection());
+			if (usePOST) {
+				postForm(sb);
+			} else {
+				conn.connect();
+			}
+			if (debug) {
+				dumpResponseHeader(u);
+			}
+			checkResponseOk("Get bundle", CMD_GETBUNDLE);
+			InputStream cg = conn.getInputStream();
+			// zlib-compressed, like changegroup
+			InputStream prefix = new ByteArrayInputStream("HG10GZ".getBytes());
+			return new SequenceInputStream(prefix, cg);
+		} catch (MalformedURLException ex) {
+			throw new HgRemoteConnectionException("Bad URL", ex).setRemoteCommand(CMD_GETBUNDLE).setServerInfo(getServerLocation());
+		} catch (IOException ex) {
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_GETBUNDLE).setServerInfo(getServerLocation());
+		}
+	}
+
+	public InputStream batch(Batch commands) throws HgRemoteConnectionException, HgRuntimeException {
+		StringBuilder sb = new StringBuilder(commands.encode().length() + 10);
+		try {
+			sb.append("cmds=");
+			sb.append(URLEncoder.encode(commands.encode(), "US-ASCII"));
+			// commands that change the repository need push permission, which servers grant to POST only
+			boolean usePOST = sb.length() > 1024 || commands.contains(CMD_PUSHKEY);
+			URL u = new URL(url, url.getPath() + "?cmd=batch" + (usePOST ? "" : '&' + sb.toString()));
+			conn = setupConnection(u.openConnection());
+			if (usePOST) {
+				postForm(sb);
+			} else {
+				conn.connect();
+			}
+			if (debug) {
+				dumpResponseHeader(u);
+			}
+			checkResponseOk("Batch", CMD_BATCH);
+			return conn.getInputStream();
+		} catch (MalformedURLException ex) {
+			throw new HgRemoteConnectionException("Bad URL", ex).setRemoteCommand(CMD_BATCH).setServerInfo(getServerLocation());
+		} catch (IOException ex) {
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_BATCH).setServerInfo(getServerLocation());
+		}
+	}
+
+	// long argument lists go into request body
+	private void postForm(CharSequence form) throws IOException {
+		conn.setRequestMethod("POST");
+		conn.setRequestProperty("Content-Length", String.valueOf(form.length()/*form is url-encoded, bytes == characters */));
+		conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+		conn.setDoOutput(true);
+		conn.connect();
+		OutputStream os = conn.getOutputStream();
+		os.write(form.toString().getBytes("US-ASCII"));
+		os.flush();
+		os.close();
+	}
+
+	/*
+	 * Unread response (or error description, see http://docs.oracle.com/javase/6/docs/technotes/guides/net/http-keepalive.html)
+	 * prevents reuse of the connection, read it unless it's too long. 
+	 */
+	private void release(HttpURLConnection c) {
+		try {
+			InputStream is = c.getResponseCode() >= 400 ? c.getErrorStream() : c.getInputStream();
+			if (is == null) {
+				return;
+			}
+			byte[] buf = new byte[4096];
+			int total = 0, r;
+			while ((r = is.read(buf)) != -1) {
+				total += r;
+				if (total > DRAIN_LIMIT) {
+					c.disconnect();
+					return;
+				}
+			}
+			is.close();
+		} catch (IOException ex) {
+			// stream closed by the client or the connection is broken, either way nothing to reuse
+		}
+	}
+
 	private void checkResponseOk(String opName, String remoteCmd) throws HgRemoteConnectionException, IOException {
 		if (conn.getResponseCode() != 200) {
 			String m = conn.getResponseMessage() == null ? "unknown reason" : conn.getResponseMessage();
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal.remote;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Dialog with <code>hg serve --stdio</code> process, wire commands go to its input, responses come from its output,
+ * each response (but those with bundles) preceded with its length.
+ *
+ * <p>Commands may go one after another without waiting for a response, server answers them in the same order.
+ * Channel keeps track of the response being read, so that leftovers of the previous answer don't get in the way of the next one.
+ * Once the channel can't tell where it is in the dialog (e.g. failure, or a response that comes without length),
+ * it's no longer {@link #isReusable() reusable}.
+ *
+ * <p>Not thread-safe.
+ *
+ * @see http://mercurial.selenic.com/wiki/SshCommandProtocol
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class SshChannel {
+	private final InputStream remoteOut, remoteErr;
+	private final OutputStream remoteIn;
+	private final Closeable resource;
+	private FilterStream response;
+	private boolean reusable = true;
+	private boolean closed = false;
+
+	/**
+	 * @param out output of the server process
+	 * @param err error stream of the server process
+	 * @param in input of the server process
+	 * @param session resource to close along with the channel, e.g. ssh session, may be <code>null</code>
+	 */
+	public SshChannel(InputStream out, InputStream err, OutputStream in, Closeable session) {
+		remoteOut = out;
+		remoteErr = err;
+		// commands are written piece by piece, don't send each one separately
+		remoteIn = new BufferedOutputStream(in, 8 * 1024);
+		resource = session;
+	}
+
+	/**
+	 * Write command with its arguments. Nothing is sent until {@link #flush()}, so that few commands
+	 * may go at once.
+	 */
+	public void command(String cmd, List<Parameter> parameters) throws IOException {
+		skipResponse();
+		remoteIn.write(cmd.getBytes());
+		remoteIn.write('\n');
+		for (Parameter p : parameters) {
+			remoteIn.write(p.name().getBytes());
+			remoteIn.write(' ');
+			remoteIn.write(String.valueOf(p.size()).getBytes());
+			remoteIn.write('\n');
+			remoteIn.write(p.data());
+			remoteIn.write('\n');
+		}
+	}
+
+	public void flush() throws IOException {
+		remoteIn.flush();
+	}
+
+	/**
+	 * Raw access to server input, e.g. to send a bundle. Don't close.
+	 */
+	public OutputStream input() {
+		return remoteIn;
+	}
+
+	/**
+	 * @return stream with next response of a length server has told, it's fine to leave it partially read
+	 */
+	public InputStream response() throws IOException {
+		checkError();
+		skipResponse();
+		int responseLen = readResponseLength();
+		checkError();
+		return response = new FilterStream(remoteOut, responseLen);
+	}
+
+	/**
+	 * Response that comes without length, like that of changegroup command.
+	 * There's no way to tell where it ends, thus the channel can't be used for anything else.
+	 */
+	public InputStream unsizedResponse() throws IOException {
+		checkError();
+		skipResponse();
+		reusable = false;
+		return response = new FilterStream(remoteOut, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return complete next response
+	 */
+	public byte[] readResponse() throws IOException {
+		skipResponse();
+		byte[] rv = new byte[readResponseLength()];
+		readFully(remoteOut, rv);
+		return rv;
+	}
+
+	/**
+	 * Discard anything that came from the server and not yet read.
+	 */
+	public void consume() throws IOException {
+		skipResponse();
+		while (remoteOut.available() > 0) {
+			remoteOut.read();
+		}
+		while (remoteErr.available() > 0) {
+			remoteErr.read();
+		}
+	}
+
+	/**
+	 * Report whatever server has written to its error stream so far, if anything, as an exception
+	 */
+	public void checkError() throws IOException {
+		if (remoteErr.available() > 0) {
+			// server process keeps running, its stream doesn't end, read only what's there
+			StringBuilder sb = new StringBuilder();
+			do {
+				int c = remoteErr.read();
+				if (c == -1) {
+					break;
+				}
+				sb.append((char) c);
+			} while (remoteErr.available() > 0);
+			throw new IOException(sb.toString());
+		}
+	}
+
+	/**
+	 * Round-trip to the server, to find out whether the channel (e.g. one that was idle for a while) is still good to use.
+	 * Channel that fails the check is no longer reusable.
+	 * 
+	 * @return <code>true</code> if server has answered <code>hello</code> command
+	 */
+	public boolean isAlive() {
+		if (!isReusable()) {
+			return false;
+		}
+		try {
+			consume();
+			command("hello", Collections.<Parameter>emptyList());
+			flush();
+			readResponse();
+			checkError();
+			return true;
+		} catch (IOException ex) {
+			reusable = false;
+			return false;
+		}
+	}
+
+	/**
+	 * Tell the channel its client can't go on with the dialog it's in the middle of (e.g. pending push)
+	 * @param canReuse <code>false</code> to prevent reuse of the channel, <code>true</code> once the dialog is over
+	 */
+	public void setReusable(boolean canReuse) {
+		reusable = canReuse;
+	}
+
+	/**
+	 * @return <code>true</code> if next command may go into the channel
+	 */
+	public boolean isReusable() {
+		return reusable && !closed;
+	}
+
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		response = null;
+		closeQuietly(remoteIn);
+		closeQuietly(remoteOut);
+		closeQuietly(remoteErr);
+		closeQuietly(resource);
+	}
+
+	// read whatever client has left of the previous response
+	private void skipResponse() throws IOException {
+		final FilterStream r = response;
+		response = null;
+		if (r == null || r.remaining() == Integer.MAX_VALUE) {
+			// nothing to skip, or unsized response with no end to skip to
+			return;
+		}
+		while (r.remaining() > 0) {
+			if (r.skip(r.remaining()) <= 0 && r.read() == -1) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private int readResponseLength() throws IOException {
+		int c;
+		StringBuilder sb = new StringBuilder();
+		while ((c = remoteOut.read()) != -1) {
+			if (c == '\n') {
+				break;
+			}
+			sb.append((char) c);
+		}
+		if (c == -1) {
+			throw new EOFException();
+		}
+		try {
+			return Integer.parseInt(sb.toString());
+		} catch (NumberFormatException ex) {
+			throw new IOException(String.format("Expected response length instead of %s", sb));
+		}
+	}
+
+	static void readFully(InputStream is, byte[] buf) throws IOException {
+		for (int off = 0, r; off < buf.length; off += r) {
+			if ((r = is.read(buf, off, buf.length - off)) == -1) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private static void closeQuietly(Closeable c) {
+		try {
+			if (c != null) {
+				c.close();
+			}
+		} catch (IOException ex) {
+			// nothing to do about it, channel is gone anyway
+		}
+	}
+
+	public static final class Parameter {
+		private final String name;
+		private final byte[] data;
+
+		public Parameter(String paramName, String paramValue) {
+			assert paramName != null;
+			assert paramValue != null;
+			name = paramName;
+			data = paramValue.getBytes();
+		}
+
+		public String name() {
+			return name;
+		}
+		public int size() {
+			return data.length;
+		}
+		public byte[] data() {
+			return data;
+		}
+	}
+
+	private static final class FilterStream extends FilterInputStream {
+		private int length;
+
+		public FilterStream(InputStream is, int initialLength) {
+			super(is);
+			length = initialLength;
+		}
+
+		int remaining() {
+			return length;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return Math.min(super.available(), length);
+		}
+		@Override
+		public int read() throws IOException {
+			if (length == 0) {
+				return -1;
+			}
+			int r = super.read();
+			if (r >= 0) {
+				length--;
+			}
+			return r;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (length == 0) {
+				return -1;
+			}
+			int r = super.read(b, off, Math.min(len, length));
+			if (r >= 0) {
+				assert r <= length;
+				length -= r;
+			}
+			return r;
+		}
+		@Override
+		public long skip(long n) throws IOException {
+			long r = super.skip(Math.min(n, length));
+			length -= r;
+			return r;
+		}
+		@Override
+		public void close() throws IOException {
+			// INTENTIONALLY DOES NOT CLOSE THE STREAM
+		}
+	}
+}
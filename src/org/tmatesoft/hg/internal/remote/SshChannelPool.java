@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.internal.remote;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.tmatesoft.hg.core.SessionContext;
+
+/**
+ * Keeps <code>hg serve --stdio</code> channels that are not in use for a while, so that next operation with the same
+ * remote repository doesn't pay for ssh handshake and server process start. At most one idle channel per remote,
+ * channels that stay idle longer than their keep-alive time get closed.
+ * 
+ * <p>Channels are authenticated, and are kept separately for each {@link SessionContext} (which supplies credentials) and 
+ * complete remote uri (which may carry user name), so that channels authenticated for one client are never given to another.
+ * Pool doesn't check a channel is still alive, that's up to the client that takes it (see {@link SshChannel#isAlive()}).
+ *
+ * <p>Thread-safe.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public final class SshChannelPool {
+	private static final SshChannelPool instance = new SshChannelPool();
+
+	private final Map<Key, Entry> idle = new HashMap<Key, Entry>();
+	private Timer timer;
+
+	public static SshChannelPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param ctx session the channel was authenticated for
+	 * @param remote key of the remote repository, channels of different remotes are never mixed
+	 * @return idle channel to the remote, or <code>null</code> if none
+	 */
+	public synchronized SshChannel take(SessionContext ctx, String remote) {
+		Entry e = idle.remove(new Key(ctx, remote));
+		if (e == null) {
+			return null;
+		}
+		if (idle.isEmpty()) {
+			stopTimer();
+		}
+		return e.channel;
+	}
+
+	/**
+	 * @return <code>true</code> if there's idle channel to the remote
+	 */
+	public synchronized boolean hasIdle(SessionContext ctx, String remote) {
+		return idle.containsKey(new Key(ctx, remote));
+	}
+
+	/**
+	 * Channel is no longer in use. It's closed unless it's fine to reuse it and there's no idle channel to the remote yet.
+	 * @param ctx session the channel was authenticated for
+	 * @param remote key of the remote repository
+	 * @param channel channel to keep
+	 * @param keepAliveMillis how long to keep the channel, with 0 or less channel is closed right away
+	 */
+	public void release(SessionContext ctx, String remote, SshChannel channel, long keepAliveMillis) {
+		if (keepAliveMillis <= 0 || !channel.isReusable()) {
+			channel.close();
+			return;
+		}
+		final Key key = new Key(ctx, remote);
+		SshChannel toClose = null;
+		synchronized (this) {
+			if (idle.containsKey(key)) {
+				toClose = channel;
+			} else {
+				idle.put(key, new Entry(channel, System.currentTimeMillis() + keepAliveMillis));
+				if (timer == null) {
+					timer = new Timer("hg4j-ssh-keepalive", true);
+				}
+				timer.schedule(new TimerTask() {
+
+					@Override
+					public void run() {
+						closeExpired();
+					}
+				}, keepAliveMillis);
+			}
+		}
+		if (toClose != null) {
+			toClose.close();
+		}
+	}
+
+	/**
+	 * Close all idle channels.
+	 */
+	public void clear() {
+		ArrayList<Entry> toClose;
+		synchronized (this) {
+			toClose = new ArrayList<Entry>(idle.values());
+			idle.clear();
+			stopTimer();
+		}
+		for (Entry e : toClose) {
+			e.channel.close();
+		}
+	}
+
+	private void closeExpired() {
+		ArrayList<Entry> toClose = new ArrayList<Entry>();
+		synchronized (this) {
+			final long now = System.currentTimeMillis();
+			for (Iterator<Entry> it = idle.values().iterator(); it.hasNext();) {
+				Entry e = it.next();
+				if (e.expires <= now) {
+					toClose.add(e);
+					it.remove();
+				}
+			}
+			if (idle.isEmpty()) {
+				stopTimer();
+			}
+		}
+		// don't keep the lock while talking to the network
+		for (Entry e : toClose) {
+			e.channel.close();
+		}
+	}
+
+	private void stopTimer() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
+	// session context by identity, its authenticator is what stands behind the channel
+	private static final class Key {
+		private final SessionContext ctx;
+		private final String remote;
+
+		public Key(SessionContext sessionContext, String remoteKey) {
+			ctx = sessionContext;
+			remote = remoteKey;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key o = (Key) obj;
+			return ctx == o.ctx && remote.equals(o.remote);
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(ctx) ^ remote.hashCode();
+		}
+	}
+
+	private static final class Entry {
+		public final SshChannel channel;
+		public final long expires;
+
+		public Entry(SshChannel c, long expireTime) {
+			channel = c;
+			expires = expireTime;
+		}
+	}
+}
@@ -16,18 +16,16 @@
  */
 package org.tmatesoft.hg.internal.remote;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.Closeable;
-import java.io.EOFException;
-import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.SequenceInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -37,10 +35,12 @@ import org.tmatesoft.hg.auth.HgAuthenticator;
 import org.tmatesoft.hg.core.HgRemoteConnectionException;
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.core.SessionContext;
+import org.tmatesoft.hg.internal.PropertyMarshal;
+import org.tmatesoft.hg.internal.remote.SshChannel.Parameter;
 import org.tmatesoft.hg.repo.HgRemoteRepository.Range;
 import org.tmatesoft.hg.repo.HgRemoteRepository.RemoteDescriptor;
 import org.tmatesoft.hg.repo.HgRuntimeException;
-import org.tmatesoft.hg.util.LogFacility.Severity;
+import org.tmatesoft.hg.util.Pair;
 
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.Session;
@@ -49,31 +49,55 @@ import com.trilead.ssh2.StreamGobbler;
 /**
  * Remote repository via SSH
  * 
+ * <p>Channel to <code>hg serve --stdio</code> process outlives a session, it's kept for a while 
+ * (see {@link #CFG_PROPERTY_SSH_IDLE_TIME}) in {@link SshChannelPool} and is picked by the next session with the same remote
+ * and {@link SessionContext}, from this or any other connector. Channel picked from the pool is checked to be alive, and
+ * is replaced with a new one if it's not. Commands of a {@link Batch} are pipelined, i.e. go to the server at once
+ * and answers are read afterwards, regardless of whether server supports batch command.
+ * 
  * @author Artem Tikhomirov
  * @author TMate Software Ltd.
  */
 public class SshConnector extends ConnectorBase {
+	/**
+	 * Integer value, number of seconds to keep ssh channel to a remote server once it's no longer in use.
+	 * With 0, channel is closed at the end of each session.
+	 * Default: 15 seconds
+	 */
+	public static final String CFG_PROPERTY_SSH_IDLE_TIME = "hg4j.remote.ssh_idle_time";
+
 	private RemoteDescriptor rd;
 	private SessionContext sessionCtx;
+	private String poolKey;
+	private long idleTime;
 	private Connection conn;
-	private Session session;
+	private SshChannel channel;
 	private int sessionUse;
 
-	private StreamGobbler remoteErr, remoteOut;
-	private OutputStream remoteIn;
-	
 	public void init(RemoteDescriptor remote, SessionContext sessionContext, Object globalConfig) throws HgRuntimeException {
 		rd = remote;
 		sessionCtx = sessionContext;
 		setURI(remote.getURI());
+		// complete uri, with user, channels authenticated for one user are of no use for another
+		poolKey = remote.getURI().toString();
+		idleTime = new PropertyMarshal(sessionContext).getInt(CFG_PROPERTY_SSH_IDLE_TIME, 15) * 1000L;
 	}
 	
 	public void connect() throws HgAuthFailedException, HgRemoteConnectionException, HgRuntimeException {
+		if (conn != null || channel != null || SshChannelPool.getInstance().hasIdle(sessionCtx, poolKey)) {
+			// connected already, or shall use channel authenticated with the same credentials, no need to authenticate
+			return;
+		}
+		openConnection();
+	}
+
+	private void openConnection() throws HgAuthFailedException, HgRemoteConnectionException {
 		try {
 			conn = new Connection(uri.getHost(), uri.getPort() == -1 ? 22 : uri.getPort());
 			conn.connect();
 			authenticateClient();
 		} catch (IOException ex) {
+			conn = null;
 			throw new HgRemoteConnectionException("Failed to establish connection").setServerInfo(getServerLocation());
 		}
 	}
@@ -93,9 +117,11 @@ public class SshConnector extends ConnectorBase {
 	}
 	
 	public void disconnect() throws HgRemoteConnectionException {
-		if (session != null) {
-			doSessionClose();
+		if (channel != null) {
+			channel.close();
+			channel = null;
 		}
+		sessionUse = 0;
 		if (conn != null) {
 			conn.close();
 			conn = null;
@@ -104,62 +130,85 @@ public class SshConnector extends ConnectorBase {
 	
 	public void sessionBegin() throws HgRemoteConnectionException {
 		if (sessionUse > 0) {
-			assert session != null;
+			assert channel != null;
 			sessionUse++;
 			return;
 		}
+		channel = SshChannelPool.getInstance().take(sessionCtx, poolKey);
+		if (channel != null && !channel.isAlive()) {
+			// e.g. server has closed the connection while channel was idle
+			channel.close();
+			channel = null;
+		}
+		if (channel == null) {
+			channel = openChannel();
+		}
+		sessionUse = 1;
+	}
+
+	private SshChannel openChannel() throws HgRemoteConnectionException {
+		if (conn == null) {
+			// idle channel we've counted on in connect() has gone, or is dead
+			try {
+				openConnection();
+			} catch (HgAuthFailedException ex) {
+				throw new HgRemoteConnectionException("Failed to authenticate", ex).setServerInfo(getServerLocation());
+			}
+		}
+		// connection is bound to the channel now, and goes away along with it
+		final Connection c = conn;
+		conn = null;
 		try {
-			session = conn.openSession();
+			final Session session = c.openSession();
 			final String path = uri.getPath();
 			session.execCommand(String.format("hg -R %s serve --stdio", path.charAt(0) == '/' ? path.substring(1) : path));
-			remoteErr = new StreamGobbler(session.getStderr());
-			remoteOut = new StreamGobbler(session.getStdout());
-			remoteIn = session.getStdin();
-			sessionUse = 1;
+			return new SshChannel(new StreamGobbler(session.getStdout()), new StreamGobbler(session.getStderr()), session.getStdin(), new Closeable() {
+				
+				public void close() {
+					session.close();
+					c.close();
+				}
+			});
 		} catch (IOException ex) {
-			throw new HgRemoteConnectionException("Failed to create ssh session", ex);
+			c.close();
+			throw new HgRemoteConnectionException("Failed to create ssh session", ex).setServerInfo(getServerLocation());
 		}
 	}
 	
 	public void sessionEnd() throws HgRemoteConnectionException {
 		assert sessionUse > 0;
-		assert session != null;
+		assert channel != null;
 		if (sessionUse > 1) {
 			sessionUse--;
 			return;
 		}
-		doSessionClose();
+		sessionUse = 0;
+		final SshChannel c = channel;
+		channel = null;
+		SshChannelPool.getInstance().release(sessionCtx, poolKey, c, idleTime);
 	}
 
 	public String getCapabilities() throws HgRemoteConnectionException {
 		try {
-			consume(remoteOut);
-			consume(remoteErr);
-			remoteIn.write(CMD_HELLO.getBytes());
-			remoteIn.write('\n');
-			remoteIn.write(CMD_CAPABILITIES.getBytes()); // see http connector for details
-			remoteIn.write('\n');
-			remoteIn.write(CMD_HEADS.getBytes());
-			remoteIn.write('\n');
-			checkError();
-			int responseLen = readResponseLength();
-			checkError();
-			FilterStream s = new FilterStream(remoteOut, responseLen);
-			BufferedReader r = new BufferedReader(new InputStreamReader(s));
-			String line;
-			while ((line = r.readLine()) != null) {
-				if (line.startsWith(CMD_CAPABILITIES) && line.length() > (CMD_CAPABILITIES.length()+1)) {
-					line = line.substring(CMD_CAPABILITIES.length());
-					if (line.charAt(0) == ':') {
-						return line.substring(CMD_CAPABILITIES.length() + 1);
-					}
+			channel.consume();
+			// some servers do not respond to hello command, but to capabilities (see http connector for details).
+			// Ask both at once, answer to capabilities doesn't start with "capabilities:"
+			channel.command(CMD_HELLO, Collections.<Parameter>emptyList());
+			channel.command(CMD_CAPABILITIES, Collections.<Parameter>emptyList());
+			channel.flush();
+			String hello = new String(channel.readResponse(), "US-ASCII");
+			String caps = new String(channel.readResponse(), "US-ASCII").trim();
+			channel.checkError();
+			final String capsPrefix = CMD_CAPABILITIES + ':';
+			for (String line : hello.split("\n")) {
+				if (line.startsWith(capsPrefix)) {
+					caps = line.substring(capsPrefix.length()).trim();
+					break;
 				}
 			}
-			r.close();
-			consume(remoteOut);
-			checkError();
-			return new String();
+			return caps;
 		} catch (IOException ex) {
+			channel.setReusable(false);
 			throw new HgRemoteConnectionException("Failed to initiate dialog with server", ex).setRemoteCommand(CMD_HELLO).setServerInfo(getServerLocation());
 		}
 	}
@@ -191,26 +240,54 @@ public class SshConnector extends ConnectorBase {
 		return new SequenceInputStream(prefix, cg);
 	}
 
+	// Server answers the command with an empty response once it's ready to get the bundle, which goes
+	// in chunks, each preceded with its length, zero-length chunk completes the bundle.
+	// Then comes an empty response if the bundle was accepted, or an error message, and the result of the push.
+	// outputLen is of no use, chunks are sent as they are written
 	public OutputStream unbundle(long outputLen, List<Nodeid> remoteHeads) throws HgRemoteConnectionException, HgRuntimeException {
 		String l = join(remoteHeads, ' ');
+		final SshChannel c = channel;
 		try {
-			consume(remoteOut);
-			consume(remoteErr);
-			remoteIn.write(CMD_UNBUNDLE.getBytes());
-			remoteIn.write('\n');
-			writeParameters(Collections.singletonList(new Parameter("heads", l)));
-			checkError();
-			return new FilterOutputStream(remoteIn) {
+			c.consume();
+			c.command(CMD_UNBUNDLE, Collections.singletonList(new Parameter("heads", l)));
+			c.flush();
+			c.checkError();
+			checkPushResponse(c);
+			// until the bundle is complete, server waits for it and nothing else
+			c.setReusable(false);
+			OutputStream chunks = new FilterOutputStream(c.input()) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					if (len == 0) {
+						return; // empty chunk would end the bundle
+					}
+					out.write(String.valueOf(len).getBytes());
+					out.write('\n');
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
 				@Override
 				public void close() throws IOException {
+					out.write('0');
+					out.write('\n');
 					out.flush();
+					checkPushResponse(c);
 					@SuppressWarnings("unused")
-					int responseLen = readResponseLength();
-					checkError();
-					// XXX perhaps, need to return responseLen to caller? 
+					String result = new String(c.readResponse());
+					c.checkError();
+					c.setReusable(true);
+					// XXX perhaps, need to return result to caller? 
 				}
 			};
+			// collect small writes into chunks of reasonable size
+			return new BufferedOutputStream(chunks, 32 * 1024);
 		} catch (IOException ex) {
+			c.setReusable(false);
 			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_UNBUNDLE).setServerInfo(getServerLocation());
 		}
 	}
@@ -227,95 +304,81 @@ public class SshConnector extends ConnectorBase {
 	public InputStream listkeys(String namespace, String actionName) throws HgRemoteConnectionException, HgRuntimeException {
 		return executeCommand("listkeys", Collections.singletonList(new Parameter("namespace", namespace)), true);
 	}
-	
-	private InputStream executeCommand(String cmd, List<Parameter> parameters, boolean expectResponseLength) throws HgRemoteConnectionException {
-		try {
-			consume(remoteOut);
-			consume(remoteErr);
-			remoteIn.write(cmd.getBytes());
-			remoteIn.write('\n');
-			writeParameters(parameters);
-			checkError();
-			if (expectResponseLength) {
-				int responseLen = readResponseLength();
-				checkError();
-				return new FilterStream(remoteOut, responseLen);
-			} else {
-				return new FilterStream(remoteOut, Integer.MAX_VALUE);
-			}
-		} catch (IOException ex) {
-			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(cmd).setServerInfo(getServerLocation());
-		}
+
+	public InputStream streamOut() throws HgRemoteConnectionException, HgRuntimeException {
+		// like changegroup, stream_out response comes without length
+		return executeCommand(CMD_STREAM_OUT, Collections.<Parameter>emptyList(), false);
 	}
 	
-	private void writeParameters(List<Parameter> parameters) throws IOException {
-		for (Parameter p : parameters) {
-			remoteIn.write(p.name().getBytes());
-			remoteIn.write(' ');
-			remoteIn.write(String.valueOf(p.size()).getBytes());
-			remoteIn.write('\n');
-			remoteIn.write(p.data());
-			remoteIn.write('\n');
-		}
+	public InputStream known(List<Nodeid> nodes) throws HgRemoteConnectionException, HgRuntimeException {
+		String l = join(nodes, ' ');
+		return executeCommand(CMD_KNOWN, Collections.singletonList(new Parameter("nodes", l)), true);
 	}
 
-	private void consume(InputStream is) throws IOException {
-		while (is.available() > 0) {
-			is.read();
-		}
+	public InputStream getbundle(List<Nodeid> common, List<Nodeid> heads) throws HgRemoteConnectionException, HgRuntimeException {
+		List<Parameter> args = Arrays.asList(new Parameter("common", join(common, ' ')), new Parameter("heads", join(heads, ' ')));
+		// same uncompressed stream without length as for changegroup
+		InputStream cg = executeCommand(CMD_GETBUNDLE, args, false);
+		InputStream prefix = new ByteArrayInputStream("HG10UN".getBytes());
+		return new SequenceInputStream(prefix, cg);
 	}
 
-	private void checkError() throws IOException {
-		if (remoteErr.available() > 0) {
-			StringBuilder sb = new StringBuilder();
-			int c;
-			while ((c = remoteErr.read()) != -1) {
-				sb.append((char)c);
-			}
-			throw new IOException(sb.toString());
-		}
+	// commands of a batch are pipelined, see #batch(), no need for server support
+	public boolean isBatchPipelined() {
+		return true;
 	}
-	
-	private int readResponseLength() throws IOException {
-		int c;
-		StringBuilder sb = new StringBuilder();
-		while ((c = remoteOut.read()) != -1) {
-			if (c == '\n') {
-				break;
-			}
-			sb.append((char) c);
-		}
-		if (c == -1) {
-			throw new EOFException();
-		}
-		try {
-			return Integer.parseInt(sb.toString());
-		} catch (NumberFormatException ex) {
-			throw new IOException(String.format("Expected response length instead of %s", sb));
-		}
-	}
-
 
-	private void doSessionClose() {
-		if (session != null) {
-			closeQuietly(remoteErr);
-			closeQuietly(remoteOut);
-			remoteErr = remoteOut = null;
-			closeQuietly(remoteIn);
-			remoteIn = null;
-			session.close();
-			session = null;
+	// Commands go to the server one after another, without waiting for an answer, and answers are read once 
+	// all commands are sent. Same single round-trip as with batch command, without need to escape arguments
+	// (and works with servers that don't know batch command)
+	public InputStream batch(Batch commands) throws HgRemoteConnectionException, HgRuntimeException {
+		String cmd = CMD_BATCH;
+		try {
+			channel.consume();
+			for (Pair<String, String[]> c : commands.commands()) {
+				final String[] args = c.second();
+				ArrayList<Parameter> p = new ArrayList<Parameter>(args.length / 2);
+				for (int i = 0; i < args.length; i += 2) {
+					p.add(new Parameter(args[i], args[i+1]));
+				}
+				channel.command(c.first(), p);
+			}
+			channel.flush();
+			ArrayList<byte[]> answers = new ArrayList<byte[]>(commands.size());
+			for (Pair<String, String[]> c : commands.commands()) {
+				cmd = c.first();
+				channel.checkError();
+				answers.add(channel.readResponse());
+			}
+			channel.checkError();
+			return commands.answer(answers);
+		} catch (IOException ex) {
+			channel.setReusable(false);
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(cmd).setServerInfo(getServerLocation());
 		}
-		sessionUse = 0;
 	}
 
-	private void closeQuietly(Closeable c) {
+	private InputStream executeCommand(String cmd, List<Parameter> parameters, boolean expectResponseLength) throws HgRemoteConnectionException {
 		try {
-			if (c != null) {
-				c.close();
+			channel.consume();
+			channel.command(cmd, parameters);
+			channel.flush();
+			if (expectResponseLength) {
+				return channel.response();
+			} else {
+				return channel.unsizedResponse();
 			}
 		} catch (IOException ex) {
-			sessionCtx.getLog().dump(getClass(), Severity.Warn, ex, null);
+			channel.setReusable(false);
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(cmd).setServerInfo(getServerLocation());
+		}
+	}
+	
+	// empty response means it's ok to go on, anything else is error message
+	private static void checkPushResponse(SshChannel c) throws IOException {
+		byte[] r = c.readResponse();
+		if (r.length > 0) {
+			throw new IOException(new String(r));
 		}
 	}
 
@@ -331,68 +394,4 @@ public class SshConnector extends ConnectorBase {
 		}
 		return sb.toString();
 	}
-
-	private static final class Parameter {
-		private final String name;
-		private final byte[] data;
-
-		public Parameter(String paramName, String paramValue) {
-			assert paramName != null;
-			assert paramValue != null;
-			name = paramName;
-			data = paramValue.getBytes();
-		}
-
-		public String name() {
-			return name;
-		}
-		public int size() {
-			return data.length;
-		}
-		public byte[] data() {
-			return data;
-		}
-	}
-
-	private static final class FilterStream extends FilterInputStream {
-		private int length;
-
-		public FilterStream(InputStream is, int initialLength) {
-			super(is);
-			length = initialLength;
-		}
-		
-		@Override
-		public int available() throws IOException {
-			return Math.min(super.available(), length);
-		}
-		@Override
-		public int read() throws IOException {
-			if (length == 0) {
-				return -1;
-			}
-			int r = super.read();
-			if (r >= 0) {
-				length--;
-			}
-			return r;
-		}
-		@Override
-		public int read(byte[] b, int off, int len) throws IOException {
-			if (length == 0) {
-				return -1;
-			}
-			int r = super.read(b, off, Math.min(len, length));
-			if (r >= 0) {
-				assert r <= length;
-				length -= r;
-			}
-			return r;
-		}
-		@Override
-		public void close() throws IOException {
-			length = 0;
-			// INTENTIONALLY DOES NOT CLOSE THE STREAM
-		}
-	}
 }
@@ -19,7 +19,10 @@ package org.tmatesoft.hg.repo;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.util.ConcurrentModificationException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.tmatesoft.hg.core.HgIOException;
 import org.tmatesoft.hg.core.Nodeid;
@@ -38,6 +41,7 @@ import org.tmatesoft.hg.internal.InflaterDataAccess;
 import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.Lifecycle;
 import org.tmatesoft.hg.internal.Patch;
+import org.tmatesoft.hg.internal.StreamDataAccess;
 import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
 import org.tmatesoft.hg.util.Adaptable;
 import org.tmatesoft.hg.util.CancelledException;
@@ -55,6 +59,7 @@ public class HgBundle {
 
 	final File bundleFile;
 	private final DataAccessProvider accessProvider;
+	private InputStream bundleStream;
 	final SessionContext ctx;
 	private final EncodingHelper fnDecorer;
 	private Lifecycle.BasicCallback flowControl;
@@ -66,7 +71,18 @@ public class HgBundle {
 		fnDecorer = Internals.buildFileNameEncodingHelper(new SessionContext.SourcePrim(ctx));
 	}
 
+	/**
+	 * Bundle that is read as it comes, e.g. from a server response, and can be inspected only once.
+	 */
+	HgBundle(SessionContext sessionContext, InputStream bundleData) {
+		this(sessionContext, null, null);
+		bundleStream = bundleData;
+	}
+
 	private DataAccess getDataStream() throws IOException {
+		if (bundleFile == null) {
+			return getStreamedData();
+		}
 		DataAccess da = accessProvider.createReader(bundleFile, false);
 		byte[] signature = new byte[6];
 		if (da.length() > 6) {
@@ -89,6 +105,40 @@ public class HgBundle {
 		return da;
 	}
 
+	private DataAccess getStreamedData() throws IOException {
+		if (bundleStream == null) {
+			throw new HgInvalidStateException("Bundle streamed from a remote server can be inspected only once");
+		}
+		PushbackInputStream is = new PushbackInputStream(bundleStream, 6);
+		bundleStream = null;
+		byte[] signature = new byte[6];
+		int read = 0, r;
+		while (read < signature.length && (r = is.read(signature, read, signature.length - read)) != -1) {
+			read += r;
+		}
+		if (read == signature.length && signature[0] == 'H' && signature[1] == 'G' && signature[2] == '1' && signature[3] == '0') {
+			if (signature[4] == 'G' && signature[5] == 'Z') {
+				return new StreamDataAccess(new InflaterInputStream(is, new Inflater(), 16 * 1024) {
+					@Override
+					public void close() throws IOException {
+						super.close();
+						inf.end(); // supplied inflater is not released by InflaterInputStream
+					}
+				}, 32 * 1024);
+			}
+			if (signature[4] == 'B' && signature[5] == 'Z') {
+				throw Internals.notImplemented();
+			}
+			if (signature[4] != 'U' || signature[5] != 'N') {
+				throw new HgInvalidStateException(String.format("Bad bundle signature: %s",  String.valueOf(signature)));
+			}
+			// "...UN"
+		} else {
+			is.unread(signature, 0, read);
+		}
+		return new StreamDataAccess(is, 32 * 1024);
+	}
+
 	private int uses = 0;
 	public HgBundle link() {
 		uses++;
@@ -426,11 +476,10 @@ To recreate 30bd..e5, one have to take content of 9429..e0, not its p1 f1db..5e
 			DataAccess slice = new ByteArrayDataAccess(data); // XXX in fact, may pass a slicing DataAccess.
 			// Just need to make sure that we seek to proper location afterwards (where next GroupElement starts),
 			// regardless whether that slice has read it or not.
-			GroupElement ge = new GroupElement(nb, prevNodeid, slice);
+			GroupElement ge = new GroupElement(nb, prevNodeid, slice, dataLength);
+			// each element gets its own copy of the data, Inspector implementations may keep elements
+			// past #element() call (e.g. to write them down on another thread)
 			good2go = inspector.element(ge);
-			slice.done(); // BADA doesn't implement done(), but it could (e.g. free array) 
-			/// and we'd better tell it we are not going to use it any more. However, it's important to ensure Inspector
-			// implementations out there do not retain GroupElement.rawData()
 			prevNodeid = ge.node();
 			len = da.isEmpty() ? 0 : da.readInt();
 		}
@@ -457,13 +506,15 @@ To recreate 30bd..e5, one have to take content of 9429..e0, not its p1 f1db..5e
 		private final byte[] header; // byte[80] takes 120 bytes, 4 Nodeids - 192
 		private final DataAccess dataAccess;
 		private final Nodeid deltaBase;
+		private final int dataLength;
 		private Patch patches;
 		
-		GroupElement(byte[] fourNodeids, Nodeid deltaBaseRev, DataAccess rawDataAccess) {
+		GroupElement(byte[] fourNodeids, Nodeid deltaBaseRev, DataAccess rawDataAccess, int rawDataLength) {
 			assert fourNodeids != null && fourNodeids.length == 80;
 			header = fourNodeids;
 			deltaBase = deltaBaseRev;
 			dataAccess = rawDataAccess;
+			dataLength = rawDataLength;
 		}
 
 		/**
@@ -516,6 +567,13 @@ To recreate 30bd..e5, one have to take content of 9429..e0, not its p1 f1db..5e
 		public InputStream data() {
 			return new DataAccessInputStream(dataAccess);
 		}
+
+		/**
+		 * @return number of bytes in the {@link #data() content} of this group element
+		 */
+		public int dataLength() {
+			return dataLength;
+		}
 		
 		/*package-local*/ Patch patch() throws IOException {
 			if (patches == null) {
@@ -143,6 +143,10 @@ public final class HgChangelog extends Revlog {
 
 	/**
 	 * Entry in the Changelog
+	 * 
+	 * <p>Changesets that come from {@link HgChangelog} iteration methods decode their fields on first access, 
+	 * and keep reference to complete changeset text till then. Use {@link #detach()} to release the text if 
+	 * you keep changesets around.
 	 */
 	public static final class RawChangeset implements Cloneable /* for those that would like to keep a copy */{
 		// would be nice to get it immutable, but then we can't reuse instances
@@ -154,27 +158,43 @@ public final class HgChangelog extends Revlog {
 		int timezone;
 		// http://mercurial.selenic.com/wiki/PruningDeadBranches - Closing changesets can be identified by close=1 in the changeset's extra field.
 		Map<String, String> extras;
+		// non-null if there are fields not yet decoded, fields with null value are decoded on demand
+		ChangesetParser.Fields source;
 
 		private RawChangeset() {
 		}
 
 		public Nodeid manifest() {
+			if (manifest == null && source != null) {
+				manifest = source.manifest();
+			}
 			return manifest;
 		}
 
 		public String user() {
+			if (user == null && source != null) {
+				user = source.user();
+			}
 			return user;
 		}
 
 		public String comment() {
+			if (comment == null && source != null) {
+				comment = source.comment();
+			}
 			return comment;
 		}
 
 		public List<String> files() {
+			if (files == null && source != null) {
+				List<String> f = source.files();
+				files = f == null ? new String[0] : f.toArray(new String[f.size()]);
+			}
 			return Arrays.asList(files);
 		}
 
 		public Date date() {
+			decodeTimeLine();
 			return time;
 		}
 		
@@ -182,6 +202,7 @@ public final class HgChangelog extends Revlog {
 		 * @return time zone value, as is, positive for Western Hemisphere.
 		 */
 		public int timezone() {
+			decodeTimeLine();
 			return timezone;
 		}
 
@@ -189,38 +210,59 @@ public final class HgChangelog extends Revlog {
 			// XXX keep once formatted? Perhaps, there's faster way to set up calendar/time zone?
 			StringBuilder sb = new StringBuilder(30);
 			Formatter f = new Formatter(sb, Locale.US);
-			TimeZone tz = TimeZone.getTimeZone(TimeZone.getAvailableIDs(timezone * 1000)[0]);
+			TimeZone tz = TimeZone.getTimeZone(TimeZone.getAvailableIDs(timezone() * 1000)[0]);
 			// apparently timezone field records number of seconds time differs from UTC,
 			// i.e. value to substract from time to get UTC time. Calendar seems to add
 			// timezone offset to UTC, instead, hence sign change.
 //			tz.setRawOffset(timezone * -1000);
 			Calendar c = Calendar.getInstance(tz, Locale.US);
-			c.setTime(time);
+			c.setTime(date());
 			f.format("%ta %<tb %<td %<tH:%<tM:%<tS %<tY %<tz", c);
 			return sb.toString();
 		}
 
 		public Map<String, String> extras() {
+			decodeTimeLine();
 			return extras;
 		}
 
 		public String branch() {
-			return extras.get("branch");
+			return extras().get("branch");
+		}
+		
+		/**
+		 * Decode all fields of the changeset, if not yet, and release reference to changeset text.
+		 * Lazily decoded changeset keeps complete changeset text, therefore clients that retain 
+		 * changesets for later use shall detach them.
+		 * 
+		 * @return <code>this</code> for convenience
+		 * @throws HgInvalidDataFormatException if changeset record is malformed. <em>Runtime exception</em>
+		 */
+		public RawChangeset detach() throws HgInvalidDataFormatException {
+			if (source != null) {
+				manifest();
+				user();
+				comment();
+				files();
+				decodeTimeLine();
+				source = null;
+			}
+			return this;
 		}
 
 		@Override
 		public String toString() {
 			StringBuilder sb = new StringBuilder();
 			sb.append("Changeset {");
-			sb.append("User: ").append(user).append(", ");
-			sb.append("Comment: ").append(comment).append(", ");
-			sb.append("Manifest: ").append(manifest).append(", ");
-			sb.append("Date: ").append(time).append(", ");
-			sb.append("Files: ").append(files.length);
+			sb.append("User: ").append(user()).append(", ");
+			sb.append("Comment: ").append(comment()).append(", ");
+			sb.append("Manifest: ").append(manifest()).append(", ");
+			sb.append("Date: ").append(date()).append(", ");
+			sb.append("Files: ").append(files().size());
 			for (String s : files) {
 				sb.append(", ").append(s);
 			}
-			if (extras != null) {
+			if (extras() != null) {
 				sb.append(", Extra: ").append(extras);
 			}
 			sb.append("}");
@@ -235,6 +277,14 @@ public final class HgChangelog extends Revlog {
 				throw new InternalError(ex.toString());
 			}
 		}
+
+		private void decodeTimeLine() throws HgInvalidDataFormatException {
+			if (time == null && source != null) {
+				time = source.date();
+				timezone = source.timezone();
+				extras = source.extras();
+			}
+		}
 	}
 	
 	/*package-local*/static final class RawCsetFactory implements ChangesetParser.CsetFactory {
@@ -247,12 +297,7 @@ public final class HgChangelog extends Revlog {
 		}
 
 		public RawChangeset create(Nodeid nodeidManifest, String user, Date time, int timezone, List<String> files, String comment, Map<String, String> extrasMap) {
-			RawChangeset target;
-			if (cset != null) {
-				target = cset;
-			} else {
-				target = new RawChangeset();
-			}
+			RawChangeset target = instance();
 			target.manifest = nodeidManifest;
 			target.user = user;
 			target.time = time;
@@ -260,8 +305,26 @@ public final class HgChangelog extends Revlog {
 			target.files = files == null ? new String[0] : files.toArray(new String[files.size()]);
 			target.comment = comment;
 			target.extras = extrasMap;
+			target.source = null;
 			return target;
 		}
+
+		public RawChangeset create(ChangesetParser.Fields lazyFields) {
+			RawChangeset target = instance();
+			target.manifest = null;
+			target.user = null;
+			target.time = null;
+			target.timezone = 0;
+			target.files = null;
+			target.comment = null;
+			target.extras = null;
+			target.source = lazyFields;
+			return target;
+		}
+
+		private RawChangeset instance() {
+			return cset != null ? cset : new RawChangeset();
+		}
 	}
 	
 	private static class RawCsetCollector implements Inspector {
@@ -272,7 +335,7 @@ public final class HgChangelog extends Revlog {
 		}
 
 		public void next(int revisionNumber, Nodeid nodeid, RawChangeset cset) {
-			result.add(cset.clone());
+			result.add(cset.clone().detach());
 		}
 	}
 
@@ -306,7 +369,7 @@ public final class HgChangelog extends Revlog {
 
 		public void next(int revisionNumber, int actualLen, int baseRevision, int linkRevision, int parent1Revision, int parent2Revision, byte[] nodeid, DataAccess da) throws HgRuntimeException {
 			try {
-				RawChangeset cset = csetBuilder.parse(da);
+				RawChangeset cset = csetBuilder.parseLazy(da);
 				// XXX there's no guarantee for Changeset.Callback that distinct instance comes each time, consider instance reuse
 				inspector.next(revisionNumber, Nodeid.fromBinary(nodeid, 0), cset);
 				if (lifecycleStub != null) {
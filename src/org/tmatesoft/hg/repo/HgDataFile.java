@@ -244,7 +244,14 @@ public final class HgDataFile extends Revlog {
 		if (fileRevisionIndex == WORKING_COPY) {
 			workingCopy(sink); // pass un-mangled sink
 		} else {
-			content(fileRevisionIndex, new FilterByteChannel(sink, getRepo().getFiltersFromRepoToWorkingDir(getPath())));
+			FilterByteChannel filters = new FilterByteChannel(sink, getRepo().getFiltersFromRepoToWorkingDir(getPath()));
+			content(fileRevisionIndex, filters);
+			try {
+				filters.flush();
+			} catch (IOException ex) {
+				HgInvalidControlFileException e = new HgInvalidControlFileException("Revision content access failed", ex, null);
+				throw content.initWithIndexFile(e).setFileName(getPath()).setRevisionIndex(fileRevisionIndex);
+			}
 		}
 	}
 
@@ -26,6 +26,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.ChangesetParser;
 import org.tmatesoft.hg.internal.Experimental;
 import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.Patch;
@@ -128,6 +129,11 @@ public class HgInternals {
 		return bundle.bundleFile;
 	}
 
+	// RawChangeset cons is not accessible outside of .repo
+	public static ChangesetParser.CsetFactory newChangesetFactory() {
+		return new HgChangelog.RawCsetFactory(false);
+	}
+
 	// TODO in fact, need a setter for this anyway, shall move to internal.Internals perhaps?
 	public String getNextCommitUsername() {
 		String hgUser = System.getenv("HGUSER");
@@ -16,6 +16,8 @@
  */
 package org.tmatesoft.hg.repo;
 
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
@@ -27,7 +29,9 @@ import java.util.List;
 
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.internal.ArrayHelper;
+import org.tmatesoft.hg.internal.CommitGraph;
 import org.tmatesoft.hg.internal.IntMap;
+import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.repo.Revlog.ParentInspector;
 
 /**
@@ -73,6 +77,7 @@ public final class HgParentChildMap<T extends Revlog> implements ParentInspector
 	private BitSet headsBitSet; // 1 indicates revision got children, != null only during init;
 	private HgRevisionMap<T> revisionIndexMap;
 	private ArrayHelper<Nodeid> seqWrapper; 
+	private CommitGraph graph; // non-null for repository changelog only, and only if graph use is not disabled
 
 
 	public HgParentChildMap(T owner) {
@@ -163,6 +168,14 @@ public final class HgParentChildMap<T extends Revlog> implements ParentInspector
 		} 
 		headsBitSet = null;
 		heads = _heads;
+		graph = null;
+		final Internals implRepo = getRepo().getImplHelper();
+		if (implRepo != null && revlog == getRepo().getChangelog()) {
+			CommitGraph g = implRepo.getCommitGraph();
+			if (g != null && g.size() >= revisionCount) {
+				graph = g;
+			}
+		}
 	}
 	
 	private static void assertSortedIndex(int x) {
@@ -240,6 +253,7 @@ public final class HgParentChildMap<T extends Revlog> implements ParentInspector
 		assert sequential.length == firstParent.length && firstParent.length == secondParent.length;
 		// first, find earliest index of roots in question, as there's  no sense 
 		// to check children among nodes prior to branch's root node
+		final int[] rootIndexes = graph == null ? null : new int[roots.size()];
 		for (Nodeid r : roots) {
 			int x = seqWrapper.binarySearchSorted(r);
 			assertSortedIndex(x);
@@ -247,8 +261,22 @@ public final class HgParentChildMap<T extends Revlog> implements ParentInspector
 			if (i < earliestRevision) {
 				earliestRevision = i;
 			}
+			if (rootIndexes != null) {
+				rootIndexes[parents.size()] = i;
+			}
 			parents.add(sequential[i]); // add canonical instance in hope equals() is bit faster when can do a ==
 		}
+		if (graph != null && parents.size() == rootIndexes.length) {
+			// same as below, in terms of revision indexes. Roots are reported if they descend from another root
+			BitSet descendants = graph.descendants(rootIndexes);
+			for (int i = descendants.nextSetBit(earliestRevision + 1); i >= 0 && i < sequential.length; i = descendants.nextSetBit(i + 1)) {
+				int p1 = graph.parent1(i), p2 = graph.parent2(i);
+				if ((p1 != NO_REVISION && descendants.get(p1)) || (p2 != NO_REVISION && descendants.get(p2))) {
+					result.add(sequential[i]);
+				}
+			}
+			return result;
+		}
 		for (int i = earliestRevision + 1; i < sequential.length; i++) {
 			if (parents.contains(firstParent[i]) || parents.contains(secondParent[i])) {
 				parents.add(sequential[i]); // to find next child
@@ -320,6 +348,9 @@ public final class HgParentChildMap<T extends Revlog> implements ParentInspector
 		if (end <= start) {
 			return false; // potential child was in repository earlier than root
 		}
+		if (graph != null) {
+			return graph.isAncestor(start, end);
+		}
 		HashSet<Nodeid> parents = new HashSet<Nodeid>();
 		parents.add(root);
 		for (int i = start + 1; i < end; i++) {
@@ -398,6 +429,9 @@ public final class HgParentChildMap<T extends Revlog> implements ParentInspector
 		int x = seqWrapper.binarySearchSorted(nid);
 		assertSortedIndex(x);
 		int i = seqWrapper.getReverseIndex(x);
+		if (graph != null) {
+			return graph.ancestors(i);
+		}
 		BitSet rv = new BitSet(sequential.length);
 		HashSet<Nodeid> ancestors = new HashSet<Nodeid>();
 		ancestors.add(nid);
@@ -20,8 +20,13 @@ import static org.tmatesoft.hg.internal.remote.Connector.*;
 import static org.tmatesoft.hg.util.Outcome.Kind.Failure;
 import static org.tmatesoft.hg.util.Outcome.Kind.Success;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -55,6 +60,8 @@ import org.tmatesoft.hg.internal.Experimental;
 import org.tmatesoft.hg.internal.FileUtils;
 import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.PropertyMarshal;
+import org.tmatesoft.hg.internal.ReadAheadInputStream;
+import org.tmatesoft.hg.internal.remote.Batch;
 import org.tmatesoft.hg.internal.remote.Connector;
 import org.tmatesoft.hg.internal.remote.RemoteConnectorDescriptor;
 import org.tmatesoft.hg.util.Adaptable;
@@ -112,23 +119,97 @@ public class HgRemoteRepository implements SessionContext.Source {
 		}
 		try {
 			remote.sessionBegin();
-			InputStreamReader is = new InputStreamReader(remote.heads(), "US-ASCII");
-			StreamTokenizer st = new StreamTokenizer(is);
-			st.ordinaryChars('0', '9'); // wordChars performs |, hence need to 0 first
-			st.wordChars('0', '9');
-			st.eolIsSignificant(false);
-			LinkedList<Nodeid> parseResult = new LinkedList<Nodeid>();
-			while (st.nextToken() != StreamTokenizer.TT_EOF) {
-				parseResult.add(Nodeid.fromAscii(st.sval));
-			}
-			return parseResult;
+			return parseHeads(remote.heads());
 		} catch (IOException ex) {
 			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_HEADS).setServerInfo(getLocation());
 		} finally {
 			remote.sessionEnd();
 		}
 	}
+
+	/**
+	 * Tells whether few commands go to the server in a single request, which saves round-trips. Either server supports
+	 * <code>batch</code> command, or connection pipelines commands (like ssh does). 
+	 */
+	public boolean isBatchSupported() throws HgRemoteConnectionException {
+		return !isInvalid() && (remoteCapabilities.contains(CMD_BATCH) || remote.isBatchPipelined());
+	}
+
+	/**
+	 * Same as {@link #heads()} followed by {@link #known(List)}, in a single request if server supports it.
+	 * 
+	 * @param nodes revisions to check
+	 * @param known receives answer for each element of <code>nodes</code>, of the same length
+	 * @return heads of the remote repository
+	 * @throws HgRemoteConnectionException if server doesn't support <code>known</code> query or communication failed
+	 */
+	public List<Nodeid> heads(List<Nodeid> nodes, boolean[] known) throws HgRemoteConnectionException {
+		if (known.length != nodes.size()) {
+			throw new IllegalArgumentException(String.format("Room for %d answers, while asking for %d", known.length, nodes.size()));
+		}
+		if (!isKnownQuerySupported()) {
+			throw new HgRemoteConnectionException("Server doesn't support query for known revisions").setRemoteCommand(CMD_KNOWN).setServerInfo(getLocation());
+		}
+		if (nodes.isEmpty() || !isBatchSupported()) {
+			List<Nodeid> rv = heads();
+			System.arraycopy(known(nodes), 0, known, 0, known.length);
+			return rv;
+		}
+		StringBuilder sb = new StringBuilder(nodes.size() * 41);
+		for (Nodeid n : nodes) {
+			sb.append(sb.length() == 0 ? "" : " ").append(n.toString());
+		}
+		Batch batch = new Batch().add(CMD_HEADS).add(CMD_KNOWN, "nodes", sb.toString());
+		try {
+			remote.sessionBegin();
+			InputStream is = remote.batch(batch);
+			List<byte[]> answers = batch.decode(is);
+			is.close();
+			parseKnown(new ByteArrayInputStream(answers.get(1)), known);
+			return parseHeads(new ByteArrayInputStream(answers.get(0)));
+		} catch (IOException ex) {
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_BATCH).setServerInfo(getLocation());
+		} finally {
+			remote.sessionEnd();
+		}
+	}
 	
+	/**
+	 * Tells whether server answers {@link #known(List)} queries, which allow to find out common revisions 
+	 * without walking remote history with {@link #branches(List)} and {@link #between(Collection)}.
+	 */
+	public boolean isKnownQuerySupported() throws HgRemoteConnectionException {
+		return !isInvalid() && remoteCapabilities.contains(CMD_KNOWN);
+	}
+
+	/**
+	 * Ask server which of the supplied revisions it has.
+	 * 
+	 * @param nodes revisions to check
+	 * @return array of the same length as the argument, <code>true</code> for revisions known to the server
+	 * @throws HgRemoteConnectionException if server doesn't support the query (see {@link #isKnownQuerySupported()}) or communication failed 
+	 */
+	public boolean[] known(List<Nodeid> nodes) throws HgRemoteConnectionException {
+		if (!isKnownQuerySupported()) {
+			throw new HgRemoteConnectionException("Server doesn't support query for known revisions").setRemoteCommand(CMD_KNOWN).setServerInfo(getLocation());
+		}
+		final boolean[] rv = new boolean[nodes.size()];
+		if (nodes.isEmpty()) {
+			return rv;
+		}
+		try {
+			remote.sessionBegin();
+			InputStream is = remote.known(nodes);
+			parseKnown(is, rv);
+			is.close();
+			return rv;
+		} catch (IOException ex) {
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_KNOWN).setServerInfo(getLocation());
+		} finally {
+			remote.sessionEnd();
+		}
+	}
+
 	public List<Nodeid> between(Nodeid tip, Nodeid base) throws HgRemoteConnectionException {
 		Range r = new Range(base, tip);
 		// XXX shall handle errors like no range key in the returned map, not sure how.
@@ -250,23 +331,117 @@ public class HgRemoteRepository implements SessionContext.Source {
 			return null; // XXX valid retval???
 		}
 		List<Nodeid> _roots = roots.isEmpty() ? Collections.singletonList(Nodeid.NULL) : roots;
+		return loadChanges(_roots, null);
+	}
+	
+	/**
+	 * Like {@link #getChanges(List)}, but feeds the inspector with changes as they come from the server, 
+	 * without a temporary bundle file. Data is read ahead of the inspector, into a buffer of limited size, 
+	 * so that transfer continues while inspector deals with changes already received.
+	 * 
+	 * @param roots revisions to get children of, empty list means complete repository
+	 * @param inspector receives complete bundle (changelog, manifest and files), once
+	 * @throws HgRemoteConnectionException if communication with the server failed
+	 */
+	public void getChanges(List<Nodeid> roots, HgBundle.Inspector inspector) throws HgRemoteConnectionException, HgRuntimeException {
+		if (isInvalid()) {
+			return;
+		}
+		List<Nodeid> _roots = roots.isEmpty() ? Collections.singletonList(Nodeid.NULL) : roots;
+		inspectChanges(_roots, null, inspector);
+	}
+
+	/**
+	 * Tells whether server answers {@link #getBundle(List, List)} requests, which give exactly the changes missing locally, 
+	 * unlike {@link #getChanges(List)} that sends all descendants of the roots.
+	 */
+	public boolean isGetBundleSupported() throws HgRemoteConnectionException {
+		return !isInvalid() && remoteCapabilities.contains(CMD_GETBUNDLE);
+	}
+	
+	/**
+	 * Get changesets that are ancestors of <code>heads</code> but not ancestors of <code>common</code>
+	 * 
+	 * @param common revisions both local and remote repositories have, empty list means nothing is shared
+	 * @param heads remote revisions to get along with their missing ancestors 
+	 * @return bundle with changes missing locally
+	 * @throws HgRemoteConnectionException if server doesn't support the request (see {@link #isGetBundleSupported()}) or communication failed
+	 */
+	public HgBundle getBundle(List<Nodeid> common, List<Nodeid> heads) throws HgRemoteConnectionException, HgRuntimeException {
+		checkGetBundleSupported();
+		List<Nodeid> _common = common.isEmpty() ? Collections.singletonList(Nodeid.NULL) : common;
+		return loadChanges(_common, heads);
+	}
+	
+	/**
+	 * Like {@link #getBundle(List, List)}, but feeds the inspector with changes as they come from the server, 
+	 * see {@link #getChanges(List, HgBundle.Inspector)}
+	 */
+	public void getBundle(List<Nodeid> common, List<Nodeid> heads, HgBundle.Inspector inspector) throws HgRemoteConnectionException, HgRuntimeException {
+		checkGetBundleSupported();
+		List<Nodeid> _common = common.isEmpty() ? Collections.singletonList(Nodeid.NULL) : common;
+		inspectChanges(_common, heads, inspector);
+	}
+	
+	private void checkGetBundleSupported() throws HgRemoteConnectionException {
+		if (!isGetBundleSupported()) {
+			throw new HgRemoteConnectionException("Server doesn't support request for a bundle of missing changes").setRemoteCommand(CMD_GETBUNDLE).setServerInfo(getLocation());
+		}
+	}
+
+	// heads == null to use changegroup with roots, getbundle with common otherwise
+	private InputStream requestChanges(List<Nodeid> rootsOrCommon, List<Nodeid> heads) throws HgRemoteConnectionException, HgRuntimeException {
+		return heads == null ? remote.changegroup(rootsOrCommon) : remote.getbundle(rootsOrCommon, heads);
+	}
+
+	private HgBundle loadChanges(List<Nodeid> rootsOrCommon, List<Nodeid> heads) throws HgRemoteConnectionException, HgRuntimeException {
+		final String cmd = heads == null ? CMD_CHANGEGROUP : CMD_GETBUNDLE;
 		try {
 			remote.sessionBegin();
-			File tf = writeBundle(remote.changegroup(_roots));
+			File tf = writeBundle(requestChanges(rootsOrCommon, heads));
 			if (debug) {
-				System.out.printf("Wrote bundle %s for roots %s\n", tf, roots);
+				System.out.printf("Wrote bundle %s for %s %s\n", tf, heads == null ? "roots" : "common", rootsOrCommon);
 			}
 			return getLookupHelper().loadBundle(tf);
 		} catch (IOException ex) {
-			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_CHANGEGROUP).setServerInfo(getLocation());
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(cmd).setServerInfo(getLocation());
 		} catch (HgRepositoryNotFoundException ex) {
-			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_CHANGEGROUP).setServerInfo(getLocation());
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(cmd).setServerInfo(getLocation());
 		} finally {
 			remote.sessionEnd();
 		}
 	}
-	
+
+	private void inspectChanges(List<Nodeid> rootsOrCommon, List<Nodeid> heads, HgBundle.Inspector inspector) throws HgRemoteConnectionException, HgRuntimeException {
+		InputStream is = null;
+		try {
+			remote.sessionBegin();
+			// with a stream that doesn't end with the bundle (ssh), read-ahead waits for more data 
+			// until the session is closed, which happens right after the bundle is over
+			is = new ReadAheadInputStream(requestChanges(rootsOrCommon, heads), 64 * 1024, 16);
+			new HgBundle(sessionContext, is).inspectAll(inspector);
+		} catch (HgIOException ex) {
+			// inspectors report local failures with runtime exceptions, what's left is failure to read the stream
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(heads == null ? CMD_CHANGEGROUP : CMD_GETBUNDLE).setServerInfo(getLocation());
+		} finally {
+			new FileUtils(sessionContext.getLog(), this).closeQuietly(is);
+			remote.sessionEnd();
+		}
+	}
+
 	public void unbundle(HgBundle bundle, List<Nodeid> remoteHeads) throws HgRemoteConnectionException, HgRuntimeException {
+		unbundle(BundleSerializer.newInstance(sessionContext, bundle), remoteHeads);
+	}
+
+	/**
+	 * Send changes to the server as they get serialized, e.g. straight from {@link org.tmatesoft.hg.internal.BundleGenerator#stream(List)}.
+	 * Over http, content of unknown length is spooled to a temporary file first, unless chunked upload is enabled
+	 * (see {@link org.tmatesoft.hg.internal.remote.HttpConnector#CFG_PROPERTY_HTTP_CHUNKED_UPLOAD})
+	 * 
+	 * @param bundleData bundle content, {@link DataSerializer.DataSource#serializeLength() length} may be unknown
+	 * @param remoteHeads heads of the remote repository the bundle was built against
+	 */
+	public void unbundle(DataSerializer.DataSource bundleData, List<Nodeid> remoteHeads) throws HgRemoteConnectionException, HgRuntimeException {
 		if (remoteHeads == null) {
 			// TODO collect heads from bundle:
 			// bundle.inspectChangelog(new HeadCollector(for each c : if collected has c.p1 or c.p2, remove them. Add c))
@@ -276,7 +451,6 @@ public class HgRemoteRepository implements SessionContext.Source {
 		if (isInvalid()) {
 			return;
 		}
-		DataSerializer.DataSource bundleData = BundleSerializer.newInstance(sessionContext, bundle);
 		OutputStream os = null;
 		try {
 			remote.sessionBegin();
@@ -295,35 +469,116 @@ public class HgRemoteRepository implements SessionContext.Source {
 		}
 	}
 
+	/**
+	 * Tells whether remote server would stream its store files as is (see {@link #streamOut(StreamInspector)}), 
+	 * and these files are in the format this library understands.
+	 */
+	public boolean isStreamingSupported() throws HgRemoteConnectionException {
+		if (isInvalid()) {
+			return false;
+		}
+		if (remoteCapabilities.contains("stream")) {
+			// old-style capability, means revlogv1 format
+			return true;
+		}
+		final String streamreqs = "streamreqs=";
+		for (String c : remoteCapabilities) {
+			if (c.startsWith(streamreqs)) {
+				for (String r : c.substring(streamreqs.length()).split(",")) {
+					if (!"revlogv1".equals(r)) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get content of each file in the remote repository store, as is. Server response is checked to follow 
+	 * the protocol only, revisions are not verified.
+	 * 
+	 * @param inspector receives store files one by one, not <code>null</code>
+	 * @throws HgRemoteConnectionException if server refused to stream, or communication failed
+	 */
+	public void streamOut(StreamInspector inspector) throws HgRemoteConnectionException, HgRuntimeException {
+		if (!isStreamingSupported()) {
+			throw new HgRemoteConnectionException("Server doesn't support streaming").setRemoteCommand(CMD_STREAM_OUT).setServerInfo(getLocation());
+		}
+		final EncodingHelper filenameEncoding = Internals.buildFileNameEncodingHelper(this);
+		InputStream is = null;
+		try {
+			remote.sessionBegin();
+			is = new BufferedInputStream(remote.streamOut(), 64 * 1024);
+			String status = readLine(is);
+			if (!"0".equals(status)) {
+				String m;
+				if ("1".equals(status)) {
+					m = "Server forbids streaming";
+				} else if ("2".equals(status)) {
+					m = "Server failed to lock the repository for streaming";
+				} else {
+					m = String.format("Unexpected response from server: '%s'", status);
+				}
+				throw new HgRemoteConnectionException(m).setRemoteCommand(CMD_STREAM_OUT).setServerInfo(getLocation());
+			}
+			final String counts = readLine(is);
+			final int sep = counts == null ? -1 : counts.indexOf(' ');
+			if (sep == -1) {
+				throw new HgRemoteConnectionException(String.format("Unexpected response from server: '%s'", counts)).setRemoteCommand(CMD_STREAM_OUT).setServerInfo(getLocation());
+			}
+			final int fileCount = Integer.parseInt(counts.substring(0, sep));
+			final long totalBytes = Long.parseLong(counts.substring(sep + 1));
+			inspector.start(fileCount, totalBytes);
+			long bytesSeen = 0;
+			for (int i = 0; i < fileCount; i++) {
+				final byte[] entry = readLineBytes(is);
+				int zero = entry == null ? -1 : 0;
+				while (zero != -1 && zero < entry.length && entry[zero] != 0) {
+					zero++;
+				}
+				if (zero == -1 || zero == entry.length) {
+					String m = String.format("Bad store entry: '%s'", entry == null ? null : new String(entry, "US-ASCII"));
+					throw new HgRemoteConnectionException(m).setRemoteCommand(CMD_STREAM_OUT).setServerInfo(getLocation());
+				}
+				final String storePath = decodeDir(filenameEncoding.fromBundle(entry, 0, zero));
+				final long size = Long.parseLong(new String(entry, zero + 1, entry.length - zero - 1, "US-ASCII"));
+				final LimitedInputStream content = new LimitedInputStream(is, size);
+				if (!inspector.file(storePath, size, content)) {
+					return;
+				}
+				if (content.left() > 0) {
+					throw new HgRemoteConnectionException(String.format("%d bytes of %s were not consumed", content.left(), storePath)).setRemoteCommand(CMD_STREAM_OUT).setServerInfo(getLocation());
+				}
+				bytesSeen += size;
+			}
+			if (bytesSeen != totalBytes) {
+				String m = String.format("Server announced %d bytes, sent %d", totalBytes, bytesSeen);
+				throw new HgRemoteConnectionException(m).setRemoteCommand(CMD_STREAM_OUT).setServerInfo(getLocation());
+			}
+			inspector.end();
+		} catch (NumberFormatException ex) {
+			throw new HgRemoteConnectionException("Unexpected response from server", ex).setRemoteCommand(CMD_STREAM_OUT).setServerInfo(getLocation());
+		} catch (IOException ex) {
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_STREAM_OUT).setServerInfo(getLocation());
+		} finally {
+			new FileUtils(sessionContext.getLog(), this).closeQuietly(is);
+			remote.sessionEnd();
+		}
+	}
+
 	public Bookmarks getBookmarks() throws HgRemoteConnectionException, HgRuntimeException {
 		initCapabilities();
 		if (!remoteCapabilities.contains(CMD_PUSHKEY)) { // (sic!) listkeys is available when pushkey in caps
 			return new Bookmarks(Collections.<Pair<String, Nodeid>>emptyList());
 		}
 		final String actionName = "Get remote bookmarks";
-		final List<Pair<String, String>> values = listkeys("bookmarks", actionName);
-		ArrayList<Pair<String, Nodeid>> rv = new ArrayList<Pair<String, Nodeid>>();
-		for (Pair<String, String> l : values) {
-			if (l.second().length() != Nodeid.SIZE_ASCII) {
-				sessionContext.getLog().dump(getClass(), Severity.Warn, "%s: bad nodeid '%s', ignored", actionName, l.second());
-				continue;
-			}
-			Nodeid n = Nodeid.fromAscii(l.second());
-			String bm = new String(l.first());
-			rv.add(new Pair<String, Nodeid>(bm, n));
-		}
-		return new Bookmarks(rv);
+		return bookmarks(listkeys(NS_BOOKMARKS, actionName), actionName);
 	}
 
 	public Outcome updateBookmark(String name, Nodeid oldRev, Nodeid newRev) throws HgRemoteConnectionException, HgRuntimeException {
-		initCapabilities();
-		if (!remoteCapabilities.contains(CMD_PUSHKEY)) {
-			return new Outcome(Failure, "Server doesn't support pushkey protocol");
-		}
-		if (pushkey("Update remote bookmark", NS_BOOKMARKS, name, oldRev.toString(), newRev.toString())) {
-			return new Outcome(Success, String.format("Bookmark %s updated to %s", name, newRev.shortNotation()));
-		}
-		return new Outcome(Failure, String.format("Bookmark update (%s: %s -> %s) failed", name, oldRev.shortNotation(), newRev.shortNotation()));
+		return update(new KeyUpdates().bookmark(name, oldRev, newRev)).get(0);
 	}
 	
 	public Phases getPhases() throws HgRemoteConnectionException, HgRuntimeException {
@@ -332,35 +587,95 @@ public class HgRemoteRepository implements SessionContext.Source {
 			// old server defaults to publishing
 			return new Phases(true, Collections.<Nodeid>emptyList());
 		}
-		final List<Pair<String, String>> values = listkeys(NS_PHASES, "Get remote phases");
-		boolean publishing = false;
-		ArrayList<Nodeid> draftRoots = new ArrayList<Nodeid>();
-		for (Pair<String, String> l : values) {
-			if ("publishing".equalsIgnoreCase(l.first())) {
-				publishing = Boolean.parseBoolean(l.second());
-				continue;
-			}
-			Nodeid root = Nodeid.fromAscii(l.first());
-			int ph = Integer.parseInt(l.second());
-			if (ph == HgPhase.Draft.mercurialOrdinal()) {
-				draftRoots.add(root);
-			} else {
-				assert false;
-				sessionContext.getLog().dump(getClass(), Severity.Error, "Unexpected phase value %d for revision %s", ph, root);
-			}
-		}
-		return new Phases(publishing, draftRoots);
+		return phases(listkeys(NS_PHASES, "Get remote phases"));
 	}
 	
 	public Outcome updatePhase(HgPhase from, HgPhase to, Nodeid n) throws HgRemoteConnectionException, HgRuntimeException {
+		return update(new KeyUpdates().phase(from, to, n)).get(0);
+	}
+
+	/**
+	 * Same as {@link #getPhases()} followed by {@link #getBookmarks()}, in a single request if server supports it.
+	 * 
+	 * @return remote phases and bookmarks
+	 */
+	public Pair<Phases, Bookmarks> getPhasesAndBookmarks() throws HgRemoteConnectionException, HgRuntimeException {
+		initCapabilities();
+		if (!remoteCapabilities.contains(CMD_PUSHKEY) || !isBatchSupported()) {
+			return new Pair<Phases, Bookmarks>(getPhases(), getBookmarks());
+		}
+		final String actionName = "Get remote phases and bookmarks";
+		Batch batch = new Batch().add(CMD_LISTKEYS, "namespace", NS_PHASES).add(CMD_LISTKEYS, "namespace", NS_BOOKMARKS);
+		try {
+			remote.sessionBegin();
+			InputStream is = remote.batch(batch);
+			List<byte[]> answers = batch.decode(is);
+			is.close();
+			Phases phases = phases(parseKeys(new ByteArrayInputStream(answers.get(0)), actionName));
+			Bookmarks bookmarks = bookmarks(parseKeys(new ByteArrayInputStream(answers.get(1)), actionName), actionName);
+			return new Pair<Phases, Bookmarks>(phases, bookmarks);
+		} catch (IOException ex) {
+			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_BATCH).setServerInfo(getLocation());
+		} finally {
+			remote.sessionEnd();
+		}
+	}
+
+	/**
+	 * Send few phase and bookmark updates at once, in a single request if server supports it.
+	 * Each update succeeds or fails on its own.
+	 * 
+	 * @param updates changes to remote keys
+	 * @return outcome of each update, in the order updates were added
+	 */
+	public List<Outcome> update(KeyUpdates updates) throws HgRemoteConnectionException, HgRuntimeException {
+		final int n = updates.size();
+		ArrayList<Outcome> rv = new ArrayList<Outcome>(n);
+		if (n == 0) {
+			return rv;
+		}
 		initCapabilities();
 		if (!remoteCapabilities.contains(CMD_PUSHKEY)) {
-			return new Outcome(Failure, "Server doesn't support pushkey protocol");
+			for (int i = 0; i < n; i++) {
+				rv.add(new Outcome(Failure, "Server doesn't support pushkey protocol"));
+			}
+			return rv;
+		}
+		final boolean[] updated = new boolean[n];
+		if (n == 1 || !isBatchSupported()) {
+			try {
+				remote.sessionBegin();
+				for (int i = 0; i < n; i++) {
+					final String[] k = updates.keys.get(i);
+					updated[i] = pushkey(updates.actions.get(i), k[0], k[1], k[2], k[3]);
+				}
+			} finally {
+				remote.sessionEnd();
+			}
+		} else {
+			Batch batch = new Batch();
+			for (String[] k : updates.keys) {
+				batch.add(CMD_PUSHKEY, "namespace", k[0], "key", k[1], "old", k[2], "new", k[3]);
+			}
+			try {
+				remote.sessionBegin();
+				InputStream is = remote.batch(batch);
+				List<byte[]> answers = batch.decode(is);
+				is.close();
+				for (int i = 0; i < n; i++) {
+					final byte[] a = answers.get(i);
+					updated[i] = a.length > 0 && a[0] == '1';
+				}
+			} catch (IOException ex) {
+				throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_BATCH).setServerInfo(getLocation());
+			} finally {
+				remote.sessionEnd();
+			}
 		}
-		if (pushkey("Update remote phases", NS_PHASES, n.toString(), String.valueOf(from.mercurialOrdinal()), String.valueOf(to.mercurialOrdinal()))) {
-			return new Outcome(Success, String.format("Phase of %s updated to %s", n.shortNotation(), to.name()));
+		for (int i = 0; i < n; i++) {
+			rv.add(updated[i] ? updates.success.get(i) : updates.failure.get(i));
 		}
-		return new Outcome(Failure, String.format("Phase update (%s: %s -> %s) failed", n.shortNotation(), from.name(), to.name()));
+		return rv;
 	}
 
 	@Override
@@ -398,27 +713,65 @@ public class HgRemoteRepository implements SessionContext.Source {
 	private List<Pair<String,String>> listkeys(String namespace, String actionName) throws HgRemoteConnectionException, HgRuntimeException {
 		try {
 			remote.sessionBegin();
-			ArrayList<Pair<String, String>> rv = new ArrayList<Pair<String, String>>();
 			InputStream response = remote.listkeys(namespace, actionName);
-			// output of listkeys is encoded with UTF-8
-			BufferedReader r = new BufferedReader(new InputStreamReader(response, EncodingHelper.getUTF8()));
-			String l;
-			while ((l = r.readLine()) != null) {
-				int sep = l.indexOf('\t');
-				if (sep == -1) {
-					sessionContext.getLog().dump(getClass(), Severity.Warn, "%s: bad line '%s', ignored", actionName, l);
-					continue;
-				}
-				rv.add(new Pair<String,String>(l.substring(0, sep), l.substring(sep+1)));
-			}
-			r.close();
-			return rv;
+			return parseKeys(response, actionName);
 		} catch (IOException ex) {
 			throw new HgRemoteConnectionException("Communication failure", ex).setRemoteCommand(CMD_LISTKEYS).setServerInfo(getLocation());
 		} finally {
 			remote.sessionEnd();
 		}
 	}
+
+	private List<Pair<String, String>> parseKeys(InputStream response, String actionName) throws IOException {
+		ArrayList<Pair<String, String>> rv = new ArrayList<Pair<String, String>>();
+		// output of listkeys is encoded with UTF-8
+		BufferedReader r = new BufferedReader(new InputStreamReader(response, EncodingHelper.getUTF8()));
+		String l;
+		while ((l = r.readLine()) != null) {
+			int sep = l.indexOf('\t');
+			if (sep == -1) {
+				sessionContext.getLog().dump(getClass(), Severity.Warn, "%s: bad line '%s', ignored", actionName, l);
+				continue;
+			}
+			rv.add(new Pair<String,String>(l.substring(0, sep), l.substring(sep+1)));
+		}
+		r.close();
+		return rv;
+	}
+
+	private Bookmarks bookmarks(List<Pair<String, String>> values, String actionName) {
+		ArrayList<Pair<String, Nodeid>> rv = new ArrayList<Pair<String, Nodeid>>();
+		for (Pair<String, String> l : values) {
+			if (l.second().length() != Nodeid.SIZE_ASCII) {
+				sessionContext.getLog().dump(getClass(), Severity.Warn, "%s: bad nodeid '%s', ignored", actionName, l.second());
+				continue;
+			}
+			Nodeid n = Nodeid.fromAscii(l.second());
+			String bm = new String(l.first());
+			rv.add(new Pair<String, Nodeid>(bm, n));
+		}
+		return new Bookmarks(rv);
+	}
+
+	private Phases phases(List<Pair<String, String>> values) {
+		boolean publishing = false;
+		ArrayList<Nodeid> draftRoots = new ArrayList<Nodeid>();
+		for (Pair<String, String> l : values) {
+			if ("publishing".equalsIgnoreCase(l.first())) {
+				publishing = Boolean.parseBoolean(l.second());
+				continue;
+			}
+			Nodeid root = Nodeid.fromAscii(l.first());
+			int ph = Integer.parseInt(l.second());
+			if (ph == HgPhase.Draft.mercurialOrdinal()) {
+				draftRoots.add(root);
+			} else {
+				assert false;
+				sessionContext.getLog().dump(getClass(), Severity.Error, "Unexpected phase value %d for revision %s", ph, root);
+			}
+		}
+		return new Phases(publishing, draftRoots);
+	}
 	
 	private boolean pushkey(String opName, String namespace, String key, String oldValue, String newValue) throws HgRemoteConnectionException, HgRuntimeException {
 		try {
@@ -434,6 +787,65 @@ public class HgRemoteRepository implements SessionContext.Source {
 		}
 	}
 	
+	private static List<Nodeid> parseHeads(InputStream response) throws IOException {
+		InputStreamReader is = new InputStreamReader(response, "US-ASCII");
+		StreamTokenizer st = new StreamTokenizer(is);
+		st.ordinaryChars('0', '9'); // wordChars performs |, hence need to 0 first
+		st.wordChars('0', '9');
+		st.eolIsSignificant(false);
+		LinkedList<Nodeid> parseResult = new LinkedList<Nodeid>();
+		while (st.nextToken() != StreamTokenizer.TT_EOF) {
+			parseResult.add(Nodeid.fromAscii(st.sval));
+		}
+		return parseResult;
+	}
+
+	private void parseKnown(InputStream response, boolean[] rv) throws IOException, HgRemoteConnectionException {
+		int i = 0, c;
+		while ((c = response.read()) != -1) {
+			if (c == '\n') {
+				break;
+			}
+			if ((c != '0' && c != '1') || i == rv.length) {
+				throw new HgRemoteConnectionException(String.format("Unexpected response from server at position %d: '%c'", i, (char) c)).setRemoteCommand(CMD_KNOWN).setServerInfo(getLocation());
+			}
+			rv[i++] = c == '1';
+		}
+		if (i != rv.length) {
+			String m = String.format("Server answered for %d revisions out of %d", i, rv.length);
+			throw new HgRemoteConnectionException(m).setRemoteCommand(CMD_KNOWN).setServerInfo(getLocation());
+		}
+	}
+
+	private static String readLine(InputStream is) throws IOException {
+		byte[] line = readLineBytes(is);
+		return line == null ? null : new String(line, "US-ASCII");
+	}
+
+	// line of unknown length, in a stream we can't wrap with a reader
+	private static byte[] readLineBytes(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = is.read()) != '\n') {
+			if (b == -1) {
+				if (bos.size() == 0) {
+					return null;
+				}
+				throw new EOFException();
+			}
+			bos.write(b);
+		}
+		return bos.toByteArray();
+	}
+
+	// reverse of mercurial.store.encodedir, which is applied to names of streamed files
+	private static String decodeDir(String path) {
+		if (path.indexOf(".hg/") == -1) {
+			return path;
+		}
+		return path.replace(".d.hg/", ".d/").replace(".i.hg/", ".i/").replace(".hg.hg/", ".hg/");
+	}
+
 	private File writeBundle(InputStream is) throws IOException {
 		File tf = File.createTempFile("hg4j-bundle-", null);
 		new FileUtils(sessionContext.getLog(), this).write(is, tf);
@@ -549,6 +961,124 @@ public class HgRemoteRepository implements SessionContext.Source {
 		}
 	}
 
+	/**
+	 * Changes to remote phases and bookmarks, to send at once with {@link HgRemoteRepository#update(KeyUpdates)}
+	 */
+	public static final class KeyUpdates {
+		// namespace, key, old and new value
+		private final List<String[]> keys = new ArrayList<String[]>();
+		private final List<String> actions = new ArrayList<String>();
+		private final List<Outcome> success = new ArrayList<Outcome>();
+		private final List<Outcome> failure = new ArrayList<Outcome>();
+
+		public KeyUpdates bookmark(String name, Nodeid oldRev, Nodeid newRev) {
+			keys.add(new String[] {NS_BOOKMARKS, name, oldRev.toString(), newRev.toString()});
+			actions.add("Update remote bookmark");
+			success.add(new Outcome(Success, String.format("Bookmark %s updated to %s", name, newRev.shortNotation())));
+			failure.add(new Outcome(Failure, String.format("Bookmark update (%s: %s -> %s) failed", name, oldRev.shortNotation(), newRev.shortNotation())));
+			return this;
+		}
+
+		public KeyUpdates phase(HgPhase from, HgPhase to, Nodeid n) {
+			keys.add(new String[] {NS_PHASES, n.toString(), String.valueOf(from.mercurialOrdinal()), String.valueOf(to.mercurialOrdinal())});
+			actions.add("Update remote phases");
+			success.add(new Outcome(Success, String.format("Phase of %s updated to %s", n.shortNotation(), to.name())));
+			failure.add(new Outcome(Failure, String.format("Phase update (%s: %s -> %s) failed", n.shortNotation(), from.name(), to.name())));
+			return this;
+		}
+
+		public int size() {
+			return keys.size();
+		}
+
+		public boolean isEmpty() {
+			return keys.isEmpty();
+		}
+	}
+
+	/**
+	 * Client of {@link HgRemoteRepository#streamOut(StreamInspector)}
+	 * @since 1.2
+	 */
+	@Experimental(reason="Provisional API. Work in progress")
+	public interface StreamInspector {
+		/**
+		 * @param fileCount number of files to follow
+		 * @param totalBytes total size of the files
+		 */
+		void start(int fileCount, long totalBytes) throws HgRuntimeException;
+
+		/**
+		 * @param storePath name of the file relative to repository store, not encoded, e.g. <samp>00changelog.i</samp> or <samp>data/dir/file.txt.d</samp>
+		 * @param size file length
+		 * @param content stream of file content, exactly <code>size</code> bytes long, shall get read completely
+		 * @return <code>true</code> to continue with the next file, <code>false</code> to stop
+		 * @throws IOException if failed to read the content 
+		 */
+		boolean file(String storePath, long size, InputStream content) throws IOException, HgRuntimeException;
+
+		/**
+		 * All files were received
+		 */
+		void end() throws HgRuntimeException;
+	}
+
+	private static final class LimitedInputStream extends FilterInputStream {
+		private long left;
+
+		public LimitedInputStream(InputStream is, long length) {
+			super(is);
+			left = length;
+		}
+
+		public long left() {
+			return left;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), left);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (left == 0) {
+				return -1;
+			}
+			int r = super.read();
+			if (r == -1) {
+				throw new EOFException();
+			}
+			left--;
+			return r;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (left == 0) {
+				return -1;
+			}
+			int r = super.read(b, off, (int) Math.min(len, left));
+			if (r == -1) {
+				throw new EOFException();
+			}
+			left -= r;
+			return r;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long r = super.skip(Math.min(n, left));
+			left -= r;
+			return r;
+		}
+
+		@Override
+		public void close() {
+			// shared stream, INTENTIONALLY DOES NOT CLOSE
+		}
+	}
+
 	/**
 	 * Session context  ({@link SessionContext#getRemoteDescriptor(URI)} gives descriptor of remote when asked.
 	 * Clients may supply own descriptors e.g. if need to pass extra information into Authenticator. 
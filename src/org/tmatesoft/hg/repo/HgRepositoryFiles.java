@@ -34,6 +34,7 @@ public enum HgRepositoryFiles {
 	UndoBranch(Home.Repo, "undo.branch"), UndoDirstate(Home.Repo, "undo.dirstate"),
 	Phaseroots(Home.Store, "phaseroots"), FNCache(Home.Store, "fncache"),
 	WorkingCopyLock(Home.Repo, "wlock"), StoreLock(Home.Store, "lock"),
+	Journal(Home.Store, "journal"),
 	MergeState(Home.Repo, "merge/state"),
 	RepoConfig(Home.Repo, "hgrc");
 
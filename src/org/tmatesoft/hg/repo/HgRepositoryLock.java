@@ -24,9 +24,11 @@ import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
 
 import org.tmatesoft.hg.core.HgRepositoryLockException;
 import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.RepositoryLockManager;
 
 /**
  * <p>Usage:
@@ -49,8 +51,13 @@ import org.tmatesoft.hg.internal.Internals;
  * 
  * Unlike original mechanism, we don't use symlinks, rather files, as it's easier to implement
  * 
+ * <p>Threads of the same JVM that lock the same repository (even through distinct {@link HgRepository} instances)
+ * queue up in order of their arrival, and lock file, once created, is kept for the next thread in the queue, 
+ * see {@link #getStatistics()} for the effect.
+ * 
  * <p>
- * NOT SAFE FOR MULTITHREAD USE!
+ * Instance of the lock may be shared by threads (as {@link HgRepository} does), lock is held by a thread that
+ * acquired it, and shall be released by the same thread.
  * 
  * @see http://code.google.com/p/hg4j/issues/detail?id=35
  * @since 1.1
@@ -64,8 +71,8 @@ public class HgRepositoryLock {
 	 */
 
 	private final File lockFile;
-	private int use = 0;
 	private final int timeoutSeconds;
+	private RepositoryLockManager.Entry inProcessLock;
 	
 	 HgRepositoryLock(File lock, int timeoutInSeconds) {
 		lockFile = lock;
@@ -91,10 +98,10 @@ public class HgRepositoryLock {
 	}
 	
 	/**
-	 * @return <code>true</code> if we hold the lock
+	 * @return <code>true</code> if current thread holds the lock
 	 */
 	public boolean isLocked() {
-		return use > 0;
+		return getInProcessLock().isHeldByCurrentThread();
 	}
 
 	/**
@@ -103,26 +110,31 @@ public class HgRepositoryLock {
 	 * immediately.
 	 * 
 	 * <p>Multiple calls are possible, but corresponding number of {@link #release()} 
-	 * calls shall be made.
+	 * calls shall be made by the same thread.
 	 * @throws HgRepositoryLockException if failed to grab a lock
 	 */
 	public void acquire() throws HgRepositoryLockException {
-		if (use > 0) {
-			use++;
-			return;
-		}
 		StringBuilder lockDescription = new StringBuilder();
 		lockDescription.append(getHostname());
 		lockDescription.append(':');
 		lockDescription.append(getPid());
 		byte[] bytes = lockDescription.toString().getBytes();
 		long stopTime = timeoutSeconds < 0 ? -1 : (System.currentTimeMillis() + timeoutSeconds*1000);
+		final RepositoryLockManager.Entry lock = getInProcessLock();
+		if (!lock.enter(timeoutSeconds < 0 ? -1 : timeoutSeconds * 1000L)) {
+			String msg = String.format("Failed to aquire lock, waited for %d seconds for another thread of this process", timeoutSeconds);
+			throw new HgRepositoryLockException(msg);
+		}
+		if (lock.isFileHeld()) {
+			// nested acquire, or previous holder in this process has left the file for us
+			return;
+		}
 		do {
 			synchronized(this) {
 				try {
 					if (lockFile.createNewFile()) {
 						write(lockFile, bytes);
-						use++;
+						lock.fileAcquired();
 						return;
 					}
 				} catch (IOException ex) {
@@ -136,24 +148,38 @@ public class HgRepositoryLock {
 			}
 			
 		} while (stopTime == -1/*no timeout*/ || System.currentTimeMillis() <= stopTime);
+		lock.exit();
 		String msg = String.format("Failed to aquire lock, waited for %d seconds, present owner: '%s'", timeoutSeconds, readLockInfo());
 		throw new HgRepositoryLockException(msg);
 	}
 	
 	/**
 	 * Release lock we own
-	 * @throws HgRepositoryLockException if there's no evidence we do own a lock
+	 * @throws HgRepositoryLockException if there's no evidence current thread does own a lock
 	 */
 	public void release() throws HgRepositoryLockException {
-		if (use == 0) {
+		final RepositoryLockManager.Entry lock = getInProcessLock();
+		if (!lock.isHeldByCurrentThread()) {
 			throw new HgRepositoryLockException("Lock is not held!");
 		}
-		use--;
-		if (use > 0) {
-			return;
+		// once released as many times as acquired, lock file goes away unless another thread of this process waits for it
+		lock.exit();
+	}
+
+	/**
+	 * Figures of the lock shared by threads of this process that lock the same repository
+	 * @return snapshot of lock statistics, never <code>null</code>
+	 * @since 1.2
+	 */
+	public Statistics getStatistics() {
+		return new Statistics(getInProcessLock());
+	}
+
+	private synchronized RepositoryLockManager.Entry getInProcessLock() {
+		if (inProcessLock == null) {
+			inProcessLock = RepositoryLockManager.getInstance().get(lockFile);
 		}
-		// do release
-		lockFile.delete();
+		return inProcessLock;
 	}
 
 	protected String getHostname() {
@@ -185,6 +211,69 @@ public class HgRepositoryLock {
 		}
 	}
 
+	/**
+	 * Lock usage by threads of this process
+	 * @since 1.2
+	 */
+	public static final class Statistics {
+		private final int acquisitions, contended, fileAcquisitions;
+		private final long waitNanos, maxWaitNanos, holdNanos;
+
+		Statistics(RepositoryLockManager.Entry lock) {
+			synchronized (lock) {
+				acquisitions = lock.getAcquisitions();
+				contended = lock.getContendedAcquisitions();
+				fileAcquisitions = lock.getFileAcquisitions();
+				waitNanos = lock.getWaitTime();
+				maxWaitNanos = lock.getMaxWaitTime();
+				holdNanos = lock.getHoldTime();
+			}
+		}
+
+		/**
+		 * @return number of times the lock was taken, not counting nested {@link HgRepositoryLock#acquire()} calls
+		 */
+		public int getAcquisitions() {
+			return acquisitions;
+		}
+
+		/**
+		 * @return number of times a thread had to wait for another thread to release the lock
+		 */
+		public int getContendedAcquisitions() {
+			return contended;
+		}
+
+		/**
+		 * @return number of times lock file was created. Less than {@link #getAcquisitions()} when lock file got handed over
+		 * 	from one thread to another without being deleted
+		 */
+		public int getFileAcquisitions() {
+			return fileAcquisitions;
+		}
+
+		/**
+		 * @return total time threads waited for each other, in given units
+		 */
+		public long getWaitTime(TimeUnit unit) {
+			return unit.convert(waitNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * @return longest time a thread waited for another one, in given units
+		 */
+		public long getMaxWaitTime(TimeUnit unit) {
+			return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * @return total time the lock was held, in given units, not counting present holder, if any
+		 */
+		public long getHoldTime(TimeUnit unit) {
+			return unit.convert(holdNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
 	private static void write(File f, byte[] content) throws IOException {
 		FileOutputStream fos = new FileOutputStream(f);
 		fos.write(content);
@@ -26,7 +26,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeSet;
@@ -66,6 +68,8 @@ public class HgWorkingCopyStatusCollector {
 	private HgStatusCollector baseRevisionCollector;
 	private Convertor<Path> pathPool;
 	private ManifestRevision dirstateParentManifest;
+	// file content goes through filters chunk by chunk, same buffer serves all files compared
+	private ByteBuffer compareBuffer;
 
 	/**
 	 * Collector that iterates over complete working copy
@@ -564,8 +568,11 @@ public class HgWorkingCopyStatusCollector {
 		Check check = new Check(); 
 		try {
 			is = f.newInputChannel();
-//			ByteBuffer fb = ByteBuffer.allocate(min(1 + data.length * 2 /*to fit couple of lines appended; never zero*/, 8192));
-			ByteBuffer fb = ByteBuffer.allocate(8192); // FIXME temp fix to ensure big enough buffer for KeywordFilter
+			if (compareBuffer == null) {
+				compareBuffer = ByteBuffer.allocate(8192);
+			}
+			ByteBuffer fb = compareBuffer;
+			fb.clear();
 			FilterByteChannel filters = new FilterByteChannel(check, repo.getFiltersFromWorkingDirToRepo(p));
 			Preview preview = Adaptable.Factory.getAdapter(filters, Preview.class, null);
 			if (preview != null) {
@@ -588,6 +595,9 @@ public class HgWorkingCopyStatusCollector {
 				filters.write(fb);
 				fb.compact();
 			}
+			if (check.sameSoFar()) {
+				filters.flush();
+			}
 			return check.ultimatelyTheSame();
 		} catch (CancelledException ex) {
 			repo.getSessionContext().getLog().dump(getClass(), Warn, ex, "Unexpected cancellation");
@@ -680,6 +690,7 @@ public class HgWorkingCopyStatusCollector {
 	private static class FileListIterator implements FileIterator {
 		private final File dir;
 		private final Path[] paths;
+		private final Set<Path> scope;
 		private int index;
 		private RegularFileInfo nextFile;
 		private final boolean execCap, linkCap;
@@ -689,6 +700,8 @@ public class HgWorkingCopyStatusCollector {
 			sessionContext = ctx;
 			dir = startDir;
 			paths = files;
+			// status checks each dirstate entry, lookup shall not depend on number of files
+			scope = new HashSet<Path>(Arrays.asList(files));
 			reset();
 			execCap = Internals.checkSupportsExecutables(startDir);
 			linkCap = Internals.checkSupportsSymlinks(startDir);
@@ -720,12 +733,7 @@ public class HgWorkingCopyStatusCollector {
 		}
 
 		public boolean inScope(Path file) {
-			for (int i = 0; i < paths.length; i++) {
-				if (paths[i].equals(file)) {
-					return true;
-				}
-			}
-			return false;
+			return scope.contains(file);
 		}
 		
 		public boolean supportsExecFlag() {
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process HTTP server that answers wire protocol commands with responses supplied by a test,
+ * for the tests that can't rely on presence of hg executable.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+class StandInServer {
+	private final Map<String, Command> commands = new HashMap<String, Command>();
+	private final Map<String, Integer> requests = new HashMap<String, Integer>();
+	private final Set<InetSocketAddress> clients = new HashSet<InetSocketAddress>();
+	private final Map<String, byte[]> bodies = new HashMap<String, byte[]>();
+	private final Set<String> chunked = new HashSet<String>();
+	private final String capabilities;
+	private boolean lengthRequired = false;
+	private HttpServer server;
+
+	public interface Command {
+		/**
+		 * @param args command arguments, from query string or form-encoded request body
+		 * @return response body
+		 */
+		byte[] respond(Map<String, String> args) throws IOException;
+	}
+
+	public StandInServer(String caps) {
+		capabilities = caps;
+	}
+
+	public StandInServer command(String name, Command cmd) {
+		commands.put(name, cmd);
+		return this;
+	}
+
+	public StandInServer command(String name, final byte[] response) {
+		return command(name, new Command() {
+			public byte[] respond(Map<String, String> args) {
+				return response;
+			}
+		});
+	}
+
+	/**
+	 * Refuse requests with body of unknown length, like hgweb does, as it reads request body by its <code>Content-Length</code>
+	 */
+	public StandInServer requireContentLength() {
+		lengthRequired = true;
+		return this;
+	}
+
+	public StandInServer start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+
+			public void handle(HttpExchange exchange) throws IOException {
+				synchronized (clients) {
+					clients.add(exchange.getRemoteAddress());
+				}
+				Map<String, String> args = new HashMap<String, String>();
+				parseArgs(exchange.getRequestURI().getRawQuery(), args);
+				byte[] body = null;
+				if (lengthRequired && "POST".equals(exchange.getRequestMethod()) && exchange.getRequestHeaders().getFirst("Content-Length") == null) {
+					read(exchange.getRequestBody());
+					exchange.sendResponseHeaders(411, -1); // Length Required
+					exchange.close();
+					return;
+				}
+				if ("POST".equals(exchange.getRequestMethod())) {
+					body = read(exchange.getRequestBody());
+					if (!"application/mercurial-0.1".equals(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+						parseArgs(new String(body, "US-ASCII"), args);
+						body = null;
+					}
+				}
+				final String cmd = args.get("cmd");
+				if (body != null) {
+					// e.g. bundle for unbundle command
+					synchronized (bodies) {
+						bodies.put(cmd, body);
+						if ("chunked".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Transfer-Encoding"))) {
+							chunked.add(cmd);
+						}
+					}
+				}
+				byte[] response;
+				if (cmd == null) {
+					// plain request to check the server is there
+					response = "<html>repository</html>".getBytes(); // like hgweb, with some page
+				} else if ("hello".equals(cmd) || "capabilities".equals(cmd)) {
+					response = ("capabilities: " + capabilities + "\n").getBytes();
+				} else if ("batch".equals(cmd) && capabilities.contains("batch")) {
+					response = batch(args.get("cmds"));
+				} else if (commands.containsKey(cmd)) {
+					response = commands.get(cmd).respond(args);
+				} else {
+					response = null;
+				}
+				if (cmd != null) {
+					synchronized (requests) {
+						Integer count = requests.get(cmd);
+						requests.put(cmd, count == null ? 1 : count + 1);
+					}
+				}
+				if (response == null) {
+					exchange.sendResponseHeaders(404, -1);
+					exchange.close();
+					return;
+				}
+				exchange.getResponseHeaders().add("Content-Type", "application/mercurial-0.1");
+				exchange.sendResponseHeaders(200, response.length == 0 ? -1 : response.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(response);
+				os.close();
+			}
+		});
+		server.start();
+		return this;
+	}
+
+	public URL getURL() throws IOException {
+		return new URL("http", "localhost", server.getAddress().getPort(), "/repo");
+	}
+
+	/**
+	 * @return number of times the command was requested
+	 */
+	public int requestCount(String cmd) {
+		synchronized (requests) {
+			Integer count = requests.get(cmd);
+			return count == null ? 0 : count;
+		}
+	}
+
+	/**
+	 * @return body of the last request of the command, if it came as is (not as form parameters)
+	 */
+	public byte[] requestBody(String cmd) {
+		synchronized (bodies) {
+			return bodies.get(cmd);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the last request of the command came in chunks, without known length
+	 */
+	public boolean isChunked(String cmd) {
+		synchronized (bodies) {
+			return chunked.contains(cmd);
+		}
+	}
+
+	/**
+	 * @return number of distinct client connections server has seen
+	 */
+	public int connectionCount() {
+		synchronized (clients) {
+			return clients.size();
+		}
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	private byte[] batch(String cmds) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		String[] batch = cmds.split(";");
+		for (int i = 0; i < batch.length; i++) {
+			final String c = batch[i];
+			int space = c.indexOf(' ');
+			String name = space == -1 ? c : c.substring(0, space);
+			Map<String, String> args = new HashMap<String, String>();
+			if (space != -1 && space + 1 < c.length()) {
+				for (String pair : c.substring(space + 1).split(",")) {
+					int eq = pair.indexOf('=');
+					args.put(unescape(pair.substring(0, eq)), unescape(pair.substring(eq + 1)));
+				}
+			}
+			if (!commands.containsKey(name)) {
+				return null;
+			}
+			if (i > 0) {
+				bos.write(';');
+			}
+			for (byte b : commands.get(name).respond(args)) {
+				switch (b) {
+				case ':' : bos.write(":c".getBytes()); break;
+				case ',' : bos.write(":o".getBytes()); break;
+				case ';' : bos.write(":s".getBytes()); break;
+				case '=' : bos.write(":e".getBytes()); break;
+				default : bos.write(b);
+				}
+			}
+		}
+		return bos.toByteArray();
+	}
+
+	private static String unescape(String s) {
+		return s.replace(":e", "=").replace(":s", ";").replace(":o", ",").replace(":c", ":");
+	}
+
+	private static void parseArgs(String s, Map<String, String> args) throws IOException {
+		if (s == null || s.length() == 0) {
+			return;
+		}
+		for (String pair : s.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq == -1) {
+				args.put(URLDecoder.decode(pair, "US-ASCII"), "");
+			} else {
+				args.put(URLDecoder.decode(pair.substring(0, eq), "US-ASCII"), URLDecoder.decode(pair.substring(eq + 1), "US-ASCII"));
+			}
+		}
+	}
+
+	static byte[] read(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int r;
+		while ((r = is.read(buf)) != -1) {
+			bos.write(buf, 0, r);
+		}
+		is.close();
+		return bos.toByteArray();
+	}
+}
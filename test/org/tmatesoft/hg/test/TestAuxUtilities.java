@@ -23,7 +23,9 @@ import static org.tmatesoft.hg.util.Path.CompareResult.*;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Rule;
@@ -404,6 +406,35 @@ public class TestAuxUtilities {
 		Assert.assertTrue(s.equals(r2));
 	}
 
+	/**
+	 * Changesets decoded on demand, long after changelog iteration is over, shall match those decoded right away
+	 */
+	@Test
+	public void testLazyChangesetDecode() throws Exception {
+		HgRepository repo = Configuration.get().find("branches-1");
+		final List<RawChangeset> eager = repo.getChangelog().range(0, TIP);
+		final ArrayList<RawChangeset> lazy = new ArrayList<RawChangeset>();
+		repo.getChangelog().all(new HgChangelog.Inspector() {
+
+			public void next(int revisionIndex, Nodeid nodeid, RawChangeset cset) {
+				// touch only single field, like many inspectors do
+				errorCollector.assertEquals(eager.get(revisionIndex).manifest(), cset.manifest());
+				lazy.add(cset.clone());
+			}
+		});
+		errorCollector.assertEquals(eager.size(), lazy.size());
+		for (int i = 0; i < eager.size(); i++) {
+			RawChangeset e = eager.get(i), l = lazy.get(i);
+			errorCollector.assertEquals(e.branch(), l.branch());
+			errorCollector.assertEquals(e.user(), l.user());
+			errorCollector.assertEquals(e.date(), l.date());
+			errorCollector.assertEquals(e.timezone(), l.timezone());
+			errorCollector.assertEquals(e.files(), l.detach().files());
+			errorCollector.assertEquals(e.comment(), l.comment());
+			errorCollector.assertEquals(e.extras(), l.extras());
+		}
+	}
+
 	@Test
 	public void testPathScope() {
 		// XXX whether PathScope shall accept paths that are leading towards configured elements  
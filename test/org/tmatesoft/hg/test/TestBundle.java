@@ -32,6 +32,8 @@ import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.internal.BundleGenerator;
 import org.tmatesoft.hg.repo.HgBundle;
 import org.tmatesoft.hg.repo.HgBundle.GroupElement;
+import org.tmatesoft.hg.repo.HgChangelog;
+import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
 import org.tmatesoft.hg.repo.HgInternals;
 import org.tmatesoft.hg.repo.HgLookup;
 import org.tmatesoft.hg.repo.HgRepository;
@@ -86,6 +88,33 @@ public class TestBundle {
 		b.unlink();
 	}
 
+	/**
+	 * Chunks of a bundle patch previous chunk, which is not always the revision stored patch is against 
+	 * (e.g. gaps between changesets), make sure both stored and re-diffed chunks yield proper content.
+	 */
+	@Test
+	public void testBundleWithGaps() throws Exception {
+		final HgRepository hgRepo = Configuration.get().own();
+		BundleGenerator bg = new BundleGenerator(HgInternals.getImplementationRepo(hgRepo));
+		final HgChangelog clog = hgRepo.getChangelog();
+		final ArrayList<Nodeid> l = new ArrayList<Nodeid>();
+		for (int i : new int[] {500, 501, 502, 520, 600, 601, 640}) {
+			l.add(clog.getRevision(i));
+		}
+		File bundleFile = bg.create(l);
+		HgBundle b = new HgLookup().loadBundle(bundleFile);
+		final ArrayList<Nodeid> csets = new ArrayList<Nodeid>();
+		// changes() checks SHA-1 of each changeset it has restored
+		b.changes(hgRepo, new HgChangelog.Inspector() {
+			
+			public void next(int revisionIndex, Nodeid nodeid, RawChangeset cset) throws HgRuntimeException {
+				csets.add(nodeid);
+			}
+		});
+		errorCollector.assertEquals(l, csets);
+		b.unlink();
+	}
+
 	private static class DumbInspector implements HgBundle.Inspector {
 		public boolean clogEnter, clogExit, manifestEnter, manifestExit;
 		public int filesEnter, filesExit;
@@ -23,15 +23,28 @@ import static org.tmatesoft.hg.test.RepoUtils.cloneRepoToTempLocation;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Rule;
 import org.junit.Test;
+import org.tmatesoft.hg.core.HgBadArgumentException;
 import org.tmatesoft.hg.core.HgCheckoutCommand;
 import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.BasicSessionContext;
 import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.RelativePathRewrite;
+import org.tmatesoft.hg.repo.HgDirstate;
+import org.tmatesoft.hg.repo.HgDirstate.EntryKind;
+import org.tmatesoft.hg.repo.HgInternals;
 import org.tmatesoft.hg.repo.HgLookup;
 import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.repo.HgStatusCollector;
 import org.tmatesoft.hg.util.FileInfo;
 import org.tmatesoft.hg.util.FileWalker;
 import org.tmatesoft.hg.util.Pair;
@@ -158,6 +171,113 @@ public class TestCheckout {
 		errorCollector.assertEquals("Regular files", expectedRegular, regularFound);
 	}
 
+	/**
+	 * Files written with a pool of threads end up exactly as those written one by one, and so does dirstate
+	 */
+	@Test
+	public void testParallelCheckout() throws Exception {
+		final int[] writers = new int[] { 1, 4 };
+		File[] dest = new File[writers.length];
+		List<List<HgDirstate.Record>> records = new ArrayList<List<HgDirstate.Record>>(writers.length);
+		for (int i = 0; i < writers.length; i++) {
+			dest[i] = RepoUtils.copyRepoToTempLocation("status-1", "test-checkout-writers-" + writers[i]);
+			Map<String, ?> props = Collections.singletonMap(Internals.CFG_PROPERTY_CHECKOUT_WRITERS, writers[i]);
+			repo = new HgLookup(new BasicSessionContext(props, null)).detect(dest[i]);
+			new HgCheckoutCommand(repo).clean(true).changeset(TIP).execute();
+			records.add(dirstate(dest[i]));
+		}
+		errorCollector.assertTrue("[sanity]", records.get(0).size() > 2);
+		errorCollector.assertEquals(records.get(0).size(), records.get(1).size());
+		for (int i = 0; i < records.get(0).size(); i++) {
+			HgDirstate.Record sequential = records.get(0).get(i), parallel = records.get(1).get(i);
+			final String fname = sequential.name().toString();
+			errorCollector.assertEquals(sequential.name(), parallel.name());
+			errorCollector.assertEquals(fname, sequential.size(), parallel.size());
+			errorCollector.assertEquals(fname, sequential.mode(), parallel.mode());
+			errorCollector.assertEquals(fname, (int) new File(dest[1], fname).length(), parallel.size());
+			errorCollector.assertTrue(fname, Arrays.equals(read(new File(dest[0], fname)), read(new File(dest[1], fname))));
+		}
+	}
+
+	/**
+	 * Regular checkout writes and deletes only files changed between working directory parent and the revision,
+	 * and doesn't overwrite uncommitted changes
+	 */
+	@Test
+	public void testIncrementalCheckout() throws Exception {
+		File repoLoc = RepoUtils.copyRepoToTempLocation("log-1", "test-checkout-incremental");
+		File cleanLoc = RepoUtils.copyRepoToTempLocation("log-1", "test-checkout-incremental-clean");
+		new HgCheckoutCommand(new HgLookup().detect(repoLoc)).clean(true).changeset(1).execute();
+		new HgCheckoutCommand(new HgLookup().detect(cleanLoc)).clean(true).changeset(4).execute();
+		repo = new HgLookup().detect(repoLoc);
+		HgStatusCollector.Record changes = new HgStatusCollector(repo).status(1, 4);
+		errorCollector.assertTrue("[sanity]", changes.getClean().size() > 0);
+		errorCollector.assertTrue("[sanity]", changes.getRemoved().contains(Path.create("a")));
+		final long untouchedTime = System.currentTimeMillis() / 1000 * 1000 - 3600 * 1000;
+		for (Path p : changes.getClean()) {
+			assertTrue("[sanity]", new File(repoLoc, p.toString()).setLastModified(untouchedTime));
+		}
+		File untrackedFile = new File(repoLoc, "untracked");
+		RepoUtils.createFile(untrackedFile, "shall survive hg co");
+		//
+		new HgCheckoutCommand(repo).changeset(4).execute();
+		repo = new HgLookup().detect(repoLoc);
+		errorCollector.assertEquals(new HgLookup().detect(cleanLoc).getWorkingCopyParents().first(), repo.getWorkingCopyParents().first());
+		errorCollector.assertTrue(untrackedFile.canRead());
+		errorCollector.assertTrue(!new File(repoLoc, "a").exists());
+		for (Path p : changes.getClean()) {
+			errorCollector.assertEquals(p.toString(), untouchedTime, new File(repoLoc, p.toString()).lastModified());
+		}
+		List<HgDirstate.Record> incremental = dirstate(repoLoc), clean = dirstate(cleanLoc);
+		errorCollector.assertEquals(clean.size(), incremental.size());
+		for (int i = 0; i < clean.size() && i < incremental.size(); i++) {
+			final String fname = clean.get(i).name().toString();
+			errorCollector.assertEquals(clean.get(i).name(), incremental.get(i).name());
+			errorCollector.assertEquals(fname, clean.get(i).mode(), incremental.get(i).mode());
+			errorCollector.assertTrue(fname, Arrays.equals(read(new File(cleanLoc, fname)), read(new File(repoLoc, fname))));
+		}
+		// file the update shall touch is modified
+		File modifiedFile = new File(repoLoc, "e");
+		RepoUtils.modifyFileAppend(modifiedFile, "the change shall survive");
+		final long modifiedLength = modifiedFile.length();
+		try {
+			new HgCheckoutCommand(repo).changeset(2).execute();
+			errorCollector.fail("Uncommitted changes shall not get overwritten");
+		} catch (HgBadArgumentException ex) {
+			// expected
+		}
+		errorCollector.assertEquals(modifiedLength, modifiedFile.length());
+		errorCollector.assertEquals(new HgLookup().detect(cleanLoc).getWorkingCopyParents().first(), new HgLookup().detect(repoLoc).getWorkingCopyParents().first());
+	}
+
+	private List<HgDirstate.Record> dirstate(File repoLoc) throws Exception {
+		final List<HgDirstate.Record> rv = new ArrayList<HgDirstate.Record>();
+		new HgInternals(new HgLookup().detect(repoLoc)).getDirstate().walk(new HgDirstate.Inspector() {
+			
+			public boolean next(EntryKind kind, HgDirstate.Record entry) {
+				errorCollector.assertEquals(EntryKind.Normal, kind);
+				rv.add(entry);
+				return true;
+			}
+		});
+		return rv;
+	}
+
+	private static byte[] read(File f) throws IOException {
+		byte[] rv = new byte[(int) f.length()];
+		FileInputStream fis = new FileInputStream(f);
+		try {
+			for (int off = 0, r; off < rv.length; off += r) {
+				if ((r = fis.read(rv, off, rv.length - off)) == -1) {
+					break;
+				}
+			}
+		} finally {
+			fis.close();
+		}
+		return rv;
+	}
+
 	private static final class FilesOnlyFilter implements FileFilter {
 		public boolean accept(File f) {
 			return f.isFile();
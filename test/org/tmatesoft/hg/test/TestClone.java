@@ -17,16 +17,46 @@
 package org.tmatesoft.hg.test;
 
 import static org.tmatesoft.hg.internal.RequiresFile.*;
+import static org.tmatesoft.hg.repo.HgRepository.TIP;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 
 import org.hamcrest.CoreMatchers;
 import org.junit.Rule;
 import org.junit.Test;
 import org.tmatesoft.hg.core.HgCloneCommand;
 import org.tmatesoft.hg.core.HgInitCommand;
+import org.tmatesoft.hg.core.HgLibraryFailureException;
+import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.BasicSessionContext;
+import org.tmatesoft.hg.internal.BundleGenerator;
+import org.tmatesoft.hg.internal.ByteArrayChannel;
+import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.RepoInitializer;
+import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
+import org.tmatesoft.hg.repo.HgDataFile;
+import org.tmatesoft.hg.repo.HgInternals;
+import org.tmatesoft.hg.repo.HgLookup;
+import org.tmatesoft.hg.repo.HgManifest;
+import org.tmatesoft.hg.repo.HgManifest.Flags;
 import org.tmatesoft.hg.repo.HgRemoteRepository;
+import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.util.Path;
 
 /**
  *
@@ -77,6 +107,266 @@ public class TestClone {
 		errorCollector.assertTrue(0 == (requires & REVLOGV0));
 	}
 
+	/**
+	 * Clone with 'stream_out' from a stand-in server that serves store files of a test repository
+	 */
+	@Test
+	public void testStreamClone() throws Exception {
+		final File srcStore = new File(Configuration.get().find("log-1").getWorkingDir(), ".hg/store");
+		final String[] names = { "00changelog.i", "00manifest.i", "data/a.i", "data/b.i", "data/d.i", "data/e.i", "data/dir/b.i" };
+		final Map<String, byte[]> storeFiles = new LinkedHashMap<String, byte[]>();
+		for (String n : names) {
+			storeFiles.put(n, read(new File(srcStore, n)));
+		}
+		StandInServer server = startServer(storeFiles, null);
+		try {
+			URL url = server.getURL();
+			HgRemoteRepository hgRemote = new HgLookup().detect(url);
+			errorCollector.assertTrue(hgRemote.isStreamingSupported());
+			File dest = RepoUtils.createEmptyDir("test-stream-clone");
+			HgRepository cloned = new HgCloneCommand().source(hgRemote).destination(dest).execute();
+			for (String n : names) {
+				errorCollector.assertTrue(n, Arrays.equals(storeFiles.get(n), read(new File(dest, ".hg/store/" + n))));
+			}
+			HgRepository srcRepo = Configuration.get().find("log-1");
+			errorCollector.assertEquals(srcRepo.getChangelog().getRevisionCount(), cloned.getChangelog().getRevisionCount());
+			errorCollector.assertTrue(cloned.getFileNode("dir/b").exists());
+			errorCollector.assertEquals(srcRepo.getFileNode("dir/b").getRevisionCount(), cloned.getFileNode("dir/b").getRevisionCount());
+			//
+			// name that points outside of the store shall not get written
+			storeFiles.put("../../evil.i", new byte[] { 1 });
+			File dest2 = RepoUtils.createEmptyDir("test-stream-clone-2");
+			try {
+				new HgCloneCommand().source(new HgLookup().detect(url)).destination(dest2).execute();
+				errorCollector.fail("Bad store file name shall fail clone");
+			} catch (HgLibraryFailureException ex) {
+				// expected
+			}
+			errorCollector.assertTrue(!new File(dest2, "evil.i").exists());
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Changes from a stand-in server are applied as they come, without a bundle file
+	 */
+	@Test
+	public void testCloneFromStreamedBundle() throws Exception {
+		final HgRepository srcRepo = Configuration.get().find("log-1");
+		StandInServer server = startServer(Collections.<String, byte[]>emptyMap(), changegroup(srcRepo));
+		try {
+			URL url = server.getURL();
+			File dest = RepoUtils.createEmptyDir("test-clone-streamed-bundle");
+			HgRepository cloned = new HgCloneCommand().source(new HgLookup().detect(url)).destination(dest).stream(false).execute();
+			errorCollector.assertEquals(srcRepo.getChangelog().getRevisionCount(), cloned.getChangelog().getRevisionCount());
+			errorCollector.assertEquals(srcRepo.getChangelog().getRevision(TIP), cloned.getChangelog().getRevision(TIP));
+			for (String fname : new String[] { "a", "b", "d", "e", "dir/b" }) {
+				HgDataFile src = srcRepo.getFileNode(fname), dst = cloned.getFileNode(fname);
+				errorCollector.assertEquals(fname, src.getRevisionCount(), dst.getRevisionCount());
+				ByteArrayChannel srcContent = new ByteArrayChannel(), dstContent = new ByteArrayChannel();
+				src.content(TIP, srcContent);
+				dst.content(TIP, dstContent);
+				errorCollector.assertTrue(fname, Arrays.equals(srcContent.toArray(), dstContent.toArray()));
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Files written with a pool of threads end up exactly as those written one by one
+	 */
+	@Test
+	public void testParallelFileWriters() throws Exception {
+		final HgRepository srcRepo = Configuration.get().find("log-1");
+		StandInServer server = startServer(Collections.<String, byte[]>emptyMap(), changegroup(srcRepo));
+		try {
+			File[] dest = new File[2];
+			int[] writers = new int[] { 1, 4 };
+			for (int i = 0; i < dest.length; i++) {
+				Map<String, ?> props = Collections.singletonMap(Internals.CFG_PROPERTY_BUNDLE_WRITERS, writers[i]);
+				HgRemoteRepository hgRemote = new HgLookup(new BasicSessionContext(props, null)).detect(server.getURL());
+				dest[i] = RepoUtils.createEmptyDir("test-clone-writers-" + writers[i]);
+				new HgCloneCommand().source(hgRemote).destination(dest[i]).stream(false).execute();
+			}
+			final String[] names = { "00changelog.i", "00manifest.i", "fncache", "data/a.i", "data/b.i", "data/d.i", "data/e.i", "data/dir/b.i" };
+			for (String n : names) {
+				byte[] sequential = read(new File(dest[0], ".hg/store/" + n));
+				errorCollector.assertTrue(n, sequential.length > 0);
+				errorCollector.assertTrue(n, Arrays.equals(sequential, read(new File(dest[1], ".hg/store/" + n))));
+			}
+			HgRepository cloned = new HgLookup().detect(dest[1]);
+			for (String fname : new String[] { "a", "b", "d", "e", "dir/b" }) {
+				HgDataFile src = srcRepo.getFileNode(fname), dst = cloned.getFileNode(fname);
+				errorCollector.assertEquals(fname, src.getRevisionCount(), dst.getRevisionCount());
+				errorCollector.assertEquals(fname, src.getRevision(TIP), dst.getRevision(TIP));
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testBulkCompressionLevel() throws Exception {
+		final HgRepository srcRepo = Configuration.get().find("test-mq");
+		StandInServer server = startServer(Collections.<String, byte[]>emptyMap(), changegroup(srcRepo));
+		try {
+			File[] dest = new File[2];
+			int[] levels = new int[] { 1, 9 };
+			for (int i = 0; i < dest.length; i++) {
+				Map<String, ?> props = Collections.singletonMap(Internals.CFG_PROPERTY_BULK_COMPRESSION_LEVEL, levels[i]);
+				HgRemoteRepository hgRemote = new HgLookup(new BasicSessionContext(props, null)).detect(server.getURL());
+				dest[i] = RepoUtils.createEmptyDir("test-clone-level-" + levels[i]);
+				new HgCloneCommand().source(hgRemote).destination(dest[i]).stream(false).execute();
+			}
+			byte[] fast = read(new File(dest[0], ".hg/store/00changelog.i"));
+			byte[] best = read(new File(dest[1], ".hg/store/00changelog.i"));
+			errorCollector.assertTrue(compressedRevisions(fast) > 0);
+			errorCollector.assertTrue(compressedRevisions(best) > 0);
+			errorCollector.assertTrue(best.length <= fast.length);
+			HgRepository[] cloned = new HgRepository[] { new HgLookup().detect(dest[0]), new HgLookup().detect(dest[1]) };
+			final int csetCount = srcRepo.getChangelog().getRevisionCount();
+			for (HgRepository r : cloned) {
+				errorCollector.assertEquals(csetCount, r.getChangelog().getRevisionCount());
+				errorCollector.assertEquals(srcRepo.getChangelog().getRevision(TIP), r.getChangelog().getRevision(TIP));
+				List<RawChangeset> srcCsets = srcRepo.getChangelog().range(0, TIP), dstCsets = r.getChangelog().range(0, TIP);
+				for (int i = 0; i < csetCount; i++) {
+					errorCollector.assertEquals(srcCsets.get(i).manifest(), dstCsets.get(i).manifest());
+					errorCollector.assertEquals(srcCsets.get(i).comment(), dstCsets.get(i).comment());
+				}
+				errorCollector.assertEquals(srcRepo.getManifest().getRevision(TIP), r.getManifest().getRevision(TIP));
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Revisions written in batches (revlog files kept open, revisions written in bulk) read back exactly as in the source
+	 */
+	@Test
+	public void testCloneRevisionsIntact() throws Exception {
+		for (String repoName : new String[] { "test-mq", "branches-1" }) {
+			final HgRepository srcRepo = Configuration.get().find(repoName);
+			StandInServer server = startServer(Collections.<String, byte[]>emptyMap(), changegroup(srcRepo));
+			try {
+				File dest = RepoUtils.createEmptyDir("test-clone-intact-" + repoName);
+				HgRepository cloned = new HgCloneCommand().source(new HgLookup().detect(server.getURL())).destination(dest).stream(false).execute();
+				final int csetCount = srcRepo.getChangelog().getRevisionCount();
+				errorCollector.assertEquals(repoName, csetCount, cloned.getChangelog().getRevisionCount());
+				final TreeSet<Path> files = new TreeSet<Path>();
+				for (int i = 0; i < csetCount; i++) {
+					errorCollector.assertEquals(repoName, srcRepo.getChangelog().getRevision(i), cloned.getChangelog().getRevision(i));
+				}
+				srcRepo.getManifest().walk(0, TIP, new HgManifest.Inspector() {
+					
+					public boolean next(Nodeid nid, Path fname, Flags flags) {
+						files.add(fname);
+						return true;
+					}
+					
+					public boolean end(int manifestRevision) {
+						return true;
+					}
+					
+					public boolean begin(int mainfestRevision, Nodeid nid, int changelogRevision) {
+						return true;
+					}
+				});
+				for (Path fname : files) {
+					HgDataFile src = srcRepo.getFileNode(fname), dst = cloned.getFileNode(fname);
+					errorCollector.assertEquals(fname.toString(), src.getRevisionCount(), dst.getRevisionCount());
+					for (int i = 0; i < src.getRevisionCount(); i++) {
+						ByteArrayChannel srcContent = new ByteArrayChannel(), dstContent = new ByteArrayChannel();
+						src.content(i, srcContent);
+						dst.content(i, dstContent);
+						errorCollector.assertTrue(fname.toString(), Arrays.equals(srcContent.toArray(), dstContent.toArray()));
+						errorCollector.assertEquals(fname.toString(), src.getRevision(i), dst.getRevision(i));
+					}
+				}
+			} finally {
+				server.stop();
+			}
+		}
+	}
+
+	// number of revisions in an inline revlog that are kept deflated
+	private int compressedRevisions(byte[] inlineRevlog) throws DataFormatException {
+		int rv = 0;
+		byte[] buf = new byte[64 * 1024];
+		for (int offset = 0; offset < inlineRevlog.length; ) {
+			final int compressedLen = ByteBuffer.wrap(inlineRevlog, offset + 8, 4).getInt();
+			offset += Internals.REVLOGV1_RECORD_SIZE;
+			if (compressedLen > 0 && inlineRevlog[offset] == 'x') {
+				Inflater inflater = new Inflater();
+				inflater.setInput(inlineRevlog, offset, compressedLen);
+				int dataLen = 0;
+				while (!inflater.finished()) {
+					dataLen += inflater.inflate(buf);
+				}
+				inflater.end();
+				// deflated data is kept only if it takes less than 3/4 of the original
+				errorCollector.assertTrue(compressedLen < dataLen - (dataLen >>> 2));
+				rv++;
+			}
+			offset += compressedLen;
+		}
+		return rv;
+	}
+
+	// server responds to changegroup command with zlib stream of bundle content, without a header
+	private static byte[] changegroup(HgRepository srcRepo) throws Exception {
+		final ArrayList<Nodeid> all = new ArrayList<Nodeid>();
+		for (int i = 0, x = srcRepo.getChangelog().getRevisionCount(); i < x; i++) {
+			all.add(srcRepo.getChangelog().getRevision(i));
+		}
+		final byte[] bundle = read(new BundleGenerator(HgInternals.getImplementationRepo(srcRepo)).create(all));
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DeflaterOutputStream dos = new DeflaterOutputStream(bos);
+		dos.write(bundle, 6, bundle.length - 6);
+		dos.close();
+		return bos.toByteArray();
+	}
+
+	private static StandInServer startServer(final Map<String, byte[]> storeFiles, final byte[] changegroup) throws IOException {
+		StandInServer server = new StandInServer("lookup changegroupsubset branchmap stream");
+		server.command("stream_out", new StandInServer.Command() {
+
+			public byte[] respond(Map<String, String> args) throws IOException {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				long total = 0;
+				for (byte[] b : storeFiles.values()) {
+					total += b.length;
+				}
+				bos.write(String.format("0\n%d %d\n", storeFiles.size(), total).getBytes());
+				for (Map.Entry<String, byte[]> e : storeFiles.entrySet()) {
+					bos.write(String.format("%s\0%d\n", e.getKey(), e.getValue().length).getBytes());
+					bos.write(e.getValue());
+				}
+				return bos.toByteArray();
+			}
+		});
+		if (changegroup != null) {
+			server.command("changegroup", changegroup);
+		}
+		return server.start();
+	}
+
+	private static byte[] read(File f) throws IOException {
+		FileInputStream fis = new FileInputStream(f);
+		try {
+			byte[] rv = new byte[(int) f.length()];
+			int off = 0, r;
+			while (off < rv.length && (r = fis.read(rv, off, rv.length - off)) != -1) {
+				off += r;
+			}
+			return rv;
+		} finally {
+			fis.close();
+		}
+	}
+
 	private void verify(HgRemoteRepository hgRemote, File dest) throws Exception {
 		ExecHelper eh = new ExecHelper(new OutputParser.Stub(), dest);
 		eh.run("hg", "verify");
@@ -20,7 +20,12 @@ import static org.junit.Assert.*;
 import static org.tmatesoft.hg.repo.HgRepository.*;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -33,6 +38,7 @@ import org.tmatesoft.hg.core.HgStatus.Kind;
 import org.tmatesoft.hg.core.HgStatusCommand;
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.core.SessionContext;
+import org.tmatesoft.hg.internal.BasicSessionContext;
 import org.tmatesoft.hg.internal.ByteArrayChannel;
 import org.tmatesoft.hg.internal.COWTransaction;
 import org.tmatesoft.hg.internal.CommitFacility;
@@ -40,9 +46,11 @@ import org.tmatesoft.hg.internal.DataSerializer.ByteArrayDataSource;
 import org.tmatesoft.hg.internal.DirstateReader;
 import org.tmatesoft.hg.internal.FileContentSupplier;
 import org.tmatesoft.hg.internal.Internals;
+import org.tmatesoft.hg.internal.ManifestRevision;
 import org.tmatesoft.hg.internal.Transaction;
 import org.tmatesoft.hg.repo.HgDataFile;
 import org.tmatesoft.hg.repo.HgLookup;
+import org.tmatesoft.hg.repo.HgManifest;
 import org.tmatesoft.hg.repo.HgPhase;
 import org.tmatesoft.hg.repo.HgRepository;
 import org.tmatesoft.hg.repo.HgRepositoryFiles;
@@ -490,6 +498,152 @@ public class TestCommit {
 		RepoUtils.assertHgVerifyOk(errorCollector, repoLoc);
 	}
 	
+	/**
+	 * New manifest revision is built as a patch over the parent one, both when parent is the last manifest revision
+	 * (patch is written as is) and when it's not (delta against the last revision gets built). Flags of changed files stay.
+	 */
+	@Test
+	public void testManifestPatchedFromParent() throws Exception {
+		File repoLoc = RepoUtils.copyRepoToTempLocation("test-flags", "test-commit-manifest-patch");
+		HgRepository hgRepo = new HgLookup().detect(repoLoc);
+		ManifestRevision parent = new ManifestRevision(null, null).init(hgRepo, 1);
+		final Path exec = Path.create("file-exec"), link = Path.create("file-link"), regular = Path.create("regular-file");
+		final Path first = Path.create("a-new"), last = Path.create("z-new"), middle = Path.create("file-new");
+		assertEquals("[sanity]", HgManifest.Flags.Link, parent.flags(link));
+		CommitFacility cf = new CommitFacility(Internals.getInstance(hgRepo), 1);
+		cf.add(hgRepo.getFileNode(link), new ByteArrayDataSource("regular-file".getBytes()));
+		cf.add(hgRepo.getFileNode(first), new ByteArrayDataSource("first\n".getBytes()));
+		cf.add(hgRepo.getFileNode(last), new ByteArrayDataSource("last\n".getBytes()));
+		cf.forget(hgRepo.getFileNode(regular));
+		Transaction tr = newTransaction(hgRepo);
+		cf.commit("patch over the last manifest revision", tr);
+		tr.commit();
+		//
+		hgRepo = new HgLookup().detect(repoLoc);
+		ManifestRevision r2 = new ManifestRevision(null, null).init(hgRepo, 2);
+		errorCollector.assertEquals(Arrays.asList(first, exec, link, last), new ArrayList<Path>(r2.files()));
+		errorCollector.assertEquals(HgManifest.Flags.Exec, r2.flags(exec));
+		errorCollector.assertEquals(HgManifest.Flags.Link, r2.flags(link));
+		errorCollector.assertEquals(HgManifest.Flags.RegularFile, r2.flags(first));
+		errorCollector.assertEquals(parent.nodeid(exec), r2.nodeid(exec));
+		errorCollector.assertEquals(hgRepo.getFileNode(link).getRevision(2), r2.nodeid(link));
+		errorCollector.assertEquals(hgRepo.getFileNode(first).getRevision(0), r2.nodeid(first));
+		errorCollector.assertEquals(hgRepo.getFileNode(last).getRevision(0), r2.nodeid(last));
+		// file parent comes from the parent manifest
+		int[] parents = new int[2];
+		hgRepo.getFileNode(link).parents(2, parents, null, null);
+		errorCollector.assertEquals(1, parents[0]);
+		//
+		ManifestRevision r0 = new ManifestRevision(null, null).init(hgRepo, 0);
+		cf = new CommitFacility(Internals.getInstance(hgRepo), 0);
+		cf.add(hgRepo.getFileNode(regular), new ByteArrayDataSource("changed\n".getBytes()));
+		cf.add(hgRepo.getFileNode(middle), new ByteArrayDataSource("middle\n".getBytes()));
+		tr = newTransaction(hgRepo);
+		cf.commit("patch over a manifest revision other than the last one", tr);
+		tr.commit();
+		//
+		hgRepo = new HgLookup().detect(repoLoc);
+		ManifestRevision r3 = new ManifestRevision(null, null).init(hgRepo, 3);
+		errorCollector.assertEquals(Arrays.asList(exec, link, middle, regular), new ArrayList<Path>(r3.files()));
+		errorCollector.assertEquals(r0.nodeid(exec), r3.nodeid(exec));
+		errorCollector.assertEquals(r0.nodeid(link), r3.nodeid(link));
+		errorCollector.assertEquals(HgManifest.Flags.Exec, r3.flags(exec));
+		errorCollector.assertEquals(HgManifest.Flags.Link, r3.flags(link));
+		errorCollector.assertEquals(hgRepo.getFileNode(middle).getRevision(0), r3.nodeid(middle));
+		HgDataFile regularDf = hgRepo.getFileNode(regular);
+		errorCollector.assertEquals(regularDf.getRevision(regularDf.getLastRevision()), r3.nodeid(regular));
+		regularDf.parents(regularDf.getLastRevision(), parents, null, null);
+		errorCollector.assertEquals(r0.nodeid(regular), regularDf.getRevision(parents[0]));
+		// manifest revision 2 is still intact
+		errorCollector.assertEquals(r2.files(), new ManifestRevision(null, null).init(hgRepo, 2).files());
+	}
+
+	/**
+	 * Files written by few threads yield exactly the same manifest revision as those written one by one
+	 */
+	@Test
+	public void testParallelFileRevisions() throws Exception {
+		final int[] writers = new int[] { 1, 4 };
+		final Path unchanged = Path.create("file2.txt");
+		Nodeid[] manifestRevs = new Nodeid[writers.length];
+		for (int i = 0; i < writers.length; i++) {
+			File repoLoc = RepoUtils.copyRepoToTempLocation("test-mq", "test-commit-writers-" + writers[i]);
+			Map<String, ?> props = Collections.singletonMap(Internals.CFG_PROPERTY_COMMIT_WRITERS, writers[i]);
+			HgRepository hgRepo = new HgLookup(new BasicSessionContext(props, null)).detect(repoLoc);
+			final int parentCsetRevIndex = hgRepo.getChangelog().getLastRevision();
+			ManifestRevision parent = new ManifestRevision(null, null).init(hgRepo, parentCsetRevIndex);
+			assertTrue("[sanity]", parent.contains(unchanged));
+			CommitFacility cf = new CommitFacility(Internals.getInstance(hgRepo), parentCsetRevIndex);
+			for (Path f : parent.files()) {
+				HgDataFile df = hgRepo.getFileNode(f);
+				ByteArrayChannel bac = new ByteArrayChannel();
+				df.content(df.getRevisionIndex(parent.nodeid(f)), bac);
+				String content = new String(bac.toArray());
+				cf.add(df, new ByteArrayDataSource((unchanged.equals(f) ? content : content + "one more line\n").getBytes()));
+			}
+			for (int j = 0; j < 10; j++) {
+				cf.add(hgRepo.getFileNode("new-" + j + ".txt"), new ByteArrayDataSource(("new file " + j + "\n").getBytes()));
+			}
+			Transaction tr = newTransaction(hgRepo);
+			cf.commit("parallel commit", tr);
+			tr.commit();
+			//
+			hgRepo = new HgLookup().detect(repoLoc);
+			ManifestRevision committed = new ManifestRevision(null, null).init(hgRepo, parentCsetRevIndex + 1);
+			manifestRevs[i] = committed.revision();
+			errorCollector.assertEquals(parent.files().size() + 10, committed.files().size());
+			errorCollector.assertEquals(parent.nodeid(unchanged), committed.nodeid(unchanged));
+			String fncache = new String(StandInServer.read(new FileInputStream(new File(repoLoc, ".hg/store/fncache"))));
+			for (int j = 0; j < 10; j++) {
+				HgDataFile df = hgRepo.getFileNode("new-" + j + ".txt");
+				errorCollector.assertTrue(df.exists());
+				errorCollector.assertEquals(df.getRevision(0), committed.nodeid(df.getPath()));
+				errorCollector.assertTrue(fncache.contains("data/new-" + j + ".txt.i"));
+			}
+		}
+		errorCollector.assertEquals(manifestRevs[0], manifestRevs[1]);
+	}
+
+	/**
+	 * With journal transaction, commit leaves no journal behind, and rollback truncates revlogs back to original length
+	 */
+	@Test
+	public void testJournalTransaction() throws Exception {
+		File repoLoc = RepoUtils.copyRepoToTempLocation("test-mq", "test-commit-journal");
+		Map<String, ?> props = Collections.singletonMap(Internals.CFG_PROPERTY_TRANSACTION, "journal");
+		HgRepository hgRepo = new HgLookup(new BasicSessionContext(props, null)).detect(repoLoc);
+		final File journal = new File(repoLoc, ".hg/store/journal");
+		final File clogFile = new File(repoLoc, ".hg/store/00changelog.i");
+		final File manifestFile = new File(repoLoc, ".hg/store/00manifest.i");
+		final int lastClogRevision = hgRepo.getChangelog().getLastRevision();
+		final long clogLength = clogFile.length(), manifestLength = manifestFile.length();
+		//
+		CommitFacility cf = new CommitFacility(Internals.getInstance(hgRepo), lastClogRevision);
+		cf.add(hgRepo.getFileNode("file2.txt"), new ByteArrayDataSource("rolled back\n".getBytes()));
+		cf.add(hgRepo.getFileNode("new-file.txt"), new ByteArrayDataSource("rolled back\n".getBytes()));
+		Transaction tr = Internals.getInstance(hgRepo).getTransactionFactory().create(hgRepo);
+		cf.commit("Commit to fail", tr);
+		errorCollector.assertTrue(journal.isFile());
+		errorCollector.assertTrue(clogFile.length() > clogLength);
+		tr.rollback();
+		errorCollector.assertFalse(journal.exists());
+		errorCollector.assertEquals(clogLength, clogFile.length());
+		errorCollector.assertEquals(manifestLength, manifestFile.length());
+		errorCollector.assertFalse(new File(repoLoc, ".hg/store/data/new-file.txt.i").exists());
+		hgRepo = new HgLookup().detect(repoLoc);
+		errorCollector.assertEquals(lastClogRevision, hgRepo.getChangelog().getLastRevision());
+		errorCollector.assertFalse(hgRepo.getFileNode("new-file.txt").exists());
+		//
+		hgRepo = new HgLookup(new BasicSessionContext(props, null)).detect(repoLoc);
+		RepoUtils.modifyFileAppend(new File(repoLoc, "file2.txt"), "committed\n");
+		Outcome r = new HgCommitCommand(hgRepo).message("journal commit").execute();
+		errorCollector.assertTrue(r.isOk());
+		errorCollector.assertFalse(journal.exists());
+		hgRepo = new HgLookup().detect(repoLoc);
+		errorCollector.assertEquals(lastClogRevision + 1, hgRepo.getChangelog().getLastRevision());
+		errorCollector.assertEquals("journal commit", hgRepo.getChangelog().range(lastClogRevision + 1, lastClogRevision + 1).get(0).comment());
+	}
+
 	private Transaction newTransaction(SessionContext.Source ctxSource) {
 		return trFactory.create(ctxSource);
 	}
@@ -19,7 +19,14 @@ package org.tmatesoft.hg.test;
 import static org.junit.Assert.*;
 import static org.tmatesoft.hg.internal.diff.DiffHelper.LineSequence.newlines;
 
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
 import org.junit.Test;
+import org.tmatesoft.hg.internal.ByteArrayDataAccess;
+import org.tmatesoft.hg.internal.Patch;
+import org.tmatesoft.hg.internal.RollingHashDelta;
 import org.tmatesoft.hg.internal.diff.DiffHelper;
 import org.tmatesoft.hg.internal.diff.DiffHelper.ChunkSequence;
 import org.tmatesoft.hg.internal.diff.DiffHelper.LineSequence;
@@ -155,6 +162,49 @@ public class TestDiffHelper {
 		assertTrue(dc.addedLine(1));
 	}
 	
+	@Test
+	public void testRollingHashDelta() throws Exception {
+		assertTrue(RollingHashDelta.suits("text".getBytes(), new byte[] { 'a', 0, 'b' }));
+		assertFalse(RollingHashDelta.suits("one\ntwo\n".getBytes(), "one\nthree\n".getBytes()));
+		byte[] longLine = new byte[1024];
+		Arrays.fill(longLine, (byte) 'x');
+		assertTrue(RollingHashDelta.suits("x\n".getBytes(), longLine));
+		//
+		Random r = new Random(46);
+		byte[] origin = new byte[100 * 1024];
+		r.nextBytes(origin);
+		// unchanged
+		assertEquals(0, RollingHashDelta.delta(origin, origin).count());
+		// few bytes changed in place
+		byte[] changed = origin.clone();
+		changed[10] ^= 1;
+		changed[50000] ^= 1;
+		changed[origin.length - 1] ^= 1;
+		assertDelta(origin, changed, 100);
+		// bytes inserted, removed, prepended and appended
+		byte[] inserted = new byte[300];
+		r.nextBytes(inserted);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(inserted, 0, 5);
+		bos.write(origin, 0, 20000);
+		bos.write(inserted, 0, inserted.length);
+		bos.write(origin, 20000, 30000);
+		bos.write(origin, 60000, origin.length - 60000);
+		bos.write(inserted, 0, 7);
+		assertDelta(origin, bos.toByteArray(), 1024);
+		// boundary cases
+		assertDelta(new byte[0], origin, origin.length + 12);
+		assertDelta(origin, new byte[0], 12);
+		assertDelta(new byte[] {1, 2, 3}, new byte[] {1, 0, 3}, 12 + 3);
+		assertDelta(origin, new byte[] {1, 0, 3}, 12 + 3);
+	}
+
+	private static void assertDelta(byte[] origin, byte[] target, int maxPatchLength) throws Exception {
+		Patch p = RollingHashDelta.delta(origin, target);
+		assertArrayEquals(target, p.apply(new ByteArrayDataAccess(origin), -1));
+		assertTrue(String.format("Patch is too big: %d bytes", p.serializedLength()), p.serializedLength() <= maxPatchLength);
+	}
+
 	// range is comprised of 3 values, range length always last, range start comes at index o (either 0 or 1)
 	static boolean includes(IntVector ranges, int o, int ln) {
 		assert ranges.size() % 3 == 0;
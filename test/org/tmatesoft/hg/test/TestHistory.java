@@ -22,13 +22,19 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.tmatesoft.hg.core.HgIterateDirection.NewToOld;
 import static org.tmatesoft.hg.core.HgIterateDirection.OldToNew;
+import static org.tmatesoft.hg.repo.HgRepository.TIP;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.TimeZone;
 
 import org.junit.Assert;
 import org.junit.Rule;
@@ -44,6 +50,7 @@ import org.tmatesoft.hg.core.HgLogCommand;
 import org.tmatesoft.hg.core.HgLogCommand.CollectHandler;
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.internal.AdapterPlug;
+import org.tmatesoft.hg.repo.HgChangelog.RawChangeset;
 import org.tmatesoft.hg.repo.HgLookup;
 import org.tmatesoft.hg.repo.HgRepository;
 import org.tmatesoft.hg.repo.HgRuntimeException;
@@ -649,6 +656,152 @@ public class TestHistory {
 		report("log -b default -b test" , new HgLogCommand(repo).branch("default").branch("test").execute(), true);
 	}
 
+	/**
+	 * Selection by user, branch and date through changelog digest shall match that of plain changelog walk
+	 */
+	@Test
+	public void testSelectionWithChangelogIndex() throws Exception {
+		repo = Configuration.get().find("log-branches");
+		final List<RawChangeset> all = repo.getChangelog().range(0, TIP);
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < all.size(); i++) {
+			if ("test".equals(all.get(i).branch())) {
+				expected.add(i);
+			}
+		}
+		errorCollector.assertEquals(expected, revisionIndexes(new HgLogCommand(repo).branch("test").execute()));
+		Collections.reverse(expected);
+		List<HgChangeset> r = new HgLogCommand(repo).branch("test").order(NewToOld).limit(2).execute();
+		errorCollector.assertEquals(expected.subList(0, Math.min(2, expected.size())), revisionIndexes(r));
+		errorCollector.assertTrue(new File(repo.getLocation(), ".hg/cache/hg4j-changelog-index").isFile());
+		//
+		repo = Configuration.get().find("log-users");
+		final List<RawChangeset> userCsets = repo.getChangelog().range(0, TIP);
+		expected.clear();
+		for (int i = 0; i < userCsets.size(); i++) {
+			if (userCsets.get(i).user().toLowerCase().indexOf("user2") != -1) {
+				expected.add(i);
+			}
+		}
+		errorCollector.assertEquals(expected, revisionIndexes(new HgLogCommand(repo).user("User2").execute()));
+		//
+		Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		c.setTime(userCsets.get(0).date());
+		int year = c.get(Calendar.YEAR), month = c.get(Calendar.MONTH);
+		expected.clear();
+		for (int i = 0; i < userCsets.size(); i++) {
+			c.setTime(userCsets.get(i).date());
+			if (c.get(Calendar.YEAR) == year && c.get(Calendar.MONTH) == month) {
+				expected.add(i);
+			}
+		}
+		c.clear();
+		c.set(Calendar.YEAR, year);
+		c.set(Calendar.MONTH, month);
+		errorCollector.assertEquals(expected, revisionIndexes(new HgLogCommand(repo).date(c).execute()));
+	}
+
+	/**
+	 * Changesets parsed on worker threads shall come in the same order as those parsed sequentially
+	 */
+	@Test
+	public void testParallelParse() throws Exception {
+		repo = Configuration.get().find("branches-1");
+		List<Integer> expected = revisionIndexes(new HgLogCommand(repo).execute());
+		errorCollector.assertEquals(expected, revisionIndexes(new HgLogCommand(repo).parallel(3, 2, 1).execute()));
+		List<HgChangeset> r = new HgLogCommand(repo).parallel(2, 3, 2).order(NewToOld).execute();
+		Collections.reverse(expected);
+		errorCollector.assertEquals(expected, revisionIndexes(r));
+		r = new HgLogCommand(repo).parallel(2, 1, 1).limit(3).execute();
+		errorCollector.assertEquals(Arrays.asList(0, 1, 2), revisionIndexes(r));
+		errorCollector.assertEquals(repo.getChangelog().range(1, 1).get(0).comment(), r.get(1).getComment());
+	}
+
+	/**
+	 * Log in NewToOld order goes in chunks, all of them shall be parsed with the same threads
+	 */
+	@Test
+	public void testParallelParseReusesThreads() throws Exception {
+		repo = Configuration.get().find("branches-1");
+		errorCollector.assertTrue("[sanity]", repo.getChangelog().getRevisionCount() > 4);
+		final IdentityHashMap<Thread, Object> pipelineThreads = new IdentityHashMap<Thread, Object>();
+		final int[] count = new int[1];
+		new HgLogCommand(repo).parallel(2, 1, 1).order(NewToOld).execute(new HgChangesetHandler() {
+			
+			public void cset(HgChangeset changeset) {
+				count[0]++;
+				for (Thread t : Thread.getAllStackTraces().keySet()) {
+					if (t.getName().equals("hg4j-changeset-pipeline")) {
+						pipelineThreads.put(t, t);
+					}
+				}
+			}
+		});
+		errorCollector.assertEquals(repo.getChangelog().getRevisionCount(), count[0]);
+		// two workers and a reader
+		errorCollector.assertTrue(String.valueOf(pipelineThreads.size()), pipelineThreads.size() <= 3);
+	}
+
+	/**
+	 * Path-scoped log, answered from the index of changed files, shall match changesets that list the files
+	 */
+	@Test
+	public void testDirectoryAndPatternScope() throws Exception {
+		repo = Configuration.get().find("log-1");
+		final List<RawChangeset> all = repo.getChangelog().range(0, TIP);
+		ArrayList<Integer> expectedDir = new ArrayList<Integer>();
+		ArrayList<Integer> expectedB = new ArrayList<Integer>();
+		for (int i = 0; i < all.size(); i++) {
+			boolean inDir = false, isB = false;
+			for (String f : all.get(i).files()) {
+				inDir |= f.startsWith("dir/");
+				isB |= f.endsWith("b");
+			}
+			if (inDir) {
+				expectedDir.add(i);
+			}
+			if (isB) {
+				expectedB.add(i);
+			}
+		}
+		errorCollector.assertTrue(!expectedDir.isEmpty());
+		errorCollector.assertEquals(expectedDir, revisionIndexes(new HgLogCommand(repo).directory(Path.create("dir")).execute()));
+		errorCollector.assertTrue(new File(repo.getLocation(), ".hg/cache/hg4j-files-index").isFile());
+		final Path.Matcher endsWithB = new Path.Matcher() {
+
+			public boolean accept(Path path) {
+				return path.toString().endsWith("b");
+			}
+		};
+		errorCollector.assertEquals(expectedB, revisionIndexes(new HgLogCommand(repo).match(endsWithB).execute()));
+		List<HgChangeset> r = new HgLogCommand(repo).match(endsWithB).order(NewToOld).limit(1).execute();
+		errorCollector.assertEquals(expectedB.subList(expectedB.size() - 1, expectedB.size()), revisionIndexes(r));
+		// same, with index re-read from the cache
+		repo = new HgLookup().detect(repo.getWorkingDir());
+		errorCollector.assertEquals(expectedDir, revisionIndexes(new HgLogCommand(repo).directory(Path.create("dir/")).execute()));
+	}
+
+	/**
+	 * Log scoped to repository root shall not get empty answer from the index of changed files
+	 */
+	@Test
+	public void testRootDirectoryScope() throws Exception {
+		repo = Configuration.get().find("log-1");
+		List<HgChangeset> all = new HgLogCommand(repo).execute();
+		errorCollector.assertTrue(!all.isEmpty());
+		errorCollector.assertEquals(revisionIndexes(all), revisionIndexes(new HgLogCommand(repo).directory(Path.create("")).execute()));
+		// root directory replaces any scope set before
+		errorCollector.assertEquals(revisionIndexes(all), revisionIndexes(new HgLogCommand(repo).directory(Path.create("dir")).directory(Path.create("")).execute()));
+	}
+
+	private static List<Integer> revisionIndexes(List<HgChangeset> csets) {
+		ArrayList<Integer> rv = new ArrayList<Integer>(csets.size());
+		for (HgChangeset cs : csets) {
+			rv.add(cs.getRevisionIndex());
+		}
+		return rv;
+	}
+
 	////
 	
 	private final class TreeCollectHandler extends AdapterPlug implements HgChangesetTreeHandler {
@@ -122,6 +122,81 @@ public class TestKeywordFilter {
 		out = new byte[outBuf.remaining()];
 		outBuf.get(out);
 		Assert.assertEquals("1\n", new String(out));
+		// ...unless the filter is told the stream is over
+		outBuf = kwFilter2.flush();
+		out = new byte[outBuf.remaining()];
+		outBuf.get(out);
+		Assert.assertEquals("$Id:whatever", new String(out));
+		Assert.assertNull(kwFilter2.flush());
+	}
+
+	/**
+	 * Content streamed through a small buffer, the way working copy files are, with keywords split at any position
+	 */
+	@Test
+	public void testKeywordsInSmallChunks() throws Exception {
+		initRepo();
+		final byte[] in = "1 $Id: a/b,v 123 $ 2\n$Revision: cf200271439a$$Author: me $ $Unknown: x $\n$$ $Id:unclosed\n3\n".getBytes();
+		final String expected = "1 $Id$ 2\n$Revision$$Author$ $Unknown: x $\n$$ $Id:unclosed\n3\n";
+		for (int chunk = 1; chunk < 12; chunk++) {
+			final Filter kwFilter = createFilter(Filter.Direction.ToRepo);
+			ByteArrayChannel out = new ByteArrayChannel();
+			filterInChunks(kwFilter, in, chunk, out);
+			Assert.assertEquals("Chunk:" + chunk, expected, new String(out.toArray()));
+		}
+	}
+
+	/**
+	 * Stray '$' in the last line of content that doesn't end with a newline shall not swallow the rest of the content
+	 */
+	@Test
+	public void testStrayDollarAtEOF() throws Exception {
+		initRepo();
+		StringBuilder sb = new StringBuilder("1\nprice $5 ");
+		for (int i = 0; sb.length() < 1024; i++) {
+			sb.append(i % 10 == 9 ? ' ' : (char) ('a' + i % 26));
+		}
+		final byte[] in = sb.toString().getBytes();
+		Filter kwFilter = createFilter(Filter.Direction.ToRepo);
+		ByteArrayChannel out = new ByteArrayChannel();
+		filterInChunks(kwFilter, in, 64, out);
+		ByteBuffer rest = kwFilter.flush();
+		if (rest != null) {
+			out.write(rest);
+		}
+		Assert.assertEquals(sb.toString(), new String(out.toArray()));
+		//
+		// '$' with no keyword end in sight is not kept till the end of the stream
+		while (sb.length() < 64 * 1024) {
+			sb.append(sb, 12, 1024);
+		}
+		final byte[] in2 = sb.toString().getBytes();
+		kwFilter = createFilter(Filter.Direction.ToRepo);
+		out = new ByteArrayChannel();
+		filterInChunks(kwFilter, in2, 64, out);
+		Assert.assertEquals(sb.toString(), new String(out.toArray()));
+		Assert.assertNull(kwFilter.flush());
+		//
+		// keyword after a stray '$'
+		final byte[] in3 = "price $5 and $Id: a/b,v 123 $ 2".getBytes();
+		for (int chunk = 1; chunk < 12; chunk++) {
+			kwFilter = createFilter(Filter.Direction.ToRepo);
+			out = new ByteArrayChannel();
+			filterInChunks(kwFilter, in3, chunk, out);
+			Assert.assertEquals("Chunk:" + chunk, "price $5 and $Id$ 2", new String(out.toArray()));
+		}
+	}
+
+	private static void filterInChunks(Filter kwFilter, byte[] in, int chunk, ByteArrayChannel out) throws Exception {
+		ByteBuffer bb = ByteBuffer.allocate(chunk);
+		for (int i = 0; i < in.length || bb.position() > 0; ) {
+			int n = Math.min(bb.remaining(), in.length - i);
+			bb.put(in, i, n);
+			i += n;
+			bb.flip();
+			out.write(kwFilter.filter(bb));
+			bb.compact();
+		}
 	}
 
 	private Filter createFilter(Direction dir) {
@@ -180,6 +180,35 @@ public class TestNewlineFilter {
 		Assert.assertArrayEquals(input, result);
 	}
 
+	@Test
+	public void testSmallChunks_CRLF_2_LF() {
+		final byte[] input = "A\r\nBC\r\r\nD\nEF\r\n\r\nG\r".getBytes();
+		final byte[] output = "A\nBC\nD\nEF\n\nG\r".getBytes();
+		for (int chunk = 2; chunk < 8; chunk++) {
+			NewlineFilter nlFilter = NewlineFilter.createWin2Nix(true);
+			ByteBuffer bb = ByteBuffer.allocate(chunk);
+			ByteBuffer res = ByteBuffer.allocate(input.length);
+			for (int i = 0; i < input.length; ) {
+				int n = Math.min(bb.remaining(), input.length - i);
+				bb.put(input, i, n);
+				i += n;
+				bb.flip();
+				res.put(nlFilter.filter(bb));
+				bb.compact();
+			}
+			// trailing CR is kept till more data comes
+			bb.flip();
+			res.put(bb);
+			res.flip();
+			byte[] result = new byte[res.remaining()];
+			res.get(result);
+			Assert.assertArrayEquals("Chunk:" + chunk, output, result);
+		}
+		// nothing to convert, no copy
+		ByteBuffer noCR = ByteBuffer.wrap(lf_1.getBytes());
+		Assert.assertSame(noCR, NewlineFilter.createWin2Nix(true).filter(noCR));
+	}
+
 	private static byte[] apply(NewlineFilter nlFilter, byte[] input) {
 		final ByteBuffer inputBuffer = ByteBuffer.wrap(input);
 		nlFilter.preview(inputBuffer);
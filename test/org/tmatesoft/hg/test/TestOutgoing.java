@@ -20,7 +20,16 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Rule;
@@ -30,9 +39,15 @@ import org.tmatesoft.hg.core.HgCommitCommand;
 import org.tmatesoft.hg.core.HgLogCommand;
 import org.tmatesoft.hg.core.HgOutgoingCommand;
 import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.RepositoryComparator;
+import org.tmatesoft.hg.internal.SetDiscovery;
+import org.tmatesoft.hg.repo.HgChangelog;
 import org.tmatesoft.hg.repo.HgLookup;
+import org.tmatesoft.hg.repo.HgParentChildMap;
 import org.tmatesoft.hg.repo.HgRemoteRepository;
 import org.tmatesoft.hg.repo.HgRepository;
+import org.tmatesoft.hg.util.CancelSupport;
+import org.tmatesoft.hg.util.ProgressSupport;
 
 /**
  *
@@ -126,4 +141,141 @@ public class TestOutgoing {
 			server.stop();
 		}
 	}
+
+	/**
+	 * Server that answers 'known' queries shall not be asked with 'branches' and 'between'
+	 */
+	@Test
+	public void testSetDiscovery() throws Exception {
+		final HgRepository repo = Configuration.get().find("branches-1");
+		final HgParentChildMap<HgChangelog> pcm = new HgParentChildMap<HgChangelog>(repo.getChangelog());
+		pcm.init();
+		final List<Nodeid> all = pcm.all();
+		// remote got two revisions from the middle of the history, along with their ancestors
+		final List<Nodeid> remoteHeads = Arrays.asList(all.get(all.size() / 2), all.get(all.size() / 3));
+		final Set<Nodeid> remoteKnows = new HashSet<Nodeid>();
+		LinkedList<Nodeid> queue = new LinkedList<Nodeid>(remoteHeads);
+		while (!queue.isEmpty()) {
+			Nodeid n = queue.removeFirst();
+			if (remoteKnows.add(n)) {
+				pcm.appendParentsOf(n, queue);
+			}
+		}
+		final List<Nodeid> expected = new ArrayList<Nodeid>(all);
+		expected.removeAll(remoteKnows);
+		assertTrue("[sanity]", !expected.isEmpty() && !remoteKnows.isEmpty());
+		//
+		StandInServer server = startServer("lookup changegroupsubset branchmap known", remoteHeads, remoteKnows);
+		try {
+			final HgRemoteRepository hgRemote = new HgLookup().detect(server.getURL());
+			List<Nodeid> outgoing = new HgOutgoingCommand(repo).against(hgRemote).executeLite();
+			errorCollector.assertEquals(new HashSet<Nodeid>(expected), new HashSet<Nodeid>(outgoing));
+			errorCollector.assertEquals(expected.size(), outgoing.size());
+			errorCollector.assertEquals(0, server.requestCount("branches"));
+			errorCollector.assertEquals(0, server.requestCount("between"));
+			//
+			// few changesets at a time, to make sure answers are spread over the graph
+			SetDiscovery sd = new SetDiscovery(pcm, hgRemote, 3, new Random(1));
+			sd.run(hgRemote.heads(), CancelSupport.Factory.get(null));
+			errorCollector.assertEquals(expected, sd.toNodeids(sd.getMissing()));
+			errorCollector.assertEquals(new HashSet<Nodeid>(remoteKnows), new HashSet<Nodeid>(sd.toNodeids(sd.getCommon())));
+			errorCollector.assertTrue(sd.getQueryCount() < expected.size() / 3);
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Common revisions come from set discovery alone, if server answers 'known', and common heads
+	 * don't include ancestors of other common revisions without it
+	 */
+	@Test
+	public void testCommonRevisions() throws Exception {
+		final HgRepository repo = Configuration.get().find("branches-1");
+		final HgParentChildMap<HgChangelog> pcm = new HgParentChildMap<HgChangelog>(repo.getChangelog());
+		pcm.init();
+		final List<Nodeid> all = pcm.all();
+		final Nodeid h1 = all.get(all.size() / 2), h2 = all.get(all.size() / 3);
+		final Nodeid ancestor = pcm.firstParent(h2);
+		assertTrue("[sanity]", ancestor != null && !pcm.isChild(h1, h2) && !pcm.isChild(h2, h1));
+		final Set<Nodeid> remoteKnows = new HashSet<Nodeid>();
+		LinkedList<Nodeid> queue = new LinkedList<Nodeid>(Arrays.asList(h1, h2));
+		while (!queue.isEmpty()) {
+			Nodeid n = queue.removeFirst();
+			if (remoteKnows.add(n)) {
+				pcm.appendParentsOf(n, queue);
+			}
+		}
+		final Set<Nodeid> expected = new HashSet<Nodeid>(Arrays.asList(h1, h2));
+		StandInServer server = startServer("lookup changegroupsubset branchmap known", Arrays.asList(h1, h2), remoteKnows);
+		try {
+			final HgRemoteRepository hgRemote = new HgLookup().detect(server.getURL());
+			RepositoryComparator rc = new RepositoryComparator(pcm, hgRemote);
+			rc.compare(ProgressSupport.Factory.get(null), CancelSupport.Factory.get(null));
+			errorCollector.assertEquals(expected, new HashSet<Nodeid>(rc.getCommon()));
+			errorCollector.assertEquals(expected, new HashSet<Nodeid>(rc.getCommonHeads()));
+			errorCollector.assertEquals(0, server.requestCount("branches"));
+			errorCollector.assertEquals(0, server.requestCount("between"));
+		} finally {
+			server.stop();
+		}
+		// remote heads known locally are common as they are, ancestor among them is not a common head
+		server = startServer("lookup changegroupsubset branchmap", Arrays.asList(ancestor, h1, h2), remoteKnows);
+		try {
+			final HgRemoteRepository hgRemote = new HgLookup().detect(server.getURL());
+			RepositoryComparator rc = new RepositoryComparator(pcm, hgRemote);
+			rc.compare(ProgressSupport.Factory.get(null), CancelSupport.Factory.get(null));
+			errorCollector.assertEquals(3, rc.getCommon().size());
+			errorCollector.assertEquals(expected, new HashSet<Nodeid>(rc.getCommonHeads()));
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Heads and first known query go in a single batch request, and all requests share the same connection
+	 */
+	@Test
+	public void testBatchAndKeepAlive() throws Exception {
+		final HgRepository repo = Configuration.get().find("branches-1");
+		final HgParentChildMap<HgChangelog> pcm = new HgParentChildMap<HgChangelog>(repo.getChangelog());
+		pcm.init();
+		final List<Nodeid> all = pcm.all();
+		final Set<Nodeid> remoteKnows = new HashSet<Nodeid>(all);
+		final Nodeid outgoing = all.get(all.size() - 1);
+		remoteKnows.remove(outgoing);
+		List<Nodeid> remoteHeads = Collections.singletonList(all.get(all.size() - 2));
+		assertTrue("[sanity]", !pcm.isChild(remoteHeads.get(0), outgoing));
+		StandInServer server = startServer("lookup changegroupsubset branchmap known batch", remoteHeads, remoteKnows);
+		try {
+			final HgRemoteRepository hgRemote = new HgLookup().detect(server.getURL());
+			List<Nodeid> result = new HgOutgoingCommand(repo).against(hgRemote).executeLite();
+			errorCollector.assertEquals(Collections.singletonList(outgoing), result);
+			errorCollector.assertEquals(1, server.requestCount("batch"));
+			errorCollector.assertEquals(0, server.requestCount("heads"));
+			errorCollector.assertEquals(1, server.connectionCount());
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static StandInServer startServer(String caps, final List<Nodeid> remoteHeads, final Set<Nodeid> remoteKnows) throws IOException {
+		StandInServer server = new StandInServer(caps);
+		StringBuilder sb = new StringBuilder();
+		for (Nodeid h : remoteHeads) {
+			sb.append(sb.length() == 0 ? "" : " ").append(h.toString());
+		}
+		server.command("heads", sb.append('\n').toString().getBytes());
+		server.command("known", new StandInServer.Command() {
+			
+			public byte[] respond(Map<String, String> args) throws IOException {
+				StringBuilder sb = new StringBuilder();
+				for (String n : args.get("nodes").split(" ")) {
+					sb.append(remoteKnows.contains(Nodeid.fromAscii(n)) ? '1' : '0');
+				}
+				return sb.append('\n').toString().getBytes();
+			}
+		});
+		return server.start();
+	}
 }
@@ -20,25 +20,37 @@ import static junit.framework.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.tmatesoft.hg.repo.HgRepository.TIP;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.tmatesoft.hg.core.HgAddRemoveCommand;
 import org.tmatesoft.hg.core.HgCheckoutCommand;
 import org.tmatesoft.hg.core.HgCommitCommand;
+import org.tmatesoft.hg.core.HgIOException;
 import org.tmatesoft.hg.core.HgIncomingCommand;
 import org.tmatesoft.hg.core.HgPullCommand;
 import org.tmatesoft.hg.core.Nodeid;
 import org.tmatesoft.hg.internal.BasicSessionContext;
+import org.tmatesoft.hg.internal.BundleGenerator;
 import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.internal.PhasesHelper;
 import org.tmatesoft.hg.internal.RevisionSet;
+import org.tmatesoft.hg.repo.HgChangelog;
 import org.tmatesoft.hg.repo.HgInternals;
 import org.tmatesoft.hg.repo.HgLookup;
+import org.tmatesoft.hg.repo.HgParentChildMap;
 import org.tmatesoft.hg.repo.HgPhase;
 import org.tmatesoft.hg.repo.HgRemoteRepository;
 import org.tmatesoft.hg.repo.HgRepository;
@@ -203,6 +215,122 @@ public class TestPull {
 		errorCollector.assertTrue(dstSecret.toString(), dstSecret.isEmpty());
 	}
 
+	/**
+	 * Server that supports getbundle sends only what's missing, and there's no need to walk remote branches
+	 */
+	@Test
+	public void testPullWithGetBundle() throws Exception {
+		final HgRepository srcRepo = Configuration.get().find("test-annotate");
+		final HgParentChildMap<HgChangelog> srcPCM = new HgParentChildMap<HgChangelog>(srcRepo.getChangelog());
+		srcPCM.init();
+		final List<Nodeid> all = srcPCM.all();
+		final List<Nodeid> remoteHeads = new ArrayList<Nodeid>();
+		final List<List<Nodeid>> sentCommon = new ArrayList<List<Nodeid>>();
+		final List<Integer> sentCount = new ArrayList<Integer>();
+		StandInServer server = new StandInServer("lookup changegroupsubset branchmap known getbundle");
+		server.command("heads", new StandInServer.Command() {
+			
+			public byte[] respond(Map<String, String> args) {
+				StringBuilder sb = new StringBuilder();
+				for (Nodeid h : remoteHeads) {
+					sb.append(sb.length() == 0 ? "" : " ").append(h.toString());
+				}
+				return sb.append('\n').toString().getBytes();
+			}
+		});
+		server.command("known", new StandInServer.Command() {
+			
+			public byte[] respond(Map<String, String> args) {
+				Set<Nodeid> remoteKnows = ancestors(srcPCM, remoteHeads);
+				StringBuilder sb = new StringBuilder();
+				for (String n : args.get("nodes").split(" ")) {
+					sb.append(remoteKnows.contains(Nodeid.fromAscii(n)) ? '1' : '0');
+				}
+				return sb.append('\n').toString().getBytes();
+			}
+		});
+		server.command("getbundle", new StandInServer.Command() {
+			
+			public byte[] respond(Map<String, String> args) throws IOException {
+				ArrayList<Nodeid> common = new ArrayList<Nodeid>(), heads = new ArrayList<Nodeid>();
+				for (String n : args.get("common").split(" ")) {
+					if (!Nodeid.fromAscii(n).isNull()) {
+						common.add(Nodeid.fromAscii(n));
+					}
+				}
+				for (String n : args.get("heads").split(" ")) {
+					heads.add(Nodeid.fromAscii(n));
+				}
+				Set<Nodeid> missing = ancestors(srcPCM, heads);
+				missing.removeAll(ancestors(srcPCM, common));
+				ArrayList<Nodeid> changes = new ArrayList<Nodeid>(all);
+				changes.retainAll(missing);
+				sentCommon.add(common);
+				sentCount.add(changes.size());
+				File bundle;
+				try {
+					bundle = new BundleGenerator(HgInternals.getImplementationRepo(srcRepo)).create(changes);
+				} catch (HgIOException ex) {
+					throw (IOException) new IOException(ex.getMessage()).initCause(ex);
+				}
+				byte[] data = StandInServer.read(new FileInputStream(bundle));
+				bundle.delete();
+				// zlib stream of bundle content, without a header
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				DeflaterOutputStream dos = new DeflaterOutputStream(bos);
+				dos.write(data, 6, data.length - 6);
+				dos.close();
+				return bos.toByteArray();
+			}
+		});
+		server.start();
+		try {
+			// few writers regardless of the machine, so that files get written in parallel
+			Map<String,?> props = Collections.singletonMap(Internals.CFG_PROPERTY_BUNDLE_WRITERS, 4);
+			final HgLookup hgLookup = new HgLookup(new BasicSessionContext(props, null));
+			final HgRemoteRepository srcRemote = hgLookup.detect(server.getURL());
+			final HgRepository dstRepo = hgLookup.detect(RepoUtils.initEmptyTempRepo("test-pull-getbundle"));
+			// remote got first half of the history, then the rest
+			final Nodeid middle = all.get(all.size() / 2);
+			final int firstHalf = ancestors(srcPCM, Collections.singletonList(middle)).size();
+			remoteHeads.add(middle);
+			HgPullCommand cmd = new HgPullCommand(dstRepo).source(srcRemote);
+			cmd.execute();
+			errorCollector.assertEquals(firstHalf, dstRepo.getChangelog().getRevisionCount());
+			errorCollector.assertEquals(middle, dstRepo.getChangelog().getRevision(TIP));
+			//
+			remoteHeads.clear();
+			remoteHeads.addAll(srcPCM.heads());
+			cmd = new HgPullCommand(dstRepo).source(srcRemote);
+			cmd.execute();
+			checkRepositoriesAreSame(srcRepo, dstRepo);
+			errorCollector.assertEquals(2, sentCommon.size());
+			errorCollector.assertEquals(Collections.singletonList(middle), sentCommon.get(1));
+			errorCollector.assertEquals(all.size() - firstHalf, sentCount.get(1).intValue());
+			errorCollector.assertEquals(sentCount.get(1).intValue(), cmd.getPulledRevisions().size());
+			// nothing new at remote, no bundle requested
+			new HgPullCommand(dstRepo).source(srcRemote).execute();
+			errorCollector.assertEquals(2, server.requestCount("getbundle"));
+			errorCollector.assertEquals(0, server.requestCount("changegroup"));
+			errorCollector.assertEquals(0, server.requestCount("branches"));
+			errorCollector.assertEquals(0, server.requestCount("between"));
+		} finally {
+			server.stop();
+		}
+	}
+	
+	private static Set<Nodeid> ancestors(HgParentChildMap<HgChangelog> pcm, List<Nodeid> revisions) {
+		HashSet<Nodeid> rv = new HashSet<Nodeid>();
+		LinkedList<Nodeid> queue = new LinkedList<Nodeid>(revisions);
+		while (!queue.isEmpty()) {
+			Nodeid n = queue.removeFirst();
+			if (rv.add(n)) {
+				pcm.appendParentsOf(n, queue);
+			}
+		}
+		return rv;
+	}
+
 	private void checkRepositoriesAreSame(HgRepository srcRepo, HgRepository dstRepo) {
 		// XXX copy of TestPush#checkRepositoriesAreSame
 		errorCollector.assertEquals(srcRepo.getChangelog().getRevisionCount(), dstRepo.getChangelog().getRevisionCount());
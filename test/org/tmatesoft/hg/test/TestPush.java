@@ -19,8 +19,17 @@ package org.tmatesoft.hg.test;
 import static org.junit.Assert.*;
 import static org.tmatesoft.hg.repo.HgRepository.TIP;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.InflaterInputStream;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -29,12 +38,16 @@ import org.tmatesoft.hg.core.HgCommitCommand;
 import org.tmatesoft.hg.core.HgOutgoingCommand;
 import org.tmatesoft.hg.core.HgPushCommand;
 import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.BasicSessionContext;
+import org.tmatesoft.hg.internal.BundleGenerator;
 import org.tmatesoft.hg.internal.PhasesHelper;
 import org.tmatesoft.hg.internal.RevisionSet;
+import org.tmatesoft.hg.internal.remote.HttpConnector;
 import org.tmatesoft.hg.repo.HgBookmarks;
 import org.tmatesoft.hg.repo.HgChangelog;
 import org.tmatesoft.hg.repo.HgInternals;
 import org.tmatesoft.hg.repo.HgLookup;
+import org.tmatesoft.hg.repo.HgParentChildMap;
 import org.tmatesoft.hg.repo.HgPhase;
 import org.tmatesoft.hg.repo.HgRemoteRepository;
 import org.tmatesoft.hg.repo.HgRepository;
@@ -386,6 +399,149 @@ public class TestPush {
 		}
 	}
 
+	/**
+	 * Bundle is compressed and goes to the server as it's generated, without known length, once chunked upload is enabled
+	 */
+	@Test
+	public void testPushStreamsBundle() throws Exception {
+		File srcRepoLoc = RepoUtils.copyRepoToTempLocation("test-annotate", "test-push-streamed-src");
+		final HgRepository srcRepo = new HgLookup().detect(srcRepoLoc);
+		StandInServer server = new StandInServer("lookup changegroupsubset branchmap unbundle=HG10GZ,HG10BZ,HG10UN");
+		// empty remote repository
+		final String n = Nodeid.NULL.toString();
+		server.command("heads", (n + "\n").getBytes());
+		server.command("branches", String.format("%s %1$s %1$s %1$s\n", n).getBytes());
+		server.command("unbundle", "1\n".getBytes());
+		server.start();
+		try {
+			Map<String, Object> props = Collections.<String, Object>singletonMap(HttpConnector.CFG_PROPERTY_HTTP_CHUNKED_UPLOAD, true);
+			HgLookup hgLookup = new HgLookup(new BasicSessionContext(props, null));
+			HgPushCommand cmd = new HgPushCommand(srcRepo).destination(hgLookup.detect(server.getURL()));
+			cmd.execute();
+			errorCollector.assertEquals(srcRepo.getChangelog().getRevisionCount(), cmd.getPushedRevisions().size());
+			errorCollector.assertEquals(1, server.requestCount("unbundle"));
+			errorCollector.assertTrue(server.isChunked("unbundle"));
+			byte[] sent = server.requestBody("unbundle");
+			errorCollector.assertEquals("HG10GZ", new String(sent, 0, 6));
+			// same content as uncompressed bundle in a file
+			ArrayList<Nodeid> all = new ArrayList<Nodeid>(cmd.getPushedRevisions());
+			File bundleFile = new BundleGenerator(HgInternals.getImplementationRepo(srcRepo)).create(all);
+			byte[] expected = new byte[(int) bundleFile.length()];
+			DataInputStream dis = new DataInputStream(new FileInputStream(bundleFile));
+			dis.readFully(expected);
+			dis.close();
+			bundleFile.delete();
+			ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+			inflated.write(expected, 0, 6); // HG10UN
+			InflaterInputStream iis = new InflaterInputStream(new ByteArrayInputStream(sent, 6, sent.length - 6));
+			byte[] buf = new byte[8192];
+			for (int r; (r = iis.read(buf)) != -1;) {
+				inflated.write(buf, 0, r);
+			}
+			errorCollector.assertTrue(Arrays.equals(expected, inflated.toByteArray()));
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * By default, bundle of unknown length goes to http server with Content-Length, hgweb doesn't accept chunked requests
+	 */
+	@Test
+	public void testPushToContentLengthOnlyServer() throws Exception {
+		File srcRepoLoc = RepoUtils.copyRepoToTempLocation("test-annotate", "test-push-length-src");
+		final HgRepository srcRepo = new HgLookup().detect(srcRepoLoc);
+		StandInServer server = new StandInServer("lookup changegroupsubset branchmap unbundle=HG10GZ,HG10BZ,HG10UN").requireContentLength();
+		final String n = Nodeid.NULL.toString();
+		server.command("heads", (n + "\n").getBytes());
+		server.command("branches", String.format("%s %1$s %1$s %1$s\n", n).getBytes());
+		server.command("unbundle", "1\n".getBytes());
+		server.start();
+		try {
+			HgPushCommand cmd = new HgPushCommand(srcRepo).destination(new HgLookup().detect(server.getURL()));
+			cmd.execute();
+			errorCollector.assertEquals(srcRepo.getChangelog().getRevisionCount(), cmd.getPushedRevisions().size());
+			errorCollector.assertEquals(1, server.requestCount("unbundle"));
+			errorCollector.assertFalse(server.isChunked("unbundle"));
+			byte[] sent = server.requestBody("unbundle");
+			errorCollector.assertTrue(sent != null && sent.length > 6);
+			errorCollector.assertEquals("HG10GZ", new String(sent, 0, 6));
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Remote phases and bookmarks come in a single request, and all updates go in another one
+	 */
+	@Test
+	public void testPushSyncsKeysInBatch() throws Exception {
+		File srcRepoLoc = RepoUtils.copyRepoToTempLocation("test-annotate", "test-push-keys-src");
+		final HgRepository srcRepo = new HgLookup().detect(srcRepoLoc);
+		final HgChangelog clog = srcRepo.getChangelog();
+		final Nodeid r0 = clog.getRevision(0), r1 = clog.getRevision(1), tip = clog.getRevision(TIP);
+		// all local changesets are public
+		RepoUtils.createFile(new File(srcRepoLoc, ".hg/store/phaseroots"), "");
+		RepoUtils.createFile(new File(srcRepoLoc, ".hg/bookmarks"), String.format("%s bm1\n%1$s bm2\n", tip));
+		final HgRepository localRepo = new HgLookup().detect(srcRepoLoc);
+		StandInServer server = new StandInServer("lookup changegroupsubset branchmap pushkey known batch unbundle=HG10GZ,HG10BZ,HG10UN");
+		// remote has everything we do
+		server.command("heads", (tip + "\n").getBytes());
+		server.command("known", new StandInServer.Command() {
+			
+			public byte[] respond(Map<String, String> args) {
+				StringBuilder sb = new StringBuilder();
+				for (int i = args.get("nodes").split(" ").length; i > 0; i--) {
+					sb.append('1');
+				}
+				return sb.toString().getBytes();
+			}
+		});
+		server.command("listkeys", new StandInServer.Command() {
+			
+			public byte[] respond(Map<String, String> args) {
+				if ("phases".equals(args.get("namespace"))) {
+					// publishing server with drafts left from the times it was not, all local changesets are public 
+					return String.format("publishing\tTrue\n%s\t1\n", r1).getBytes();
+				}
+				// bm3 is not known locally
+				return String.format("bm1\t%s\nbm2\t%s\nbm3\t%1$s\n", r0, r1).getBytes();
+			}
+		});
+		final List<String> pushed = new ArrayList<String>();
+		server.command("pushkey", new StandInServer.Command() {
+			
+			public byte[] respond(Map<String, String> args) {
+				pushed.add(String.format("%s %s %s %s", args.get("namespace"), args.get("key"), args.get("old"), args.get("new")));
+				return "1\n".getBytes();
+			}
+		});
+		server.start();
+		try {
+			HgPushCommand cmd = new HgPushCommand(localRepo).destination(new HgLookup().detect(server.getURL()));
+			cmd.execute();
+			errorCollector.assertTrue(cmd.getPushedRevisions().isEmpty());
+			// discovery, listkeys, pushkey
+			errorCollector.assertEquals(3, server.requestCount("batch"));
+			errorCollector.assertEquals(0, server.requestCount("listkeys"));
+			errorCollector.assertEquals(0, server.requestCount("pushkey"));
+			// every local head descends from the remote draft root
+			HgParentChildMap<HgChangelog> pcm = new HgParentChildMap<HgChangelog>(clog);
+			pcm.init();
+			List<String> expected = new ArrayList<String>();
+			for (Nodeid h : pcm.heads()) {
+				expected.add(String.format("phases %s 1 0", h));
+			}
+			expected.add(String.format("bookmarks bm1 %s %s", r0, tip));
+			expected.add(String.format("bookmarks bm2 %s %s", r1, tip));
+			Collections.sort(expected);
+			Collections.sort(pushed);
+			errorCollector.assertEquals(expected, pushed);
+		} finally {
+			server.stop();
+		}
+	}
+
 	private void checkRepositoriesAreSame(HgRepository srcRepo, HgRepository dstRepo) {
 		errorCollector.assertEquals(srcRepo.getChangelog().getRevisionCount(), dstRepo.getChangelog().getRevisionCount());
 		errorCollector.assertEquals(srcRepo.getChangelog().getRevision(0), dstRepo.getChangelog().getRevision(0));
@@ -20,9 +20,11 @@ import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.tmatesoft.hg.core.HgRepositoryLockException;
 import org.tmatesoft.hg.core.HgStatusCommand;
 import org.tmatesoft.hg.internal.BasicSessionContext;
 import org.tmatesoft.hg.internal.DataAccessProvider;
@@ -57,6 +59,133 @@ public class TestRepositoryLock {
 		}
 	}
 
+	/**
+	 * Threads of the same process queue for the lock, and lock file is handed from one to another 
+	 */
+	@Test
+	public void testInProcessQueue() throws Exception {
+		File repoLoc = RepoUtils.copyRepoToTempLocation("log-1", "test-lock-queue");
+		final File lockFile = new File(repoLoc, ".hg/store/lock");
+		// distinct repository instances, same lock
+		final HgRepositoryLock lock1 = new HgLookup().detect(repoLoc).getStoreLock();
+		final HgRepositoryLock lock2 = new HgLookup().detect(repoLoc).getStoreLock();
+		final HgRepositoryLock.Statistics before = lock1.getStatistics();
+		lock1.acquire();
+		// reentrant for the thread, regardless of repository instance
+		lock2.acquire();
+		lock2.release();
+		Assert.assertTrue(lockFile.exists());
+		final CountDownLatch acquired = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					lock2.acquire();
+					acquired.countDown();
+					lock2.release();
+				} catch (Exception ex) {
+					ex.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			}
+		});
+		t.start();
+		Assert.assertFalse(acquired.await(300, TimeUnit.MILLISECONDS));
+		lock1.release();
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(0, acquired.getCount());
+		Assert.assertFalse(lockFile.exists());
+		HgRepositoryLock.Statistics after = lock2.getStatistics();
+		Assert.assertEquals(2, after.getAcquisitions() - before.getAcquisitions());
+		Assert.assertEquals(1, after.getContendedAcquisitions() - before.getContendedAcquisitions());
+		// second thread got the file created by the first one
+		Assert.assertEquals(1, after.getFileAcquisitions() - before.getFileAcquisitions());
+		Assert.assertTrue(after.getMaxWaitTime(TimeUnit.MILLISECONDS) > 0);
+		Assert.assertTrue(after.getHoldTime(TimeUnit.MILLISECONDS) >= 300);
+	}
+
+	/**
+	 * Threads that share repository instance (and hence its lock object) don't get in while another one holds the lock
+	 */
+	@Test
+	public void testSharedLockInstance() throws Exception {
+		File repoLoc = RepoUtils.copyRepoToTempLocation("log-1", "test-lock-shared");
+		final HgRepository hgRepo = new HgLookup().detect(repoLoc);
+		final HgRepositoryLock lock = hgRepo.getStoreLock();
+		Assert.assertSame(lock, hgRepo.getStoreLock());
+		lock.acquire();
+		lock.acquire();
+		final CountDownLatch acquired = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final boolean[] lockedBeforeAcquire = new boolean[1];
+		final Exception[] failure = new Exception[2];
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					final HgRepositoryLock l = hgRepo.getStoreLock();
+					lockedBeforeAcquire[0] = l.isLocked();
+					try {
+						l.release();
+					} catch (HgRepositoryLockException ex) {
+						// expected, this thread doesn't hold the lock
+						failure[0] = ex;
+					}
+					l.acquire();
+					acquired.countDown();
+					l.release();
+				} catch (Exception ex) {
+					failure[1] = ex;
+				} finally {
+					done.countDown();
+				}
+			}
+		});
+		t.start();
+		Assert.assertFalse(acquired.await(300, TimeUnit.MILLISECONDS));
+		lock.release();
+		// still held by this thread, once more to release
+		Assert.assertTrue(lock.isLocked());
+		Assert.assertFalse(acquired.await(300, TimeUnit.MILLISECONDS));
+		lock.release();
+		Assert.assertFalse(lock.isLocked());
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(0, acquired.getCount());
+		Assert.assertFalse(lockedBeforeAcquire[0]);
+		Assert.assertTrue(failure[0] instanceof HgRepositoryLockException);
+		Assert.assertNull(failure[1]);
+		Assert.assertFalse(new File(repoLoc, ".hg/store/lock").exists());
+	}
+
+	@Test
+	public void testInProcessTimeout() throws Exception {
+		File repoLoc = RepoUtils.copyRepoToTempLocation("log-1", "test-lock-timeout");
+		RepoUtils.createFile(new File(repoLoc, ".hg/hgrc"), "[ui]\ntimeout=1\n");
+		final HgRepositoryLock lock1 = new HgLookup().detect(repoLoc).getWorkingDirLock();
+		final HgRepositoryLock lock2 = new HgLookup().detect(repoLoc).getWorkingDirLock();
+		lock1.acquire();
+		final Exception[] failure = new Exception[1];
+		final boolean[] lockedAfterFailure = new boolean[] { true };
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					lock2.acquire();
+				} catch (Exception ex) {
+					failure[0] = ex;
+				}
+				lockedAfterFailure[0] = lock2.isLocked();
+			}
+		});
+		t.start();
+		t.join(5000);
+		Assert.assertTrue(failure[0] instanceof HgRepositoryLockException);
+		Assert.assertFalse(lockedAfterFailure[0]);
+		lock1.release();
+		Assert.assertFalse(new File(repoLoc, ".hg/wlock").exists());
+		lock2.acquire();
+		lock2.release();
+	}
+
 	public static void main(String[] args) throws Exception {
 		Map<String, Object> po = new HashMap<String, Object>();
 		po.put(DataAccessProvider.CFG_PROPERTY_MAPIO_LIMIT, 0);
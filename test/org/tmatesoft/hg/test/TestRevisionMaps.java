@@ -16,8 +16,11 @@
  */
 package org.tmatesoft.hg.test;
 
+import static org.tmatesoft.hg.repo.HgRepository.NO_REVISION;
+
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
 
@@ -25,6 +28,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.tmatesoft.hg.core.HgException;
 import org.tmatesoft.hg.core.Nodeid;
+import org.tmatesoft.hg.internal.CommitGraph;
+import org.tmatesoft.hg.internal.Internals;
 import org.tmatesoft.hg.repo.HgChangelog;
 import org.tmatesoft.hg.repo.HgParentChildMap;
 import org.tmatesoft.hg.repo.HgRepository;
@@ -137,4 +142,44 @@ public class TestRevisionMaps {
 			errorCollector.assertEquals(allRevs[i], rmap.revision(i));
 		}
 	}
+
+	@Test
+	public void testCommitGraph() throws HgException {
+		final HgRepository repo = Configuration.get().find("test-annotate");
+		final HgChangelog clog = repo.getChangelog();
+		final CommitGraph graph = Internals.getInstance(repo).getCommitGraph();
+		final int revCount = clog.getRevisionCount();
+		errorCollector.assertEquals(revCount, graph.size());
+		// straightforward ancestors, one set per revision
+		BitSet[] ancestors = new BitSet[revCount];
+		int[] parents = new int[2];
+		for (int i = 0; i < revCount; i++) {
+			clog.parents(i, parents, null, null);
+			errorCollector.assertEquals(parents[0], graph.parent1(i));
+			errorCollector.assertEquals(parents[1], graph.parent2(i));
+			ancestors[i] = new BitSet(revCount);
+			ancestors[i].set(i);
+			int generation = 1;
+			for (int p : parents) {
+				if (p != NO_REVISION) {
+					ancestors[i].or(ancestors[p]);
+					generation = Math.max(generation, graph.generation(p) + 1);
+				}
+			}
+			errorCollector.assertEquals(generation, graph.generation(i));
+			errorCollector.assertEquals(ancestors[i], graph.ancestors(i));
+		}
+		HgParentChildMap<HgChangelog> parentHelper = new HgParentChildMap<HgChangelog>(clog);
+		parentHelper.init();
+		final Nodeid[] allRevs = RepoUtils.allRevisions(repo);
+		for (int a = 0; a < revCount; a++) {
+			BitSet descendants = graph.descendants(a);
+			for (int d = 0; d < revCount; d++) {
+				final boolean expected = ancestors[d].get(a);
+				errorCollector.assertEquals(expected, graph.isAncestor(a, d));
+				errorCollector.assertEquals(expected, descendants.get(d));
+				errorCollector.assertEquals(expected && a != d, parentHelper.isChild(allRevs[a], allRevs[d]));
+			}
+		}
+	}
 }
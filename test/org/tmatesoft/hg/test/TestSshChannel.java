@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2013 TMate Software Ltd
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * For information on how to redistribute this software under
+ * the terms of a license other than GNU General Public License
+ * contact TMate Software at support@hg4j.com
+ */
+package org.tmatesoft.hg.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+import org.tmatesoft.hg.core.SessionContext;
+import org.tmatesoft.hg.internal.BasicSessionContext;
+import org.tmatesoft.hg.internal.remote.SshChannel;
+import org.tmatesoft.hg.internal.remote.SshChannel.Parameter;
+import org.tmatesoft.hg.internal.remote.SshChannelPool;
+
+/**
+ * Dialog over ssh channel and keep-alive pool, with a stand-in for <code>hg serve --stdio</code> in place of ssh session.
+ *
+ * @author Artem Tikhomirov
+ * @author TMate Software Ltd.
+ */
+public class TestSshChannel {
+
+	private final List<StdioServer> servers = new ArrayList<StdioServer>();
+	private final SessionContext ctx = new BasicSessionContext(null);
+
+	@After
+	public void shutdown() {
+		SshChannelPool.getInstance().clear();
+		for (StdioServer s : servers) {
+			s.stop();
+		}
+	}
+
+	@Test
+	public void testPipelinedCommands() throws Exception {
+		StdioServer server = newServer();
+		server.command("heads", 0, "1111111111111111111111111111111111111111\n");
+		server.command("known", 1, "10");
+		SshChannel c = server.channel();
+		// both commands go at once, answers are read afterwards
+		c.command("heads", Collections.<Parameter>emptyList());
+		c.command("known", Collections.singletonList(new Parameter("nodes", "a b")));
+		assertEquals(0, server.commandsReceived());
+		c.flush();
+		assertEquals("1111111111111111111111111111111111111111\n", new String(c.readResponse()));
+		assertEquals("10", new String(c.readResponse()));
+		assertEquals(2, server.commandsReceived());
+		assertEquals("a b", server.lastArgument("known"));
+		assertTrue(c.isReusable());
+		c.close();
+	}
+
+	@Test
+	public void testLeftoverResponseIsSkipped() throws Exception {
+		StdioServer server = newServer();
+		server.command("listkeys", 1, "bookmark1\t1111111111111111111111111111111111111111\nbookmark2\t2222222222222222222222222222222222222222\n");
+		server.command("heads", 0, "3333333333333333333333333333333333333333\n");
+		SshChannel c = server.channel();
+		c.command("listkeys", Collections.singletonList(new Parameter("namespace", "bookmarks")));
+		c.flush();
+		InputStream r = c.response();
+		assertEquals('b', r.read()); // client is not interested in the rest
+		r.close();
+		c.command("heads", Collections.<Parameter>emptyList());
+		c.flush();
+		assertEquals("3333333333333333333333333333333333333333\n", new String(readAll(c.response())));
+		assertTrue(c.isReusable());
+		c.close();
+	}
+
+	@Test
+	public void testPoolKeepsIdleChannel() throws Exception {
+		final SshChannelPool pool = SshChannelPool.getInstance();
+		StdioServer server = newServer();
+		server.command("heads", 0, "3333333333333333333333333333333333333333\n");
+		SshChannel c = server.channel();
+		pool.release(ctx, "ssh://a/repo", c, 60000);
+		assertTrue(pool.hasIdle(ctx, "ssh://a/repo"));
+		assertFalse(pool.hasIdle(ctx, "ssh://b/repo"));
+		assertNull(pool.take(ctx, "ssh://b/repo"));
+		SshChannel c2 = pool.take(ctx, "ssh://a/repo");
+		assertSame(c, c2);
+		assertFalse(pool.hasIdle(ctx, "ssh://a/repo"));
+		// only one idle channel per remote
+		SshChannel other = newServer().channel();
+		pool.release(ctx, "ssh://a/repo", c2, 60000);
+		pool.release(ctx, "ssh://a/repo", other, 60000);
+		assertFalse(other.isReusable());
+		assertSame(c, pool.take(ctx, "ssh://a/repo"));
+		// channel picked from the pool is as good as new
+		c.command("heads", Collections.<Parameter>emptyList());
+		c.flush();
+		assertEquals("3333333333333333333333333333333333333333\n", new String(c.readResponse()));
+		c.close();
+	}
+
+	@Test
+	public void testPoolClosesChannels() throws Exception {
+		final SshChannelPool pool = SshChannelPool.getInstance();
+		// no keep-alive
+		StdioServer server = newServer();
+		SshChannel c = server.channel();
+		pool.release(ctx, "ssh://a/repo", c, 0);
+		assertFalse(pool.hasIdle(ctx, "ssh://a/repo"));
+		assertTrue(server.waitClosed(5000));
+		// channel left in unknown state is not kept
+		server = newServer();
+		server.command("changegroup", 1, "");
+		c = server.channel();
+		c.command("changegroup", Collections.singletonList(new Parameter("roots", "")));
+		c.flush();
+		c.unsizedResponse();
+		assertFalse(c.isReusable());
+		pool.release(ctx, "ssh://a/repo", c, 60000);
+		assertFalse(pool.hasIdle(ctx, "ssh://a/repo"));
+		assertTrue(server.waitClosed(5000));
+		// idle for too long
+		server = newServer();
+		c = server.channel();
+		pool.release(ctx, "ssh://a/repo", c, 200);
+		assertTrue(pool.hasIdle(ctx, "ssh://a/repo"));
+		assertTrue(server.waitClosed(5000));
+		assertFalse(pool.hasIdle(ctx, "ssh://a/repo"));
+	}
+
+	@Test
+	public void testPoolKeepsChannelsOfSessionApart() throws Exception {
+		final SshChannelPool pool = SshChannelPool.getInstance();
+		final SessionContext ctx2 = new BasicSessionContext(null);
+		SshChannel c = newServer().channel();
+		pool.release(ctx, "ssh://a/repo", c, 60000);
+		// channel authenticated for one session is not given to another, even with the same remote
+		assertFalse(pool.hasIdle(ctx2, "ssh://a/repo"));
+		assertNull(pool.take(ctx2, "ssh://a/repo"));
+		assertFalse(pool.hasIdle(ctx, "ssh://user@a/repo"));
+		assertSame(c, pool.take(ctx, "ssh://a/repo"));
+		c.close();
+	}
+
+	@Test
+	public void testDeadChannelIsDetected() throws Exception {
+		StdioServer server = newServer();
+		SshChannel c = server.channel();
+		assertTrue(c.isAlive());
+		assertTrue(c.isReusable());
+		// e.g. server has gone while the channel was idle
+		server.stop();
+		assertTrue(server.waitClosed(5000));
+		assertFalse(c.isAlive());
+		assertFalse(c.isReusable());
+		c.close();
+	}
+
+	private StdioServer newServer() throws IOException {
+		StdioServer s = new StdioServer();
+		servers.add(s);
+		return s;
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		int b;
+		while ((b = is.read()) != -1) {
+			bos.write(b);
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Answers commands with canned responses, the way <code>hg serve --stdio</code> does:
+	 * command name, arguments with their length, and the response preceded with its length.
+	 */
+	private static class StdioServer implements Runnable {
+		private final Map<String, Integer> argCount = new HashMap<String, Integer>();
+		private final Map<String, String> responses = new HashMap<String, String>();
+		private final Map<String, String> lastArgument = new HashMap<String, String>();
+		private final PipedInputStream serverIn, clientIn, clientErr;
+		private final PipedOutputStream serverOut;
+		private final Thread thread;
+		private int commands;
+		private boolean closed;
+
+		public StdioServer() throws IOException {
+			serverIn = new PipedInputStream();
+			clientIn = new PipedInputStream();
+			serverOut = new PipedOutputStream(clientIn);
+			clientErr = new PipedInputStream(new PipedOutputStream());
+			thread = new Thread(this, "stand-in hg serve");
+			thread.setDaemon(true);
+		}
+
+		public void command(String name, int args, String response) {
+			argCount.put(name, args);
+			responses.put(name, response);
+		}
+
+		public SshChannel channel() throws IOException {
+			PipedOutputStream toServer = new PipedOutputStream(serverIn);
+			thread.start();
+			return new SshChannel(clientIn, clientErr, toServer, new Closeable() {
+
+				public void close() {
+				}
+			});
+		}
+
+		public void run() {
+			try {
+				String cmd;
+				while ((cmd = readLine()) != null) {
+					Integer args = argCount.get(cmd);
+					String lastArg = null;
+					for (int i = 0; args != null && i < args; i++) {
+						String header = readLine();
+						int len = Integer.parseInt(header.substring(header.indexOf(' ') + 1));
+						byte[] value = new byte[len];
+						for (int off = 0; off < len; off++) {
+							value[off] = (byte) serverIn.read();
+						}
+						serverIn.read(); // '\n'
+						lastArg = new String(value);
+					}
+					String response = responses.get(cmd);
+					synchronized (this) {
+						commands++;
+						lastArgument.put(cmd, lastArg);
+					}
+					if (response == null) {
+						response = "";
+					}
+					serverOut.write((response.length() + "\n" + response).getBytes());
+					serverOut.flush();
+				}
+			} catch (IOException ex) {
+				// client has gone
+			} finally {
+				synchronized (this) {
+					closed = true;
+					notifyAll();
+				}
+			}
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = serverIn.read()) != '\n') {
+				if (c == -1) {
+					return null;
+				}
+				sb.append((char) c);
+			}
+			return sb.toString();
+		}
+
+		public synchronized int commandsReceived() {
+			return commands;
+		}
+
+		public synchronized String lastArgument(String cmd) {
+			return lastArgument.get(cmd);
+		}
+
+		public synchronized boolean waitClosed(long timeout) throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + timeout;
+			for (long left = timeout; !closed && left > 0; left = deadline - System.currentTimeMillis()) {
+				wait(left);
+			}
+			return closed;
+		}
+
+		public void stop() {
+			try {
+				serverIn.close();
+				serverOut.close();
+			} catch (IOException ex) {
+				// ignore
+			}
+		}
+	}
+}
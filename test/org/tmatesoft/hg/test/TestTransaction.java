@@ -24,8 +24,11 @@ import java.io.IOException;
 
 import org.junit.Rule;
 import org.junit.Test;
+import org.tmatesoft.hg.core.HgIOException;
+import org.tmatesoft.hg.core.SessionContext;
 import org.tmatesoft.hg.internal.BasicSessionContext;
 import org.tmatesoft.hg.internal.COWTransaction;
+import org.tmatesoft.hg.internal.JournalTransaction;
 import org.tmatesoft.hg.internal.Transaction;
 
 /**
@@ -91,6 +94,125 @@ public class TestTransaction {
 		errorCollector.assertEquals("A", read(f2));
 	}
 
+	@Test
+	public void testJournalTransaction() throws Exception {
+		final BasicSessionContext ctx = new BasicSessionContext(null);
+		File dir = RepoUtils.createEmptyDir("test-transaction-journal");
+		final File journal = new File(dir, "journal");
+		Transaction.Factory f = new Transaction.Factory() {
+			
+			public Transaction create(SessionContext.Source ctxSource) {
+				return new JournalTransaction(ctxSource, journal);
+			}
+		};
+		File f1 = new File(dir, "f1");
+		File f2 = new File(dir, "f2");
+		File f3 = new File(dir, "f3");
+		File f4 = new File(dir, "f4"), backup4 = new File(dir, "undo.f4");
+		RepoUtils.createFile(f1, "1");
+		RepoUtils.createFile(f4, "old");
+		//
+		// transaction commit
+		Transaction tr1 = f.create(ctx);
+		File tf1 = tr1.prepare(f1);
+		errorCollector.assertEquals(f1, tf1);
+		RepoUtils.modifyFileAppend(tf1, "2");
+		tr1.done(tf1);
+		File tf2 = tr1.prepare(f2);
+		errorCollector.assertTrue(tf2.exists());
+		RepoUtils.modifyFileAppend(tf2, "A");
+		tr1.done(tf2);
+		// appended files are recorded in the journal before they are modified
+		errorCollector.assertEquals("f1\0" + "1\nf2\0" + "0\n", read(journal));
+		tr1.commit();
+		errorCollector.assertFalse(journal.exists());
+		errorCollector.assertEquals("12", read(f1));
+		errorCollector.assertEquals("A", read(f2));
+		//
+		// transaction rollback
+		Transaction tr2 = f.create(ctx);
+		tf1 = tr2.prepare(f1);
+		RepoUtils.modifyFileAppend(tf1, "3");
+		tr2.done(tf1);
+		tf2 = tr2.prepare(f2);
+		RepoUtils.modifyFileAppend(tf2, "B");
+		tr2.done(tf2);
+		File tf3 = tr2.prepare(f3);
+		errorCollector.assertTrue(tf3.exists());
+		RepoUtils.modifyFileAppend(tf3, "!");
+		tr2.done(tf3);
+		File tf4 = tr2.prepare(f4, backup4);
+		RepoUtils.createFile(tf4, "new");
+		tr2.done(tf4);
+		errorCollector.assertEquals("123", read(f1));
+		errorCollector.assertEquals("old", read(backup4));
+		tr2.rollback();
+		errorCollector.assertFalse(journal.exists());
+		errorCollector.assertFalse(f3.exists());
+		errorCollector.assertEquals("12", read(f1));
+		errorCollector.assertEquals("A", read(f2));
+		errorCollector.assertEquals("old", read(f4));
+		//
+		// existing empty file is journaled with zero length, like Mercurial does
+		File f5 = new File(dir, "f5");
+		RepoUtils.createFile(f5, "");
+		Transaction tr3 = f.create(ctx);
+		File tf5 = tr3.prepare(f5);
+		RepoUtils.modifyFileAppend(tf5, "X");
+		tr3.done(tf5);
+		tf1 = tr3.prepare(f1);
+		RepoUtils.modifyFileAppend(tf1, "3");
+		tr3.done(tf1);
+		errorCollector.assertEquals("f5\0" + "0\nf1\0" + "2\n", read(journal));
+		tr3.rollback();
+		errorCollector.assertTrue(f5.exists());
+		errorCollector.assertEquals("", read(f5));
+		errorCollector.assertEquals("12", read(f1));
+		Transaction tr4 = f.create(ctx);
+		tf5 = tr4.prepare(f5);
+		RepoUtils.modifyFileAppend(tf5, "Y");
+		tr4.done(tf5);
+		tr4.commit();
+		errorCollector.assertEquals("Y", read(f5));
+		//
+		// files outside of the store are backed up, not journaled
+		File outer = RepoUtils.createEmptyDir("test-transaction-journal-wc");
+		File f6 = new File(outer, "f6"), f7 = new File(outer, "f7"), f8 = new File(outer, "f8");
+		RepoUtils.createFile(f6, "6");
+		Transaction tr5 = f.create(ctx);
+		File tf6 = tr5.prepare(f6);
+		RepoUtils.modifyFileAppend(tf6, "!");
+		tr5.done(tf6);
+		File tf7 = tr5.prepare(f7);
+		errorCollector.assertTrue(tf7.exists());
+		RepoUtils.modifyFileAppend(tf7, "7");
+		tr5.done(tf7);
+		File tf8 = tr5.prepare(f8, new File(outer, "undo.f8"));
+		RepoUtils.createFile(tf8, "8");
+		tr5.done(tf8);
+		tf1 = tr5.prepare(f1);
+		RepoUtils.modifyFileAppend(tf1, "3");
+		tr5.done(tf1);
+		errorCollector.assertEquals("f1\0" + "2\n", read(journal));
+		tr5.rollback();
+		errorCollector.assertFalse(journal.exists());
+		errorCollector.assertEquals("6", read(f6));
+		errorCollector.assertFalse(f7.exists());
+		errorCollector.assertFalse(f8.exists());
+		errorCollector.assertFalse(new File(outer, "f6.hg4j.orig").exists());
+		errorCollector.assertEquals("12", read(f1));
+		//
+		// journal left by an interrupted transaction
+		RepoUtils.createFile(journal, "f1\0" + "1\n");
+		try {
+			f.create(ctx).prepare(f1);
+			fail("Journal of another transaction shall not get overwritten");
+		} catch (HgIOException ex) {
+			// expected
+		}
+		errorCollector.assertEquals("12", read(f1));
+	}
+
 	String read(File f) throws IOException {
 		StringBuilder sb = new StringBuilder();
 		FileReader fr = new FileReader(f);